@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2015 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -21,13 +21,13 @@ package org.alfresco.web.evaluator;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-import org.json.simple.parser.ParseException;
 import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.site.AuthenticationUtil;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
 
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Base class for all UI evaluators.
@@ -38,10 +38,18 @@ public abstract class BaseEvaluator implements Evaluator
 {
     private static final String PORTLET_HOST = "portletHost";
 
-    // optional args from the calling webscript
-    protected HashMap<String, String> args = null;
-    // metadata from the webscript response
-    protected JSONObject metadata = null;
+    /** Most accessor paths to hold compiled - accessors normally come from bean configuration */
+    private static final int MAX_ACCESSOR_PATHS = 1024;
+
+    /** Compiled dot notation accessor paths, shared by all evaluators */
+    private static final ConcurrentMap<String, String[]> ACCESSOR_PATHS = new ConcurrentHashMap<String, String[]>(64);
+
+    /**
+     * The context of the evaluation running on the current thread. Evaluators are singleton beans
+     * called by many requests at once, so the metadata and args can't be held in the bean.
+     */
+    private static final ThreadLocal<EvaluationContext> CONTEXT = new ThreadLocal<EvaluationContext>();
+
     // negate output flag
     protected boolean negateOutput = false;
 
@@ -81,6 +89,9 @@ public abstract class BaseEvaluator implements Evaluator
     /**
      * Main entry point from Rhino script. Converts JSON String to a JSONObject
      * and calls the overridable evaluate() method.
+     * <p>
+     * When evaluating many records against the same metadata, create an {@link EvaluationContext}
+     * once and use {@link #evaluate(JSONObject, EvaluationContext)} instead.
      *
      * @param record JSON String or JSONObject as received from a Rhino script
      * @param metadata JSON String or JSONObject as received from a Rhino script
@@ -90,45 +101,60 @@ public abstract class BaseEvaluator implements Evaluator
     @SuppressWarnings({"WeakerAccess"})
     public final boolean evaluate(Object record, Object metadata, HashMap<String, String> args)
     {
-        JSONObject jsonObject;
-        this.args = args;
+        if (record == null)
+        {
+            throw new AlfrescoRuntimeException("Failed to run UI evaluator: Expecting either JSONObject or JSON String for 'record'");
+        }
+        JSONObject jsonObject = EvaluationContext.toJSONObject(record, "record");
+        return evaluate(jsonObject, EvaluationContext.create(metadata, args));
+    }
 
+    /**
+     * Entry point for an evaluation of an already parsed record within an evaluation context.
+     * Applies the negateOutput flag to the result of the overridable evaluate() method.
+     * <p>
+     * This method is thread-safe: the context is only visible to evaluations on the calling thread.
+     *
+     * @param record The record the evaluation is for
+     * @param context The metadata and args for the evaluation
+     * @return boolean indicating evaluator result
+     */
+    public final boolean evaluate(JSONObject record, EvaluationContext context)
+    {
+        final EvaluationContext previous = CONTEXT.get();
+        CONTEXT.set(context);
         try
         {
-            if (record instanceof JSONObject)
-            {
-                jsonObject = (JSONObject)record;
-            }
-            else if (record instanceof String)
-            {
-                jsonObject = (JSONObject)JSONValue.parseWithException((String)record);
-            }
-            else
-            {
-                throw new IllegalArgumentException("Expecting either JSONObject or JSON String for 'record'");
-            }
-            if (metadata instanceof JSONObject)
-            {
-                this.metadata = (JSONObject)metadata;
-            }
-            else if (metadata instanceof String)
+            return (this.negateOutput ^ evaluate(record));
+        }
+        finally
+        {
+            if (previous == null)
             {
-                this.metadata = (JSONObject)JSONValue.parseWithException((String)metadata);
+                CONTEXT.remove();
             }
             else
             {
-                throw new IllegalArgumentException("Expecting either JSONObject or JSON String for 'metadata'");
+                CONTEXT.set(previous);
             }
         }
-        catch (ParseException perr)
-        {
-            throw new AlfrescoRuntimeException("Failed to parse JSON string: " + perr.getMessage());
-        }
-        catch (Exception err)
+    }
+
+    /**
+     * Runs an evaluator within the evaluation already in progress on this thread, applying its
+     * negateOutput flag - used to chain evaluators without setting up the context again.
+     *
+     * @param evaluator Evaluator to run
+     * @param jsonObject The object the evaluation is for
+     * @return boolean indicating evaluator result
+     */
+    protected static boolean evaluateChained(Evaluator evaluator, JSONObject jsonObject)
+    {
+        if (evaluator instanceof BaseEvaluator)
         {
-            throw new AlfrescoRuntimeException("Failed to run UI evaluator: " + err.getMessage());
+            return ((BaseEvaluator)evaluator).negateOutput ^ evaluator.evaluate(jsonObject);
         }
-        return (this.negateOutput ^ evaluate(jsonObject));
+        return evaluator.evaluate(jsonObject);
     }
 
     /**
@@ -147,7 +173,8 @@ public abstract class BaseEvaluator implements Evaluator
     @SuppressWarnings({"UnusedDeclaration"})
     public final HashMap<String, String> getArgs()
     {
-        return this.args;
+        final EvaluationContext context = CONTEXT.get();
+        return context != null ? context.getArgs() : null;
     }
 
     /**
@@ -158,9 +185,10 @@ public abstract class BaseEvaluator implements Evaluator
      */
     public final String getArg(String name)
     {
-        if (this.args != null && this.args.containsKey(name))
+        final HashMap<String, String> args = getArgs();
+        if (args != null)
         {
-            return this.args.get(name);
+            return args.get(name);
         }
         return null;
     }
@@ -172,7 +200,8 @@ public abstract class BaseEvaluator implements Evaluator
      */
     public final JSONObject getMetadata()
     {
-        return this.metadata;
+        final EvaluationContext context = CONTEXT.get();
+        return context != null ? context.getMetadata() : null;
     }
 
     /**
@@ -469,7 +498,7 @@ public abstract class BaseEvaluator implements Evaluator
      */
     public final Object getJSONValue(JSONObject jsonObject, String accessor)
     {
-        String[] keys = accessor.split("\\.");
+        String[] keys = getAccessorPath(accessor);
         Object record = jsonObject;
 
         for (String key : keys)
@@ -490,6 +519,26 @@ public abstract class BaseEvaluator implements Evaluator
         return record;
     }
 
+    /**
+     * Get the keys of a dot notation accessor, compiling them on first use
+     *
+     * @param accessor String containing dotted notation path to value
+     * @return keys of the path
+     */
+    private static String[] getAccessorPath(String accessor)
+    {
+        String[] keys = ACCESSOR_PATHS.get(accessor);
+        if (keys == null)
+        {
+            keys = accessor.split("\\.");
+            if (ACCESSOR_PATHS.size() < MAX_ACCESSOR_PATHS)
+            {
+                ACCESSOR_PATHS.putIfAbsent(accessor, keys);
+            }
+        }
+        return keys;
+    }
+
     /**
      * Get a boolean value indicating whether the node has binary content
      *
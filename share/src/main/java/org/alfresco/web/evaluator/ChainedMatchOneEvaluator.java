@@ -22,7 +22,6 @@ package org.alfresco.web.evaluator;
 import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
-import java.util.ListIterator;
 
 /**
  * Calls multiple evaluators in turn until either the last one is called
@@ -33,7 +32,7 @@ import java.util.ListIterator;
  */
 public class ChainedMatchOneEvaluator extends BaseEvaluator
 {
-    private ArrayList<Evaluator> evaluators = null;
+    private Evaluator[] evaluators = null;
 
     /**
      * Evaluators to participate in the evaluation chain
@@ -42,7 +41,7 @@ public class ChainedMatchOneEvaluator extends BaseEvaluator
      */
     public void setEvaluators(ArrayList<Evaluator> evaluators)
     {
-        this.evaluators = evaluators;
+        this.evaluators = evaluators != null ? evaluators.toArray(new Evaluator[evaluators.size()]) : null;
     }
 
     /**
@@ -60,14 +59,9 @@ public class ChainedMatchOneEvaluator extends BaseEvaluator
         if (evaluators != null)
         {
             result = false;
-            ListIterator<Evaluator> evalIter = evaluators.listIterator();
-
-            while (!result && evalIter.hasNext())
+            for (int i = 0; !result && i < evaluators.length; i++)
             {
-                BaseEvaluator evaluator = (BaseEvaluator)evalIter.next();
-                evaluator.args = this.args;
-                evaluator.metadata = this.metadata;
-                result = evaluator.negateOutput ^ evaluator.evaluate(jsonObject);
+                result = evaluateChained(evaluators[i], jsonObject);
             }
         }
 
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.evaluator;
+
+import java.util.HashMap;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The state shared by every evaluation made for one webscript request - the metadata from the
+ * webscript response and the optional arguments of the calling webscript.
+ * <p>
+ * A context is created once and then passed to
+ * {@link BaseEvaluator#evaluate(JSONObject, EvaluationContext)} for each record, so the metadata is
+ * parsed just once however many records and evaluators there are. The context is immutable - the
+ * args map must not be changed once the context is in use.
+ */
+public final class EvaluationContext
+{
+    /** Context with no metadata and no args */
+    public static final EvaluationContext EMPTY = new EvaluationContext(null, null);
+
+    private final JSONObject metadata;
+    private final HashMap<String, String> args;
+
+    /**
+     * @param metadata metadata from the webscript response (may be null)
+     * @param args URL arguments passed to calling webscript (may be null)
+     */
+    public EvaluationContext(JSONObject metadata, HashMap<String, String> args)
+    {
+        this.metadata = metadata;
+        this.args = args;
+    }
+
+    /**
+     * Create a context from metadata as received from a Rhino script.
+     *
+     * @param metadata JSON String or JSONObject (may be null)
+     * @param args URL arguments passed to calling webscript (may be null)
+     * @return EvaluationContext
+     */
+    public static EvaluationContext create(Object metadata, HashMap<String, String> args)
+    {
+        return new EvaluationContext(toJSONObject(metadata, "metadata"), args);
+    }
+
+    /**
+     * Converts a JSON String or JSONObject as received from a Rhino script to a JSONObject.
+     *
+     * @param value JSON String or JSONObject
+     * @param name name of the value for error messages
+     * @return JSONObject or null if the value was null
+     */
+    static JSONObject toJSONObject(Object value, String name)
+    {
+        if (value == null || value instanceof JSONObject)
+        {
+            return (JSONObject)value;
+        }
+        else if (value instanceof String)
+        {
+            try
+            {
+                return (JSONObject)JSONValue.parseWithException((String)value);
+            }
+            catch (ParseException perr)
+            {
+                throw new AlfrescoRuntimeException("Failed to parse JSON string: " + perr.getMessage());
+            }
+            catch (ClassCastException err)
+            {
+                throw new AlfrescoRuntimeException("Failed to run UI evaluator: " + err.getMessage());
+            }
+        }
+        throw new AlfrescoRuntimeException("Failed to run UI evaluator: Expecting either JSONObject or JSON String for '" + name + "'");
+    }
+
+    /**
+     * @return JSONObject metadata (may be null)
+     */
+    public JSONObject getMetadata()
+    {
+        return this.metadata;
+    }
+
+    /**
+     * @return HashMap args map (may be null)
+     */
+    public HashMap<String, String> getArgs()
+    {
+        return this.args;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2015 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -19,7 +19,6 @@
 package org.alfresco.web.evaluator;
 
 import java.util.ArrayList;
-import java.util.ListIterator;
 
 import org.json.simple.JSONObject;
 
@@ -37,7 +36,7 @@ import org.json.simple.JSONObject;
  */
 public class VirtualChainedMatchOneEvaluator extends VirtualBaseEvaluator
 {
-    private ArrayList<Evaluator> evaluators = null;
+    private Evaluator[] evaluators = null;
 
     /**
      * Evaluators to participate in the evaluation chain
@@ -46,7 +45,7 @@ public class VirtualChainedMatchOneEvaluator extends VirtualBaseEvaluator
      */
     public void setEvaluators(ArrayList<Evaluator> evaluators)
     {
-        this.evaluators = evaluators;
+        this.evaluators = evaluators != null ? evaluators.toArray(new Evaluator[evaluators.size()]) : null;
     }
 
     /**
@@ -70,14 +69,9 @@ public class VirtualChainedMatchOneEvaluator extends VirtualBaseEvaluator
         boolean result = false;
 
         if(evaluators!=null){
-            ListIterator<Evaluator> evalIter = evaluators.listIterator();
-
-            while (!result && evalIter.hasNext())
+            for (int i = 0; !result && i < evaluators.length; i++)
             {
-                BaseEvaluator evaluator = (BaseEvaluator)evalIter.next();
-                evaluator.args = this.args;
-                evaluator.metadata = this.metadata;
-                result = evaluator.negateOutput ^ evaluator.evaluate(jsonObject);
+                result = evaluateChained(evaluators[i], jsonObject);
             }
         }
         return result;
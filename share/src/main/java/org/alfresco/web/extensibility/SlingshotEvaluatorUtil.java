@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2015 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -18,11 +18,14 @@
  */
 package org.alfresco.web.extensibility;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpSession;
 
@@ -34,6 +37,8 @@ import org.json.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.springframework.extensions.config.RemoteConfigElement;
 import org.springframework.extensions.config.RemoteConfigElement.EndpointDescriptor;
+import org.springframework.extensions.surf.ClusterMessageAware;
+import org.springframework.extensions.surf.ClusterService;
 import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.ServletUtil;
 import org.springframework.extensions.surf.UserFactory;
@@ -54,11 +59,19 @@ import org.springframework.extensions.webscripts.connector.Response;
  *
  * @author ewinlof
  */
-public class SlingshotEvaluatorUtil {
+public class SlingshotEvaluatorUtil implements ClusterMessageAware {
 
     private static Log logger = LogFactory.getLog(SlingshotEvaluatorUtil.class);
 
     public static final String SITE_PRESET_CACHE = SlingshotEvaluatorUtil.class.getName() + ".sitePresets";
+    public static final String MEMBERSHIP_CACHE = SlingshotEvaluatorUtil.class.getName() + ".memberships";
+
+    /** Cached site role of a user that is not a member of the site */
+    private static final String NO_SITE_ROLE = "";
+
+    /* Membership cache key prefixes */
+    private static final String GROUPS_KEY_PREFIX = "G\u0000";
+    private static final String SITE_KEY_PREFIX = "S\u0000";
 
     /* Context attributes and url parameters/path tokens */
     protected static final String PORTLET_HOST = "portletHost"; // Set by the ProxyPortlet
@@ -69,11 +82,44 @@ public class SlingshotEvaluatorUtil {
 
     protected WebFrameworkServiceRegistry serviceRegistry = null;
 
+    protected ClusterService clusterService = null;
+
+    /** Group and site memberships shared by all sessions, by user (and site) */
+    private final ConcurrentMap<String, CachedMembership> membershipCache = new ConcurrentHashMap<>();
+
+    private long groupMembershipTimeout = 300L;
+    private long siteMembershipTimeout = 30L;
+    private int maxCachedMemberships = 10000;
+
     public void setServiceRegistry(WebFrameworkServiceRegistry serviceRegistry)
     {
         this.serviceRegistry = serviceRegistry;
     }
 
+    /**
+     * @param groupMembershipTimeout Seconds to cache the group memberships of a user for, zero to only cache them per request
+     */
+    public void setGroupMembershipTimeout(long groupMembershipTimeout)
+    {
+        this.groupMembershipTimeout = groupMembershipTimeout;
+    }
+
+    /**
+     * @param siteMembershipTimeout Seconds to cache the role of a user in a site for, zero to only cache it per request
+     */
+    public void setSiteMembershipTimeout(long siteMembershipTimeout)
+    {
+        this.siteMembershipTimeout = siteMembershipTimeout;
+    }
+
+    /**
+     * @param maxCachedMemberships Most group and site memberships to cache
+     */
+    public void setMaxCachedMemberships(int maxCachedMemberships)
+    {
+        this.maxCachedMemberships = maxCachedMemberships;
+    }
+
     /**
      * Helper for getting an evaluator parameter trimmed OR defaultValue if no value has been provided.
      *
@@ -279,13 +325,11 @@ public class SlingshotEvaluatorUtil {
         // any membership information has actually been processed (e.g. when NO groups have been specified).
         Boolean isMember = null;
 
-        // We're going to store GROUP membership in the HttpSession as this changes infrequently but will be
-        // accessing SITE membership for every request. Surf will ensure that requests are cached for each
-        // page so we are not making the same request more than once per page. Site membership can change more
-        // frequently so we need to be sure that the information we have is up-to-date.
-        HttpSession session = ServletUtil.getSession();
+        // GROUP and SITE membership are held in the membership cache shared by all sessions on this node, for
+        // a short time for SITE membership as it changes more frequently, and in the request so that the many
+        // evaluators called for a page look them up at most once.
+        final String userId = context.getUserId();
         org.json.simple.JSONArray groupsList = null;
-        String GROUP_MEMBERSHIPS = "AlfGroupMembershipsKey";
 
         // Get the current site
         String currentSite = getSite(context);
@@ -301,10 +345,9 @@ public class SlingshotEvaluatorUtil {
             }
         }
 
-        // Get all the group membership first so that we don't perform this operation multiple times... check
-        // the HttpSession and if it's not already available then make a request for it and cache it for future
-        // reference. Note that we're ONLY caching the current users membership information.
-        Object _cachedGroupMemberships = session.getAttribute(GROUP_MEMBERSHIPS);
+        // Get all the group membership first so that we don't perform this operation multiple times...
+        final String groupsKey = groupsKey(userId);
+        Object _cachedGroupMemberships = getCachedMembership(context, groupsKey);
         if (_cachedGroupMemberships instanceof org.json.simple.JSONArray)
         {
             groupsList = (org.json.simple.JSONArray) _cachedGroupMemberships;
@@ -325,9 +368,10 @@ public class SlingshotEvaluatorUtil {
                         // User is not logged in anymore
                         return false;
                     }
+                    HttpSession session = ServletUtil.getSession();
                     String userName = (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID);
-                    Connector connector = context.getServiceRegistry().getConnectorService().getConnector(SlingshotUserFactory.ALFRESCO_ENDPOINT_ID, userName, ServletUtil.getSession());
-                    Response res = connector.call("/api/people/" + URLEncoder.encode(context.getUserId()) + "?groups=true");
+                    Connector connector = context.getServiceRegistry().getConnectorService().getConnector(SlingshotUserFactory.ALFRESCO_ENDPOINT_ID, userName, session);
+                    Response res = connector.call("/api/people/" + URLEncoder.encode(userId) + "?groups=true");
                     if (res.getStatus().getCode() == Status.STATUS_OK)
                     {
                         String response = res.getResponse();
@@ -337,18 +381,21 @@ public class SlingshotEvaluatorUtil {
                         {
                             org.json.simple.JSONObject jsonRes = (org.json.simple.JSONObject) o2;
                             groupsList = (org.json.simple.JSONArray) jsonRes.get("groups");
-                            session.setAttribute(GROUP_MEMBERSHIPS, groupsList);
+                            if (groupsList != null)
+                            {
+                                putCachedMembership(context, groupsKey, groupsList, this.groupMembershipTimeout);
+                            }
                         }
                     }
                 }
             }
             catch (ConnectorServiceException e)
             {
-                e.printStackTrace();
+                logger.error("Unable to retrieve group memberships of user: " + userId, e);
             }
             catch (ParseException e)
             {
-                e.printStackTrace();
+                logger.error("Unable to parse group memberships of user: " + userId, e);
             }
         }
 
@@ -373,48 +420,57 @@ public class SlingshotEvaluatorUtil {
                     {
                         // We're going to rely on URI tokens to determine if we're viewing a site - it's the
                         // best data available from the RequestContext.
-                        try
+                        final String siteKey = siteKey(userId, currentSite);
+                        Object siteMembership = getCachedMembership(context, siteKey);
+                        if (siteMembership == null)
                         {
-                            CredentialVault cv = context.getCredentialVault();
-                            if (cv != null)
+                            try
                             {
-                                Credentials creds = cv.retrieve(AlfrescoUserFactory.ALFRESCO_ENDPOINT_ID);
-                                if (creds == null && !externalAuth)
-                                {
-                                    // User is not logged in anymore
-                                    return false;
-                                }
-                                String userName = (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID);
-                                Connector connector = context.getServiceRegistry().getConnectorService().getConnector(AlfrescoUserFactory.ALFRESCO_ENDPOINT_ID, userName, ServletUtil.getSession());
-                                Response res = connector.call("/api/sites/" + currentSite + "/memberships/" + URLEncoder.encode(context.getUserId()));
-                                if (res.getStatus().getCode() == Status.STATUS_OK)
+                                CredentialVault cv = context.getCredentialVault();
+                                if (cv != null)
                                 {
-                                    String response = res.getResponse();
-                                    org.json.simple.parser.JSONParser p = new org.json.simple.parser.JSONParser();
-                                    Object o2 = p.parse(response);
-                                    if (o2 instanceof org.json.simple.JSONObject)
+                                    Credentials creds = cv.retrieve(AlfrescoUserFactory.ALFRESCO_ENDPOINT_ID);
+                                    if (creds == null && !externalAuth)
                                     {
-                                        org.json.simple.JSONObject jsonRes = (org.json.simple.JSONObject) o2;
-                                        String siteMembership = (String) jsonRes.get("role");
-                                        isMemberOfCurrentGroup = siteMembership.equals(groupName);
+                                        // User is not logged in anymore
+                                        return false;
                                     }
-                                }
-                                else
-                                {
-                                    // When the user is NOT a member of the site the request will actually return a 404 (rather than a 200)
-                                    // so on any request that fails we will assume they are not a member of the site.
-                                    isMemberOfCurrentGroup = false;
+                                    HttpSession session = ServletUtil.getSession();
+                                    String userName = (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID);
+                                    Connector connector = context.getServiceRegistry().getConnectorService().getConnector(AlfrescoUserFactory.ALFRESCO_ENDPOINT_ID, userName, session);
+                                    Response res = connector.call("/api/sites/" + currentSite + "/memberships/" + URLEncoder.encode(userId));
+                                    if (res.getStatus().getCode() == Status.STATUS_OK)
+                                    {
+                                        String response = res.getResponse();
+                                        org.json.simple.parser.JSONParser p = new org.json.simple.parser.JSONParser();
+                                        Object o2 = p.parse(response);
+                                        if (o2 instanceof org.json.simple.JSONObject)
+                                        {
+                                            org.json.simple.JSONObject jsonRes = (org.json.simple.JSONObject) o2;
+                                            Object role = jsonRes.get("role");
+                                            siteMembership = (role != null) ? role.toString() : NO_SITE_ROLE;
+                                            putCachedMembership(context, siteKey, siteMembership, this.siteMembershipTimeout);
+                                        }
+                                    }
+                                    else if (res.getStatus().getCode() == Status.STATUS_NOT_FOUND)
+                                    {
+                                        // When the user is NOT a member of the site the request will actually return a 404 (rather than a 200)
+                                        siteMembership = NO_SITE_ROLE;
+                                        putCachedMembership(context, siteKey, siteMembership, this.siteMembershipTimeout);
+                                    }
+                                    // on any other request that fails we will assume they are not a member of the site.
                                 }
                             }
+                            catch (ConnectorServiceException e)
+                            {
+                                logger.error("Unable to retrieve membership of site '" + currentSite + "' for user: " + userId, e);
+                            }
+                            catch (ParseException e)
+                            {
+                                logger.error("Unable to parse membership of site '" + currentSite + "' for user: " + userId, e);
+                            }
                         }
-                        catch (ConnectorServiceException e)
-                        {
-                            e.printStackTrace();
-                        }
-                        catch (ParseException e)
-                        {
-                            e.printStackTrace();
-                        }
+                        isMemberOfCurrentGroup = groupName.equals(siteMembership);
                     }
                 }
                 else if (groupsList != null)
@@ -459,6 +515,255 @@ public class SlingshotEvaluatorUtil {
         return isMember;
     }
 
+    /**
+     * Stores the group memberships of a user, as retrieved from /api/people/{user}?groups=true, in the
+     * membership cache. Used to seed the cache with the groups retrieved as the user logs in.
+     * <p>
+     * When the groups differ from those previously held for the user, the memberships held for the
+     * user by the other nodes of the cluster are invalidated.
+     *
+     * @param userId The user
+     * @param groupsList The JSON array of groups of the user
+     */
+    public void putGroupMemberships(String userId, org.json.simple.JSONArray groupsList)
+    {
+        final String groupsKey = groupsKey(userId);
+        final CachedMembership previous = this.membershipCache.get(groupsKey);
+        putCachedMembership(null, groupsKey, groupsList, this.groupMembershipTimeout);
+        if (previous != null && !groupsList.equals(previous.value))
+        {
+            publishInvalidation(userId);
+        }
+    }
+
+    /**
+     * Removes the group and site memberships of a user from the membership cache of every node in the cluster.
+     *
+     * @param userId The user
+     */
+    public void invalidateMemberships(String userId)
+    {
+        removeCachedMemberships(userId);
+        publishInvalidation(userId);
+    }
+
+    /**
+     * Removes the roles of all users in a site from the membership cache of every node in the cluster.
+     *
+     * @param siteId The site
+     */
+    public void invalidateSiteMemberships(String siteId)
+    {
+        removeCachedSiteMemberships(siteId);
+        publishInvalidation(MembershipInvalidationMessage.PAYLOAD_SITEID, siteId);
+    }
+
+    /**
+     * Removes the group memberships of all users from the membership cache of every node in the cluster.
+     * As groups may be nested, a change to any group can change the groups of any user.
+     */
+    public void invalidateGroupMemberships()
+    {
+        removeCachedGroupMemberships();
+        publishInvalidation(MembershipInvalidationMessage.PAYLOAD_GROUPS, Boolean.TRUE);
+    }
+
+    private void publishInvalidation(String userId)
+    {
+        publishInvalidation(MembershipInvalidationMessage.PAYLOAD_USERID, userId);
+    }
+
+    private void publishInvalidation(String name, Serializable value)
+    {
+        if (this.clusterService != null)
+        {
+            Map<String, Serializable> params = new HashMap<>(2);
+            params.put(name, value);
+            this.clusterService.publishClusterMessage(MembershipInvalidationMessage.TYPE, params);
+        }
+    }
+
+    /**
+     * Get a membership from the request cache, then from the node wide membership cache.
+     *
+     * @return the membership or null if not cached
+     */
+    @SuppressWarnings("unchecked")
+    Object getCachedMembership(RequestContext context, String key)
+    {
+        HashMap<String, Object> requestCache = (HashMap<String, Object>) context.getAttributes().get(MEMBERSHIP_CACHE);
+        if (requestCache == null)
+        {
+            requestCache = new HashMap<>();
+            context.getAttributes().put(MEMBERSHIP_CACHE, requestCache);
+        }
+        Object value = requestCache.get(key);
+        if (value == null)
+        {
+            final CachedMembership cached = this.membershipCache.get(key);
+            if (cached != null)
+            {
+                if (cached.expires > System.currentTimeMillis())
+                {
+                    value = cached.value;
+                    requestCache.put(key, value);
+                }
+                else
+                {
+                    this.membershipCache.remove(key, cached);
+                }
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    void putCachedMembership(RequestContext context, String key, Object value, long timeout)
+    {
+        if (context != null)
+        {
+            ((HashMap<String, Object>) context.getAttributes().get(MEMBERSHIP_CACHE)).put(key, value);
+        }
+        if (timeout > 0)
+        {
+            if (this.membershipCache.size() >= this.maxCachedMemberships)
+            {
+                purgeCachedMemberships();
+            }
+            this.membershipCache.put(key, new CachedMembership(value, System.currentTimeMillis() + timeout * 1000L));
+        }
+    }
+
+    /**
+     * Remove the expired memberships from the membership cache - or all of them if it is still full.
+     */
+    private void purgeCachedMemberships()
+    {
+        final long now = System.currentTimeMillis();
+        for (Iterator<CachedMembership> i = this.membershipCache.values().iterator(); i.hasNext(); )
+        {
+            if (i.next().expires <= now)
+            {
+                i.remove();
+            }
+        }
+        if (this.membershipCache.size() >= this.maxCachedMemberships)
+        {
+            this.membershipCache.clear();
+        }
+    }
+
+    private void removeCachedMemberships(String userId)
+    {
+        final String groupsKey = groupsKey(userId);
+        final String sitePrefix = siteKey(userId, "");
+        for (Iterator<String> i = this.membershipCache.keySet().iterator(); i.hasNext(); )
+        {
+            final String key = i.next();
+            if (key.equals(groupsKey) || key.startsWith(sitePrefix))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    private void removeCachedSiteMemberships(String siteId)
+    {
+        final String siteSuffix = "\u0000" + siteId;
+        for (Iterator<String> i = this.membershipCache.keySet().iterator(); i.hasNext(); )
+        {
+            final String key = i.next();
+            if (key.startsWith(SITE_KEY_PREFIX) && key.endsWith(siteSuffix))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    private void removeCachedGroupMemberships()
+    {
+        for (Iterator<String> i = this.membershipCache.keySet().iterator(); i.hasNext(); )
+        {
+            if (i.next().startsWith(GROUPS_KEY_PREFIX))
+            {
+                i.remove();
+            }
+        }
+    }
+
+    static String groupsKey(String userId)
+    {
+        return GROUPS_KEY_PREFIX + userId;
+    }
+
+    static String siteKey(String userId, String siteId)
+    {
+        return SITE_KEY_PREFIX + userId + "\u0000" + siteId;
+    }
+
+    /**
+     * Membership held in the membership cache until it expires.
+     */
+    private static final class CachedMembership
+    {
+        final Object value;
+        final long expires;
+
+        CachedMembership(Object value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Cluster message to invalidate the memberships held for a user.
+     */
+    static interface MembershipInvalidationMessage
+    {
+        static final String TYPE = "membership-invalidation";
+        static final String PAYLOAD_USERID = "user";
+        static final String PAYLOAD_SITEID = "site";
+        static final String PAYLOAD_GROUPS = "groups";
+    }
+
+    @Override
+    public void setClusterService(ClusterService service)
+    {
+        this.clusterService = service;
+    }
+
+    @Override
+    public String getClusterMessageType()
+    {
+        return MembershipInvalidationMessage.TYPE;
+    }
+
+    @Override
+    public void onClusterMessage(Map<String, Serializable> payload)
+    {
+        final String userId = (String) payload.get(MembershipInvalidationMessage.PAYLOAD_USERID);
+        if (userId != null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Cluster message to invalidate memberships of user: " + userId);
+            removeCachedMemberships(userId);
+        }
+        final String siteId = (String) payload.get(MembershipInvalidationMessage.PAYLOAD_SITEID);
+        if (siteId != null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Cluster message to invalidate memberships of site: " + siteId);
+            removeCachedSiteMemberships(siteId);
+        }
+        if (Boolean.TRUE.equals(payload.get(MembershipInvalidationMessage.PAYLOAD_GROUPS)))
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Cluster message to invalidate group memberships");
+            removeCachedGroupMemberships();
+        }
+    }
+
     /**
      * Gets the list of groups to check for membership of. This assumes that the groups have been
      * provided as a comma delimited string and will convert that string into a List removing trailing
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2011 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -18,6 +18,11 @@
  */
 package org.alfresco.web.scripts;
 
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.alfresco.web.evaluator.EvaluationContext;
 import org.alfresco.web.evaluator.Evaluator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,6 +40,9 @@ public class ActionEvaluatorHelper extends BaseProcessorExtension implements App
 
     protected ApplicationContext applicationContext = null;
 
+    /** Singleton evaluator beans already looked up, by bean reference */
+    private final ConcurrentMap<String, Evaluator> evaluators = new ConcurrentHashMap<String, Evaluator>(128);
+
     /*
      * Set ApplicationContext
      *
@@ -53,14 +61,24 @@ public class ActionEvaluatorHelper extends BaseProcessorExtension implements App
      */
     public Evaluator getEvaluator(String evaluatorName)
     {
+        Evaluator evaluator = evaluators.get(evaluatorName);
+        if (evaluator != null)
+        {
+            return evaluator;
+        }
         try
         {
-            Evaluator evaluator = (Evaluator) applicationContext.getBean(evaluatorName);
-            if (evaluator instanceof Evaluator == false)
+            Object bean = applicationContext.getBean(evaluatorName);
+            if (bean instanceof Evaluator == false)
             {
                 logger.warn("Bean with id '" + evaluatorName + "' does not implement Evaluator interface.");
                 return null;
             }
+            evaluator = (Evaluator) bean;
+            if (applicationContext.isSingleton(evaluatorName))
+            {
+                evaluators.put(evaluatorName, evaluator);
+            }
             return evaluator;
         }
         catch (Exception e)
@@ -73,4 +91,17 @@ public class ActionEvaluatorHelper extends BaseProcessorExtension implements App
         }
         return null;
     }
+
+    /*
+     * Creates the evaluation of the records of a document list page, which runs each evaluator
+     * at most once per record and parses the metadata once for the whole page.
+     *
+     * @param metadata  JSON String or JSONObject metadata of the document list
+     * @param args      URL arguments passed to calling webscript
+     * @return DocListEvaluation
+     */
+    public DocListEvaluation createEvaluation(Object metadata, HashMap<String, String> args)
+    {
+        return new DocListEvaluation(EvaluationContext.create(metadata, args));
+    }
 }
@@ -20,10 +20,15 @@ package org.alfresco.web.scripts;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.util.ParameterCheck;
@@ -536,7 +541,7 @@ public class DictionaryQuery extends SingletonValueProcessorExtension<Dictionary
     {
         final String userId = (String)payload.get(DictionaryUpdateMessage.PAYLOAD_USERID);
         final String jsonAdd = (String)payload.get(DictionaryUpdateMessage.PAYLOAD_ADD);
-        final String jsonRemove = (String)payload.get(DictionaryUpdateMessage.PAYLOAD_ADD);
+        final String jsonRemove = (String)payload.get(DictionaryUpdateMessage.PAYLOAD_REMOVE);
         
         if (jsonAdd != null)
         {
@@ -567,6 +572,11 @@ public class DictionaryQuery extends SingletonValueProcessorExtension<Dictionary
  * Handles the internals of various dictionary queries and manipulates the JSON data
  * that represents each type, aspect and its properties. The various public methods
  * on the DictionaryQuery should stay isolated from the JSON internals.
+ * <p>
+ * Each type and aspect is compiled once, as the dictionary is retrieved or updated, into a DictionaryItem
+ * holding its parent, default aspects, properties and associations. The class hierarchies and default
+ * aspect properties are then indexed into an immutable Model, so that queries are simple lookups. Updates
+ * publish a new Model with a single write, so a query never sees a partly applied update.
  * 
  * @author Kevin Roast
  */
@@ -595,8 +605,11 @@ class Dictionary
     static final String JSON_ROLE = "role";
     static final String JSON_MANY = "many";
     
-    private Map<String, DictionaryItem> types;
-    private Map<String, DictionaryItem> aspects;
+    private static final String[] NO_NAMES = new String[0];
+    private static final DictionaryProperty[] NO_PROPERTIES = new DictionaryProperty[0];
+    private static final DictionaryAssoc[] NO_ASSOCS = new DictionaryAssoc[0];
+    
+    private volatile Model model;
     
     /**
      * Constructor
@@ -606,449 +619,134 @@ class Dictionary
      */
     Dictionary(Map<String, DictionaryItem> types, Map<String, DictionaryItem> aspects)
     {
-        this.types = types;
-        this.aspects = aspects;
+        this.model = new Model(types, aspects);
     }
     
     public DictionaryItem getType(String type)
     {
-        return this.types.get(type);
+        return this.model.types.get(type);
     }
     
     public DictionaryItem getAspect(String aspect)
     {
-        return this.aspects.get(aspect);
+        return this.model.aspects.get(aspect);
     }
     
     public DictionaryItem getTypeOrAspect(String ddclass)
     {
-        DictionaryItem item = this.types.get(ddclass);
-        if (item == null)
-        {
-            item = this.aspects.get(ddclass);
-        }
-        return item;
+        return this.model.getTypeOrAspect(ddclass);
     }
     
     public boolean isSubType(String type, String isType)
     {
-        boolean isSubType = false;
-        try
-        {
-            DictionaryItem ddtype = getType(type);
-            while (!isSubType && ddtype != null)
-            {
-                // the parent JSON object will always exist, but may be empty
-                JSONObject parent = ddtype.data.getJSONObject(JSON_PARENT);
-                if (parent.has(JSON_NAME))
-                {
-                    // found a parent type specified for our type
-                    String parentName = parent.getString(JSON_NAME);
-                    ddtype = this.types.get(parentName);
-                    if (ddtype != null)
-                    {
-                        isSubType = (isType.equals(ddtype.data.getString(JSON_NAME)));
-                    }
-                }
-                else
-                {
-                    // no parent found - end the search
-                    ddtype = null;
-                }
-            }
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'isSubType' information for: " + type, jsonErr);
-        }
-        return isSubType;
+        Set<String> superTypes = this.model.superTypes.get(type);
+        return superTypes != null && superTypes.contains(isType);
     }
     
     public String[] getSubTypes(String ddclass)
     {
-        try
-        {
-            List<String> subTypes = new ArrayList<String>();
-            DictionaryItem dditem = getType(ddclass);
-            if (dditem != null)
-            {
-                // TODO: get parent of given ddclass - if that is non-null then can be used as a quick exit for the parent hiearchy search on types
-                for (String typeName : this.types.keySet())
-                {
-                    DictionaryItem ddType = getType(typeName);
-                    String parentType = null;
-                    while (ddType != null)
-                    {
-                        // the parent JSON object will always exist, but name value may be empty
-                        JSONObject parent = ddType.data.getJSONObject(JSON_PARENT);
-                        parentType = parent.optString(JSON_NAME);
-                        if (parentType != null)
-                        {
-                            if (parentType.equals(ddclass))
-                            {
-                                // found a sub-type - store and exit the loop
-                                subTypes.add(parentType);
-                                ddType = null;
-                            }
-                            else
-                            {
-                                // get the parent type for another loop round
-                                ddType = getType(parentType);
-                            }
-                        }
-                    }
-                }
-            }
-            else
-            {
-                dditem = getAspect(ddclass);
-                if (dditem != null)
-                {
-                    for (String aspectName : this.aspects.keySet())
-                    {
-                        DictionaryItem ddAspect = getAspect(aspectName);
-                        String parentAspect = null;
-                        while (ddAspect != null)
-                        {
-                            // the parent JSON object will always exist, but name value may be empty
-                            JSONObject parent = ddAspect.data.getJSONObject(JSON_PARENT);
-                            parentAspect = parent.optString(JSON_NAME);
-                            if (parentAspect != null)
-                            {
-                                if (parentAspect.equals(ddclass))
-                                {
-                                    // found a sub-type - store and exit the loop
-                                    subTypes.add(parentAspect);
-                                    ddAspect = null;
-                                }
-                                else
-                                {
-                                    // get the parent aspect for another loop round
-                                    ddAspect = getAspect(parentAspect);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            return subTypes.toArray(new String[subTypes.size()]);
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'subtype' information for: " + ddclass, jsonErr);
-        }
+        String[] subTypes = this.model.subTypes.get(ddclass);
+        return subTypes != null ? subTypes.clone() : NO_NAMES;
     }
     
     public String[] getAllTypes()
     {
-        return this.types.keySet().toArray(new String[this.types.keySet().size()]);
+        return this.model.allTypes.clone();
     }
     
     public String[] getAllAspects()
     {
-        return this.aspects.keySet().toArray(new String[this.aspects.keySet().size()]);
+        return this.model.allAspects.clone();
     }
     
     public boolean hasDefaultAspect(String type, String aspect)
     {
-        boolean hasAspect = false;
-        try
-        {
-            DictionaryItem ddtype = getType(type);
-            if (ddtype != null)
-            {
-                JSONObject aspects = ddtype.data.getJSONObject(JSON_DEFAULT_ASPECTS);
-                Iterator<String> keys = aspects.keys();
-                while (!hasAspect && keys.hasNext())
-                {
-                    hasAspect = (aspect.equals(keys.next()));
-                }
-            }
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'defaultAspects' information for: " + type, jsonErr);
-        }
-        return hasAspect;
+        DictionaryItem ddtype = getType(type);
+        return ddtype != null && ddtype.defaultAspectSet.contains(aspect);
     }
     
     public String[] getDefaultAspects(String type)
     {
-        String[] defaultAspects = null;
-        try
-        {
-            DictionaryItem ddtype = getType(type);
-            if (ddtype != null)
-            {
-                JSONObject aspects = ddtype.data.getJSONObject(JSON_DEFAULT_ASPECTS);
-                defaultAspects = new String[aspects.length()];
-                int count = 0;
-                Iterator<String> keys = aspects.keys();
-                while (keys.hasNext())
-                {
-                    defaultAspects[count++] = keys.next();
-                }
-            }
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'defaultAspects' information for: " + type, jsonErr);
-        }
-        return defaultAspects != null ? defaultAspects : new String[0];
+        DictionaryItem ddtype = getType(type);
+        return ddtype != null ? ddtype.defaultAspects.clone() : NO_NAMES;
     }
     
     public boolean hasProperty(String ddclass, String property, boolean checkDefaultAspects)
     {
-        boolean hasProperty = false;
-        try
-        {
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                JSONObject properties = dditem.data.getJSONObject(JSON_PROPERTIES);
-                Iterator<String> props = properties.keys();
-                while (!hasProperty && props.hasNext())
-                {
-                    // test properties and inherited properties
-                    hasProperty = (property.equals(props.next()));
-                }
-                if (checkDefaultAspects && !hasProperty)
-                {
-                    // test each default aspect for the property
-                    JSONObject aspects = dditem.data.getJSONObject(JSON_DEFAULT_ASPECTS);
-                    Iterator<String> keys = aspects.keys();
-                    while (!hasProperty && keys.hasNext())
-                    {
-                        // get each aspect defined on the type
-                        DictionaryItem aspect = getAspect(keys.next());
-                        if (aspect != null)
-                        {
-                            props = aspect.data.getJSONObject(JSON_PROPERTIES).keys();
-                            while (!hasProperty && props.hasNext())
-                            {
-                                // test properties on each aspect
-                                hasProperty = (property.equals(props.next()));
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'properties' information for: " + ddclass, jsonErr);
-        }
-        return hasProperty;
+        return getProperty(ddclass, property, checkDefaultAspects) != null;
     }
    
     public String getTitle(String ddclass)
     {
-        try
-        {
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            return dditem != null ? dditem.data.getString(JSON_TITLE) : null;
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'title' information for: " + ddclass, jsonErr);
-        }
+        DictionaryItem dditem = getTypeOrAspect(ddclass);
+        return dditem != null ? dditem.title : null;
     }
     
     public String getDescription(String ddclass)
     {
-        try
-        {
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            return dditem != null ? dditem.data.getString(JSON_DESCRIPTION) : null;
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'description' information for: " + ddclass, jsonErr);
-        }
+        DictionaryItem dditem = getTypeOrAspect(ddclass);
+        return dditem != null ? dditem.description : null;
     }
     
     public String getParent(String ddclass)
     {
-        try
-        {
-            String parentType = null;
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                // the parent JSON object will always exist, but may be empty
-                JSONObject parent = dditem.data.getJSONObject(JSON_PARENT);
-                parentType = parent.optString(JSON_NAME);
-            }
-            return parentType;
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'parent' information for: " + ddclass, jsonErr);
-        }
+        DictionaryItem dditem = getTypeOrAspect(ddclass);
+        return dditem != null ? dditem.parent : null;
     }
     
     public boolean isContainer(String type)
     {
-        try
-        {
-            DictionaryItem ddtype = getType(type);
-            return ddtype != null ? ddtype.data.getBoolean(JSON_IS_CONTAINER) : false;
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'isContainer' information for: " + type, jsonErr);
-        }
+        DictionaryItem ddtype = getType(type);
+        return ddtype != null ? ddtype.isContainer : false;
     }
     
     public DictionaryProperty getProperty(String ddclass, String property, boolean checkDefaultAspects)
     {
-        try
-        {
-            DictionaryProperty ddprop = null;
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                JSONObject properties = dditem.data.getJSONObject(JSON_PROPERTIES);
-                if (properties.has(property))
-                {
-                    ddprop = new DictionaryProperty(property, properties.getJSONObject(property));
-                }
-                else if (checkDefaultAspects)
-                {
-                    // test each default aspect for the property
-                    JSONObject aspects = dditem.data.getJSONObject(JSON_DEFAULT_ASPECTS);
-                    Iterator<String> keys = aspects.keys();
-                    while (ddprop == null && keys.hasNext())
-                    {
-                        // get each aspect defined on the type
-                        DictionaryItem aspect = getAspect(keys.next());
-                        if (aspect != null)
-                        {
-                            properties = aspect.data.getJSONObject(JSON_PROPERTIES);
-                            if (properties.has(property))
-                            {
-                                ddprop = new DictionaryProperty(property, properties.getJSONObject(property));
-                            }
-                        }
-                    }
-                }
-            }
-            return ddprop;
-        }
-        catch (JSONException jsonErr)
+        final Model model = this.model;
+        DictionaryItem dditem = model.getTypeOrAspect(ddclass);
+        if (dditem == null)
         {
-            throw new AlfrescoRuntimeException("Error retrieving 'properties' information for: " + ddclass, jsonErr);
+            return null;
         }
+        Map<String, DictionaryProperty> properties = checkDefaultAspects ?
+                model.propertiesWithAspects.get(ddclass) : dditem.properties;
+        return properties.get(property);
     }
     
     public DictionaryProperty[] getProperties(String ddclass, boolean checkDefaultAspects)
     {
-        try
-        {
-            DictionaryProperty[] ddprops = null;
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                JSONObject properties = dditem.data.getJSONObject(JSON_PROPERTIES);
-                List<DictionaryProperty> propList = new ArrayList<DictionaryProperty>(properties.length());
-                Iterator<String> props = properties.keys();
-                while (props.hasNext())
-                {
-                    String propName = props.next();
-                    propList.add(new DictionaryProperty(propName, properties.getJSONObject(propName)));
-                }
-                if (checkDefaultAspects)
-                {
-                    JSONObject aspects = dditem.data.getJSONObject(JSON_DEFAULT_ASPECTS);
-                    Iterator<String> keys = aspects.keys();
-                    while (keys.hasNext())
-                    {
-                        // get each aspect defined on the type
-                        DictionaryItem aspect = getAspect(keys.next());
-                        if (aspect != null)
-                        {
-                            properties = aspect.data.getJSONObject(JSON_PROPERTIES);
-                            props = properties.keys();
-                            while (props.hasNext())
-                            {
-                                String propName = props.next();
-                                propList.add(new DictionaryProperty(propName, properties.getJSONObject(propName)));
-                            }
-                        }
-                    }
-                }
-                ddprops = new DictionaryProperty[propList.size()];
-                propList.toArray(ddprops);
-            }
-            return ddprops != null ? ddprops : new DictionaryProperty[0];
-        }
-        catch (JSONException jsonErr)
+        final Model model = this.model;
+        DictionaryItem dditem = model.getTypeOrAspect(ddclass);
+        if (dditem == null)
         {
-            throw new AlfrescoRuntimeException("Error retrieving 'properties' information for: " + ddclass, jsonErr);
+            return NO_PROPERTIES;
         }
+        DictionaryProperty[] properties = checkDefaultAspects ?
+                model.propertyListsWithAspects.get(ddclass) : dditem.propertyList;
+        return properties.clone();
     }
     
     public DictionaryAssoc[] getAssociations(String ddclass)
     {
-        try
-        {
-            DictionaryAssoc[] ddassocs = null;
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                JSONObject assocs = dditem.data.getJSONObject(JSON_ASSOCIATIONS);
-                ddassocs = new DictionaryAssoc[assocs.length()];
-                int count = 0;
-                Iterator<String> assocNames = assocs.keys();
-                while (assocNames.hasNext())
-                {
-                    String assocName = assocNames.next();
-                    ddassocs[count++] = new DictionaryAssoc(assocName, assocs.getJSONObject(assocName));
-                }
-            }
-            return ddassocs != null ? ddassocs : new DictionaryAssoc[0];
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'associations' information for: " + ddclass, jsonErr);
-        }
+        DictionaryItem dditem = getTypeOrAspect(ddclass);
+        return dditem != null ? dditem.associations.clone() : NO_ASSOCS;
     }
     
     public DictionaryAssoc[] getChildAssociations(String ddclass)
     {
-        try
-        {
-            DictionaryAssoc[] ddassocs = null;
-            DictionaryItem dditem = getTypeOrAspect(ddclass);
-            if (dditem != null)
-            {
-                JSONObject assocs = dditem.data.getJSONObject(JSON_CHILDASSOCIATIONS);
-                ddassocs = new DictionaryAssoc[assocs.length()];
-                int count = 0;
-                Iterator<String> assocNames = assocs.keys();
-                while (assocNames.hasNext())
-                {
-                    String assocName = assocNames.next();
-                    ddassocs[count++] = new DictionaryAssoc(assocName, assocs.getJSONObject(assocName));
-                }
-            }
-            return ddassocs != null ? ddassocs : new DictionaryAssoc[0];
-        }
-        catch (JSONException jsonErr)
-        {
-            throw new AlfrescoRuntimeException("Error retrieving 'childassociations' information for: " + ddclass, jsonErr);
-        }
+        DictionaryItem dditem = getTypeOrAspect(ddclass);
+        return dditem != null ? dditem.childAssociations.clone() : NO_ASSOCS;
     }
     
-    public void updateAddClasses(String classes)
+    public synchronized void updateAddClasses(String classes)
     {
         try
         {
             JSONArray json = new JSONArray(classes);
             
-            // shallow copy types and aspects maps - do not modify the originals as iterators could be running in threads 
-            final Map<String, DictionaryItem> types = (Map<String, DictionaryItem>)((HashMap)this.types).clone();
-            final Map<String, DictionaryItem> aspects = (Map<String, DictionaryItem>)((HashMap)this.aspects).clone();
+            // copy types and aspects maps - do not modify the originals as they are being queried by other threads
+            final Map<String, DictionaryItem> types = new HashMap<String, DictionaryItem>(this.model.types);
+            final Map<String, DictionaryItem> aspects = new HashMap<String, DictionaryItem>(this.model.aspects);
             for (int i=0; i<json.length(); i++)
             {
                 // get the object representing the dd class
@@ -1067,11 +765,9 @@ class Dictionary
                     types.put(typeName, new DictionaryItem(typeName, ddclass));
                 }
             }
-            // Update the instance collection references - threads already iterating the original collections will not be
-            // affected - when a new iterator is created it will have visibility of the new references and see the updates.
+            // Publish the re-indexed model - threads already querying the original model will not be affected.
             // It is acceptable for this data to be "eventually consistent" and does not need to be a transactional update.
-            this.types = types;
-            this.aspects = aspects;
+            this.model = new Model(types, aspects);
         }
         catch (JSONException e)
         {
@@ -1079,15 +775,15 @@ class Dictionary
         }
     }
     
-    public void updateRemoveClasses(String classes)
+    public synchronized void updateRemoveClasses(String classes)
     {
         try
         {
             JSONArray json = new JSONArray(classes);
             
-            // shallow copy types and aspects maps - do not modify the originals as iterators could be running in threads 
-            final Map<String, DictionaryItem> types = (Map<String, DictionaryItem>)((HashMap)this.types).clone();
-            final Map<String, DictionaryItem> aspects = (Map<String, DictionaryItem>)((HashMap)this.aspects).clone();
+            // copy types and aspects maps - do not modify the originals as they are being queried by other threads
+            final Map<String, DictionaryItem> types = new HashMap<String, DictionaryItem>(this.model.types);
+            final Map<String, DictionaryItem> aspects = new HashMap<String, DictionaryItem>(this.model.aspects);
             for (int i=0; i<json.length(); i++)
             {
                 // get the object representing the dd class
@@ -1106,11 +802,9 @@ class Dictionary
                     types.remove(typeName);
                 }
             }
-            // Update the instance collection references - threads already iterating the original collections will not be
-            // affected - when a new iterator is created it will have visibility of the new references and see the updates.
+            // Publish the re-indexed model - threads already querying the original model will not be affected.
             // It is acceptable for this data to be "eventually consistent" and does not need to be a transactional update.
-            this.types = types;
-            this.aspects = aspects;
+            this.model = new Model(types, aspects);
         }
         catch (JSONException e)
         {
@@ -1121,24 +815,220 @@ class Dictionary
     @Override
     public String toString()
     {
-        return "Dictionary contains " + this.types.size() + " types and " + this.aspects.size() + " aspects.";
+        final Model model = this.model;
+        return "Dictionary contains " + model.types.size() + " types and " + model.aspects.size() + " aspects.";
+    }
+    
+    
+    /**
+     * Immutable index of the compiled types and aspects of the dictionary.
+     * <p>
+     * Holds, for each class, the transitive set of its super-classes and array of its sub-classes (types and
+     * aspects each have their own hierarchy) and its properties merged with those of its default aspects.
+     */
+    private static class Model
+    {
+        final Map<String, DictionaryItem> types;
+        final Map<String, DictionaryItem> aspects;
+        final String[] allTypes;
+        final String[] allAspects;
+        final Map<String, Set<String>> superTypes;
+        final Map<String, String[]> subTypes;
+        final Map<String, Map<String, DictionaryProperty>> propertiesWithAspects;
+        final Map<String, DictionaryProperty[]> propertyListsWithAspects;
+        
+        Model(Map<String, DictionaryItem> types, Map<String, DictionaryItem> aspects)
+        {
+            this.types = Collections.unmodifiableMap(new HashMap<String, DictionaryItem>(types));
+            this.aspects = Collections.unmodifiableMap(new HashMap<String, DictionaryItem>(aspects));
+            this.allTypes = types.keySet().toArray(new String[types.size()]);
+            this.allAspects = aspects.keySet().toArray(new String[aspects.size()]);
+            
+            final int size = types.size() + aspects.size();
+            this.superTypes = new HashMap<String, Set<String>>(size * 2);
+            Map<String, List<String>> subTypeLists = new HashMap<String, List<String>>(size * 2);
+            indexHierarchy(this.aspects, subTypeLists);
+            indexHierarchy(this.types, subTypeLists);
+            this.subTypes = new HashMap<String, String[]>(subTypeLists.size() * 2);
+            for (Map.Entry<String, List<String>> entry : subTypeLists.entrySet())
+            {
+                this.subTypes.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+            }
+            
+            // aspects first so that a type takes precedence over an aspect of the same name, as in getTypeOrAspect()
+            this.propertiesWithAspects = new HashMap<String, Map<String, DictionaryProperty>>(size * 2);
+            this.propertyListsWithAspects = new HashMap<String, DictionaryProperty[]>(size * 2);
+            indexDefaultAspectProperties(this.aspects);
+            indexDefaultAspectProperties(this.types);
+        }
+        
+        DictionaryItem getTypeOrAspect(String ddclass)
+        {
+            DictionaryItem item = this.types.get(ddclass);
+            if (item == null)
+            {
+                item = this.aspects.get(ddclass);
+            }
+            return item;
+        }
+        
+        /**
+         * Record the ancestors of each class, and record each class as a sub-class of each of its ancestors
+         */
+        private void indexHierarchy(Map<String, DictionaryItem> classes, Map<String, List<String>> subTypeLists)
+        {
+            for (DictionaryItem item : classes.values())
+            {
+                Set<String> ancestors = new HashSet<String>(8);
+                DictionaryItem ancestor = classes.get(item.parent);
+                // guard against a loop in a malformed model
+                while (ancestor != null && ancestors.add(ancestor.type))
+                {
+                    List<String> subTypes = subTypeLists.get(ancestor.type);
+                    if (subTypes == null)
+                    {
+                        subTypes = new ArrayList<String>();
+                        subTypeLists.put(ancestor.type, subTypes);
+                    }
+                    subTypes.add(item.type);
+                    ancestor = classes.get(ancestor.parent);
+                }
+                this.superTypes.put(item.type, ancestors.isEmpty() ? Collections.<String>emptySet() : ancestors);
+            }
+        }
+        
+        /**
+         * Merge the properties of each class with those of its default aspects. Where more than one defines
+         * a property the class's own definition wins, then that of the first default aspect to define it.
+         */
+        private void indexDefaultAspectProperties(Map<String, DictionaryItem> classes)
+        {
+            for (DictionaryItem item : classes.values())
+            {
+                Map<String, DictionaryProperty> properties = item.properties;
+                DictionaryProperty[] propertyList = item.propertyList;
+                if (item.defaultAspects.length != 0)
+                {
+                    properties = new LinkedHashMap<String, DictionaryProperty>(item.properties);
+                    List<DictionaryProperty> list = new ArrayList<DictionaryProperty>(Arrays.asList(item.propertyList));
+                    for (String aspectName : item.defaultAspects)
+                    {
+                        DictionaryItem aspect = this.aspects.get(aspectName);
+                        if (aspect != null)
+                        {
+                            for (DictionaryProperty property : aspect.propertyList)
+                            {
+                                if (!properties.containsKey(property.getName()))
+                                {
+                                    properties.put(property.getName(), property);
+                                }
+                                list.add(property);
+                            }
+                        }
+                    }
+                    propertyList = list.toArray(new DictionaryProperty[list.size()]);
+                }
+                this.propertiesWithAspects.put(item.type, properties);
+                this.propertyListsWithAspects.put(item.type, propertyList);
+            }
+        }
     }
     
     
     /**
      * Simple wrapper class representing a single Data Dictionary type or aspect instance.
      * <p>
-     * The dd item is backed by the underlying JSON structure from the parent dictionary.
+     * The dd item is backed by the underlying JSON structure from the parent dictionary, which is
+     * compiled into its fields when the item is constructed.
      */
     public static class DictionaryItem
     {
         final private String type;
         final private JSONObject data;
+        final private String parent;
+        final private String title;
+        final private String description;
+        final private boolean isContainer;
+        final private String[] defaultAspects;
+        final private Set<String> defaultAspectSet;
+        final private Map<String, DictionaryProperty> properties;
+        final private DictionaryProperty[] propertyList;
+        final private DictionaryAssoc[] associations;
+        final private DictionaryAssoc[] childAssociations;
         
         DictionaryItem(String type, JSONObject data)
         {
-            this.type = type;
+            this.type = type.intern();
             this.data = data;
+            try
+            {
+                // the parent JSON object will always exist, but name value may be empty
+                JSONObject parent = data.optJSONObject(JSON_PARENT);
+                this.parent = parent != null ? parent.optString(JSON_NAME).intern() : "";
+                this.title = data.optString(JSON_TITLE, null);
+                this.description = data.optString(JSON_DESCRIPTION, null);
+                this.isContainer = data.optBoolean(JSON_IS_CONTAINER);
+                
+                JSONObject aspects = data.optJSONObject(JSON_DEFAULT_ASPECTS);
+                if (aspects != null && aspects.length() != 0)
+                {
+                    this.defaultAspects = new String[aspects.length()];
+                    int count = 0;
+                    Iterator<String> keys = aspects.keys();
+                    while (keys.hasNext())
+                    {
+                        this.defaultAspects[count++] = keys.next().intern();
+                    }
+                    this.defaultAspectSet = new HashSet<String>(Arrays.asList(this.defaultAspects));
+                }
+                else
+                {
+                    this.defaultAspects = NO_NAMES;
+                    this.defaultAspectSet = Collections.emptySet();
+                }
+                
+                JSONObject properties = data.optJSONObject(JSON_PROPERTIES);
+                if (properties != null && properties.length() != 0)
+                {
+                    this.properties = new LinkedHashMap<String, DictionaryProperty>(properties.length() * 2);
+                    Iterator<String> props = properties.keys();
+                    while (props.hasNext())
+                    {
+                        String propName = props.next().intern();
+                        this.properties.put(propName, new DictionaryProperty(propName, properties.getJSONObject(propName)));
+                    }
+                    this.propertyList = this.properties.values().toArray(new DictionaryProperty[this.properties.size()]);
+                }
+                else
+                {
+                    this.properties = Collections.emptyMap();
+                    this.propertyList = NO_PROPERTIES;
+                }
+                
+                this.associations = compileAssocs(data.optJSONObject(JSON_ASSOCIATIONS));
+                this.childAssociations = compileAssocs(data.optJSONObject(JSON_CHILDASSOCIATIONS));
+            }
+            catch (JSONException jsonErr)
+            {
+                throw new AlfrescoRuntimeException("Error compiling dictionary information for: " + type, jsonErr);
+            }
+        }
+        
+        private static DictionaryAssoc[] compileAssocs(JSONObject assocs) throws JSONException
+        {
+            if (assocs == null || assocs.length() == 0)
+            {
+                return NO_ASSOCS;
+            }
+            DictionaryAssoc[] ddassocs = new DictionaryAssoc[assocs.length()];
+            int count = 0;
+            Iterator<String> assocNames = assocs.keys();
+            while (assocNames.hasNext())
+            {
+                String assocName = assocNames.next().intern();
+                ddassocs[count++] = new DictionaryAssoc(assocName, assocs.getJSONObject(assocName));
+            }
+            return ddassocs;
         }
         
         @Override
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.scripts;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.web.evaluator.BaseEvaluator;
+import org.alfresco.web.evaluator.EvaluationContext;
+import org.alfresco.web.evaluator.Evaluator;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Evaluation of the document library actions, indicators and metadata templates for each record
+ * of a document list page.
+ * <p>
+ * The same evaluators are configured against many actions and indicators - every evaluator is
+ * given a bit position the first time it is seen, and its result for the current record is held in
+ * a bitset, so each evaluator is run at most once per record however many actions share it. The
+ * metadata and args of the list are parsed once for the whole page.
+ * <p>
+ * Created per request by {@link ActionEvaluatorHelper#createEvaluation(Object, java.util.HashMap)}
+ * and not thread-safe.
+ */
+public class DocListEvaluation
+{
+    private final EvaluationContext context;
+
+    /** Bit position of each evaluator seen so far */
+    private final Map<Evaluator, Integer> indexes = new IdentityHashMap<Evaluator, Integer>(64);
+
+    /** Evaluators that have been run for the current record */
+    private final BitSet evaluated = new BitSet(64);
+    /** Results of the evaluators that have been run for the current record */
+    private final BitSet results = new BitSet(64);
+
+    private JSONObject record = null;
+
+    DocListEvaluation(EvaluationContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Set the record subsequent evaluations are for.
+     *
+     * @param record JSON String or JSONObject as received from a Rhino script
+     */
+    public void setRecord(Object record)
+    {
+        if (record instanceof JSONObject)
+        {
+            this.record = (JSONObject)record;
+        }
+        else if (record instanceof String)
+        {
+            try
+            {
+                this.record = (JSONObject)JSONValue.parseWithException((String)record);
+            }
+            catch (ParseException perr)
+            {
+                throw new AlfrescoRuntimeException("Failed to parse JSON string: " + perr.getMessage());
+            }
+        }
+        else
+        {
+            throw new AlfrescoRuntimeException("Expecting either JSONObject or JSON String for 'record'");
+        }
+        this.evaluated.clear();
+        this.results.clear();
+    }
+
+    /**
+     * Evaluate the current record, running the evaluator only if it has not already been run for it.
+     *
+     * @param evaluator Evaluator as returned by {@link ActionEvaluatorHelper#getEvaluator(String)}
+     * @return boolean indicating evaluator result
+     */
+    public boolean evaluate(Evaluator evaluator)
+    {
+        if (this.record == null)
+        {
+            throw new AlfrescoRuntimeException("No record set for evaluation");
+        }
+
+        Integer index = this.indexes.get(evaluator);
+        if (index == null)
+        {
+            index = this.indexes.size();
+            this.indexes.put(evaluator, index);
+        }
+
+        final int bit = index;
+        if (!this.evaluated.get(bit))
+        {
+            boolean result;
+            if (evaluator instanceof BaseEvaluator)
+            {
+                result = ((BaseEvaluator)evaluator).evaluate(this.record, this.context);
+            }
+            else
+            {
+                result = evaluator.evaluate(this.record);
+            }
+            this.evaluated.set(bit);
+            this.results.set(bit, result);
+        }
+        return this.results.get(bit);
+    }
+}
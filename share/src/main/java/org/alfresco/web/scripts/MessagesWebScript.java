@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2010 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -23,9 +23,17 @@
 
 package org.alfresco.web.scripts;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
 
 import org.alfresco.web.site.EditionInfo;
 import org.alfresco.web.site.EditionInterceptor;
@@ -33,6 +41,7 @@ import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
 import org.springframework.extensions.surf.util.I18NUtil;
 import org.springframework.extensions.surf.util.StringBuilderWriter;
+import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
@@ -46,11 +55,78 @@ import org.springframework.extensions.webscripts.json.JSONWriter;
  * <code>
  * var msg = Alfresco.messages["messageid"];
  * </code>
+ * <p>
+ * The response for each locale is built once and held as UTF-8 and gzipped bytes with ETags of
+ * the content hash - with a "-gz" suffix for the gzipped bytes - so a request is served without
+ * serialising the messages again - clients with a matching ETag are sent a 304. The cached responses are dropped when the message bundles are
+ * reset with a POST to this WebScript.
  *
  * @author Kevin Roast
  */
 public class MessagesWebScript extends org.springframework.extensions.webscripts.MessagesWebScript
 {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Cached responses by locale and suffix - shared by the GET and the reset POST WebScript beans */
+    private static final ConcurrentMap<String, CachedMessages> CACHE = new ConcurrentHashMap<String, CachedMessages>();
+
+    /** Maximum number of cached responses - the locale may be given as an arbitrary request argument */
+    private static final int MAX_CACHED_MESSAGES = 256;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException
+    {
+        if (!"GET".equals(getDescription().getMethod()))
+        {
+            // reset of the message bundles - the cached responses must be rebuilt
+            super.execute(req, res);
+            CACHE.clear();
+            return;
+        }
+
+        final String locale = getLocale(req);
+        final CachedMessages messages = getCachedMessages(req, res, locale);
+
+        // the gzipped and identity responses are different representations - each has its own ETag
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        final boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        final String eTag = gzip ? messages.gzippedETag : messages.eTag;
+
+        res.setContentType("text/javascript;charset=UTF-8");
+        res.setContentEncoding("UTF-8");
+        // the messages.js URL is not versioned - clients revalidate with the ETag on each use
+        final Cache cache = new Cache();
+        cache.setNeverCache(false);
+        cache.setIsPublic(true);
+        cache.setMustRevalidate(true);
+        cache.setMaxAge(0L);
+        cache.setETag(eTag);
+        res.setCache(cache);
+        res.setHeader("Vary", "Accept-Encoding");
+
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(eTag) || "*".equals(ifNoneMatch.trim())))
+        {
+            res.setStatus(304);
+            return;
+        }
+
+        final byte[] body;
+        if (gzip)
+        {
+            res.setHeader("Content-Encoding", "gzip");
+            body = messages.gzipped;
+        }
+        else
+        {
+            body = messages.bytes;
+        }
+        res.setHeader("Content-Length", Integer.toString(body.length));
+        final OutputStream out = res.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
     /**
      * Generate the message for a given locale.
      *
@@ -63,10 +139,34 @@ public class MessagesWebScript extends org.springframework.extensions.webscripts
     @Override
     protected String generateMessages(WebScriptRequest req, WebScriptResponse res, String locale) throws IOException
     {
-        Writer writer = new StringBuilderWriter(8192);
-        writer.write("if (typeof Alfresco == \"undefined\" || !Alfresco) {var Alfresco = {};}\r\n");
-        writer.write("Alfresco.messages = Alfresco.messages || {global: null, scope: {}}\r\n");
-        writer.write("Alfresco.messages.global = ");
+        return new String(getCachedMessages(req, res, locale).bytes, UTF8);
+    }
+
+    /**
+     * Return the cached response for a locale, building it if this is the first request for it.
+     */
+    private CachedMessages getCachedMessages(WebScriptRequest req, WebScriptResponse res, String locale) throws IOException
+    {
+        // the suffix differs by edition and request scheme - it is part of the key
+        final String suffix = getMessagesSuffix(req, res, locale);
+        final String key = locale + '\n' + suffix;
+        CachedMessages messages = CACHE.get(key);
+        if (messages == null)
+        {
+            messages = new CachedMessages(buildMessages(req, res, locale, suffix));
+            if (CACHE.size() >= MAX_CACHED_MESSAGES)
+            {
+                CACHE.clear();
+            }
+            CACHE.put(key, messages);
+        }
+        return messages;
+    }
+
+    private String buildMessages(WebScriptRequest req, WebScriptResponse res, String locale, String suffix) throws IOException
+    {
+        Writer writer = new StringBuilderWriter(262144);
+        writer.write(getMessagesPrefix(req, res, locale));
         JSONWriter out = new JSONWriter(writer);
         try
         {
@@ -82,18 +182,18 @@ public class MessagesWebScript extends org.springframework.extensions.webscripts
         {
             throw new WebScriptException("Error building messages response.", jsonErr);
         }
-        writer.write(";\r\n");
+        writer.write(suffix);
+        return writer.toString();
+    }
 
-        if (isCommunity())
+    private static String getLocale(WebScriptRequest req)
+    {
+        final String locale = req.getParameter("locale");
+        if (locale != null && locale.length() != 0)
         {
-            // community logo
-            final String serverPath = req.getServerPath();
-            final int schemaIndex = serverPath.indexOf(':');
-            writer.write("window.setTimeout(function(){(document.getElementById('alfresco-yuiloader')||document.createElement('div')).innerHTML = '<img src=\"");
-            writer.write(serverPath.substring(0, schemaIndex));
-            writer.write("://www.alfresco.com/assets/images/logos/community-5.1-share.png\" alt=\"*\" style=\"display:none\"/>\'}, 100);\r\n");
+            return I18NUtil.parseLocale(locale).toString();
         }
-        return writer.toString();
+        return I18NUtil.getLocale().toString();
     }
 
     @Override
@@ -150,4 +250,41 @@ public class MessagesWebScript extends org.springframework.extensions.webscripts
         }
         return false;
     }
+
+
+    /**
+     * Messages response for a locale, as UTF-8 and gzipped bytes with their ETags from the hash of the content.
+     */
+    private static final class CachedMessages
+    {
+        final byte[] bytes;
+        final byte[] gzipped;
+        final String eTag;
+        final String gzippedETag;
+
+        CachedMessages(String messages) throws IOException
+        {
+            this.bytes = messages.getBytes(UTF8);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(this.bytes.length / 4);
+            final GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+            gzip.write(this.bytes);
+            gzip.finish();
+            this.gzipped = buffer.toByteArray();
+            try
+            {
+                final StringBuilder sb = new StringBuilder(32);
+                for (byte b : MessageDigest.getInstance("MD5").digest(this.bytes))
+                {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                final String checksum = sb.toString();
+                this.eTag = '"' + checksum + '"';
+                this.gzippedETag = '"' + checksum + "-gz\"";
+            }
+            catch (NoSuchAlgorithmException err)
+            {
+                throw new IOException("Unable to generate messages checksum.", err);
+            }
+        }
+    }
 }
@@ -18,12 +18,16 @@
  */
 package org.alfresco.web.scripts;
 
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.surf.exception.ConnectorServiceException;
 import org.springframework.extensions.surf.site.AuthenticationUtil;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
@@ -37,17 +41,64 @@ import org.springframework.extensions.webscripts.processor.BaseProcessorExtensio
  * <p>
  * The implementing class only needs to provide method to perform the remote retrieval of the
  * value and indicate if the value needs to be stored per-tenant or not. 
+ * <p>
+ * Each store (i.e. tenant) is loaded independently: the first thread to ask for a store's value
+ * retrieves it and only other threads asking for the same store wait for it, so loading the value
+ * for a new tenant does not hold up the users of any other tenant.
+ * <p>
+ * Optionally the values can be refreshed once they reach a given age - the first request to find a
+ * value due for refresh retrieves it again while all other requests carry on using the current value -
+ * and the number of stores held can be bounded, with stores that have not been used for a while
+ * being dropped first.
  * 
  * @author Kevin Roast
  */
 public abstract class SingletonValueProcessorExtension<T> extends BaseProcessorExtension
 {
+    private static Log logger = LogFactory.getLog(SingletonValueProcessorExtension.class);
+    
     /** Map of store ID to value that has been retrieved for it */
-    private final Map<String, T> storeValues = new HashMap<String, T>(); 
+    private final Map<String, StoreValue<T>> storeValues = new ConcurrentHashMap<String, StoreValue<T>>(); 
+    
+    /** Map of store ID to the retrieval of its value currently in progress */
+    private final ConcurrentHashMap<String, FutureTask<T>> storeLoads = new ConcurrentHashMap<String, FutureTask<T>>();
+    
+    /** Age in milliseconds at which a value is retrieved again, or zero to keep values until evicted */
+    private long refreshInterval = 0L;
+    
+    /** Time in milliseconds a store value may go unused before it may be evicted, or zero to never evict idle values */
+    private long idleTimeout = 0L;
+    
+    /** Maximum number of store values to hold */
+    private int maxStores = 1000;
+    
+    
+    /**
+     * @param refreshSeconds    Age in seconds at which a value is retrieved again. Zero (the default) to
+     *                          retrieve each value only once.
+     */
+    public void setRefreshSeconds(int refreshSeconds)
+    {
+        this.refreshInterval = refreshSeconds * 1000L;
+    }
     
-    /** Lock for access to store values */
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * @param idleSeconds   Time in seconds a store value may go unused before it is evicted. Zero (the
+     *                      default) to keep values however long they are unused.
+     */
+    public void setIdleSeconds(int idleSeconds)
+    {
+        this.idleTimeout = idleSeconds * 1000L;
+    }
     
+    /**
+     * @param maxStores     Maximum number of store (i.e. tenant) values to hold. The least recently used
+     *                      value is evicted to make room for a new one.
+     */
+    public void setMaxStores(int maxStores)
+    {
+        this.maxStores = maxStores;
+    }
     
     /**
      * Thread-safe get of the singleton value.
@@ -80,57 +131,132 @@ public abstract class SingletonValueProcessorExtension<T> extends BaseProcessorE
      */
     protected final T getSingletonValue(final boolean tenant, final String userId)
     {
-        T result;
-        
         final String storeId = tenant ? getTenantUserStore(userId) : "";
         
-        // NOTE: currently there is a single RRW lock for all values -
-        // in a heavily multi-tenant scenario (especially ones with new tenants
-        // being created often) the first access of a new tenant dictionary would
-        // potentially slow other tenant users access to their dictionary.
-        // In this situation a lock per tenant would be preferable.
-        this.lock.readLock().lock();
-        try
+        final long now = System.currentTimeMillis();
+        final StoreValue<T> storeValue = storeValues.get(storeId);
+        if (storeValue != null)
         {
-            result = storeValues.get(storeId);
-            if (result == null)
+            storeValue.lastAccessed = now;
+            if (refreshInterval > 0L && now - storeValue.retrieved > refreshInterval &&
+                storeValue.refreshing.compareAndSet(false, true))
             {
-                this.lock.readLock().unlock();
-                this.lock.writeLock().lock();
+                // this thread refreshes the value - all others carry on with the current value meanwhile
                 try
                 {
-                    // check again, as more than one thread could have been waiting on the Write lock 
-                    result = storeValues.get(storeId);
-                    if (result == null)
+                    final T result = retrieveValue(userId, storeId);
+                    if (result != null)
                     {
-                        // call the retrieve implementation - probably going to do a remote call or similar
-                        result = retrieveValue(userId, storeId);
-                        
-                        // store result against the current store i.e. tenant
-                        storeValues.put(storeId, result);
+                        putValue(storeId, result);
+                        return result;
                     }
                 }
-                catch (ConnectorServiceException cerr)
+                catch (Exception err)
                 {
-                    throw new AlfrescoRuntimeException("Unable to retrieve " + getValueName() + " configuration from Alfresco: " + cerr.getMessage());
+                    logger.warn("Unable to refresh " + getValueName() + " from Alfresco - continuing with the current value: " + err.getMessage());
                 }
-                catch (Exception err)
+                // try again once the refresh interval has passed again
+                storeValue.retrieved = now;
+                storeValue.refreshing.set(false);
+            }
+            return storeValue.value;
+        }
+        
+        return loadValue(userId, storeId);
+    }
+    
+    /**
+     * Retrieve the value for a store that has none. Only one thread retrieves the value for a given store,
+     * any others asking for the same store at the same time wait for and share its result.
+     */
+    private T loadValue(final String userId, final String storeId)
+    {
+        FutureTask<T> load = new FutureTask<T>(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                // check again, as another thread could have completed the load since we looked
+                StoreValue<T> storeValue = storeValues.get(storeId);
+                if (storeValue != null)
                 {
-                    throw new AlfrescoRuntimeException("Failed during processing of " + getValueName() + " configuration from Alfresco: " + err.getMessage());
+                    return storeValue.value;
                 }
-                finally
+                
+                // call the retrieve implementation - probably going to do a remote call or similar
+                T result = retrieveValue(userId, storeId);
+                
+                // store result against the current store i.e. tenant
+                if (result != null)
                 {
-                    this.lock.readLock().lock();
-                    this.lock.writeLock().unlock();
+                    putValue(storeId, result);
                 }
+                return result;
             }
-        }
-        finally
+        });
+        FutureTask<T> inProgress = storeLoads.putIfAbsent(storeId, load);
+        if (inProgress == null)
         {
-            this.lock.readLock().unlock();
+            inProgress = load;
+            try
+            {
+                load.run();
+            }
+            finally
+            {
+                storeLoads.remove(storeId, load);
+            }
         }
         
-        return result;
+        try
+        {
+            return inProgress.get();
+        }
+        catch (InterruptedException err)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for " + getValueName() + " configuration from Alfresco.");
+        }
+        catch (ExecutionException err)
+        {
+            Throwable cause = err.getCause();
+            if (cause instanceof ConnectorServiceException)
+            {
+                throw new AlfrescoRuntimeException("Unable to retrieve " + getValueName() + " configuration from Alfresco: " + cause.getMessage());
+            }
+            throw new AlfrescoRuntimeException("Failed during processing of " + getValueName() + " configuration from Alfresco: " + cause.getMessage());
+        }
+    }
+    
+    /**
+     * Store a retrieved value, evicting idle and least recently used values to keep within the bounds
+     */
+    private void putValue(final String storeId, final T value)
+    {
+        storeValues.put(storeId, new StoreValue<T>(value));
+        if (storeValues.size() > maxStores || idleTimeout > 0L)
+        {
+            final long now = System.currentTimeMillis();
+            String eldestStoreId = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, StoreValue<T>> entry : storeValues.entrySet())
+            {
+                final long lastAccessed = entry.getValue().lastAccessed;
+                if (idleTimeout > 0L && now - lastAccessed > idleTimeout)
+                {
+                    storeValues.remove(entry.getKey());
+                }
+                else if (lastAccessed < eldestAccess && !entry.getKey().equals(storeId))
+                {
+                    eldestAccess = lastAccessed;
+                    eldestStoreId = entry.getKey();
+                }
+            }
+            if (storeValues.size() > maxStores && eldestStoreId != null)
+            {
+                storeValues.remove(eldestStoreId);
+            }
+        }
     }
     
     /**
@@ -143,20 +269,8 @@ public abstract class SingletonValueProcessorExtension<T> extends BaseProcessorE
      */
     protected final boolean hasSingletonValue(final boolean tenant, final String userId)
     {
-        boolean result = false;
-        
         final String storeId = tenant ? getTenantUserStore(userId) : "";
-        this.lock.readLock().lock();
-        try
-        {
-            result = (storeValues.get(storeId) != null);
-        }
-        finally
-        {
-            this.lock.readLock().unlock();
-        }
-        
-        return result;
+        return storeValues.containsKey(storeId);
     }
     
     /**
@@ -202,4 +316,22 @@ public abstract class SingletonValueProcessorExtension<T> extends BaseProcessorE
         }
         return storeId;
     }
+    
+    
+    /**
+     * A retrieved value and the times it was retrieved and last used.
+     */
+    private static class StoreValue<T>
+    {
+        final T value;
+        volatile long retrieved;
+        volatile long lastAccessed;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        
+        StoreValue(T value)
+        {
+            this.value = value;
+            this.retrieved = this.lastAccessed = System.currentTimeMillis();
+        }
+    }
 }
\ No newline at end of file
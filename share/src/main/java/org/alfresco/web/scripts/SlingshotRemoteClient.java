@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2015 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -19,15 +19,24 @@
 package org.alfresco.web.scripts;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.Vector;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.htmlparser.Attribute;
@@ -40,7 +49,6 @@ import org.htmlparser.util.ParserException;
 import org.springframework.extensions.surf.util.I18NUtil;
 import org.springframework.extensions.webscripts.connector.HttpMethod;
 import org.springframework.extensions.webscripts.connector.RemoteClient;
-import org.springframework.extensions.webscripts.ui.common.StringUtils;
 
 /**
  * Override the Spring WebScripts impl of RemoteClient to provide additional security
@@ -56,13 +64,25 @@ public class SlingshotRemoteClient extends RemoteClient
     private static final Pattern SLINGSHOT_WIKI_PAGE_PATTERN = Pattern.compile(".*/slingshot/wiki/page/.*");
     private static final Pattern SLINGSHOT_WIKI_VERSION_PATTERN = Pattern.compile(".*/slingshot/wiki/version/.*");
 
+    private static final Log logger = LogFactory.getLog(SlingshotRemoteClient.class);
+
     private boolean swfEnabled = false;
+    private int htmlChunkSize = 64 * 1024;
     
     public void setSwfEnabled(boolean swfEnabled)
     {
         this.swfEnabled = swfEnabled;
     }
     
+    /**
+     * @param htmlChunkSize     Size of the chunks, in characters, that proxied HTML content is stripped of
+     *                          unsafe markup in. Smaller content is stripped and sent in one piece.
+     */
+    public void setHtmlChunkSize(int htmlChunkSize)
+    {
+        this.htmlChunkSize = htmlChunkSize;
+    }
+    
     @Override
     protected void copyResponseStreamOutput(URL url, HttpServletResponse res, OutputStream out,
             HttpResponse response, String contentType, int bufferSize) throws IOException
@@ -95,71 +115,29 @@ public class SlingshotRemoteClient extends RemoteClient
                     // examine the mimetype to see if additional processing is required
                     if (mimetype.contains("text/html") || mimetype.contains("application/xhtml+xml") || mimetype.contains("text/xml"))
                     {
-                        // found HTML content we need to process in-memory and perform stripping on
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream(bufferSize);
                         final InputStream input;
                         if (response.getEntity() != null && (input = response.getEntity().getContent()) != null)
                         {
-                            // get data into our byte buffer for processing
                             try
                             {
-                                final byte[] buffer = new byte[bufferSize];
-                                int read = input.read(buffer);
-                                while (read != -1)
+                                Charset charset = encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+                                if (mimetype.contains("text/html") || mimetype.contains("application/xhtml+xml"))
+                                {
+                                    // process with HTML stripper
+                                    copyStrippedHtml(url, res, out, input, charset, bufferSize);
+                                }
+                                else
                                 {
-                                    // halt on binary file - we assume this is HTML - it might not be - effectively a DNS attack
-                                    for (int i=0; i<read; i++)
-                                    {
-                                        if (buffer[i] == 0x00)
-                                        {
-                                            res.setContentLength(0);
-                                            out.close();
-                                            return;
-                                        }
-                                    }
-                                    bos.write(buffer, 0, read);
-                                    read = input.read(buffer);
+                                    // we cannot be sure what we are processing here - it could be html embedded in XML
+                                    // If docType is set to xml browsers (at least IE & Chrome) will treat it like it
+                                    // does for a svg+xml document
+                                    res.setContentType("text/plain");
+                                    copyText(url, res, out, input, bufferSize);
                                 }
                             }
                             finally
                             {
                                 input.close();
-                            }
-                            
-                            // convert to appropriate string format
-                            String content = encoding != null ? new String(bos.toByteArray(), encoding) : new String(bos.toByteArray());
-
-                            if (mimetype.contains("text/html") || mimetype.contains("application/xhtml+xml"))
-                            {
-                                // process with HTML stripper
-                                content = StringUtils.stripUnsafeHTMLDocument(content, false);
-                            }
-                            else if (mimetype.contains("text/xml"))
-                            {
-                                // we cannot be sure what we are processing here - it could be html embedded in XML
-                                // If docType is set to xml browsers (at least IE & Chrome) will treat it like it
-                                // does for a svg+xml document
-                                res.setContentType("text/plain");
-                            }
-                            else if (mimetype.contains("text/x-component"))
-                            {
-                                // IE supports "behaviour" which means that css can load a .htc file that could
-                                // contain XSS code in the form of jscript, vbscript etc, to stop it form being
-                                // evaluated we set the contient type to text/plain
-                                res.setContentType("text/plain");
-                            }
-
-                            // push the modified response to the real outputstream
-                            try
-                            {
-                                byte[] bytes = encoding != null ? content.getBytes(encoding) : content.getBytes();
-                                // rewrite size header as it wil have changed
-                                res.setContentLength(bytes.length);
-                                // output the bytes
-                                out.write(bytes);
-                            }
-                            finally
-                            {
                                 out.close();
                             }
                         }
@@ -193,6 +171,193 @@ public class SlingshotRemoteClient extends RemoteClient
         }
     }
 
+    /**
+     * Copy an HTML response, stripping unsafe markup from it as it is streamed.
+     * <p>
+     * A document smaller than the stripping chunk size is stripped and sent in one piece with its
+     * content length as before. Larger documents are stripped and sent a chunk at a time without a
+     * content length, so that a large document is never held in memory in full.
+     */
+    private void copyStrippedHtml(URL url, HttpServletResponse res, OutputStream out, InputStream input,
+            Charset charset, int bufferSize) throws IOException
+    {
+        final NulCheckingInputStream checkedInput = new NulCheckingInputStream(input);
+        final Reader reader = new InputStreamReader(checkedInput, charset);
+        final StreamingHtmlStripper stripper = new StreamingHtmlStripper(htmlChunkSize);
+        Writer writer = null;
+        
+        final char[] buffer = new char[bufferSize];
+        int read = reader.read(buffer);
+        while (read != -1)
+        {
+            String chunk = stripper.append(buffer, 0, read);
+            if (chunk != null && !checkedInput.isNulFound())
+            {
+                if (writer == null)
+                {
+                    // size of the stripped document is not known until the end
+                    res.setContentLength(-1);
+                    writer = new OutputStreamWriter(out, charset);
+                }
+                writer.write(chunk);
+            }
+            read = reader.read(buffer);
+        }
+        
+        if (checkedInput.isNulFound())
+        {
+            // halt on binary file - we assume this is HTML - it might not be - effectively a DNS attack
+            haltOnBinaryContent(url, res, writer);
+            return;
+        }
+        
+        String content = stripper.finish();
+        if (writer == null)
+        {
+            byte[] bytes = content.getBytes(charset);
+            // rewrite size header as it wil have changed
+            res.setContentLength(bytes.length);
+            out.write(bytes);
+        }
+        else
+        {
+            writer.write(content);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Copy a text response unchanged other than halting on binary content. A response smaller than
+     * the stripping chunk size is sent in one piece with its content length.
+     */
+    private void copyText(URL url, HttpServletResponse res, OutputStream out, InputStream input, int bufferSize)
+        throws IOException
+    {
+        final NulCheckingInputStream checkedInput = new NulCheckingInputStream(input);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(bufferSize);
+        boolean streaming = false;
+        
+        final byte[] buffer = new byte[bufferSize];
+        int read = checkedInput.read(buffer);
+        while (read != -1)
+        {
+            if (streaming)
+            {
+                out.write(buffer, 0, read);
+            }
+            else
+            {
+                bos.write(buffer, 0, read);
+                if (bos.size() >= htmlChunkSize)
+                {
+                    res.setContentLength(-1);
+                    bos.writeTo(out);
+                    streaming = true;
+                }
+            }
+            read = checkedInput.read(buffer);
+        }
+        
+        if (checkedInput.isNulFound())
+        {
+            haltOnBinaryContent(url, res, streaming ? out : null);
+        }
+        else if (!streaming)
+        {
+            res.setContentLength(bos.size());
+            bos.writeTo(out);
+        }
+    }
+
+    private static void haltOnBinaryContent(URL url, HttpServletResponse res, Flushable output) throws IOException
+    {
+        if (output == null)
+        {
+            // nothing sent yet - send an empty response
+            res.setContentLength(0);
+        }
+        else
+        {
+            // the response has been committed - end it here
+            output.flush();
+            if (logger.isWarnEnabled())
+                logger.warn("Binary content found part way through text response - response truncated: " + url.getPath());
+        }
+    }
+
+    /**
+     * Input stream that ends at the first NUL byte in the underlying stream, recording that it was found.
+     */
+    private static class NulCheckingInputStream extends FilterInputStream
+    {
+        private boolean nulFound = false;
+
+        NulCheckingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        boolean isNulFound()
+        {
+            return nulFound;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (nulFound)
+            {
+                return -1;
+            }
+            int b = super.read();
+            if (b == 0x00)
+            {
+                nulFound = true;
+                return -1;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (nulFound)
+            {
+                return -1;
+            }
+            int read = super.read(b, off, len);
+            for (int i=0; i<read; i++)
+            {
+                if (b[off + i] == 0x00)
+                {
+                    nulFound = true;
+                    return i > 0 ? i : -1;
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            byte[] skipped = new byte[(int)Math.min(n, 4096)];
+            int read = read(skipped, 0, skipped.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return nulFound ? 0 : super.available();
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+
     protected boolean hasDocType(String content, String docType, boolean encode)
     {
         try
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.scripts;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.springframework.extensions.webscripts.ui.common.StringUtils;
+
+/**
+ * Strips unsafe markup from an HTML document as it is streamed, so that only a chunk of the
+ * document need be held in memory at a time.
+ * <p>
+ * The document is scanned as it arrives, noting the points at which a tag or comment has just
+ * ended outside of any script, style or similar raw text element, and outside of any object,
+ * embed, applet or form element, which the stripping removes along with all of its content. Once enough of the document has
+ * been received the part up to the last such point is passed through
+ * {@link StringUtils#stripUnsafeHTMLDocument(String, boolean)} and handed back to be written out,
+ * and the rest is kept to be joined by the next data. As every chunk starts and ends between tags
+ * outside of any element whose content is stripped, the stripped chunks add up to the same safe
+ * document as stripping the whole document at once would.
+ * <p>
+ * A single construct that can't be split, such as a very large script, is held in memory in full.
+ */
+class StreamingHtmlStripper
+{
+    /** Elements whose content is raw text, in which a '<' does not start a tag */
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "script", "style", "textarea", "title", "xmp", "iframe", "noembed", "noframes", "noscript", "plaintext"));
+
+    /**
+     * Elements removed whole, content and all, by the stripping. Their content is scanned as if it were raw
+     * text, so that a chunk never ends inside one and leaves the rest of its content to be kept as text.
+     */
+    private static final Set<String> STRIPPED_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "object", "embed", "applet", "form"));
+
+    private enum State { TEXT, TAG, COMMENT, CDATA, RAW_TEXT, RAW_TEXT_END }
+
+    private final int chunkSize;
+    private final StringBuilder buffer;
+
+    private State state = State.TEXT;
+    /** Position in the buffer up to which it has been scanned */
+    private int scanPos = 0;
+    /** Position in the buffer of the start of the current tag, comment or CDATA section */
+    private int tagStart = 0;
+    /** Position in the buffer after the last complete tag outside of any raw text element */
+    private int boundary = 0;
+    /** Quote character of the attribute value the scan is in, or zero */
+    private char quote = 0;
+    /** Last character of the current tag that was not white space */
+    private char lastNonSpace = 0;
+    /** Name of the raw text or stripped element the scan is in */
+    private String rawTextElement = null;
+
+    /**
+     * @param chunkSize     Number of characters to collect before stripping and returning a chunk
+     */
+    StreamingHtmlStripper(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+        this.buffer = new StringBuilder(chunkSize + (chunkSize >> 2));
+    }
+
+    /**
+     * Add the next characters of the document.
+     *
+     * @return The next stripped chunk of the document to be output, or null if more of the document is needed first
+     */
+    String append(char[] chars, int offset, int length)
+    {
+        buffer.append(chars, offset, length);
+        scan();
+        if (boundary >= chunkSize)
+        {
+            String chunk = strip(buffer.substring(0, boundary));
+            buffer.delete(0, boundary);
+            scanPos -= boundary;
+            tagStart = Math.max(tagStart - boundary, 0);
+            boundary = 0;
+            return chunk;
+        }
+        return null;
+    }
+
+    /**
+     * @return The rest of the stripped document
+     */
+    String finish()
+    {
+        String rest = strip(buffer.toString());
+        buffer.setLength(0);
+        scanPos = tagStart = boundary = 0;
+        state = State.TEXT;
+        return rest;
+    }
+
+    /**
+     * Strip the unsafe markup from a chunk of the document.
+     */
+    protected String strip(String html)
+    {
+        return StringUtils.stripUnsafeHTMLDocument(html, false);
+    }
+
+    private void scan()
+    {
+        final int length = buffer.length();
+        for (; scanPos < length; scanPos++)
+        {
+            final char c = buffer.charAt(scanPos);
+            switch (state)
+            {
+                case TEXT:
+                    if (c == '<')
+                    {
+                        startTag(State.TAG);
+                    }
+                    break;
+
+                case TAG:
+                    if (quote != 0)
+                    {
+                        if (c == quote)
+                        {
+                            quote = 0;
+                        }
+                    }
+                    else if ((c == '"' || c == '\'') && lastNonSpace == '=')
+                    {
+                        quote = c;
+                    }
+                    else if (c == '>')
+                    {
+                        endTag();
+                    }
+                    else if (scanPos == tagStart + 3 && startsWith(tagStart, "<!--"))
+                    {
+                        state = State.COMMENT;
+                    }
+                    else if (scanPos == tagStart + 8 && startsWith(tagStart, "<![CDATA["))
+                    {
+                        state = State.CDATA;
+                    }
+                    if (!Character.isWhitespace(c))
+                    {
+                        lastNonSpace = c;
+                    }
+                    break;
+
+                case COMMENT:
+                    if (c == '>' && scanPos >= tagStart + 6 && startsWith(scanPos - 2, "--"))
+                    {
+                        state = State.TEXT;
+                        boundary = scanPos + 1;
+                    }
+                    break;
+
+                case CDATA:
+                    if (c == '>' && scanPos >= tagStart + 11 && startsWith(scanPos - 2, "]]"))
+                    {
+                        state = State.TEXT;
+                        boundary = scanPos + 1;
+                    }
+                    break;
+
+                case RAW_TEXT:
+                    if (c == '<')
+                    {
+                        startTag(State.RAW_TEXT_END);
+                    }
+                    break;
+
+                case RAW_TEXT_END:
+                    // matching "</name" of the raw text element, then anything up to the closing '>'
+                    final int nameEnd = tagStart + 2 + rawTextElement.length();
+                    if (scanPos == tagStart + 1)
+                    {
+                        if (c != '/')
+                        {
+                            state = State.RAW_TEXT;
+                        }
+                    }
+                    else if (scanPos < nameEnd)
+                    {
+                        if (Character.toLowerCase(c) != rawTextElement.charAt(scanPos - tagStart - 2))
+                        {
+                            state = State.RAW_TEXT;
+                        }
+                    }
+                    else if (scanPos == nameEnd && !(c == '>' || Character.isWhitespace(c)))
+                    {
+                        // a longer element name
+                        state = State.RAW_TEXT;
+                    }
+                    if (state == State.RAW_TEXT_END && c == '>')
+                    {
+                        state = State.TEXT;
+                        rawTextElement = null;
+                        boundary = scanPos + 1;
+                    }
+                    else if (state == State.RAW_TEXT && c == '<')
+                    {
+                        startTag(State.RAW_TEXT_END);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void startTag(State tagState)
+    {
+        state = tagState;
+        tagStart = scanPos;
+        quote = 0;
+        lastNonSpace = '<';
+    }
+
+    /**
+     * Called at the '>' ending a tag - works out whether it opened a raw text or stripped element. Such an element
+     * is open until its end tag even if its start tag is written as self-closing, as in "&lt;script/&gt;".
+     */
+    private void endTag()
+    {
+        int nameStart = tagStart + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < scanPos && Character.isLetterOrDigit(buffer.charAt(nameEnd)))
+        {
+            nameEnd++;
+        }
+        String name = buffer.substring(nameStart, nameEnd).toLowerCase();
+        if (RAW_TEXT_ELEMENTS.contains(name) || STRIPPED_ELEMENTS.contains(name))
+        {
+            state = State.RAW_TEXT;
+            rawTextElement = name;
+        }
+        else
+        {
+            state = State.TEXT;
+            boundary = scanPos + 1;
+        }
+    }
+
+    private boolean startsWith(int index, String prefix)
+    {
+        if (index + prefix.length() > buffer.length())
+        {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            if (Character.toUpperCase(buffer.charAt(index + i)) != prefix.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.springframework.extensions.surf.util.ISO8601DateFormat;
+
+/**
+ * Compact binary cluster message codec.
+ * <p>
+ * A batch is encoded as a byte array:
+ * <pre>
+ * magic, version, flags, sender, body
+ * </pre>
+ * The sender is never compressed so that a node can discard its own messages without decoding
+ * them. The body holds a registry of the message types and map keys used in the batch, each written
+ * once and then referred to by index, followed by the messages - each a type index and a tagged
+ * payload value. The body is deflated when it is larger than the compression threshold, as the
+ * dictionary messages carry large JSON strings.
+ */
+public class BinaryClusterMessageCodec implements ClusterMessageCodec
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte MAGIC = (byte)0xC5;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_DEFLATED = 0x01;
+
+    // value tags
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_TRUE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_LIST = 5;
+    private static final int TAG_MAP = 6;
+
+    /** Size in bytes above which the body of a batch is deflated */
+    private int compressionThreshold = 1024;
+
+    /**
+     * @param compressionThreshold  Size in bytes above which the body of a batch is deflated
+     */
+    public void setCompressionThreshold(int compressionThreshold)
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public Serializable encode(String sender, List<ClusterMessage> messages) throws IOException
+    {
+        // write the messages first to collect the registry of names used in them
+        final Map<String, Integer> registry = new HashMap<>();
+        final List<String> names = new ArrayList<>();
+        final ByteArrayOutputStream messageBytes = new ByteArrayOutputStream(512);
+        final DataOutputStream messageOut = new DataOutputStream(messageBytes);
+        writeVarInt(messageOut, messages.size());
+        for (final ClusterMessage message : messages)
+        {
+            writeVarInt(messageOut, register(message.getType(), registry, names));
+            writeValue(messageOut, (Serializable)message.getPayload(), registry, names);
+        }
+        messageOut.flush();
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(messageBytes.size() + 64 + names.size() * 16);
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+        writeVarInt(bodyOut, names.size());
+        for (final String name : names)
+        {
+            writeString(bodyOut, name);
+        }
+        messageBytes.writeTo(bodyOut);
+        bodyOut.flush();
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(body.size() + 64);
+        final DataOutputStream out = new DataOutputStream(result);
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        final boolean deflate = body.size() > this.compressionThreshold;
+        out.writeByte(deflate ? FLAG_DEFLATED : 0);
+        writeString(out, sender);
+        out.flush();
+        if (deflate)
+        {
+            final DeflaterOutputStream deflater = new DeflaterOutputStream(result, new Deflater(Deflater.BEST_SPEED));
+            body.writeTo(deflater);
+            deflater.finish();
+        }
+        else
+        {
+            body.writeTo(result);
+        }
+        return result.toByteArray();
+    }
+
+    @Override
+    public boolean isBatchSupported()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean canDecode(Object data)
+    {
+        return data instanceof byte[] && ((byte[])data).length > 2 && ((byte[])data)[0] == MAGIC;
+    }
+
+    @Override
+    public Batch decode(Object data) throws IOException
+    {
+        final byte[] bytes = (byte[])data;
+        final DataInputStream header = readHeader(bytes);
+        final String sender = readString(header);
+        // the body is only decoded if the messages are wanted
+        return new Batch()
+        {
+            public String getSender()
+            {
+                return sender;
+            }
+
+            public List<ClusterMessage> getMessages() throws IOException
+            {
+                return readBody(bytes, header);
+            }
+        };
+    }
+
+    /**
+     * Read the messages of a batch from the body that follows its header.
+     */
+    private static List<ClusterMessage> readBody(byte[] bytes, DataInputStream header) throws IOException
+    {
+        InputStream bodyIn = header;
+        if ((bytes[2] & FLAG_DEFLATED) != 0)
+        {
+            bodyIn = new InflaterInputStream(header);
+        }
+        final DataInputStream in = new DataInputStream(bodyIn);
+
+        final int nameCount = readVarInt(in);
+        final String[] names = new String[nameCount];
+        for (int i = 0; i < nameCount; i++)
+        {
+            names[i] = readString(in).intern();
+        }
+        final int messageCount = readVarInt(in);
+        final List<ClusterMessage> messages = new ArrayList<>(messageCount);
+        for (int i = 0; i < messageCount; i++)
+        {
+            final String type = names[readVarInt(in)];
+            messages.add(new ClusterMessage(type, (Map<String, Serializable>)readValue(in, names)));
+        }
+        return messages;
+    }
+
+    private static DataInputStream readHeader(byte[] bytes) throws IOException
+    {
+        if (bytes.length < 3 || bytes[0] != MAGIC)
+        {
+            throw new IOException("Not a binary cluster message");
+        }
+        if (bytes[1] != VERSION)
+        {
+            throw new IOException("Unsupported binary cluster message version: " + bytes[1]);
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes, 3, bytes.length - 3));
+    }
+
+    private static int register(String name, Map<String, Integer> registry, List<String> names)
+    {
+        Integer index = registry.get(name);
+        if (index == null)
+        {
+            index = names.size();
+            registry.put(name, index);
+            names.add(name);
+        }
+        return index;
+    }
+
+    /**
+     * Recursively write a payload value - with the same handling of types as the JSON message format.
+     */
+    private static void writeValue(final DataOutputStream out, final Serializable obj,
+            final Map<String, Integer> registry, final List<String> names) throws IOException
+    {
+        if (obj instanceof Map)
+        {
+            final Map<String, Serializable> map = (Map<String, Serializable>)obj;
+            out.writeByte(TAG_MAP);
+            writeVarInt(out, map.size());
+            for (final Map.Entry<String, Serializable> entry : map.entrySet())
+            {
+                writeVarInt(out, register(entry.getKey(), registry, names));
+                writeValue(out, entry.getValue(), registry, names);
+            }
+        }
+        else if (obj instanceof List)
+        {
+            final List<?> list = (List<?>)obj;
+            out.writeByte(TAG_LIST);
+            writeVarInt(out, list.size());
+            for (final Object item : list)
+            {
+                writeValue(out, (Serializable)item, registry, names);
+            }
+        }
+        else if (obj instanceof Integer)
+        {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Integer)obj);
+        }
+        else if (obj instanceof Boolean)
+        {
+            out.writeByte((Boolean)obj ? TAG_TRUE : TAG_FALSE);
+        }
+        else if (obj instanceof Date)
+        {
+            out.writeByte(TAG_STRING);
+            writeString(out, ISO8601DateFormat.format((Date)obj));
+        }
+        else if (obj == null)
+        {
+            out.writeByte(TAG_NULL);
+        }
+        else
+        {
+            out.writeByte(TAG_STRING);
+            writeString(out, obj.toString());
+        }
+    }
+
+    private static Serializable readValue(final DataInputStream in, final String[] names) throws IOException
+    {
+        final int tag = in.readUnsignedByte();
+        switch (tag)
+        {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString(in);
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_LIST:
+            {
+                final int size = readVarInt(in);
+                final ArrayList<Serializable> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(readValue(in, names));
+                }
+                return list;
+            }
+            case TAG_MAP:
+            {
+                final int size = readVarInt(in);
+                final HashMap<String, Serializable> map = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++)
+                {
+                    final String key = names[readVarInt(in)];
+                    map.put(key, readValue(in, names));
+                }
+                return map;
+            }
+            default:
+                throw new IOException("Unknown value tag in binary cluster message: " + tag);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException
+    {
+        final byte[] bytes = value.getBytes(UTF8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException
+    {
+        final byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeVarInt(final OutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in binary cluster message");
+    }
+}
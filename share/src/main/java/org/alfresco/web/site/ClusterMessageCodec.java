@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contract for the encoding of batches of cluster messages published by the {@link ClusterTopicService}.
+ * <p>
+ * A batch holds the ID of the sending cluster node and one or more messages, each with a message type
+ * and a payload. Payloads may contain Maps, Lists, Strings, Integers, Booleans, Dates and nulls - other
+ * values are sent as their String representation. Decoded payloads hold the values as the JSON message
+ * format always has: numbers as Longs and Dates as ISO8601 Strings.
+ */
+public interface ClusterMessageCodec
+{
+    /**
+     * @param sender    ID of the sending cluster node
+     * @param messages  Messages of the batch
+     *
+     * @return the encoded batch to publish on the cluster topic
+     */
+    Serializable encode(String sender, List<ClusterMessage> messages) throws IOException;
+
+    /**
+     * @return true if every node that can read this format can read a batch of several messages, false if
+     *         each message must be published on its own
+     */
+    boolean isBatchSupported();
+
+    /**
+     * @param data      Data received from the cluster topic
+     *
+     * @return true if the data is in the format of this codec
+     */
+    boolean canDecode(Object data);
+
+    /**
+     * Decode a batch. The sender is read straight away so that a node can cheaply discard its own
+     * messages, but a codec may leave decoding the messages until they are asked for.
+     *
+     * @param data      Encoded batch
+     *
+     * @return the decoded batch
+     */
+    Batch decode(Object data) throws IOException;
+
+
+    /**
+     * A decoded batch of cluster messages.
+     */
+    public interface Batch
+    {
+        /**
+         * @return ID of the sending cluster node
+         */
+        String getSender();
+
+        /**
+         * @return the messages of the batch in the order they were published
+         */
+        List<ClusterMessage> getMessages() throws IOException;
+    }
+
+
+    /**
+     * A single cluster message.
+     */
+    public static final class ClusterMessage
+    {
+        private final String type;
+        private final Map<String, Serializable> payload;
+
+        /**
+         * @param type      Type of this message
+         * @param payload   Payload object for this message
+         */
+        public ClusterMessage(String type, Map<String, Serializable> payload)
+        {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the message type, will only be processed if understood by the receiver
+         */
+        public String getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * @return the arbitrary payload data bundle
+         */
+        public Map<String, Serializable> getPayload()
+        {
+            return this.payload;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof ClusterMessage))
+            {
+                return false;
+            }
+            final ClusterMessage other = (ClusterMessage)obj;
+            return this.type.equals(other.type) &&
+                   (this.payload == null ? other.payload == null : this.payload.equals(other.payload));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.type.hashCode() * 31 + (this.payload == null ? 0 : this.payload.hashCode());
+        }
+    }
+}
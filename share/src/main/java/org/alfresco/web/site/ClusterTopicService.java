@@ -21,24 +21,29 @@ package org.alfresco.web.site;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.util.GUID;
+import org.alfresco.web.site.ClusterMessageCodec.Batch;
+import org.alfresco.web.site.ClusterMessageCodec.ClusterMessage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.simple.parser.ContainerFactory;
-import org.json.simple.parser.JSONParser;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.extensions.surf.ClusterMessageAware;
 import org.springframework.extensions.surf.ClusterService;
-import org.springframework.extensions.surf.util.ISO8601DateFormat;
-import org.springframework.extensions.surf.util.StringBuilderWriter;
-import org.springframework.extensions.webscripts.json.JSONWriter;
 
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.ITopic;
@@ -61,10 +66,19 @@ import com.hazelcast.core.MessageListener;
  * should implement the ClusterMessageAware interface. This service will automatically find all
  * beans that implement those interfaces and provide them with cluster messages when appropriate.
  * Beans implementing that interface can also publish messages to the cluster.
+ * <p>
+ * Messages published in quick succession are collected, dropping repeats, and encoded by a pluggable
+ * {@link ClusterMessageCodec}. The JSON format is used by default, as nodes of earlier versions
+ * understand it - those nodes only read one message at a time, so with the JSON format each collected
+ * message is still published on its own. The compact {@link BinaryClusterMessageCodec} may be configured
+ * instead once every node in the cluster is of this version or later, and sends the collected messages
+ * together as one batch - a node of this version decodes batches in either format whatever codec it
+ * publishes with, so the change can be rolled out node by node. Received batches are passed to the
+ * handler beans on a dispatch thread rather than the Hazelcast listener thread.
  * 
  * @author Kevin Roast
  */
-public class ClusterTopicService implements MessageListener<String>, ClusterService, ApplicationContextAware
+public class ClusterTopicService implements MessageListener<Object>, ClusterService, ApplicationContextAware
 {
     private static Log logger = LogFactory.getLog(ClusterTopicService.class);
     
@@ -75,7 +89,39 @@ public class ClusterTopicService implements MessageListener<String>, ClusterServ
     private String hazelcastTopicName;
     
     /** The Hazelcast Topic resolved during Persister init */
-    private ITopic<String> clusterTopic = null;
+    private ITopic<Object> clusterTopic = null;
+    
+    /** Codec for messages in the original JSON format - always understood */
+    private final ClusterMessageCodec jsonCodec = new JsonClusterMessageCodec();
+    
+    /** Codec for messages in the binary format - always understood */
+    private final ClusterMessageCodec binaryCodec = new BinaryClusterMessageCodec();
+    
+    /** Codec used to encode published messages */
+    private ClusterMessageCodec messageCodec = jsonCodec;
+    
+    /** Time in milliseconds that published messages are held to be sent together, zero to send immediately */
+    private long batchDelay = 50L;
+    
+    /** Number of messages at which a batch is sent without waiting for the batch delay */
+    private int maxBatchSize = 100;
+    
+    /** Number of received message batches that may wait to be dispatched before the listener thread blocks */
+    private int dispatchQueueSize = 1000;
+    
+    /** Messages waiting to be sent and the lock guarding them */
+    private final List<ClusterMessage> pending = new ArrayList<>();
+    private final Object pendingLock = new Object();
+    private boolean flushScheduled = false;
+    
+    /** Lock held while a batch is sent to keep batches in order */
+    private final Object publishLock = new Object();
+    
+    /** Sends the batches of published messages - null if messages are sent immediately */
+    private ScheduledExecutorService publisher = null;
+    
+    /** Calls the handler beans for received messages - a single thread so messages are handled in order */
+    private ThreadPoolExecutor dispatcher = null;
     
     /** Registry of cluster message types to implementation beans */
     private Map<String, ClusterMessageAware> clusterBeans = null;
@@ -103,6 +149,42 @@ public class ClusterTopicService implements MessageListener<String>, ClusterServ
         this.hazelcastTopicName = hazelcastTopicName;
     }
     
+    /**
+     * @param messageCodec          The codec used to encode published messages - JSON by default. Set a
+     *                              BinaryClusterMessageCodec only once no node of an earlier version is left
+     *                              in the cluster, as those nodes can't read it.
+     */
+    public void setMessageCodec(ClusterMessageCodec messageCodec)
+    {
+        this.messageCodec = messageCodec;
+    }
+    
+    /**
+     * @param batchDelay            Time in milliseconds published messages are held to be sent together,
+     *                              zero to send each message immediately
+     */
+    public void setBatchDelay(long batchDelay)
+    {
+        this.batchDelay = batchDelay;
+    }
+    
+    /**
+     * @param maxBatchSize          Number of messages at which a batch is sent without waiting for the delay
+     */
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+    
+    /**
+     * @param dispatchQueueSize     Number of received batches that may wait to be dispatched to the handler
+     *                              beans before the Hazelcast listener thread blocks
+     */
+    public void setDispatchQueueSize(int dispatchQueueSize)
+    {
+        this.dispatchQueueSize = dispatchQueueSize;
+    }
+    
     
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Spring Init
@@ -135,7 +217,7 @@ public class ClusterTopicService implements MessageListener<String>, ClusterServ
         }
         
         // cluster topic initialisation
-        ITopic<String> topic = this.hazelcastInstance.getTopic(this.hazelcastTopicName);
+        ITopic<Object> topic = this.hazelcastInstance.getTopic(this.hazelcastTopicName);
         if (topic == null)
         {
             throw new IllegalArgumentException(
@@ -171,6 +253,34 @@ public class ClusterTopicService implements MessageListener<String>, ClusterServ
             }
         }
         
+        // batches of published messages are sent by a scheduled thread
+        if (this.batchDelay > 0)
+        {
+            this.publisher = Executors.newSingleThreadScheduledExecutor(threadFactory("ShareClusterPublisher"));
+        }
+        
+        // received messages are handled in order by a single thread - when the queue is full the
+        // Hazelcast listener thread waits for space rather than messages being dropped or reordered
+        this.dispatcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(this.dispatchQueueSize), threadFactory("ShareClusterDispatcher"),
+                new RejectedExecutionHandler()
+                {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+                    {
+                        if (!executor.isShutdown())
+                        {
+                            try
+                            {
+                                executor.getQueue().put(r);
+                            }
+                            catch (InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+        
         // start listening for cluster messages
         this.clusterTopic = topic;
         this.clusterTopic.addMessageListener(this);
@@ -179,323 +289,265 @@ public class ClusterTopicService implements MessageListener<String>, ClusterServ
     }
     
     
+    /**
+     * Bean destroy method - publishes any messages waiting to be sent and stops listening for messages.
+     */
+    public void destroy()
+    {
+        if (this.clusterTopic != null)
+        {
+            this.clusterTopic.removeMessageListener(this);
+        }
+        if (this.publisher != null)
+        {
+            this.publisher.shutdownNow();
+            flush();
+        }
+        if (this.dispatcher != null)
+        {
+            this.dispatcher.shutdown();
+        }
+    }
+    
+    
     /////////////////////////////////////////////////////////////////
     // Hazelcast Cluster message send and receive
     
     /**
      * Push message out to the cluster - multicast or direct TCP depending on Hazelcast config.
+     * <p>
+     * Unless the batch delay is zero the message is held for up to the batch delay, so that a burst of
+     * messages is sent together - as a single batch if the codec supports batches. A message identical to
+     * the one published just before it in the batch is dropped.
      */
     @Override
     public void publishClusterMessage(String messageType, Map<String, Serializable> payload)
     {
         // construct the message object from the payload
-        final ClusterMessage msg = new ClusterMessageImpl(messageType, payload);
+        final ClusterMessage msg = new ClusterMessage(messageType, payload);
         
-        // serialise it to plain text for transmission
-        final String serialised = msg.toString();
-        if (logger.isDebugEnabled())
-            logger.debug("Pushing message:\r\n" + serialised);
+        if (this.publisher == null || this.publisher.isShutdown())
+        {
+            publish(Collections.singletonList(msg));
+            return;
+        }
         
-        // push the message out to the Hazelcast topic cluster
-        this.clusterTopic.publish(serialised);
+        boolean flushNow = false;
+        synchronized (this.pendingLock)
+        {
+            if (this.pending.isEmpty() || !this.pending.get(this.pending.size() - 1).equals(msg))
+            {
+                this.pending.add(msg);
+            }
+            if (this.pending.size() >= this.maxBatchSize)
+            {
+                flushNow = true;
+            }
+            else if (!this.flushScheduled)
+            {
+                this.flushScheduled = true;
+                this.publisher.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            flush();
+                        }
+                        catch (Throwable e)
+                        {
+                            logger.error("Failed to publish cluster messages: " + e.getMessage(), e);
+                        }
+                    }
+                }, this.batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow)
+        {
+            flush();
+        }
     }
     
     /**
-     * Hazelcast MessageListener implementation - called when a message is received from a cluster node
-     * 
-     * @param message   Cluster message JSON string
+     * Publish the messages waiting to be sent as one batch.
      */
-    @Override
-    public void onMessage(final Message<String> message)
+    private void flush()
     {
-        final boolean debug = logger.isDebugEnabled();
-        
-        // process message objects and extract the payload
-        final String msg = message.getMessageObject();
-        final MessageProcessor proc = new MessageProcessor(msg);
-        if (!proc.isSender())
+        // hold the publish lock while the batch is taken and sent so that batches are sent in order
+        synchronized (this.publishLock)
         {
-            if (debug) logger.debug("Received message of type:" + proc.getMessageType() + "\r\n" + msg);
-            
-            // call an implementation of a message handler bean
-            final ClusterMessageAware bean = this.clusterBeans.get(proc.getMessageType());
-            if (bean != null)
+            final List<ClusterMessage> batch;
+            synchronized (this.pendingLock)
             {
-                bean.onClusterMessage(proc.getMessagePayload());
+                this.flushScheduled = false;
+                if (this.pending.isEmpty())
+                {
+                    return;
+                }
+                batch = new ArrayList<>(this.pending);
+                this.pending.clear();
             }
-            else
+            publish(batch);
+        }
+    }
+    
+    /**
+     * Encode and push a batch of messages out to the Hazelcast topic cluster - one message at a time if the
+     * codec does not support batches.
+     */
+    private void publish(List<ClusterMessage> batch)
+    {
+        if (batch.size() > 1 && !this.messageCodec.isBatchSupported())
+        {
+            for (final ClusterMessage msg : batch)
             {
-                logger.warn("Received message of unknown type - no handler bean found: " + proc.getMessageType());
+                publishBatch(Collections.singletonList(msg));
             }
         }
+        else
+        {
+            publishBatch(batch);
+        }
     }
     
-    
-    //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    // Inner classes and messaging contract interfaces
-    
     /**
-     * Contract for a cluster message.
+     * Encode and push a batch of messages out to the Hazelcast topic cluster as one topic message.
      */
-    interface ClusterMessage
+    private void publishBatch(List<ClusterMessage> batch)
     {
-        static final String JSON_SENDER = "sender";
-        static final String JSON_MESSAGE = "message";
-        static final String JSON_TYPE = "type";
-        static final String JSON_PAYLOAD = "payload";
-        
-        /**
-         * @return the globally unique sender ID
-         */
-        String getSender();
-        
-        /**
-         * @return the message type, will only be processed if understood by the receiver
-         */
-        String getType();
+        final Serializable serialised;
+        try
+        {
+            serialised = this.messageCodec.encode(clusterNodeId, batch);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to serialise cluster message: " + e.getMessage(), e);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Pushing batch of " + batch.size() + " message(s):\r\n" +
+                    (serialised instanceof byte[] ? ((byte[])serialised).length + " bytes" : serialised));
         
-        /**
-         * @return the arbitrary payload data bundle
-         */
-        Map<String, Serializable> getPayload();
+        this.clusterTopic.publish(serialised);
     }
     
     /**
-     * Abstract base class for cluster messages.
+     * Hazelcast MessageListener implementation - called when a message is received from a cluster node
      * <p>
-     * Wraps an object payload and the type of the message and handles the marshling
-     * of the payload to JSON string message format.
+     * Messages sent by this node are discarded here, others are handed to the dispatch thread so that
+     * the Hazelcast listener thread is not held up by the message handler beans.
+     * 
+     * @param message   Cluster message batch - byte array or JSON string depending on the codec of the sender
      */
-    static class ClusterMessageImpl implements ClusterMessage
+    @Override
+    public void onMessage(final Message<Object> message)
     {
-        /** message type */
-        final private String type;
-        
-        /** payload object */
-        final Map<String, Serializable> payload;
-        
-        /**
-         * Constructor
-         * 
-         * @param type      Type of this message
-         * @param payload   Payload object for this message
-         */
-        ClusterMessageImpl(String type, Map<String, Serializable> payload)
+        final Object data = message.getMessageObject();
+        final ClusterMessageCodec codec = getCodec(data);
+        if (codec == null)
         {
-            this.type = type;
-            this.payload = payload;
+            logger.warn("Received cluster message in unknown format: " + data);
+            return;
         }
         
-        /**
-         * @return the payload map for the message
-         */
-        public Map<String, Serializable> getPayload()
+        final Batch batch;
+        try
         {
-            return this.payload;
+            batch = codec.decode(data);
         }
-
-        /**
-         * @return the unique ID for the cluster node in the message
-         */
-        public String getSender()
+        catch (IOException e)
         {
-            return clusterNodeId;
+            logger.warn("Unable to read cluster message: " + e.getMessage());
+            return;
         }
-
-        /**
-         * @return the message type
-         */
-        public String getType()
+        if (clusterNodeId.equals(batch.getSender()))
         {
-            return this.type;
+            return;
         }
         
-        @Override
-        public String toString()
+        this.dispatcher.execute(new Runnable()
         {
-            // serialise message to JSON and return final message string data
-            try
+            public void run()
             {
-                final StringBuilderWriter buffer = new StringBuilderWriter(512);
-                final JSONWriter writer = new JSONWriter(buffer);
-                writer.startObject();
-                writer.writeValue(ClusterMessage.JSON_SENDER, getSender());
-                writer.startValue(ClusterMessage.JSON_MESSAGE);
-                writer.startObject();
-                writer.writeValue(ClusterMessage.JSON_TYPE, getType());
-                writer.startValue(ClusterMessage.JSON_PAYLOAD);
-                serialiseMessageObjects(writer, null, (Serializable)this.payload);
-                writer.endValue();
-                writer.endObject();
-                writer.endValue();
-                writer.endObject();
-                return buffer.toString();
+                dispatch(batch);
             }
-            catch (IOException e)
-            {
-                throw new IllegalStateException("Failed to serialise cluster message: " + e.getMessage(), e);
-            }
-        }
+        });
+    }
+    
+    /**
+     * Decode the messages of a batch and call the message handler beans.
+     */
+    private void dispatch(Batch batch)
+    {
+        final boolean debug = logger.isDebugEnabled();
         
-        /**
-         * Recursively serialise objects to a JSONWriter.
-         * <p>
-         * Handles basic Java type suitable for the current messaging implementation.
-         * 
-         * @param writer    JSONWriter for output
-         * @param name      Name of the current value, can be null for array item
-         * @param obj       Object representing the value to serialise
-         */
-        static void serialiseMessageObjects(final JSONWriter writer, final String name, final Serializable obj)
-            throws IOException
+        final List<ClusterMessage> messages;
+        try
         {
-            if (obj instanceof Map)
-            {
-                // recursively serialise the map entries
-                if (name != null)
-                {
-                    writer.startValue(name);
-                }
-                writer.startObject();
-                Map<String, Serializable> map = (Map<String, Serializable>)obj;
-                for (final String key: map.keySet())
-                {
-                    serialiseMessageObjects(writer, key, map.get(key));
-                }
-                writer.endObject();
-                if (name != null)
-                {
-                    writer.endValue();
-                }
-            }
-            else if (obj instanceof List)
-            {
-                // recursively serialise the list items
-                if (name != null)
-                {
-                    writer.startValue(name);
-                }
-                writer.startArray();
-                for (final Object item: (List)obj)
-                {
-                    serialiseMessageObjects(writer, null, (Serializable)item);
-                }
-                writer.endArray();
-                if (name != null)
-                {
-                    writer.endValue();
-                }
-            }
-            else if (obj instanceof Integer)
-            {
-                if (name != null)
-                {
-                    writer.writeValue(name, (Integer)obj);
-                }
-                else
-                {
-                    writer.writeValue((Integer)obj);
-                }
-            }
-            else if (obj instanceof Boolean)
-            {
-                if (name != null)
-                {
-                    writer.writeValue(name, (Boolean)obj);
-                }
-                else
-                {
-                    writer.writeValue((Boolean)obj);
-                }
-            }
-            else if (obj instanceof Date)
-            {
-                if (name != null)
-                {
-                    writer.writeValue(name, ISO8601DateFormat.format((Date)obj));
-                }
-                else
-                {
-                    writer.writeValue(ISO8601DateFormat.format((Date)obj));
-                }
-            }
-            else if (obj == null)
+            messages = batch.getMessages();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Unable to read cluster message: " + e.getMessage());
+            return;
+        }
+        for (final ClusterMessage msg : messages)
+        {
+            if (debug) logger.debug("Received message of type:" + msg.getType() + "\r\n" + msg.getPayload());
+            
+            // call an implementation of a message handler bean
+            final ClusterMessageAware bean = this.clusterBeans.get(msg.getType());
+            if (bean != null)
             {
-                if (name != null)
+                try
                 {
-                    writer.writeNullValue(name);
+                    bean.onClusterMessage(msg.getPayload());
                 }
-                else
+                catch (Throwable e)
                 {
-                    writer.writeNullValue();
+                    logger.error("Failed to process cluster message of type: " + msg.getType(), e);
                 }
             }
             else
             {
-                if (name != null)
-                {
-                    writer.writeValue(name, obj.toString());
-                }
-                else
-                {
-                    writer.writeValue(obj.toString());
-                }
+                logger.warn("Received message of unknown type - no handler bean found: " + msg.getType());
             }
         }
     }
     
-    /**
-     * This class is responsible for deserialising a message string into objects.
-     * <p>
-     * The sender, message type and object payload can then be retrieved for further processing.
-     */
-    static class MessageProcessor
+    private ClusterMessageCodec getCodec(Object data)
     {
-        private final String sender;
-        private final String type;
-        private final Map<String, Serializable> payload;
-        
-        MessageProcessor(String msg)
+        if (this.messageCodec.canDecode(data))
         {
-            // deserialise the message to retrieve the sender, type and payload objects
-            try
-            {
-                Map<String, Object> json = (Map<String, Object>)new JSONParser().parse(msg, new ContainerFactory()
-                    {
-                        public Map createObjectContainer()
-                        {
-                            return new HashMap();
-                        }
-                        
-                        public List creatArrayContainer()
-                        {
-                            return new ArrayList();
-                        }
-                    });
-                this.sender = (String)json.get(ClusterMessage.JSON_SENDER);
-                Map<String, Object> message = (Map<String, Object>)json.get(ClusterMessage.JSON_MESSAGE);
-                this.type = (String)message.get(ClusterMessage.JSON_TYPE);
-                this.payload = (Map<String, Serializable>)message.get(ClusterMessage.JSON_PAYLOAD);
-            }
-            catch (Throwable e)
-            {
-                throw new IllegalArgumentException("Unable to parse cluster JSON message: " + e.getMessage() + "\r\n" + msg);
-            }
+            return this.messageCodec;
         }
-        
-        boolean isSender()
+        // messages from nodes using the other format - nodes of earlier versions only send JSON
+        if (this.jsonCodec.canDecode(data))
         {
-            return clusterNodeId.equals(this.sender);
+            return this.jsonCodec;
         }
-        
-        String getMessageType()
+        if (this.binaryCodec.canDecode(data))
         {
-            return this.type;
+            return this.binaryCodec;
         }
-        
-        Map<String, Serializable> getMessagePayload()
+        return null;
+    }
+    
+    /**
+     * Thread factory for the named daemon threads of the service.
+     */
+    private static ThreadFactory threadFactory(final String name)
+    {
+        return new ThreadFactory()
         {
-            return this.payload;
-        }
+            private final AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
-}
\ No newline at end of file
+}
@@ -116,6 +116,28 @@ public class EditionInfo implements Serializable
         return this.response;
     }
 
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof EditionInfo))
+        {
+            return false;
+        }
+        final EditionInfo other = (EditionInfo)obj;
+        return this.users == other.users && this.documents == other.documents &&
+               this.response == other.response && this.edition.equals(other.edition) && this.holder.equals(other.holder);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.edition.hashCode() * 31 + this.holder.hashCode();
+    }
+
     @Override
     public String toString()
     {
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2015 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of Alfresco
  *
@@ -18,10 +18,19 @@
  */
 package org.alfresco.web.site;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.http.HttpSession;
 
@@ -32,14 +41,16 @@ import org.apache.commons.logging.LogFactory;
 import org.json.JSONException;
 import org.springframework.extensions.config.ConfigBootstrap;
 import org.springframework.extensions.config.ConfigService;
+import org.springframework.extensions.surf.ClusterMessageAware;
+import org.springframework.extensions.surf.ClusterService;
 import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.UserFactory;
+import org.springframework.extensions.surf.WebFrameworkServiceRegistry;
 import org.springframework.extensions.surf.exception.WebFrameworkServiceException;
 import org.springframework.extensions.surf.mvc.AbstractWebFrameworkInterceptor;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.connector.Connector;
-import org.springframework.extensions.webscripts.connector.ConnectorContext;
 import org.springframework.extensions.webscripts.connector.Response;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.context.request.WebRequest;
@@ -47,10 +58,19 @@ import org.springframework.web.context.request.WebRequest;
 /**
  * Framework interceptor responsible for checking repository license edition
  * and applying appropriate config overrides.
+ * <p>
+ * The edition and license restrictions are retrieved from the repository once and held for the
+ * whole web-tier node. Once the license information is known it is refreshed in the background
+ * every refresh interval, so requests never wait on the repository for it. Until the license
+ * information is known the retrieval is retried from a request at most every retry interval, as
+ * an authenticated session may be required to read it from a multi-tenant repository.
+ * <p>
+ * When a refresh finds that the license has changed the other nodes of the cluster are told to
+ * refresh their license information.
  * 
  * @author Kevin Roast
  */
-public class EditionInterceptor extends AbstractWebFrameworkInterceptor
+public class EditionInterceptor extends AbstractWebFrameworkInterceptor implements ClusterMessageAware
 {
     /** public name of the value in the RequestContext */
     public static final String EDITION_INFO = "editionInfo";
@@ -67,156 +87,279 @@ public class EditionInterceptor extends AbstractWebFrameworkInterceptor
      * These are maintained as static variables so that they don't have to be recreated 
      * upon each thread's call to the preHandle method.
      */
-    private static EditionInfo EDITIONINFO = null;
-    private static DocsEdition docsEdition = null;
+    private static volatile CachedEdition EDITION = null;
+    
+    /** Edition the runtime config overrides have been applied for */
+    private static String configEdition = null;
+    
+    /** Set when a cluster message has requested a refresh - the refresh is not broadcast again */
+    private static volatile boolean clusterRefresh = false;
     
     private static volatile boolean outputInfo = false;
     private static volatile boolean outputEditionInfo = false;
-    private static final ReadWriteLock editionLock = new ReentrantReadWriteLock();
+    private static final Lock retrieveLock = new ReentrantLock();
+    private static final AtomicBoolean refreshing = new AtomicBoolean();
+    
+    /** Background refresh of the license information - the thread ends when idle */
+    private static final ExecutorService refresher = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    final Thread thread = new Thread(r, "ShareEditionRefresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     private ShareManifest shareManifest;
     
+    private ClusterService clusterService = null;
+    
+    /** Interval in seconds between background refreshes of known license information */
+    private long refreshInterval = 300L;
+    
+    /** Interval in seconds between retrievals while the license information is not known */
+    private long retryInterval = 5L;
+    
     public void setShareManifest(ShareManifest shareManifest)
     {
         this.shareManifest = shareManifest;
     }
     
+    /**
+     * @param refreshInterval   Interval in seconds between background refreshes of known license information
+     */
+    public void setRefreshInterval(long refreshInterval)
+    {
+        this.refreshInterval = refreshInterval;
+    }
+    
+    /**
+     * @param retryInterval     Interval in seconds between retrievals while the license information is not known
+     */
+    public void setRetryInterval(long retryInterval)
+    {
+        this.retryInterval = retryInterval;
+    }
+    
     /* (non-Javadoc)
      * @see org.springframework.web.context.request.WebRequestInterceptor#preHandle(org.springframework.web.context.request.WebRequest)
      */
     @Override
     public void preHandle(WebRequest request) throws Exception
     {
-        editionLock.readLock().lock();
-        try
+        final RequestContext rc = ThreadLocalRequestContext.getRequestContext();
+        final long now = System.currentTimeMillis();
+        CachedEdition edition = EDITION;
+        if (edition == null || (!edition.info.getValidResponse() && now - edition.retrieved >= this.retryInterval * 1000L))
         {
-            if (EDITIONINFO == null)
+            // the first request waits for the edition - later ones use the last retrieved value
+            // rather than queue behind another thread that is already retrying
+            boolean locked = true;
+            if (edition == null)
+            {
+                retrieveLock.lock();
+            }
+            else
+            {
+                locked = retrieveLock.tryLock();
+            }
+            if (locked)
             {
-                editionLock.readLock().unlock();
-                editionLock.writeLock().lock();
                 try
                 {
-                    // check again, as more than one thread could have been waiting on the Write lock 
-                    if (EDITIONINFO == null)
+                    // check again, as more than one thread could have been waiting on the lock 
+                    edition = EDITION;
+                    if (edition == null || (!edition.info.getValidResponse() && now - edition.retrieved >= this.retryInterval * 1000L))
                     {
-                        // initiate a call to retrieve the edition and restrictions from the repository
-                        RequestContext rc = ThreadLocalRequestContext.getRequestContext();
-                        Connector conn = rc.getServiceRegistry().getConnectorService().getConnector("alfresco");
-                        ConnectorContext ctx = new ConnectorContext();
-                        ctx.setExceptionOnError(false);
-                        Response response = conn.call("/api/admin/restrictions?guest=true");
-                        if (response.getStatus().getCode() == Status.STATUS_UNAUTHORIZED)
+                        final CachedEdition retrieved = retrieve(rc.getServiceRegistry(), true);
+                        if (retrieved != null)
                         {
-                            // if this occurs we may be running a multi-tenant repository or guest auth is disabled
-                            if (MTAuthenticationFilter.getCurrentServletRequest() != null)
-                            {
-                                HttpSession session = MTAuthenticationFilter.getCurrentServletRequest().getSession(false);
-                                if (session != null)
-                                {
-                                    // we try now that a Session is acquired and we have an authenticated user
-                                    // this is the only time that we can successfully retrieve the license information
-                                    // when the repo is in multi-tenant mode - as guest auth is not supported otherwise
-                                    conn = rc.getServiceRegistry().getConnectorService().getConnector(
-                                            "alfresco", (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID), session);
-                                    response = conn.call("/api/admin/restrictions");
-                                }
-                                else
-                                {
-                                    // as a last resort try retrieving the server version so that
-                                    // we can at least determine what the edition is
-                                    response = conn.call("/api/server");
-                                }
-                            }
+                            EDITION = retrieved;
                         }
-                        if (response.getStatus().getCode() == Status.STATUS_OK)
+                        else
                         {
-                            EditionInfo editionInfo = new EditionInfo(response.getResponse());
-                            docsEdition = new DocsEdition(editionInfo.getEdition(), shareManifest.getSpecificationVersion(), false);
-                            if (editionInfo.getValidResponse())
-                            {
-                               logger.info("Successfully retrieved license information from Alfresco.");
-                               EDITIONINFO = editionInfo;
-                            }
-                            else
+                            // set a value so scripts have something to work with - the interceptor will retry later
+                            EDITION = new CachedEdition(new EditionInfo(), new DocsEdition(), now);
+                        }
+                    }
+                }
+                catch (JSONException err)
+                {
+                    throw new WebFrameworkServiceException("Unable to process response: " + err.getMessage(), err);
+                }
+                finally
+                {
+                    retrieveLock.unlock();
+                }
+            }
+        }
+        else if (edition.info.getValidResponse() && now - edition.retrieved >= this.refreshInterval * 1000L)
+        {
+            refresh(rc.getServiceRegistry());
+        }
+        
+        edition = EDITION;
+        rc.setValue(EDITION_INFO, edition.info);
+        rc.setValue(KEY_DOCS_EDITION, edition.docsEdition);
+    }
+    
+    /**
+     * Refresh the license information in the background - unless a refresh is already running.
+     * The current license information continues to be used until the refresh completes.
+     */
+    private void refresh(final WebFrameworkServiceRegistry serviceRegistry)
+    {
+        if (refreshing.compareAndSet(false, true))
+        {
+            refresher.execute(new Runnable()
+            {
+                public void run()
+                {
+                    final boolean fromCluster = clusterRefresh;
+                    clusterRefresh = false;
+                    try
+                    {
+                        final CachedEdition current = EDITION;
+                        CachedEdition retrieved = null;
+                        try
+                        {
+                            retrieved = retrieve(serviceRegistry, false);
+                        }
+                        catch (Throwable err)
+                        {
+                            logger.warn("Unable to refresh License information from Alfresco: " + err.getMessage());
+                        }
+                        if (retrieved != null && retrieved.info.getValidResponse())
+                        {
+                            EDITION = retrieved;
+                            if (!retrieved.info.equals(current.info))
                             {
-                                if (!outputEditionInfo)
+                                logger.info("License information from Alfresco has changed.");
+                                if (!fromCluster && clusterService != null)
                                 {
-                                    logger.info("Successfully retrieved edition information from Alfresco.");
-                                    outputEditionInfo = true;
+                                    clusterService.publishClusterMessage(EditionRefreshMessage.TYPE,
+                                            Collections.<String, Serializable>emptyMap());
                                 }
-                                
-                                // set edition info for current thread
-                                ThreadLocalRequestContext.getRequestContext().setValue(EDITION_INFO, editionInfo);
-                                ThreadLocalRequestContext.getRequestContext().setValue(KEY_DOCS_EDITION, docsEdition);
-                                
-                                // NOTE: We do NOT assign to the EDITIONINFO so that we re-evaluate next time.
-                            }
-                            
-                            // apply runtime config overrides based on the repository edition
-                            String runtimeConfig = null;
-                            if (TEAM_EDITION.equals(editionInfo.getEdition()))
-                            {
-                                runtimeConfig = "classpath:alfresco/team-config.xml";
-                            }
-                            else if (ENTERPRISE_EDITION.equals(editionInfo.getEdition()))
-                            {
-                                runtimeConfig = "classpath:alfresco/enterprise-config.xml";
                             }
-                            if (runtimeConfig != null)
-                            {
-                                // manually instantiate a ConfigBootstrap object that will
-                                // register our override config with the main config source
-                                List<String> configs = new ArrayList<String>(1);
-                                configs.add(runtimeConfig);
-                                
-                                ConfigService configservice = rc.getServiceRegistry().getConfigService();
-                                ConfigBootstrap cb = new ConfigBootstrap();
-                                cb.setBeanName("share-edition-config");
-                                cb.setConfigService(configservice);
-                                cb.setConfigs(configs);
-                                cb.register();
-                                configservice.reset();
-                            }
-                            if (logger.isDebugEnabled())
-                                logger.debug("Current EditionInfo: " + editionInfo);
                         }
                         else
                         {
-                            // only output the warning once
-                            if (!outputInfo)
-                            {
-                                logger.info("Unable to retrieve License information from Alfresco: " + response.getStatus().getCode());
-                                outputInfo = true;
-                            }
-                            // set a value so scripts have something to work with - the interceptor will retry later
-                            EditionInfo info = new EditionInfo();
-                            ThreadLocalRequestContext.getRequestContext().setValue(EDITION_INFO, info);
-                            DocsEdition tempDocsEdition = new DocsEdition();
-                            ThreadLocalRequestContext.getRequestContext().setValue(KEY_DOCS_EDITION, tempDocsEdition);
-                            if (logger.isDebugEnabled())
-                                logger.debug("Current EditionInfo: " + info);
+                            // keep the known license information and try again at the next interval
+                            EDITION = new CachedEdition(current.info, current.docsEdition, System.currentTimeMillis());
                         }
                     }
+                    finally
+                    {
+                        refreshing.set(false);
+                    }
                 }
-                catch (JSONException err)
+            });
+        }
+    }
+    
+    /**
+     * Retrieve the edition and restrictions from the repository and apply the runtime config overrides
+     * for the edition.
+     * 
+     * @param serviceRegistry   Web Framework service registry
+     * @param useSession        True to retry with the session of the current request if guest access is refused
+     * 
+     * @return the retrieved edition, or null if the repository did not respond with it
+     */
+    private CachedEdition retrieve(WebFrameworkServiceRegistry serviceRegistry, boolean useSession) throws Exception
+    {
+        // initiate a call to retrieve the edition and restrictions from the repository
+        Connector conn = serviceRegistry.getConnectorService().getConnector("alfresco");
+        Response response = conn.call("/api/admin/restrictions?guest=true");
+        if (response.getStatus().getCode() == Status.STATUS_UNAUTHORIZED && useSession)
+        {
+            // if this occurs we may be running a multi-tenant repository or guest auth is disabled
+            if (MTAuthenticationFilter.getCurrentServletRequest() != null)
+            {
+                HttpSession session = MTAuthenticationFilter.getCurrentServletRequest().getSession(false);
+                if (session != null)
                 {
-                    throw new WebFrameworkServiceException("Unable to process response: " + err.getMessage(), err);
+                    // we try now that a Session is acquired and we have an authenticated user
+                    // this is the only time that we can successfully retrieve the license information
+                    // when the repo is in multi-tenant mode - as guest auth is not supported otherwise
+                    conn = serviceRegistry.getConnectorService().getConnector(
+                            "alfresco", (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID), session);
+                    response = conn.call("/api/admin/restrictions");
                 }
-                finally
+                else
+                {
+                    // as a last resort try retrieving the server version so that
+                    // we can at least determine what the edition is
+                    response = conn.call("/api/server");
+                }
+            }
+        }
+        if (response.getStatus().getCode() == Status.STATUS_OK)
+        {
+            EditionInfo editionInfo = new EditionInfo(response.getResponse());
+            DocsEdition docsEdition = new DocsEdition(editionInfo.getEdition(), shareManifest.getSpecificationVersion(), false);
+            if (editionInfo.getValidResponse())
+            {
+                if (EDITION == null || !editionInfo.equals(EDITION.info))
                 {
-                    editionLock.readLock().lock();
-                    editionLock.writeLock().unlock();
+                    logger.info("Successfully retrieved license information from Alfresco.");
                 }
             }
-            if (EDITIONINFO != null)
+            else if (!outputEditionInfo)
             {
-                ThreadLocalRequestContext.getRequestContext().setValue(EDITION_INFO, EDITIONINFO);
-                ThreadLocalRequestContext.getRequestContext().setValue(KEY_DOCS_EDITION, docsEdition);
+                logger.info("Successfully retrieved edition information from Alfresco.");
+                outputEditionInfo = true;
             }
+            
+            applyConfigOverrides(serviceRegistry, editionInfo.getEdition());
+            if (logger.isDebugEnabled())
+                logger.debug("Current EditionInfo: " + editionInfo);
+            
+            return new CachedEdition(editionInfo, docsEdition, System.currentTimeMillis());
+        }
+        else
+        {
+            // only output the warning once
+            if (!outputInfo)
+            {
+                logger.info("Unable to retrieve License information from Alfresco: " + response.getStatus().getCode());
+                outputInfo = true;
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Apply runtime config overrides based on the repository edition - once for each edition.
+     */
+    private static synchronized void applyConfigOverrides(WebFrameworkServiceRegistry serviceRegistry, String edition)
+    {
+        String runtimeConfig = null;
+        if (TEAM_EDITION.equals(edition))
+        {
+            runtimeConfig = "classpath:alfresco/team-config.xml";
+        }
+        else if (ENTERPRISE_EDITION.equals(edition))
+        {
+            runtimeConfig = "classpath:alfresco/enterprise-config.xml";
         }
-        finally
+        if (runtimeConfig != null && !edition.equals(configEdition))
         {
-            editionLock.readLock().unlock();
+            // manually instantiate a ConfigBootstrap object that will
+            // register our override config with the main config source
+            List<String> configs = new ArrayList<String>(1);
+            configs.add(runtimeConfig);
+            
+            ConfigService configservice = serviceRegistry.getConfigService();
+            ConfigBootstrap cb = new ConfigBootstrap();
+            cb.setBeanName("share-edition-config");
+            cb.setConfigService(configservice);
+            cb.setConfigs(configs);
+            cb.register();
+            configservice.reset();
+            configEdition = edition;
         }
     }
     
@@ -235,5 +378,60 @@ public class EditionInterceptor extends AbstractWebFrameworkInterceptor
     public void afterCompletion(WebRequest request, Exception ex) throws Exception
     {
     }
-
+    
+    
+    /////////////////////////////////////////////////////////////////
+    // Cluster message handling
+    
+    /**
+     * Cluster message sent when a node finds the license has changed.
+     */
+    static interface EditionRefreshMessage
+    {
+        static final String TYPE = "edition-refresh";
+    }
+    
+    public void setClusterService(ClusterService service)
+    {
+        this.clusterService = service;
+    }
+    
+    @Override
+    public String getClusterMessageType()
+    {
+        return EditionRefreshMessage.TYPE;
+    }
+    
+    @Override
+    public void onClusterMessage(Map<String, Serializable> payload)
+    {
+        final CachedEdition edition = EDITION;
+        if (edition != null && edition.info.getValidResponse())
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Cluster message to refresh the license information.");
+            
+            // expire the license information - the next request starts a refresh
+            clusterRefresh = true;
+            EDITION = new CachedEdition(edition.info, edition.docsEdition, 0L);
+        }
+    }
+    
+    
+    /**
+     * Edition and documentation edition as retrieved at a point in time.
+     */
+    private static final class CachedEdition
+    {
+        final EditionInfo info;
+        final DocsEdition docsEdition;
+        final long retrieved;
+        
+        CachedEdition(EditionInfo info, DocsEdition docsEdition, long retrieved)
+        {
+            this.info = info;
+            this.docsEdition = docsEdition;
+            this.retrieved = retrieved;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.parser.ContainerFactory;
+import org.json.simple.parser.JSONParser;
+import org.springframework.extensions.surf.util.ISO8601DateFormat;
+import org.springframework.extensions.surf.util.StringBuilderWriter;
+import org.springframework.extensions.webscripts.json.JSONWriter;
+
+/**
+ * Cluster message codec using the original JSON String message format.
+ * <p>
+ * A batch of a single message is encoded exactly as before, so that nodes using this codec
+ * can exchange messages with nodes of earlier versions:
+ * <pre>
+ * {"sender":"...","message":{"type":"...","payload":{...}}}
+ * </pre>
+ * A batch of several messages is encoded with an array of messages:
+ * <pre>
+ * {"sender":"...","messages":[{"type":"...","payload":{...}}, ...]}
+ * </pre>
+ * Nodes of earlier versions only read the single message format, so this codec does not support
+ * batches and the {@link ClusterTopicService} publishes each message on its own.
+ */
+public class JsonClusterMessageCodec implements ClusterMessageCodec
+{
+    static final String JSON_SENDER = "sender";
+    static final String JSON_MESSAGE = "message";
+    static final String JSON_MESSAGES = "messages";
+    static final String JSON_TYPE = "type";
+    static final String JSON_PAYLOAD = "payload";
+
+    @Override
+    public Serializable encode(String sender, List<ClusterMessage> messages) throws IOException
+    {
+        // serialise message to JSON and return final message string data
+        final StringBuilderWriter buffer = new StringBuilderWriter(512);
+        final JSONWriter writer = new JSONWriter(buffer);
+        writer.startObject();
+        writer.writeValue(JSON_SENDER, sender);
+        if (messages.size() == 1)
+        {
+            writer.startValue(JSON_MESSAGE);
+            serialiseMessage(writer, messages.get(0));
+            writer.endValue();
+        }
+        else
+        {
+            writer.startValue(JSON_MESSAGES);
+            writer.startArray();
+            for (final ClusterMessage message : messages)
+            {
+                serialiseMessage(writer, message);
+            }
+            writer.endArray();
+            writer.endValue();
+        }
+        writer.endObject();
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean isBatchSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean canDecode(Object data)
+    {
+        return data instanceof String;
+    }
+
+    @Override
+    public Batch decode(Object data) throws IOException
+    {
+        // the whole message is parsed once, to read the sender and the messages together
+        final Map<String, Object> json = parse(data);
+        final String sender = (String)json.get(JSON_SENDER);
+        final List<ClusterMessage> result;
+        final Map<String, Object> message = (Map<String, Object>)json.get(JSON_MESSAGE);
+        if (message != null)
+        {
+            result = Collections.singletonList(toMessage(message));
+        }
+        else
+        {
+            final List<Map<String, Object>> messages = (List<Map<String, Object>>)json.get(JSON_MESSAGES);
+            if (messages == null)
+            {
+                throw new IOException("Unable to parse cluster JSON message - no message found:\r\n" + data);
+            }
+            result = new ArrayList<>(messages.size());
+            for (final Map<String, Object> m : messages)
+            {
+                result.add(toMessage(m));
+            }
+        }
+        return new Batch()
+        {
+            public String getSender()
+            {
+                return sender;
+            }
+
+            public List<ClusterMessage> getMessages()
+            {
+                return result;
+            }
+        };
+    }
+
+    private static ClusterMessage toMessage(Map<String, Object> message)
+    {
+        return new ClusterMessage((String)message.get(JSON_TYPE), (Map<String, Serializable>)message.get(JSON_PAYLOAD));
+    }
+
+    private static Map<String, Object> parse(Object data) throws IOException
+    {
+        // deserialise the message to retrieve the sender, type and payload objects
+        try
+        {
+            return (Map<String, Object>)new JSONParser().parse((String)data, new ContainerFactory()
+                {
+                    public Map createObjectContainer()
+                    {
+                        return new HashMap();
+                    }
+
+                    public List creatArrayContainer()
+                    {
+                        return new ArrayList();
+                    }
+                });
+        }
+        catch (Throwable e)
+        {
+            throw new IOException("Unable to parse cluster JSON message: " + e.getMessage() + "\r\n" + data, e);
+        }
+    }
+
+    private static void serialiseMessage(final JSONWriter writer, final ClusterMessage message) throws IOException
+    {
+        writer.startObject();
+        writer.writeValue(JSON_TYPE, message.getType());
+        writer.startValue(JSON_PAYLOAD);
+        serialiseMessageObjects(writer, null, (Serializable)message.getPayload());
+        writer.endValue();
+        writer.endObject();
+    }
+
+    /**
+     * Recursively serialise objects to a JSONWriter.
+     * <p>
+     * Handles basic Java type suitable for the current messaging implementation.
+     *
+     * @param writer    JSONWriter for output
+     * @param name      Name of the current value, can be null for array item
+     * @param obj       Object representing the value to serialise
+     */
+    static void serialiseMessageObjects(final JSONWriter writer, final String name, final Serializable obj)
+        throws IOException
+    {
+        if (obj instanceof Map)
+        {
+            // recursively serialise the map entries
+            if (name != null)
+            {
+                writer.startValue(name);
+            }
+            writer.startObject();
+            Map<String, Serializable> map = (Map<String, Serializable>)obj;
+            for (final String key: map.keySet())
+            {
+                serialiseMessageObjects(writer, key, map.get(key));
+            }
+            writer.endObject();
+            if (name != null)
+            {
+                writer.endValue();
+            }
+        }
+        else if (obj instanceof List)
+        {
+            // recursively serialise the list items
+            if (name != null)
+            {
+                writer.startValue(name);
+            }
+            writer.startArray();
+            for (final Object item: (List)obj)
+            {
+                serialiseMessageObjects(writer, null, (Serializable)item);
+            }
+            writer.endArray();
+            if (name != null)
+            {
+                writer.endValue();
+            }
+        }
+        else if (obj instanceof Integer)
+        {
+            if (name != null)
+            {
+                writer.writeValue(name, (Integer)obj);
+            }
+            else
+            {
+                writer.writeValue((Integer)obj);
+            }
+        }
+        else if (obj instanceof Boolean)
+        {
+            if (name != null)
+            {
+                writer.writeValue(name, (Boolean)obj);
+            }
+            else
+            {
+                writer.writeValue((Boolean)obj);
+            }
+        }
+        else if (obj instanceof Date)
+        {
+            if (name != null)
+            {
+                writer.writeValue(name, ISO8601DateFormat.format((Date)obj));
+            }
+            else
+            {
+                writer.writeValue(ISO8601DateFormat.format((Date)obj));
+            }
+        }
+        else if (obj == null)
+        {
+            if (name != null)
+            {
+                writer.writeNullValue(name);
+            }
+            else
+            {
+                writer.writeNullValue();
+            }
+        }
+        else
+        {
+            if (name != null)
+            {
+                writer.writeValue(name, obj.toString());
+            }
+            else
+            {
+                writer.writeValue(obj.toString());
+            }
+        }
+    }
+}
@@ -20,14 +20,18 @@ package org.alfresco.web.site.servlet;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -63,6 +67,10 @@ import org.springframework.web.context.support.WebApplicationContextUtils;
  * <p>
  * It is recommended to run the filter with a filter-mapping that NOT includes client side resources since that
  * is pointless and unnecessarily would decrease the performance of the webapp (even though the filter still would work).
+ * <p>
+ * The regular expressions of the rules are compiled when the filter is initialised, so an invalid expression stops
+ * the filter from starting. The rules that could match each common HTTP method are also indexed then, and the
+ * literal prefix of each rule's path expression is used to skip rules before running the expression.
  *
  * @author Erik Winlof
  * @since 4.1.4
@@ -74,7 +82,12 @@ public class CSRFFilter implements Filter
     private ServletContext servletContext = null;
     
     private Boolean enabled = true;
-    private List<Rule> rules = null;
+    private List<CompiledRule> rules = null;
+    private Map<String, List<CompiledRule>> rulesByMethod = Collections.emptyMap();
+    private final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+    
+    /** The HTTP methods the rules are indexed for - requests using any other method check all rules */
+    private static final String[] INDEXED_METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "TRACE" };
     private Map<String, String> properties = new HashMap<String, String>();
 
     /**
@@ -137,11 +150,12 @@ public class CSRFFilter implements Filter
                 }
                 else
                 {
-                    rules = new LinkedList<Rule>();
+                    rules = new ArrayList<CompiledRule>(rulesConfigList.size());
                     for (ConfigElement ruleConfig : rulesConfigList)
                     {
-                        rules.add(createRule(ruleConfig));
+                        rules.add(new CompiledRule(createRule(ruleConfig), rules.size() + 1));
                     }
+                    indexRules();
                 }
             }
         }
@@ -242,6 +256,43 @@ public class CSRFFilter implements Filter
         return rule;
     }
 
+    /**
+     * Index the rules that could match each of the common HTTP methods, keeping them in their configured order,
+     * and check that every rule can be reached.
+     */
+    private void indexRules()
+    {
+        Map<String, List<CompiledRule>> index = new HashMap<String, List<CompiledRule>>(INDEXED_METHODS.length * 2);
+        for (String method : INDEXED_METHODS)
+        {
+            List<CompiledRule> candidates = new ArrayList<CompiledRule>(rules.size());
+            for (CompiledRule rule : rules)
+            {
+                if (rule.methodPattern == null || rule.methodPattern.matcher(method).matches())
+                {
+                    candidates.add(rule);
+                }
+            }
+            index.put(method, candidates);
+            if (logger.isDebugEnabled())
+                logger.debug("Requests using method " + method + " are checked against " + candidates.size() + " of " + rules.size() + " rules");
+        }
+        rulesByMethod = index;
+        
+        // Self-test: a rule with no request conditions matches every request, so any rule after it is never used
+        for (CompiledRule rule : rules)
+        {
+            if (rule.methodPattern == null && rule.pathPattern == null && rule.headerPatterns == null &&
+                (rule.sessionAttributePatterns == null || rule.sessionAttributePatterns.isEmpty()) && rule.number < rules.size())
+            {
+                if (logger.isWarnEnabled())
+                    logger.warn("CSRFPolicy rule " + rule.number + " matches every request, the " +
+                            (rules.size() - rule.number) + " rule(s) after it will never be used.");
+                break;
+            }
+        }
+    }
+
     /**
      * Creates a rule action based on a name
      *
@@ -300,20 +351,17 @@ public class CSRFFilter implements Filter
             HttpServletResponse response = (HttpServletResponse) servletResponse;
             HttpSession session = request.getSession(false);
             
-            for (Rule rule : rules)
+            CompiledRule rule = findRule(request, session, true);
+            if (rule != null)
             {
-                if (matchRequest(rule, request, session))
+                rule.hits.incrementAndGet();
+                List<Action> actions = rule.rule.getActions();
+                if (actions != null)
                 {
-                    List<Action> actions = rule.getActions();
-                    if (actions != null)
+                    for (Action action : actions)
                     {
-                        for (Action action : actions)
-                        {
-                            action.run(request, response, session);
-                        }
+                        action.run(request, response, session);
                     }
-                    filterChain.doFilter(servletRequest, servletResponse);
-                    return;
                 }
             }
         }
@@ -325,6 +373,56 @@ public class CSRFFilter implements Filter
     @Override
     public void destroy()
     {
+        if (rules != null && logger.isDebugEnabled())
+        {
+            for (CompiledRule rule : rules)
+            {
+                logger.debug("CSRFPolicy rule " + rule.number + " matched " + rule.hits.get() + " requests");
+            }
+        }
+    }
+
+    /**
+     * Finds the first rule that matches the request.
+     *
+     * @param request The http request
+     * @param session The user's session
+     * @param indexed true to only check the rules indexed for the request's method whose path prefix matches,
+     *                false to check every rule in turn
+     * @return The first matching rule or null if there is no such rule
+     * @throws ServletException
+     */
+    private CompiledRule findRule(HttpServletRequest request, HttpSession session, boolean indexed) throws ServletException
+    {
+        List<CompiledRule> candidates = indexed ? rulesByMethod.get(request.getMethod()) : null;
+        String path = getPath(request);
+        for (CompiledRule rule : candidates != null ? candidates : rules)
+        {
+            if (indexed && rule.pathPrefix != null && !path.startsWith(rule.pathPrefix))
+            {
+                // the path can't match this rule's expression
+                continue;
+            }
+            if (matchRequest(rule, request, session))
+            {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The position in the config of the first rule that matches the request, starting at 1, or 0 if none does
+     * @see #findRule(HttpServletRequest, HttpSession, boolean)
+     */
+    int getMatchingRuleNumber(HttpServletRequest request, HttpSession session, boolean indexed) throws ServletException
+    {
+        if (rules == null)
+        {
+            return 0;
+        }
+        CompiledRule rule = findRule(request, session, indexed);
+        return rule != null ? rule.number : 0;
     }
 
     /**
@@ -347,27 +445,27 @@ public class CSRFFilter implements Filter
      * @return The first rule that matches the request and sessions or null if there is no such rule.
      * @throws ServletException
      */
-    protected boolean matchRequest(Rule rule, HttpServletRequest request, HttpSession session) throws ServletException
+    protected boolean matchRequest(CompiledRule rule, HttpServletRequest request, HttpSession session) throws ServletException
     {
         // Match method
-        if (rule.getMethod() != null && !matchString(request.getMethod(), rule.getMethod()))
+        if (rule.methodPattern != null && !matchPattern(request.getMethod(), rule.methodPattern))
         {
             return false;
         }
         
         // Match path
-        if (rule.getPath() != null && !matchString(getPath(request), rule.getPath()))
+        if (rule.pathPattern != null && !matchPattern(getPath(request), rule.pathPattern))
         {
             return false;
         }
         
         // Match headers (if specified)
-        Map<String, String> headers = rule.getHeaders();
+        Map<String, Pattern> headers = rule.headerPatterns;
         if (headers != null)
         {
-            for (final String headerName: headers.keySet())
+            for (final Map.Entry<String, Pattern> header : headers.entrySet())
             {
-                if (!matchString(request.getHeader(headerName), headers.get(headerName)))
+                if (!matchPattern(request.getHeader(header.getKey()), header.getValue()))
                 {
                     return false;
                 }
@@ -376,7 +474,7 @@ public class CSRFFilter implements Filter
         
         // Match session attributes (if specified)
         boolean matched = true;
-        Map<String, String> sessionAttributes = rule.getSessionAttributes();
+        Map<String, Pattern> sessionAttributes = rule.sessionAttributePatterns;
         if (sessionAttributes != null && sessionAttributes.size() != 0)
         {
             if (session == null)
@@ -385,8 +483,9 @@ public class CSRFFilter implements Filter
             }
             else
             {
-                for (final String name: sessionAttributes.keySet())
+                for (final Map.Entry<String, Pattern> attribute : sessionAttributes.entrySet())
                 {
+                    final String name = attribute.getKey();
                     Object value = session.getAttribute(name);
 
                     // If the session attribute is a list of strings (i.e. tokens) lets make sure to check against the last position
@@ -403,7 +502,7 @@ public class CSRFFilter implements Filter
                         break;
                     }
 
-                    if (!matchString((String) value, sessionAttributes.get(name)))
+                    if (!matchPattern((String) value, attribute.getValue()))
                     {
                         matched = false;
                         break;
@@ -434,7 +533,97 @@ public class CSRFFilter implements Filter
         }
         
         // There was a condition and a value, lets see if they match
-        return str.matches(regexp);
+        return matchPattern(str, getPattern(regexp));
+    }
+
+    /**
+     * Checks if str matches the compiled regular expression.
+     *
+     * @param str The value to match
+     * @param pattern The compiled regular expression to match against str
+     * @return true if str matches pattern, or if both are null
+     */
+    protected boolean matchPattern(String str, Pattern pattern)
+    {
+        if (pattern == null || str == null)
+        {
+            return pattern == null && str == null;
+        }
+        return pattern.matcher(str).matches();
+    }
+
+    /**
+     * @param regexp A regular expression
+     * @return The compiled regular expression, compiled once and then reused
+     */
+    private Pattern getPattern(String regexp)
+    {
+        Pattern pattern = patterns.get(regexp);
+        if (pattern == null)
+        {
+            pattern = Pattern.compile(regexp);
+            patterns.put(regexp, pattern);
+        }
+        return pattern;
+    }
+
+    /**
+     * Compiles a regular expression from the rule config.
+     *
+     * @param regexp The regular expression, may be null
+     * @param description What the expression is for, used in the error message if it is invalid
+     * @return The compiled expression or null if regexp was null
+     * @throws ServletException if the expression is invalid
+     */
+    private Pattern compileConfigPattern(String regexp, String description) throws ServletException
+    {
+        if (regexp == null)
+        {
+            return null;
+        }
+        try
+        {
+            return getPattern(regexp);
+        }
+        catch (PatternSyntaxException pse)
+        {
+            String message = "Invalid regular expression for " + description + " in CSRFPolicy config: " + pse.getMessage();
+            if (logger.isErrorEnabled())
+                logger.error(message);
+            throw new ServletException(message);
+        }
+    }
+
+    /**
+     * Returns the literal text that every string matching a regular expression must start with, so that
+     * strings without it can be rejected without running the expression.
+     *
+     * @param regexp The regular expression
+     * @return The literal prefix or null if the expression has none
+     */
+    static String getLiteralPrefix(String regexp)
+    {
+        if (regexp == null || regexp.indexOf('|') != -1)
+        {
+            // alternatives may each start differently
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder(regexp.length());
+        for (int i = 0; i < regexp.length(); i++)
+        {
+            char c = regexp.charAt(i);
+            if ("\\[](){}.*+?^$".indexOf(c) != -1)
+            {
+                if ((c == '*' || c == '?' || c == '{') && prefix.length() != 0)
+                {
+                    // the last literal character is optional or repeated
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            }
+            prefix.append(c);
+        }
+        return prefix.length() != 0 ? prefix.toString() : null;
     }
 
     /**
@@ -523,6 +712,55 @@ public class CSRFFilter implements Filter
         }
     }
 
+    /**
+     * A rule with its regular expressions compiled.
+     */
+    private class CompiledRule
+    {
+        private final Rule rule;
+        /** Position of the rule in the config, starting at 1 */
+        private final int number;
+        private final Pattern methodPattern;
+        private final Pattern pathPattern;
+        private final String pathPrefix;
+        private final Map<String, Pattern> headerPatterns;
+        private final Map<String, Pattern> sessionAttributePatterns;
+        /** Number of requests the rule has matched */
+        private final AtomicLong hits = new AtomicLong();
+        
+        /**
+         * Compiles the regular expressions of a rule.
+         *
+         * @param rule The rule
+         * @param number Position of the rule in the config, starting at 1
+         * @throws ServletException if any of the expressions is invalid
+         */
+        public CompiledRule(Rule rule, int number) throws ServletException
+        {
+            this.rule = rule;
+            this.number = number;
+            methodPattern = compileConfigPattern(rule.getMethod(), "the method of rule " + number);
+            pathPattern = compileConfigPattern(rule.getPath(), "the path of rule " + number);
+            pathPrefix = getLiteralPrefix(rule.getPath());
+            headerPatterns = compileConfigPatterns(rule.getHeaders(), "header", number);
+            sessionAttributePatterns = compileConfigPatterns(rule.getSessionAttributes(), "session attribute", number);
+        }
+        
+        private Map<String, Pattern> compileConfigPatterns(Map<String, String> regexps, String type, int number) throws ServletException
+        {
+            if (regexps == null)
+            {
+                return null;
+            }
+            Map<String, Pattern> compiled = new HashMap<String, Pattern>(regexps.size() * 2);
+            for (Map.Entry<String, String> entry : regexps.entrySet())
+            {
+                compiled.put(entry.getKey(), compileConfigPattern(entry.getValue(), type + " '" + entry.getKey() + "' of rule " + number));
+            }
+            return compiled;
+        }
+    }
+
     /**
      * Returns the current server's scheme, name & port
      *
@@ -924,6 +1162,7 @@ public class CSRFFilter implements Filter
 
         private boolean always = false;
         private String referer = null;
+        private Pattern refererPattern = null;
 
         /**
          * Requires the following params; a boolean deciding if the referer header MUST be present when validated.
@@ -954,6 +1193,10 @@ public class CSRFFilter implements Filter
                 if (params.containsKey(PARAM_REFERER))
                 {
                     referer = params.get(PARAM_REFERER);
+                    if (referer != null && !referer.isEmpty())
+                    {
+                        refererPattern = compileConfigPattern(referer, "the '" + PARAM_REFERER + "' parameter");
+                    }
                 }
             }
         }
@@ -998,7 +1241,7 @@ public class CSRFFilter implements Filter
                 {
                     valid = true;
                 }
-                if (referer != null && !referer.isEmpty() && refererHeader.matches(referer))
+                if (referer != null && !referer.isEmpty() && refererPattern.matcher(refererHeader).matches())
                 {
                     valid = true;
                 }
@@ -1032,6 +1275,7 @@ public class CSRFFilter implements Filter
 
         private boolean always = false;
         private String origin = null;
+        private Pattern originPattern = null;
 
         /**
          * Requires the following params; a boolean deciding if the origin header MUST be present when validated.
@@ -1062,6 +1306,10 @@ public class CSRFFilter implements Filter
                 if (params.containsKey(PARAM_ORIGIN))
                 {
                     origin = params.get(PARAM_ORIGIN);
+                    if (origin != null && !origin.isEmpty())
+                    {
+                        originPattern = compileConfigPattern(origin, "the '" + PARAM_ORIGIN + "' parameter");
+                    }
                 }
             }
         }
@@ -1092,7 +1340,7 @@ public class CSRFFilter implements Filter
                 {
                     valid = true;
                 }
-                if (origin != null && !origin.isEmpty() && originHeader.matches(origin))
+                if (origin != null && !origin.isEmpty() && originPattern.matcher(originHeader).matches())
                 {
                     valid = true;
                 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site.servlet;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.web.extensibility.SlingshotEvaluatorUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.surf.UserFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * A filter invalidating the group and site memberships cached by the {@link SlingshotEvaluatorUtil}
+ * when a request proxied to the repository changes them:
+ * <ul>
+ *   <li>A change to the memberships of a site, or the deletion of a site, drops the roles of all users in the site</li>
+ *   <li>A change to any group drops the group memberships of all users</li>
+ *   <li>Responding to an invitation drops all the memberships of the current user</li>
+ * </ul>
+ * Membership changes made other than through Share are picked up once the cached memberships expire.
+ */
+public class MembershipChangeFilter implements Filter
+{
+    private static Log logger = LogFactory.getLog(MembershipChangeFilter.class);
+
+    private static final Pattern SITE_MEMBERSHIP_PATTERN = Pattern.compile("/api/sites/([^/?]+)(/memberships(/.*)?)?");
+    private static final String GROUPS_PATH = "/api/groups/";
+    private static final String INVITE_PATH = "/api/invite/";
+
+    private SlingshotEvaluatorUtil evaluatorUtil = null;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException
+    {
+        evaluatorUtil = (SlingshotEvaluatorUtil)WebApplicationContextUtils.getRequiredWebApplicationContext(
+                config.getServletContext()).getBean("slingshot.evaluator.utility");
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException
+    {
+        try
+        {
+            chain.doFilter(req, res);
+        }
+        finally
+        {
+            // Invalidate even if the request failed, it may have changed the memberships before doing so
+            HttpServletRequest request = (HttpServletRequest)req;
+            String method = request.getMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method))
+            {
+                invalidateMemberships(request);
+            }
+        }
+    }
+
+    private void invalidateMemberships(HttpServletRequest request)
+    {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        int apiIndex = path.indexOf("/api/");
+        if (apiIndex == -1)
+        {
+            return;
+        }
+        path = path.substring(apiIndex);
+
+        Matcher siteMatcher = SITE_MEMBERSHIP_PATTERN.matcher(path);
+        if (siteMatcher.matches())
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Invalidating memberships of site '" + siteMatcher.group(1) + "' after: " + request.getMethod() + " " + path);
+            evaluatorUtil.invalidateSiteMemberships(siteMatcher.group(1));
+        }
+        else if (path.startsWith(GROUPS_PATH))
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Invalidating group memberships after: " + request.getMethod() + " " + path);
+            evaluatorUtil.invalidateGroupMemberships();
+        }
+        else if (path.startsWith(INVITE_PATH))
+        {
+            HttpSession session = request.getSession(false);
+            String userId = session != null ? (String)session.getAttribute(UserFactory.SESSION_ATTRIBUTE_KEY_USER_ID) : null;
+            if (userId != null)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Invalidating memberships of user '" + userId + "' after: " + request.getMethod() + " " + path);
+                evaluatorUtil.invalidateMemberships(userId);
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+}
@@ -22,6 +22,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.alfresco.web.extensibility.SlingshotEvaluatorUtil;
 import org.alfresco.web.site.SlingshotUser;
 import org.alfresco.web.site.SlingshotUserFactory;
 import org.json.simple.JSONObject;
@@ -50,6 +51,17 @@ public class SlingshotLoginController extends LoginController
 {
     public static String SESSION_ATTRIBUTE_KEY_USER_GROUPS = "_alf_USER_GROUPS";
     
+    private SlingshotEvaluatorUtil slingshotEvaluatorUtil = null;
+    
+    /**
+     * @param slingshotEvaluatorUtil    Optional evaluator util whose membership cache is seeded with the groups
+     *                                  retrieved for the user as they log in
+     */
+    public void setSlingshotEvaluatorUtil(SlingshotEvaluatorUtil slingshotEvaluatorUtil)
+    {
+        this.slingshotEvaluatorUtil = slingshotEvaluatorUtil;
+    }
+    
     /**
      * Overrides the inherited method to retrieve the groups that the authenticated user is a member
      * of and stores them as a comma delimited {@link String} in the {@link HttpSession}. This {@link String}
@@ -106,6 +118,10 @@ public class SlingshotLoginController extends LoginController
                         Object groupsArray = ((JSONObject) userData).get("groups");
                         if (groupsArray instanceof org.json.simple.JSONArray)
                         {
+                            if (this.slingshotEvaluatorUtil != null)
+                            {
+                                this.slingshotEvaluatorUtil.putGroupMemberships(username, (org.json.simple.JSONArray)groupsArray);
+                            }
                             for (Object groupData: (org.json.simple.JSONArray)groupsArray)
                             {
                                 if (groupData instanceof JSONObject)
@@ -94,6 +94,8 @@ var DocList =
          i, index,
          metadata = doclist.metadata,
          metaJSON = jsonUtils.toJSONObject(doclist.metadata),
+         evaluation = evaluatorHelper.createEvaluation(metaJSON, args), // <-- runs each evaluator once per item
+         groupActions = {}, // <-- actions of each action group, resolved once per page
          workingCopyLabel = metadata.workingCopyLabel;
 
       /**
@@ -155,6 +157,7 @@ var DocList =
          }
 
          var itemJSON = jsonUtils.toJSONObject(item);
+         evaluation.setRecord(itemJSON);
 
          /**
           * Actions
@@ -163,7 +166,7 @@ var DocList =
          if (options.actions)
          {
             var actionGroupId = DocList_Custom.calculateActionGroupId(item, p_view, itemJSON),
-               actions = DocList.getGroupActions(actionGroupId, allActions),
+               actions = groupActions[actionGroupId] || (groupActions[actionGroupId] = DocList.getGroupActions(actionGroupId, allActions)),
                nodeActions = [];
 
             for each (actionTemplate in actions)
@@ -200,7 +203,7 @@ var DocList =
                   for (index in action.evaluators)
                   {
                      evaluator = action.evaluators[index].evaluator;
-                     if (evaluator.evaluate(itemJSON, metaJSON, args) != action.evaluators[index].qualify)
+                     if (evaluation.evaluate(evaluator) != action.evaluators[index].qualify)
                      {
                         // No need to run any more evaluators for this action
                         evaluatorQualified = false;
@@ -247,7 +250,7 @@ var DocList =
                   for (index in indicator.evaluators)
                   {
                      evaluator = indicator.evaluators[index].evaluator;
-                     if (evaluator.evaluate(itemJSON, metaJSON, args) != indicator.evaluators[index].qualify)
+                     if (evaluation.evaluate(evaluator) != indicator.evaluators[index].qualify)
                      {
                         // No need to run any more evaluators for this indicator
                         evaluatorQualified = false;
@@ -295,7 +298,7 @@ var DocList =
                      for (index in template.evaluators)
                      {
                         evaluator = template.evaluators[index].evaluator;
-                        if (evaluator.evaluate(itemJSON, metaJSON, args) != template.evaluators[index].qualify)
+                        if (evaluation.evaluate(evaluator) != template.evaluators[index].qualify)
                         {
                            // No need to run any more evaluators for this template
                            evaluatorQualified = false;
@@ -327,7 +330,7 @@ var DocList =
                   continue;
                }
 
-               if (!banner.evaluator || banner.evaluator.evaluate(itemJSON, metaJSON, args))
+               if (!banner.evaluator || evaluation.evaluate(banner.evaluator))
                {
                   // Add display banner for this item
                   banners.push(
@@ -350,7 +353,7 @@ var DocList =
                   continue;
                }
 
-               if (!line.evaluator || line.evaluator.evaluate(itemJSON, metaJSON, args))
+               if (!line.evaluator || evaluation.evaluate(line.evaluator))
                {
                   // Add display line for this item
                   lines.push(
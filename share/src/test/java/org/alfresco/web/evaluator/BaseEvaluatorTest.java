@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.evaluator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+/**
+ * Tests for the evaluation context and chaining of {@link BaseEvaluator}.
+ */
+public class BaseEvaluatorTest
+{
+    private static final String RECORD = "{\"node\":{\"type\":\"cm:content\",\"aspects\":[\"cm:titled\"]," +
+            "\"properties\":{\"cm:name\":\"a.txt\"}}}";
+
+    @Test
+    public void testJSONValue()
+    {
+        JSONObject record = (JSONObject)JSONValue.parse(RECORD);
+        ValueEvaluator evaluator = valueEvaluator("node.properties.cm:name", "A.TXT");
+        assertEquals("a.txt", evaluator.getJSONValue(record, "node.properties.cm:name"));
+        assertEquals("cm:titled", evaluator.getJSONValue(record, "node.aspects.0"));
+        assertNull(evaluator.getJSONValue(record, "node.type.unknown"));
+        assertTrue(evaluator.evaluate(RECORD, "{}", null));
+    }
+
+    @Test
+    public void testChainedContext()
+    {
+        MetadataValueEvaluator metadataEvaluator = new MetadataValueEvaluator();
+        metadataEvaluator.setAccessor("custom.mode");
+        StringEqualsComparator comparator = new StringEqualsComparator();
+        comparator.setValue("sync");
+        metadataEvaluator.setComparator(comparator);
+
+        ValueEvaluator notFolder = valueEvaluator("node.type", "cm:folder");
+        notFolder.setNegateOutput(true);
+
+        ChainedMatchAllEvaluator chain = new ChainedMatchAllEvaluator();
+        chain.setEvaluators(new ArrayList<Evaluator>(Arrays.<Evaluator>asList(metadataEvaluator, notFolder)));
+
+        JSONObject record = (JSONObject)JSONValue.parse(RECORD);
+        HashMap<String, String> args = new HashMap<String, String>();
+        args.put("filter", "path");
+        assertTrue(chain.evaluate(record, EvaluationContext.create("{\"custom\":{\"mode\":\"sync\"}}", args)));
+        assertFalse(chain.evaluate(record, EvaluationContext.create("{\"custom\":{\"mode\":\"none\"}}", args)));
+
+        // the context is only visible while the evaluation is running
+        assertNull(chain.getMetadata());
+        assertNull(chain.getArg("filter"));
+    }
+
+    @Test
+    public void testContextVisibleToEvaluator()
+    {
+        final String[] seen = new String[1];
+        BaseEvaluator evaluator = new BaseEvaluator()
+        {
+            @Override
+            public boolean evaluate(JSONObject jsonObject)
+            {
+                seen[0] = getArg("filter");
+                return getMetadata() != null;
+            }
+        };
+        HashMap<String, String> args = new HashMap<String, String>();
+        args.put("filter", "recentlyModified");
+        assertTrue(evaluator.evaluate(RECORD, new JSONObject(), args));
+        assertEquals("recentlyModified", seen[0]);
+        assertFalse(evaluator.evaluate(RECORD));
+    }
+
+    private static ValueEvaluator valueEvaluator(String accessor, String value)
+    {
+        ValueEvaluator evaluator = new ValueEvaluator();
+        evaluator.setAccessor(accessor);
+        StringEqualsComparator comparator = new StringEqualsComparator();
+        comparator.setValue(value);
+        evaluator.setComparator(comparator);
+        return evaluator;
+    }
+}
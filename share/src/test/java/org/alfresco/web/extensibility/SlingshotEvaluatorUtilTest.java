@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.extensibility;
+
+import static org.alfresco.web.extensibility.SlingshotEvaluatorUtil.groupsKey;
+import static org.alfresco.web.extensibility.SlingshotEvaluatorUtil.siteKey;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.surf.ClusterService;
+import org.springframework.extensions.surf.RequestContext;
+
+/**
+ * Tests for the membership cache of the {@link SlingshotEvaluatorUtil} class.
+ */
+public class SlingshotEvaluatorUtilTest
+{
+    private SlingshotEvaluatorUtil util;
+    private ClusterService clusterService;
+
+    @Before
+    public void setUp()
+    {
+        clusterService = mock(ClusterService.class);
+        util = new SlingshotEvaluatorUtil();
+        util.setClusterService(clusterService);
+    }
+
+    @Test
+    public void membershipsExpireAfterTheirTimeout() throws Exception
+    {
+        RequestContext firstRequest = newRequest();
+        util.getCachedMembership(firstRequest, siteKey("bob", "swsdp"));
+        util.putCachedMembership(firstRequest, siteKey("bob", "swsdp"), "SiteManager", 1L);
+        util.putCachedMembership(firstRequest, groupsKey("bob"), groups("GROUP_A"), 300L);
+
+        assertEquals("SiteManager", util.getCachedMembership(newRequest(), siteKey("bob", "swsdp")));
+
+        Thread.sleep(1100L);
+        RequestContext laterRequest = newRequest();
+        assertNull(util.getCachedMembership(laterRequest, siteKey("bob", "swsdp")));
+        assertEquals(groups("GROUP_A"), util.getCachedMembership(laterRequest, groupsKey("bob")));
+        // A request keeps the memberships it has looked up, so a page sees the same memberships throughout
+        assertEquals("SiteManager", util.getCachedMembership(firstRequest, siteKey("bob", "swsdp")));
+    }
+
+    @Test
+    public void membershipsWithoutTimeoutAreOnlyHeldByTheRequest()
+    {
+        RequestContext request = newRequest();
+        util.getCachedMembership(request, siteKey("bob", "swsdp"));
+        util.putCachedMembership(request, siteKey("bob", "swsdp"), "SiteConsumer", 0L);
+
+        assertEquals("SiteConsumer", util.getCachedMembership(request, siteKey("bob", "swsdp")));
+        assertNull(util.getCachedMembership(newRequest(), siteKey("bob", "swsdp")));
+    }
+
+    @Test
+    public void invalidateMembershipsOfUser()
+    {
+        cacheMemberships();
+
+        util.invalidateMemberships("bob");
+
+        assertNull(cached(groupsKey("bob")));
+        assertNull(cached(siteKey("bob", "swsdp")));
+        assertNull(cached(siteKey("bob", "other")));
+        assertEquals(groups("GROUP_B"), cached(groupsKey("alice")));
+        assertEquals("SiteCollaborator", cached(siteKey("alice", "swsdp")));
+        verify(clusterService).publishClusterMessage(eq("membership-invalidation"),
+                eq(Collections.<String, Serializable>singletonMap("user", "bob")));
+    }
+
+    @Test
+    public void invalidateMembershipsOfSite()
+    {
+        cacheMemberships();
+
+        util.invalidateSiteMemberships("swsdp");
+
+        assertNull(cached(siteKey("bob", "swsdp")));
+        assertNull(cached(siteKey("alice", "swsdp")));
+        assertEquals("SiteManager", cached(siteKey("bob", "other")));
+        assertEquals(groups("GROUP_A"), cached(groupsKey("bob")));
+        verify(clusterService).publishClusterMessage(eq("membership-invalidation"),
+                eq(Collections.<String, Serializable>singletonMap("site", "swsdp")));
+    }
+
+    @Test
+    public void invalidateGroupMemberships()
+    {
+        cacheMemberships();
+
+        util.invalidateGroupMemberships();
+
+        assertNull(cached(groupsKey("bob")));
+        assertNull(cached(groupsKey("alice")));
+        assertEquals("SiteManager", cached(siteKey("bob", "swsdp")));
+        verify(clusterService).publishClusterMessage(eq("membership-invalidation"),
+                eq(Collections.<String, Serializable>singletonMap("groups", Boolean.TRUE)));
+    }
+
+    @Test
+    public void clusterMessagesInvalidateMemberships()
+    {
+        cacheMemberships();
+
+        util.onClusterMessage(Collections.<String, Serializable>singletonMap("site", "other"));
+        assertNull(cached(siteKey("bob", "other")));
+        assertEquals("SiteManager", cached(siteKey("bob", "swsdp")));
+
+        util.onClusterMessage(Collections.<String, Serializable>singletonMap("user", "alice"));
+        assertNull(cached(groupsKey("alice")));
+        assertNull(cached(siteKey("alice", "swsdp")));
+        assertEquals(groups("GROUP_A"), cached(groupsKey("bob")));
+
+        util.onClusterMessage(Collections.<String, Serializable>singletonMap("groups", Boolean.TRUE));
+        assertNull(cached(groupsKey("bob")));
+        assertEquals("SiteManager", cached(siteKey("bob", "swsdp")));
+    }
+
+    @Test
+    public void changedGroupsAtLoginInvalidateOtherNodes()
+    {
+        util.putGroupMemberships("bob", groups("GROUP_A"));
+        util.putGroupMemberships("bob", groups("GROUP_A"));
+        util.putGroupMemberships("bob", groups("GROUP_A", "GROUP_B"));
+
+        assertEquals(groups("GROUP_A", "GROUP_B"), cached(groupsKey("bob")));
+        verify(clusterService).publishClusterMessage(eq("membership-invalidation"),
+                eq(Collections.<String, Serializable>singletonMap("user", "bob")));
+    }
+
+    private void cacheMemberships()
+    {
+        RequestContext request = newRequest();
+        util.getCachedMembership(request, groupsKey("bob"));
+        util.putCachedMembership(request, groupsKey("bob"), groups("GROUP_A"), 300L);
+        util.putCachedMembership(request, groupsKey("alice"), groups("GROUP_B"), 300L);
+        util.putCachedMembership(request, siteKey("bob", "swsdp"), "SiteManager", 30L);
+        util.putCachedMembership(request, siteKey("bob", "other"), "SiteManager", 30L);
+        util.putCachedMembership(request, siteKey("alice", "swsdp"), "SiteCollaborator", 30L);
+    }
+
+    /**
+     * @return the membership held in the cache shared by all requests
+     */
+    private Object cached(String key)
+    {
+        return util.getCachedMembership(newRequest(), key);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static RequestContext newRequest()
+    {
+        Map attributes = new HashMap();
+        RequestContext request = mock(RequestContext.class);
+        when(request.getAttributes()).thenReturn(attributes);
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONArray groups(String... names)
+    {
+        JSONArray groups = new JSONArray();
+        for (String name : names)
+        {
+            groups.add(name);
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.scripts;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.web.scripts.Dictionary.DictionaryItem;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the indexed {@link Dictionary} model.
+ */
+public class DictionaryTest
+{
+    private Dictionary dictionary;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Map<String, DictionaryItem> types = new HashMap<String, DictionaryItem>();
+        Map<String, DictionaryItem> aspects = new HashMap<String, DictionaryItem>();
+        types.put("cm:cmobject", item("cm:cmobject", null, false, "{'cm:name':{}}", "{}"));
+        types.put("cm:content", item("cm:content", "cm:cmobject", false, "{'cm:content':{}}", "{'cm:auditable':{}}"));
+        types.put("my:doc", item("my:doc", "cm:content", false, "{}", "{}"));
+        types.put("cm:folder", item("cm:folder", "cm:cmobject", true, "{}", "{}"));
+        aspects.put("cm:auditable", item("cm:auditable", null, true, "{'cm:created':{},'cm:name':{'title':'Aspect'}}", "{}"));
+        dictionary = new Dictionary(types, aspects);
+    }
+
+    @Test
+    public void testHierarchy()
+    {
+        assertTrue(dictionary.isSubType("my:doc", "cm:cmobject"));
+        assertTrue(dictionary.isSubType("my:doc", "cm:content"));
+        assertFalse(dictionary.isSubType("cm:folder", "cm:content"));
+        assertFalse(dictionary.isSubType("cm:unknown", "cm:content"));
+
+        String[] subTypes = dictionary.getSubTypes("cm:cmobject");
+        Arrays.sort(subTypes);
+        assertArrayEquals(new String[] {"cm:content", "cm:folder", "my:doc"}, subTypes);
+        assertArrayEquals(new String[0], dictionary.getSubTypes("my:doc"));
+        assertEquals("cm:content", dictionary.getParent("my:doc"));
+        assertEquals("", dictionary.getParent("cm:cmobject"));
+        assertTrue(dictionary.isContainer("cm:folder"));
+    }
+
+    @Test
+    public void testDefaultAspectProperties()
+    {
+        assertTrue(dictionary.hasDefaultAspect("cm:content", "cm:auditable"));
+        assertFalse(dictionary.hasProperty("cm:content", "cm:created", false));
+        assertTrue(dictionary.hasProperty("cm:content", "cm:created", true));
+        assertNull(dictionary.getProperty("my:doc", "cm:created", true));
+        assertEquals(3, dictionary.getProperties("cm:content", true).length);
+        assertEquals("cm:content", dictionary.getProperty("cm:content", "cm:content", true).getName());
+    }
+
+    @Test
+    public void testUpdates() throws Exception
+    {
+        dictionary.updateAddClasses("[{'name':'my:report','isAspect':false,'parent':{'name':'my:doc'}," +
+                "'properties':{},'defaultAspects':{},'associations':{},'childassociations':{}}]");
+        assertTrue(dictionary.isSubType("my:report", "cm:content"));
+        assertTrue(Arrays.asList(dictionary.getSubTypes("my:doc")).contains("my:report"));
+
+        dictionary.updateRemoveClasses("[{'name':'cm:auditable','isAspect':true}]");
+        assertNull(dictionary.getAspect("cm:auditable"));
+        assertFalse(dictionary.hasProperty("cm:content", "cm:created", true));
+        assertEquals(1, dictionary.getProperties("cm:content", true).length);
+    }
+
+    private static DictionaryItem item(String name, String parent, boolean container, String properties,
+            String defaultAspects) throws Exception
+    {
+        JSONObject json = new JSONObject("{'name':'" + name + "','title':'" + name + "','description':''," +
+                "'isContainer':" + container + ",'parent':" + (parent == null ? "{}" : "{'name':'" + parent + "'}") +
+                ",'properties':" + properties + ",'defaultAspects':" + defaultAspects +
+                ",'associations':{},'childassociations':{}}");
+        return new DictionaryItem(name, json);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.scripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.alfresco.web.evaluator.BaseEvaluator;
+import org.alfresco.web.evaluator.ChainedMatchAllEvaluator;
+import org.alfresco.web.evaluator.Evaluator;
+import org.alfresco.web.evaluator.MetadataValueEvaluator;
+import org.alfresco.web.evaluator.StringEqualsComparator;
+import org.alfresco.web.evaluator.ValueEvaluator;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * Tests for the {@link DocListEvaluation} class.
+ */
+public class DocListEvaluationTest
+{
+    private static final String METADATA = "{\"custom\":{\"mode\":\"sync\"}}";
+    private static final String[] RECORDS = {
+        "{\"node\":{\"type\":\"cm:content\",\"properties\":{\"cm:name\":\"a.txt\"}}}",
+        "{\"node\":{\"type\":\"cm:folder\",\"properties\":{\"cm:name\":\"a.txt\"}}}",
+        "{\"node\":{\"type\":\"cm:content\",\"properties\":{\"cm:name\":\"b.txt\"}}}",
+        "{\"node\":{\"type\":\"cm:folder\",\"properties\":{\"cm:name\":\"b.txt\"}}}"
+    };
+    private static final String[] EVALUATOR_NAMES = { "evaluator.isFolder", "evaluator.isNotFolder",
+            "evaluator.isSync", "evaluator.nameIsA", "evaluator.syncedFile", "evaluator.filter" };
+
+    private ActionEvaluatorHelper helper;
+    private HashMap<String, String> args;
+    private CountingEvaluator filterEvaluator;
+
+    @Before
+    public void setUp()
+    {
+        filterEvaluator = new CountingEvaluator();
+
+        ValueEvaluator isFolder = valueEvaluator("node.type", "cm:folder");
+        ValueEvaluator isNotFolder = valueEvaluator("node.type", "cm:folder");
+        isNotFolder.setNegateOutput(true);
+        MetadataValueEvaluator isSync = new MetadataValueEvaluator();
+        isSync.setAccessor("custom.mode");
+        isSync.setComparator(comparator("sync"));
+        ChainedMatchAllEvaluator syncedFile = new ChainedMatchAllEvaluator();
+        syncedFile.setEvaluators(new ArrayList<Evaluator>(Arrays.<Evaluator>asList(isSync, isNotFolder)));
+
+        ApplicationContext applicationContext = mock(ApplicationContext.class);
+        when(applicationContext.getBean("evaluator.isFolder")).thenReturn(isFolder);
+        when(applicationContext.getBean("evaluator.isNotFolder")).thenReturn(isNotFolder);
+        when(applicationContext.getBean("evaluator.isSync")).thenReturn(isSync);
+        when(applicationContext.getBean("evaluator.nameIsA")).thenReturn(valueEvaluator("node.properties.cm:name", "a.txt"));
+        when(applicationContext.getBean("evaluator.syncedFile")).thenReturn(syncedFile);
+        when(applicationContext.getBean("evaluator.filter")).thenReturn(filterEvaluator);
+        for (String name : EVALUATOR_NAMES)
+        {
+            when(applicationContext.isSingleton(name)).thenReturn(true);
+        }
+        helper = new ActionEvaluatorHelper();
+        helper.setApplicationContext(applicationContext);
+
+        args = new HashMap<String, String>();
+        args.put("filter", "path");
+    }
+
+    @Test
+    public void memoisedResultsEqualDirectEvaluation()
+    {
+        DocListEvaluation evaluation = helper.createEvaluation(METADATA, args);
+        for (String record : RECORDS)
+        {
+            evaluation.setRecord(record);
+            // each evaluator is asked for more than once, as when several actions share it
+            for (int pass = 0; pass < 3; pass++)
+            {
+                for (String name : EVALUATOR_NAMES)
+                {
+                    BaseEvaluator evaluator = (BaseEvaluator)helper.getEvaluator(name);
+                    assertEquals(name + " " + record, evaluator.evaluate(record, METADATA, args), evaluation.evaluate(evaluator));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void evaluatorsRunOncePerRecord()
+    {
+        Evaluator evaluator = helper.getEvaluator("evaluator.filter");
+        assertSame(filterEvaluator, evaluator);
+
+        DocListEvaluation evaluation = helper.createEvaluation(METADATA, args);
+        for (int i = 0; i < RECORDS.length; i++)
+        {
+            evaluation.setRecord(RECORDS[i]);
+            for (int j = 0; j < 5; j++)
+            {
+                assertEquals(true, evaluation.evaluate(evaluator));
+            }
+            assertEquals(i + 1, filterEvaluator.count);
+        }
+    }
+
+    private static ValueEvaluator valueEvaluator(String accessor, String value)
+    {
+        ValueEvaluator evaluator = new ValueEvaluator();
+        evaluator.setAccessor(accessor);
+        evaluator.setComparator(comparator(value));
+        return evaluator;
+    }
+
+    private static StringEqualsComparator comparator(String value)
+    {
+        StringEqualsComparator comparator = new StringEqualsComparator();
+        comparator.setValue(value);
+        return comparator;
+    }
+
+    /**
+     * Matches when the page's "filter" arg is "path", counting how many times it is run
+     */
+    private static class CountingEvaluator extends BaseEvaluator
+    {
+        private int count = 0;
+
+        @Override
+        public boolean evaluate(JSONObject jsonObject)
+        {
+            count++;
+            return "path".equals(getArg("filter"));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.scripts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.extensions.webscripts.ui.common.StringUtils;
+
+/**
+ * Tests for the {@link StreamingHtmlStripper} class.
+ */
+public class StreamingHtmlStripperTest
+{
+    private static final String[] DOCUMENTS = {
+        "<html><head><title>Test</title></head><body><p>Hello <b>world</b></p></body></html>",
+        "<p>before</p><script type=\"text/javascript\">if (a < b && c > d) { document.write('<p>x</p>'); }</script><p>after</p>",
+        "<p>before</p><SCRIPT>var s = '</scripty>'; alert(s);</Script ><p>after</p>",
+        "<p>before</p><script/><b>not markup</b><img src=x onerror=alert(1)></script><p>after</p>",
+        "<p>before</p><style/>p { color: red; } <i>x</i></style><p>after</p>",
+        "<style type=\"text/css\">p > b { color: red; }</style><p>styled <b>text</b></p>",
+        "<p>a</p><!-- a comment with <b>tags</b> and > signs --><p>b</p><!----><p>c</p>",
+        "<p>a</p><![CDATA[ some <data> with ]] and > in it ]]><p>b</p>",
+        "<a href=\"http://example.com/?a>b\" title='x > y'>link</a><img alt=\"1 > 0\" src=\"a.png\"><p>end</p>",
+        "<div onclick=\"alert('>')\"><a href=\"javascript:alert(1)\">bad</a></div><p>good</p>",
+        "<textarea><p>not a tag</p></textarea><p>after</p><iframe src=\"http://example.com\"></iframe>",
+        "text only, no markup at all < not a tag > & more text",
+        "<p>before</p><object data=\"movie.swf\"><param name=\"a\" value=\"b\"><p>no <b>plugin</b></p></object><p>after</p>",
+        "<form action=\"/search\"><label>Search <input name=\"q\"></label><button>Go</button></form><p>after</p>",
+        "<applet code=\"A.class\"><p>no java</p></APPLET ><embed src=\"a.swf\"><p>fallback</p></embed><p>after</p>",
+        "<p>unterminated <script>alert(1)"
+    };
+
+    private static final int[] CHUNK_SIZES = { 1, 2, 3, 5, 8, 16, 64, 4096 };
+    private static final int[] FEED_SIZES = { 1, 2, 7, 4096 };
+
+    @Test
+    public void chunkedStrippingEqualsStrippingWholeDocument()
+    {
+        for (String document : DOCUMENTS)
+        {
+            String expected = StringUtils.stripUnsafeHTMLDocument(document, false);
+            for (int chunkSize : CHUNK_SIZES)
+            {
+                for (int feedSize : FEED_SIZES)
+                {
+                    String actual = join(stripInChunks(new StreamingHtmlStripper(chunkSize), document, feedSize));
+                    assertEquals("chunk " + chunkSize + " feed " + feedSize + ": " + document, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rawTextElementsStayOpenUntilTheirEndTag()
+    {
+        assertEquals(Arrays.asList("<p>", "a</p>", "<script/><b>x</b></script>", "<i>", ""),
+                stripInChunks(new IdentityStripper(1), "<p>a</p><script/><b>x</b></script><i>", 1));
+        assertEquals(Arrays.asList("<style />p { } <i></style >", "<i>", ""),
+                stripInChunks(new IdentityStripper(1), "<style />p { } <i></style ><i>", 1));
+        assertEquals(Arrays.asList("<textarea></textareax></TEXTAREA>", ""),
+                stripInChunks(new IdentityStripper(1), "<textarea></textareax></TEXTAREA>", 1));
+    }
+
+    @Test
+    public void strippedElementsAreKeptWhole()
+    {
+        assertEquals(Arrays.asList("<p>", "a</p>", "<object><param name=\"a\"><p>x</p></object>", "<i>", ""),
+                stripInChunks(new IdentityStripper(1), "<p>a</p><object><param name=\"a\"><p>x</p></object><i>", 1));
+        assertEquals(Arrays.asList("<form><input name=\"q\"></FORM >", "<i>", ""),
+                stripInChunks(new IdentityStripper(1), "<form><input name=\"q\"></FORM ><i>", 1));
+    }
+
+    @Test
+    public void chunksEndAfterCommentsCdataAndQuotedAttributes()
+    {
+        assertEquals(Arrays.asList("<!-- <b> -- > -->", "<![CDATA[ ]]>", " ]]>"),
+                stripInChunks(new IdentityStripper(1), "<!-- <b> -- > --><![CDATA[ ]]> ]]>", 1));
+        assertEquals(Arrays.asList("<a title=\"a > b\" alt='>'>", "x</a>", ""),
+                stripInChunks(new IdentityStripper(1), "<a title=\"a > b\" alt='>'>x</a>", 3));
+    }
+
+    @Test
+    public void tagsSplitAcrossAppendsAreKeptWhole()
+    {
+        String document = "<p class=\"a > b\">one</p><div>two</div><!-- x --><br/>";
+        // The positions just after each tag or comment, the only places a chunk may end
+        List<Integer> tagEnds = Arrays.asList(17, 24, 29, 38, 48, 53);
+        for (int feedSize = 1; feedSize <= document.length(); feedSize++)
+        {
+            List<String> chunks = stripInChunks(new IdentityStripper(4), document, feedSize);
+            assertEquals("feed " + feedSize, document, join(chunks));
+            int end = 0;
+            for (String chunk : chunks)
+            {
+                end += chunk.length();
+                assertTrue("feed " + feedSize + " split a tag: " + chunks, tagEnds.contains(end));
+            }
+        }
+    }
+
+    /**
+     * Feeds a document to a stripper in pieces of the given size and collects the chunks it returns,
+     * ending with the rest returned by finish()
+     */
+    private static List<String> stripInChunks(StreamingHtmlStripper stripper, String document, int feedSize)
+    {
+        List<String> chunks = new ArrayList<String>();
+        char[] chars = document.toCharArray();
+        for (int offset = 0; offset < chars.length; offset += feedSize)
+        {
+            String chunk = stripper.append(chars, offset, Math.min(feedSize, chars.length - offset));
+            if (chunk != null)
+            {
+                chunks.add(chunk);
+            }
+        }
+        chunks.add(stripper.finish());
+        return chunks;
+    }
+
+    private static String join(List<String> chunks)
+    {
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks)
+        {
+            joined.append(chunk);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Leaves the chunks as they are, to show where the stripper splits a document
+     */
+    private static class IdentityStripper extends StreamingHtmlStripper
+    {
+        IdentityStripper(int chunkSize)
+        {
+            super(chunkSize);
+        }
+
+        @Override
+        protected String strip(String html)
+        {
+            return html;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.web.site.ClusterMessageCodec.Batch;
+import org.alfresco.web.site.ClusterMessageCodec.ClusterMessage;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link JsonClusterMessageCodec} and {@link BinaryClusterMessageCodec} classes.
+ */
+public class ClusterMessageCodecTest
+{
+    @Test
+    public void binaryCodecRoundTripsBatch() throws Exception
+    {
+        BinaryClusterMessageCodec codec = new BinaryClusterMessageCodec();
+        codec.setCompressionThreshold(64);
+        List<ClusterMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            messages.add(message("dictionary-update", i));
+        }
+
+        Serializable data = codec.encode("node-1", messages);
+        assertTrue(codec.canDecode(data));
+        assertFalse(codec.canDecode("{}"));
+        Batch batch = codec.decode(data);
+        assertEquals("node-1", batch.getSender());
+
+        List<ClusterMessage> decoded = batch.getMessages();
+        assertEquals(20, decoded.size());
+        Map<String, Serializable> payload = decoded.get(7).getPayload();
+        assertEquals("dictionary-update", decoded.get(7).getType());
+        assertEquals("[{\"name\":\"my:type7\"}]", payload.get("add"));
+        assertEquals(7L, payload.get("index"));
+        assertEquals(Boolean.TRUE, payload.get("flag"));
+        assertTrue(payload.containsKey("none"));
+        assertNull(payload.get("none"));
+        assertEquals(Arrays.asList("a", "b"), payload.get("list"));
+    }
+
+    @Test
+    public void codecsDecodeTheSamePayloads() throws Exception
+    {
+        JsonClusterMessageCodec json = new JsonClusterMessageCodec();
+        BinaryClusterMessageCodec binary = new BinaryClusterMessageCodec();
+        List<ClusterMessage> messages = Arrays.asList(message("a", 1), message("b", 2));
+
+        // a single message keeps the original JSON format
+        Serializable single = json.encode("node-1", messages.subList(0, 1));
+        assertTrue(((String)single).contains("\"message\""));
+
+        assertEquals(json.decode(single).getMessages(),
+                binary.decode(binary.encode("node-1", messages.subList(0, 1))).getMessages());
+        assertEquals(json.decode(json.encode("node-1", messages)).getMessages(),
+                binary.decode(binary.encode("node-1", messages)).getMessages());
+    }
+
+    @Test
+    public void jsonCodecDecodesOriginalFormat() throws Exception
+    {
+        JsonClusterMessageCodec codec = new JsonClusterMessageCodec();
+        String data = "{\"sender\":\"node-2\",\"message\":{\"type\":\"sites-update\",\"payload\":{\"id\":\"swsdp\"}}}";
+        assertTrue(codec.canDecode(data));
+        assertFalse(codec.canDecode(new byte[] { 1, 2, 3 }));
+
+        Batch batch = codec.decode(data);
+        assertEquals("node-2", batch.getSender());
+        assertEquals(1, batch.getMessages().size());
+        assertEquals("sites-update", batch.getMessages().get(0).getType());
+        assertEquals("swsdp", batch.getMessages().get(0).getPayload().get("id"));
+    }
+
+    private static ClusterMessage message(String type, int index)
+    {
+        Map<String, Serializable> payload = new HashMap<>();
+        payload.put("add", "[{\"name\":\"my:type" + index + "\"}]");
+        payload.put("index", index);
+        payload.put("flag", true);
+        payload.put("none", null);
+        payload.put("list", new ArrayList<>(Arrays.asList("a", "b")));
+        return new ClusterMessage(type, payload);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.web.site.ClusterMessageCodec.ClusterMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationContext;
+import org.springframework.extensions.surf.ClusterMessageAware;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+
+/**
+ * Tests for the publishing of messages by the {@link ClusterTopicService} class.
+ */
+public class ClusterTopicServiceTest
+{
+    private ITopic<Object> topic;
+    private ClusterTopicService service;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp()
+    {
+        topic = mock(ITopic.class);
+        HazelcastInstance hazelcastInstance = mock(HazelcastInstance.class);
+        when(hazelcastInstance.<Object>getTopic("share-cluster")).thenReturn(topic);
+        ApplicationContext applicationContext = mock(ApplicationContext.class);
+        when(applicationContext.getBeansOfType(ClusterMessageAware.class))
+                .thenReturn(Collections.<String, ClusterMessageAware>emptyMap());
+
+        service = new ClusterTopicService();
+        service.setHazelcastInstance(hazelcastInstance);
+        service.setHazelcastTopicName("share-cluster");
+        service.setApplicationContext(applicationContext);
+        // long enough that the messages are only sent when the service is destroyed
+        service.setBatchDelay(60000L);
+    }
+
+    @After
+    public void tearDown()
+    {
+        service.destroy();
+    }
+
+    @Test
+    public void jsonMessagesArePublishedOneAtATime() throws Exception
+    {
+        service.init();
+        publishMessages();
+        service.destroy();
+
+        // the repeated message is dropped, and each of the others is sent in the format earlier versions read
+        List<Object> published = publishedData(2);
+        JsonClusterMessageCodec codec = new JsonClusterMessageCodec();
+        for (int i = 0; i < 2; i++)
+        {
+            assertTrue(((String)published.get(i)).contains("\"message\":"));
+            List<ClusterMessage> messages = codec.decode(published.get(i)).getMessages();
+            assertEquals(1, messages.size());
+            assertEquals(i == 0 ? "sites-update" : "dictionary-update", messages.get(0).getType());
+        }
+    }
+
+    @Test
+    public void binaryMessagesArePublishedAsOneBatch() throws Exception
+    {
+        BinaryClusterMessageCodec codec = new BinaryClusterMessageCodec();
+        service.setMessageCodec(codec);
+        service.init();
+        publishMessages();
+        service.destroy();
+
+        List<ClusterMessage> messages = codec.decode(publishedData(1).get(0)).getMessages();
+        assertEquals(2, messages.size());
+        assertEquals("sites-update", messages.get(0).getType());
+        assertEquals("dictionary-update", messages.get(1).getType());
+    }
+
+    private void publishMessages()
+    {
+        service.publishClusterMessage("sites-update", payload("swsdp"));
+        service.publishClusterMessage("sites-update", payload("swsdp"));
+        service.publishClusterMessage("dictionary-update", payload("my:type"));
+    }
+
+    private List<Object> publishedData(int count)
+    {
+        ArgumentCaptor<Object> data = ArgumentCaptor.forClass(Object.class);
+        verify(topic, times(count)).publish(data.capture());
+        return data.getAllValues();
+    }
+
+    private static Map<String, Serializable> payload(String id)
+    {
+        return Collections.<String, Serializable>singletonMap("id", id);
+    }
+}
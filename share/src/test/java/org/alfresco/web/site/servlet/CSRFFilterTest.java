@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+import org.springframework.extensions.config.source.ClassPathConfigSource;
+import org.springframework.extensions.config.xml.XMLConfigService;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Tests for the rule matching of the {@link CSRFFilter} class.
+ */
+public class CSRFFilterTest
+{
+    private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "PROPFIND" };
+    private static final String[] PATHS = { "/", "/page/", "/page/index", "/page/console", "/page/dologin",
+            "/page/dologin?redirect=x", "/page/dologout", "/page/site/swsdp/start-workflow", "/page/start-workflow",
+            "/page/user/admin/profile", "/proxy/alfresco/remoteadm/stores", "/proxy/alfresco/api/publishing/channels/x",
+            "/proxy/alfresco/api/publishing/channels/", "/proxy/alfresco/api/sites", "/service/modules/deploy",
+            "/res/js/alfresco.js" };
+    private static final String[] CONTENT_TYPES = { null, "multipart/form-data", "application/json" };
+
+    @Test
+    public void literalPrefixOfConfiguredPaths()
+    {
+        assertEquals("/proxy/alfresco/remoteadm/", CSRFFilter.getLiteralPrefix("/proxy/alfresco/remoteadm/.*"));
+        assertEquals("/proxy/alfresco/api/publishing/channels/",
+                CSRFFilter.getLiteralPrefix("/proxy/alfresco/api/publishing/channels/.+"));
+        assertEquals("/page/dologout", CSRFFilter.getLiteralPrefix("/page/dologout(\\?.+)?"));
+        assertEquals("/page/", CSRFFilter.getLiteralPrefix("/page/.*"));
+        assertNull(CSRFFilter.getLiteralPrefix(
+                "/page/caches/dependency/clear|/page/index|/page/surfBugStatus|/page/modules/deploy|/page/modules/module|/page/api/javascript/debugger|/page/console"));
+        assertNull(CSRFFilter.getLiteralPrefix(
+                "/page/dologin(\\?.+)?|/page/site/[^/]+/start-workflow|/page/start-workflow|/page/context/[^/]+/start-workflow"));
+        assertNull(CSRFFilter.getLiteralPrefix(
+                "/proxy/alfresco/custom/repoWebscript/withoutParams|/service/custom/shareResource/thatMayHaveParams(\\?.+)?"));
+    }
+
+    @Test
+    public void literalPrefixStopsBeforeOptionalCharacters()
+    {
+        assertEquals("/pag", CSRFFilter.getLiteralPrefix("/page?"));
+        assertEquals("/pag", CSRFFilter.getLiteralPrefix("/page*"));
+        assertEquals("/pag", CSRFFilter.getLiteralPrefix("/page{0,1}"));
+        assertEquals("/page", CSRFFilter.getLiteralPrefix("/page+"));
+        assertEquals("/page", CSRFFilter.getLiteralPrefix("/page\\.html"));
+        assertEquals("/page/", CSRFFilter.getLiteralPrefix("/page/[a-z]+"));
+        assertNull(CSRFFilter.getLiteralPrefix("a?"));
+        assertNull(CSRFFilter.getLiteralPrefix(".*"));
+        assertNull(CSRFFilter.getLiteralPrefix("^/page"));
+        assertNull(CSRFFilter.getLiteralPrefix("(?i)/page"));
+        assertNull(CSRFFilter.getLiteralPrefix(""));
+        assertNull(CSRFFilter.getLiteralPrefix(null));
+    }
+
+    @Test
+    public void indexedMatchingEqualsLinearMatching() throws Exception
+    {
+        CSRFFilter filter = createFilter("alfresco/share-security-config.xml");
+
+        HttpSession anonymousSession = mock(HttpSession.class);
+        HttpSession newUserSession = mock(HttpSession.class);
+        when(newUserSession.getAttribute("_alf_USER_ID")).thenReturn("admin");
+        HttpSession userSession = mock(HttpSession.class);
+        when(userSession.getAttribute("_alf_USER_ID")).thenReturn("admin");
+        when(userSession.getAttribute("Alfresco-CSRFToken")).thenReturn("token");
+        HttpSession[] sessions = { null, anonymousSession, newUserSession, userSession };
+
+        Set<Integer> matchedRules = new HashSet<Integer>();
+        for (String method : METHODS)
+        {
+            for (String path : PATHS)
+            {
+                for (String contentType : CONTENT_TYPES)
+                {
+                    for (int i = 0; i < sessions.length; i++)
+                    {
+                        HttpServletRequest request = mock(HttpServletRequest.class);
+                        when(request.getMethod()).thenReturn(method);
+                        when(request.getContextPath()).thenReturn("/share");
+                        when(request.getRequestURI()).thenReturn("/share" + path);
+                        when(request.getHeader("Content-Type")).thenReturn(contentType);
+
+                        int linear = filter.getMatchingRuleNumber(request, sessions[i], false);
+                        int indexed = filter.getMatchingRuleNumber(request, sessions[i], true);
+                        assertEquals(method + " " + path + " " + contentType + " session " + i, linear, indexed);
+                        matchedRules.add(linear);
+                    }
+                }
+            }
+        }
+        // Every rule in the default config, and no rule at all, is the outcome for some of the requests
+        assertTrue("Only matched rules " + matchedRules, matchedRules.size() >= 8);
+    }
+
+    private CSRFFilter createFilter(String configLocation) throws Exception
+    {
+        XMLConfigService configService = new XMLConfigService(new ClassPathConfigSource(configLocation));
+        configService.initConfig();
+
+        WebApplicationContext context = mock(WebApplicationContext.class);
+        when(context.getBean("web.config")).thenReturn(configService);
+        ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE)).thenReturn(context);
+        FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getServletContext()).thenReturn(servletContext);
+
+        CSRFFilter filter = new CSRFFilter();
+        filter.init(filterConfig);
+        return filter;
+    }
+}
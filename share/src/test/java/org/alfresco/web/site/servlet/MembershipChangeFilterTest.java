@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.web.site.servlet;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.alfresco.web.extensibility.SlingshotEvaluatorUtil;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Tests for the {@link MembershipChangeFilter} class.
+ */
+public class MembershipChangeFilterTest
+{
+    private SlingshotEvaluatorUtil evaluatorUtil;
+    private MembershipChangeFilter filter;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        evaluatorUtil = mock(SlingshotEvaluatorUtil.class);
+        WebApplicationContext context = mock(WebApplicationContext.class);
+        when(context.getBean("slingshot.evaluator.utility")).thenReturn(evaluatorUtil);
+        ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE)).thenReturn(context);
+        FilterConfig filterConfig = mock(FilterConfig.class);
+        when(filterConfig.getServletContext()).thenReturn(servletContext);
+
+        filter = new MembershipChangeFilter();
+        filter.init(filterConfig);
+    }
+
+    @Test
+    public void siteMembershipChangesInvalidateTheSite() throws Exception
+    {
+        doFilter("POST", "/proxy/alfresco/api/sites/swsdp/memberships", null);
+        doFilter("PUT", "/proxy/alfresco/api/sites/other/memberships", null);
+        doFilter("DELETE", "/proxy/alfresco/api/sites/third/memberships/bob", null);
+        doFilter("DELETE", "/proxy/alfresco/api/sites/deleted", null);
+
+        verify(evaluatorUtil).invalidateSiteMemberships("swsdp");
+        verify(evaluatorUtil).invalidateSiteMemberships("other");
+        verify(evaluatorUtil).invalidateSiteMemberships("third");
+        verify(evaluatorUtil).invalidateSiteMemberships("deleted");
+        verify(evaluatorUtil, never()).invalidateGroupMemberships();
+        verify(evaluatorUtil, never()).invalidateMemberships(anyString());
+    }
+
+    @Test
+    public void groupChangesInvalidateAllGroups() throws Exception
+    {
+        doFilter("POST", "/proxy/alfresco/api/groups/SITE_ADMINS/children/bob", null);
+
+        verify(evaluatorUtil).invalidateGroupMemberships();
+    }
+
+    @Test
+    public void invitationResponsesInvalidateTheCurrentUser() throws Exception
+    {
+        HttpSession session = mock(HttpSession.class);
+        when(session.getAttribute("_alf_USER_ID")).thenReturn("bob");
+        doFilter("PUT", "/proxy/alfresco-noauth/api/invite/activiti$123/ticket/accept", session);
+
+        verify(evaluatorUtil).invalidateMemberships("bob");
+    }
+
+    @Test
+    public void readsAndOtherChangesInvalidateNothing() throws Exception
+    {
+        doFilter("GET", "/proxy/alfresco/api/sites/swsdp/memberships", null);
+        doFilter("GET", "/proxy/alfresco/api/groups/SITE_ADMINS/children", null);
+        doFilter("POST", "/proxy/alfresco/api/sites/swsdp/invitations", null);
+        doFilter("POST", "/proxy/alfresco/api/sites/swsdp/memberships-other", null);
+        doFilter("POST", "/proxy/alfresco/slingshot/doclib/action/files", null);
+        doFilter("POST", "/service/modules/create-site", null);
+
+        verifyZeroInteractions(evaluatorUtil);
+    }
+
+    private void doFilter(String method, String path, HttpSession session) throws Exception
+    {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getContextPath()).thenReturn("/share");
+        when(request.getRequestURI()).thenReturn("/share" + path);
+        when(request.getSession(false)).thenReturn(session);
+        ServletResponse response = mock(ServletResponse.class);
+        FilterChain chain = mock(FilterChain.class);
+
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(request, response);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A content stream whose content is held in a local file, so that it can be sent to the client
+ * straight from the file rather than being copied through the heap.
+ */
+public interface FileBackedContentStream extends ContentStream
+{
+    /**
+     * Obtain the file that holds the content, making sure that it stays in place for at least the
+     * specified time, so that it can be handed to something that opens it later, such as the
+     * container's sendfile support.
+     * @param milliseconds how long the file must stay in place
+     * @return the file, or null if it can't be kept in place, in which case the content must be read
+     *         through {@link #openChannel()}
+     */
+    File retainFile(long milliseconds);
+
+    /**
+     * Open a channel onto the content. The caller is responsible for closing it.
+     * @return FileChannel
+     * @throws IOException if the file can't be opened, for example because it has been evicted from the cache
+     */
+    FileChannel openChannel() throws IOException;
+
+    /**
+     * @return a hex digest of the content, computed once, or null if it can't be computed
+     */
+    String getDigest();
+}
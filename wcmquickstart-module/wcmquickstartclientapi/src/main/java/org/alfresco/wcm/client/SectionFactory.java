@@ -38,5 +38,12 @@ public interface SectionFactory
      */
     Section getSectionFromPathSegments(String websiteId, String[] pathSegments);    
     
+    /**
+     * Get the path of a section from the cached section tree of its website
+     * @param sectionId the section id
+     * @return String the path of the section, or null if no cached section tree holds it
+     */
+    String getSectionPath(String sectionId);
+    
     void setAssetFactory(AssetFactory assetFactory);
 }
@@ -18,10 +18,25 @@
 package org.alfresco.wcm.client.impl;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.alfresco.wcm.client.AssetFactory;
 import org.alfresco.wcm.client.CollectionFactory;
@@ -29,12 +44,22 @@ import org.alfresco.wcm.client.DictionaryService;
 import org.alfresco.wcm.client.Section;
 import org.alfresco.wcm.client.SectionFactory;
 import org.alfresco.wcm.client.Tag;
+import org.alfresco.wcm.client.impl.cache.CacheException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * Factory class for creating Sections from the repository. This abstract implementation handles all the necessary caching logic.
  * Concrete implementations just need to implement the findSectionWithChildren(String) operation.
+ * <p>
+ * Implementations that also implement {@link #findSectionVersions(String)} and {@link #findSectionsById(Collection)}
+ * have their section trees refreshed incrementally: when a cached tree expires, the parent and modified time of 
+ * every section in it are checked with one lightweight query, only the sections that have changed are reloaded,
+ * and a new tree that shares all of the unchanged branches of the old one is published in its place.
+ * <p>
+ * Only one load of a website's tree is in flight at a time. Requests for a website with no cached tree wait
+ * for that load for at most <code>sectionLoadTimeoutSeconds</code>; requests for a website whose tree has
+ * expired are served the expired tree while it is refreshed in the background.
  * 
  * @author Chris Lack
  * @author Brian Remmington
@@ -57,7 +82,19 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
     /** Cache of all sections under a website */
     private Map<String, SectionCache> rootSectionsByWebsite = new ConcurrentSkipListMap<String, SectionCache>();
 
-    private ConcurrentMap<String, String> sectionsBeingLoaded = new ConcurrentSkipListMap<String, String>();
+    /** The loads of section trees that are in progress, keyed by web root id */
+    private ConcurrentMap<String, FutureTask<SectionCache>> sectionLoads = 
+        new ConcurrentHashMap<String, FutureTask<SectionCache>>();
+
+    private CacheRefreshExecutor cacheRefreshExecutor;
+    private long sectionLoadTimeoutMilliseconds = 30000L;
+
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong totalLoadMilliseconds = new AtomicLong();
+    private final AtomicLong loadTimeouts = new AtomicLong();
+    private final AtomicLong staleServes = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
 
     private AssetFactory assetFactory;
     private DictionaryService dictionaryService;
@@ -90,6 +127,23 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
         this.collectionFactory = collectionFactory;
     }
 
+    /**
+     * @param cacheRefreshExecutor if supplied, expired section trees are refreshed on its threads rather
+     *          than on the request thread that finds them expired
+     */
+    public void setCacheRefreshExecutor(CacheRefreshExecutor cacheRefreshExecutor)
+    {
+        this.cacheRefreshExecutor = cacheRefreshExecutor;
+    }
+
+    /**
+     * @param seconds the longest that a request will wait for a section tree that isn't cached to be loaded
+     */
+    public void setSectionLoadTimeoutSeconds(int seconds)
+    {
+        this.sectionLoadTimeoutMilliseconds = seconds * 1000L;
+    }
+
     public AssetFactory getAssetFactory()
     {
         return assetFactory;
@@ -165,116 +219,386 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
     @Override
     public Section getSectionFromPathSegments(String rootSectionId, String[] pathSegments)
     {
-        refreshCacheIfRequired(rootSectionId);
-
-        SectionCache cache = rootSectionsByWebsite.get(rootSectionId);
-        Section currentSection = cache.rootSection;
+        SectionCache cache = getSectionCache(rootSectionId);
+        return cache.pathIndex.getSection(pathSegments);
+    }
 
-        for (String segment : pathSegments)
+    /**
+     * @see org.alfresco.wcm.client.SectionFactory#getSectionPath(String)
+     */
+    @Override
+    public String getSectionPath(String sectionId)
+    {
+        for (SectionCache cache : rootSectionsByWebsite.values())
         {
-            if (segment.length() > 0)
-                currentSection = currentSection.getSection(segment);
-            if (currentSection == null)
-                return null;
+            String path = cache.pathIndex.getPath(sectionId);
+            if (path != null)
+            {
+                return path;
+            }
         }
-        return currentSection;
+        return null;
     }
 
     /**
-     * Refreshes the section cache if empty or expired.
+     * Load or refresh the section tree under a web root, and publish it to the caches
      * 
-     * @param rootSectionId
-     *            the id of the parent web root
+     * @param rootSectionId the id of the web root
+     * @param existingCache the currently cached tree, or null if there isn't one
+     * @return the refreshed tree
      */
-    private void refreshCacheIfRequired(String rootSectionId)
+    private SectionCache refreshSections(String rootSectionId, SectionCache existingCache)
     {
-        SectionCache cache = rootSectionsByWebsite.get(rootSectionId);
-        while (cache == null || cache.isExpired())
+        Map<String, SectionVersion> versions = findSectionVersions(rootSectionId);
+        SectionCache refreshedCache = null;
+        if (versions != null && existingCache != null && existingCache.versions != null)
         {
-            String existingSectionToken = sectionsBeingLoaded.putIfAbsent(rootSectionId, rootSectionId);
-            if (existingSectionToken == null)
+            refreshedCache = refreshChangedSections(rootSectionId, existingCache, versions);
+        }
+        if (refreshedCache == null)
+        {
+            Map<String, Section> sections = findSectionWithChildren(rootSectionId);
+            Section rootSection = sections.get(rootSectionId);
+            refreshedCache = new SectionCache(rootSection, versions, sections.keySet());
+            sectionsById.putAll(sections);
+        }
+        rootSectionsByWebsite.put(rootSectionId, refreshedCache);
+        if (existingCache != null)
+        {
+            // Forget about any sections that have been removed from the tree
+            for (String sectionId : existingCache.sectionIds)
             {
-                try
+                if (!refreshedCache.sectionIds.contains(sectionId))
                 {
-                    //It looks like we have to load this section tree, 
-                    //but before we do, let's just check that another thread hasn't got in between us checking the cache
-                    //and checking whether it's already being loaded...
-                    cache = rootSectionsByWebsite.get(rootSectionId);
-                    if (cache != null && !cache.isExpired())
-                    {
-                        //This section is now in the cache, so we don't need to do anything 
-                        return;
-                    }
-                    if (log.isDebugEnabled())
-                    {
-                        log.debug(Thread.currentThread().getName() + " started refreshing tree cache for section " + rootSectionId);
-                    }
-
-                    //This section isn't currently being loaded. Load it.
-                    Map<String, Section> sections = findSectionWithChildren(rootSectionId);
-                    Section rootSection = sections.get(rootSectionId);
-                    SectionCache cachedRootSection = new SectionCache(rootSection);
-                    rootSectionsByWebsite.put(rootSectionId, cachedRootSection);
-                    sectionsById.putAll(sections);
-                    if (log.isDebugEnabled())
-                    {
-                        log.debug(Thread.currentThread().getName() + " finished refreshing tree cache for section " + rootSectionId);
-                    }
-                    return;
-                }
-                finally
-                {
-                    //There may be other threads waiting for us to finish loading this section tree.
-                    //Let them know that we've finished
-                    synchronized (rootSectionId)
-                    {
-                        sectionsBeingLoaded.remove(rootSectionId);
-                        rootSectionId.notifyAll();
-                    }
+                    sectionsById.remove(sectionId);
                 }
             }
-            else
+        }
+        return refreshedCache;
+    }
+
+    /**
+     * Reload just those sections that have changed since the existing tree was loaded, and build a new
+     * tree from them and the unchanged parts of the existing one.
+     * 
+     * @return the refreshed tree, or null if the whole tree needs to be reloaded instead
+     */
+    private SectionCache refreshChangedSections(String rootSectionId, SectionCache existingCache,
+            final Map<String, SectionVersion> versions)
+    {
+        Map<String, SectionVersion> oldVersions = existingCache.versions;
+        Set<String> changedIds = new HashSet<String>();
+        // Sections whose children have to be rebuilt even though the sections themselves haven't changed
+        Set<String> dirtyIds = new HashSet<String>();
+        for (Map.Entry<String, SectionVersion> version : versions.entrySet())
+        {
+            SectionVersion oldVersion = oldVersions.get(version.getKey());
+            if (!version.getValue().equals(oldVersion))
             {
-                //This section is currently being loaded
-                if (cache != null)
+                changedIds.add(version.getKey());
+                markAncestors(version.getValue().parentId, versions, rootSectionId, dirtyIds);
+                if (oldVersion != null)
                 {
-                    //We are currently refreshing the cache, but the requested section does already 
-                    //appear in the cache. Therefore we'll let the caller simply use the currently-cached 
-                    //copy
-                    return;
+                    markAncestors(oldVersion.parentId, oldVersions, rootSectionId, dirtyIds);
                 }
-                else
+            }
+        }
+        for (Map.Entry<String, SectionVersion> oldVersion : oldVersions.entrySet())
+        {
+            if (!versions.containsKey(oldVersion.getKey()))
+            {
+                markAncestors(oldVersion.getValue().parentId, oldVersions, rootSectionId, dirtyIds);
+            }
+        }
+
+        if (changedIds.isEmpty() && dirtyIds.isEmpty())
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Section tree " + rootSectionId + " is unchanged");
+            }
+            return new SectionCache(existingCache.rootSection, versions, existingCache.sectionIds, 
+                    existingCache.pathIndex);
+        }
+        if (!versions.containsKey(rootSectionId))
+        {
+            return null;
+        }
+
+        if (changedIds.size() > versions.size() / 4)
+        {
+            // So much has changed that we may as well reload the lot
+            return null;
+        }
+        Map<String, Section> changedSections = Collections.emptyMap();
+        if (!changedIds.isEmpty())
+        {
+            changedSections = findSectionsById(changedIds);
+            if (changedSections == null || !changedSections.keySet().containsAll(changedIds))
+            {
+                // Something has moved on since we checked the versions. Play safe.
+                return null;
+            }
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Refreshing section tree " + rootSectionId + ": " + changedIds.size() + " changed sections, "
+                    + dirtyIds.size() + " sections with changed children");
+        }
+
+        Map<String, List<String>> childIdsByParentId = new HashMap<String, List<String>>();
+        for (Map.Entry<String, SectionVersion> version : versions.entrySet())
+        {
+            String parentId = version.getValue().parentId;
+            if (parentId != null && !version.getKey().equals(rootSectionId))
+            {
+                List<String> childIds = childIdsByParentId.get(parentId);
+                if (childIds == null)
                 {
-                    //This section isn't currently cached, but is already being loaded
-                    //Wait for it to be loaded...
-                    synchronized (existingSectionToken)
-                    {
-                        if (sectionsBeingLoaded.containsKey(existingSectionToken))
-                        {
-                            try
-                            {
-                                if (log.isDebugEnabled())
-                                {
-                                    log.debug(Thread.currentThread().getName() + 
-                                            " started waiting for section tree to be loaded " + 
-                                            rootSectionId);
-                                }
-                                existingSectionToken.wait();
-                            }
-                            catch (InterruptedException e)
-                            {
-                            }
-                            if (log.isDebugEnabled())
-                            {
-                                log.debug(Thread.currentThread().getName() + 
-                                        " finished waiting for section tree to be loaded " + 
-                                        rootSectionId);
-                            }
-                        }
-                    }
+                    childIds = new ArrayList<String>();
+                    childIdsByParentId.put(parentId, childIds);
                 }
+                childIds.add(version.getKey());
+            }
+        }
+        Comparator<String> childOrder = new Comparator<String>()
+        {
+            @Override
+            public int compare(String id1, String id2)
+            {
+                int order1 = versions.get(id1).orderIndex;
+                int order2 = versions.get(id2).orderIndex;
+                return order1 < order2 ? -1 : (order1 == order2 ? id1.compareTo(id2) : 1);
+            }
+        };
+
+        Map<String, Section> rebuiltSections = new HashMap<String, Section>();
+        Section rootSection = rebuildSection(rootSectionId, changedSections, dirtyIds, childIdsByParentId, childOrder,
+                rebuiltSections);
+        sectionsById.putAll(rebuiltSections);
+        return new SectionCache(rootSection, versions, versions.keySet());
+    }
+
+    /**
+     * Mark a section and all of its ancestors up to the web root as needing to be rebuilt
+     */
+    private void markAncestors(String sectionId, Map<String, SectionVersion> versions, String rootSectionId,
+            Set<String> dirtyIds)
+    {
+        while (sectionId != null && dirtyIds.add(sectionId) && !sectionId.equals(rootSectionId))
+        {
+            SectionVersion version = versions.get(sectionId);
+            sectionId = version == null ? null : version.parentId;
+        }
+    }
+
+    /**
+     * Build the section with the given id for a refreshed tree. Sections that haven't changed and have no
+     * changes beneath them are taken as they are from the existing tree.
+     */
+    private Section rebuildSection(String sectionId, Map<String, Section> changedSections, Set<String> dirtyIds,
+            Map<String, List<String>> childIdsByParentId, Comparator<String> childOrder,
+            Map<String, Section> rebuiltSections)
+    {
+        Section changedSection = changedSections.get(sectionId);
+        if (changedSection == null && !dirtyIds.contains(sectionId))
+        {
+            Section existingSection = sectionsById.get(sectionId);
+            if (existingSection != null)
+            {
+                return existingSection;
             }
-            cache = rootSectionsByWebsite.get(rootSectionId);
+        }
+        SectionImpl section;
+        if (changedSection != null)
+        {
+            section = (SectionImpl) changedSection;
+        }
+        else
+        {
+            Section existingSection = sectionsById.get(sectionId);
+            if (existingSection == null)
+            {
+                throw new IllegalStateException("Section missing from cache: " + sectionId);
+            }
+            section = ((SectionImpl) existingSection).copyWithoutChildren();
+        }
+        List<String> childIds = childIdsByParentId.get(sectionId);
+        if (childIds != null)
+        {
+            Collections.sort(childIds, childOrder);
+            for (String childId : childIds)
+            {
+                section.addChild(rebuildSection(childId, changedSections, dirtyIds, childIdsByParentId, childOrder,
+                        rebuiltSections));
+            }
+        }
+        rebuiltSections.put(sectionId, section);
+        return section;
+    }
+
+    /**
+     * Get the cached section tree under a web root, loading it if it isn't cached and refreshing it if it
+     * has expired.
+     * <p>
+     * Only one load of each tree is ever in progress. While an expired tree is being refreshed (in the
+     * background, if a {@link CacheRefreshExecutor} has been supplied) every request is served the expired
+     * one. Requests for a tree that isn't cached at all wait for it to be loaded, but for no longer than
+     * <code>sectionLoadTimeoutSeconds</code>.
+     * 
+     * @param rootSectionId
+     *            the id of the parent web root
+     * @return the cached section tree
+     * @throws CacheException if the tree isn't cached and couldn't be loaded in time
+     */
+    private SectionCache getSectionCache(String rootSectionId)
+    {
+        SectionCache cache = rootSectionsByWebsite.get(rootSectionId);
+        if (cache != null && !cache.isExpired())
+        {
+            return cache;
+        }
+        FutureTask<SectionCache> load = startLoad(rootSectionId, cache);
+        if (cache != null)
+        {
+            if (load.isDone())
+            {
+                // We've just refreshed the tree ourselves
+                SectionCache refreshedCache = rootSectionsByWebsite.get(rootSectionId);
+                return refreshedCache == null ? cache : refreshedCache;
+            }
+            staleServes.incrementAndGet();
+            return cache;
+        }
+
+        waiters.incrementAndGet();
+        try
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug(Thread.currentThread().getName() + " waiting for section tree to be loaded " + rootSectionId);
+            }
+            return load.get(sectionLoadTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex)
+        {
+            loadTimeouts.incrementAndGet();
+            throw new CacheException("Timed out waiting for section tree to be loaded " + rootSectionId);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new CacheException("Interrupted while waiting for section tree to be loaded " + rootSectionId, ex);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new CacheException("Failed to load section tree " + rootSectionId, cause);
+        }
+        finally
+        {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Start loading the section tree under a web root, unless a load of it is already in progress.
+     * Expired trees are refreshed in the background if possible, while trees that aren't cached are
+     * loaded on the calling thread.
+     * 
+     * @return the load of the tree
+     */
+    private FutureTask<SectionCache> startLoad(final String rootSectionId, final SectionCache existingCache)
+    {
+        FutureTask<SectionCache> load = new FutureTask<SectionCache>(new Callable<SectionCache>()
+        {
+            @Override
+            public SectionCache call() throws Exception
+            {
+                return loadSections(rootSectionId, existingCache);
+            }
+        })
+        {
+            @Override
+            protected void done()
+            {
+                sectionLoads.remove(rootSectionId, this);
+            }
+        };
+        FutureTask<SectionCache> inFlight = sectionLoads.putIfAbsent(rootSectionId, load);
+        if (inFlight != null)
+        {
+            return inFlight;
+        }
+        if (existingCache == null || cacheRefreshExecutor == null || !cacheRefreshExecutor.execute(load))
+        {
+            load.run();
+        }
+        return load;
+    }
+
+    /**
+     * Load or refresh the section tree under a web root, recording how long it took
+     */
+    private SectionCache loadSections(String rootSectionId, SectionCache existingCache)
+    {
+        //Another thread may have finished loading this tree between us checking the cache 
+        //and starting this load
+        SectionCache cache = rootSectionsByWebsite.get(rootSectionId);
+        if (cache != null && !cache.isExpired())
+        {
+            return cache;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug(Thread.currentThread().getName() + " started refreshing tree cache for section " + rootSectionId);
+        }
+        long startTime = System.currentTimeMillis();
+        try
+        {
+            cache = refreshSections(rootSectionId, existingCache);
+            long loadTime = System.currentTimeMillis() - startTime;
+            loadCount.incrementAndGet();
+            totalLoadMilliseconds.addAndGet(loadTime);
+            if (log.isDebugEnabled())
+            {
+                log.debug(Thread.currentThread().getName() + " finished refreshing tree cache for section " + 
+                        rootSectionId + " in " + loadTime + "ms");
+            }
+            logStatistics();
+            return cache;
+        }
+        catch (RuntimeException ex)
+        {
+            loadFailures.incrementAndGet();
+            logStatistics();
+            if (existingCache != null)
+            {
+                //Carry on serving the tree we have, and don't try again until it expires again
+                log.warn("Failed to refresh section tree " + rootSectionId + ". Continuing to use the cached tree.", ex);
+                rootSectionsByWebsite.put(rootSectionId, new SectionCache(existingCache.rootSection, 
+                        existingCache.versions, existingCache.sectionIds, existingCache.pathIndex));
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Log the statistics of section tree loading, once per completed or failed load
+     */
+    private void logStatistics()
+    {
+        if (log.isDebugEnabled())
+        {
+            long loads = loadCount.get();
+            log.debug("Section tree loads: " + loads + " completed (average "
+                    + (loads == 0 ? 0 : totalLoadMilliseconds.get() / loads) + "ms), " + loadFailures.get()
+                    + " failed. Requests: " + waiters.get() + " waiting, " + loadTimeouts.get() + " timed out, "
+                    + staleServes.get() + " served an expired tree");
         }
     }
 
@@ -287,6 +611,32 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
      */
     protected abstract Map<String,Section> findSectionWithChildren(String topSectionId);
 
+    /**
+     * Fetch the version of every section in the tree under a web root, including the web root itself.
+     * This base implementation returns null, in which case the whole tree is reloaded whenever it expires.
+     * 
+     * @param topSectionId
+     *            the id of the web root
+     * @return the versions of the sections keyed by section id, or null if this isn't supported
+     */
+    protected Map<String, SectionVersion> findSectionVersions(String topSectionId)
+    {
+        return null;
+    }
+
+    /**
+     * Fetch the specified sections, without their children. Only called if
+     * {@link #findSectionVersions(String)} is supported. This base implementation returns null.
+     * 
+     * @param sectionIds
+     *            the ids of the sections to fetch
+     * @return the sections keyed by id, or null if this isn't supported
+     */
+    protected Map<String, Section> findSectionsById(Collection<String> sectionIds)
+    {
+        return null;
+    }
+
     public void setSectionsRefreshAfter(int seconds)
     {
         this.sectionsRefreshAfter = seconds * 1000;
@@ -302,6 +652,42 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
         String parentId;
     }
 
+    /**
+     * Enough information about a section to tell whether it, or its place in the tree, has changed
+     */
+    protected static class SectionVersion
+    {
+        final String parentId;
+        final Date modifiedTime;
+        final int orderIndex;
+
+        public SectionVersion(String parentId, Date modifiedTime, int orderIndex)
+        {
+            this.parentId = parentId;
+            this.modifiedTime = modifiedTime;
+            this.orderIndex = orderIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof SectionVersion))
+            {
+                return false;
+            }
+            SectionVersion other = (SectionVersion) obj;
+            return orderIndex == other.orderIndex
+                    && (parentId == null ? other.parentId == null : parentId.equals(other.parentId))
+                    && (modifiedTime == null ? other.modifiedTime == null : modifiedTime.equals(other.modifiedTime));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (parentId == null ? 0 : parentId.hashCode()) * 31 + orderIndex;
+        }
+    }
+
     /**
      * A root section and the time the data was cached.
      */
@@ -309,11 +695,26 @@ public abstract class AbstractCachingSectionFactoryImpl implements SectionFactor
     {
         Section rootSection;
         long sectionsRefeshedAt;
+        /** The versions of the sections in the tree, or null if the factory can't supply them */
+        Map<String, SectionVersion> versions;
+        /** The ids of all the sections in the tree */
+        Set<String> sectionIds;
+        /** The paths of all the sections in the tree */
+        SectionPathIndex pathIndex;
+
+        SectionCache(Section root, Map<String, SectionVersion> versions, Set<String> sectionIds)
+        {
+            this(root, versions, sectionIds, new SectionPathIndex(root));
+        }
 
-        SectionCache(Section root)
+        SectionCache(Section root, Map<String, SectionVersion> versions, Set<String> sectionIds, 
+                SectionPathIndex pathIndex)
         {
             this.rootSection = root;
             this.sectionsRefeshedAt = System.currentTimeMillis();
+            this.versions = versions;
+            this.sectionIds = sectionIds;
+            this.pathIndex = pathIndex;
         }
 
         /**
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.util.Collection;
+
+/**
+ * Receives notifications from an {@link AssetChangePoller} about assets that have been changed in the repository.
+ */
+public interface AssetChangeListener
+{
+    /**
+     * The specified assets have been changed in the repository
+     *
+     * @param assetIds the ids of the changed assets
+     */
+    void assetsChanged(Collection<String> assetIds);
+
+    /**
+     * The poller is in step with the repository's change log. Any asset loaded from the repository at or after the
+     * specified time will be reported through {@link #assetsChanged(Collection)} if it changes, so it need not
+     * be revalidated in any other way.
+     *
+     * @param validFrom the time (in milliseconds) from which loaded assets are covered by change notifications
+     */
+    void changesSynchronised(long validFrom);
+
+    /**
+     * The poller has lost track of changes in the repository (it can't reach it, or changes have been missed).
+     * Until {@link #changesSynchronised(long)} is next called, cached assets must be revalidated by other means.
+     */
+    void changesUnavailable();
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Polls the repository's log of asset changes on a single background thread, and tells its listeners
+ * which assets have changed. This allows caches to evict just the affected entries rather than each of them
+ * repeatedly asking the repository for the modified time of every asset they hold.
+ * <p>
+ * The log is shared by every repository node and survives restarts. If the repository can't be reached, or if it
+ * reports a new epoch (its log has been started afresh) or a gap (it no longer holds the changes that we're asking
+ * for), then the listeners are told that changes are unavailable and must fall back to
+ * revalidating their cached assets in the usual way until the poller is back in step.
+ */
+public class AssetChangePoller implements Runnable
+{
+    private final static Log log = LogFactory.getLog(AssetChangePoller.class);
+
+    private WebScriptCaller webscriptCaller;
+    private List<AssetChangeListener> listeners = Collections.emptyList();
+    private int pollInterval = 5000;
+    private int maxChangesPerPoll = 1000;
+    private volatile Thread pollingThread;
+
+    private String epoch;
+    private long lastSequence;
+    private boolean synchronised;
+
+    public void setWebscriptCaller(WebScriptCaller webscriptCaller)
+    {
+        this.webscriptCaller = webscriptCaller;
+    }
+
+    public void setListeners(List<AssetChangeListener> listeners)
+    {
+        this.listeners = new ArrayList<AssetChangeListener>(listeners);
+    }
+
+    /**
+     * @param pollInterval the number of milliseconds between polls. Zero or less disables polling.
+     */
+    public void setPollInterval(int pollInterval)
+    {
+        this.pollInterval = pollInterval;
+    }
+
+    public void setMaxChangesPerPoll(int maxChangesPerPoll)
+    {
+        this.maxChangesPerPoll = maxChangesPerPoll;
+    }
+
+    public void init()
+    {
+        if (pollInterval > 0)
+        {
+            pollingThread = new Thread(this, "WQS asset change poller");
+            pollingThread.setDaemon(true);
+            pollingThread.start();
+        }
+    }
+
+    public void stop()
+    {
+        Thread thread = pollingThread;
+        pollingThread = null;
+        if (thread != null)
+        {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Thread thisThread = Thread.currentThread();
+        while (pollingThread == thisThread)
+        {
+            try
+            {
+                poll();
+            }
+            catch (Exception ex)
+            {
+                log.warn("Failed to poll the repository for asset changes: " + ex.getMessage());
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Caught exception while polling for asset changes", ex);
+                }
+                changesUnavailable();
+            }
+
+            try
+            {
+                Thread.sleep(pollInterval);
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /**
+     * Fetch and dispatch all the changes recorded since the last poll
+     */
+    void poll() throws Exception
+    {
+        boolean more = true;
+        while (more)
+        {
+            long pollStartTime = System.currentTimeMillis();
+            WebscriptParam[] params = new WebscriptParam[] {
+                    new WebscriptParam("since", Long.toString(lastSequence)),
+                    new WebscriptParam("max", Integer.toString(maxChangesPerPoll))
+            };
+            JSONObject jsonObject = webscriptCaller.getJsonObject("assetchanges", params);
+            if (jsonObject == null)
+            {
+                changesUnavailable();
+                return;
+            }
+            JSONObject data = jsonObject.getJSONObject("data");
+            String currentEpoch = data.getString("epoch");
+            long first = data.getLong("first");
+            long latest = data.getLong("latest");
+            long last = data.getLong("last");
+            boolean gap = data.optBoolean("gap", lastSequence < first - 1);
+
+            if (!currentEpoch.equals(epoch) || gap)
+            {
+                // Either this is our first poll, the repository's log has been started afresh, or we have fallen
+                // so far behind that it no longer has all the changes we need. Whatever we've cached so far can't be vouched for,
+                // but from here on we'll see every change.
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Resynchronising with asset change log. Epoch: " + currentEpoch + "; sequence: " + latest);
+                }
+                epoch = currentEpoch;
+                lastSequence = latest;
+                synchronised = true;
+                for (AssetChangeListener listener : listeners)
+                {
+                    listener.changesSynchronised(pollStartTime);
+                }
+                more = false;
+            }
+            else
+            {
+                JSONArray ids = data.getJSONArray("ids");
+                if (ids.length() > 0)
+                {
+                    List<String> assetIds = new ArrayList<String>(ids.length());
+                    for (int i = 0; i < ids.length(); ++i)
+                    {
+                        assetIds.add(ids.getString(i));
+                    }
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Received " + assetIds.size() + " asset changes up to sequence " + last);
+                    }
+                    for (AssetChangeListener listener : listeners)
+                    {
+                        listener.assetsChanged(assetIds);
+                    }
+                }
+                lastSequence = last;
+                if (!synchronised)
+                {
+                    synchronised = true;
+                    for (AssetChangeListener listener : listeners)
+                    {
+                        listener.changesSynchronised(pollStartTime);
+                    }
+                }
+                more = last < latest;
+            }
+        }
+    }
+
+    private void changesUnavailable()
+    {
+        if (synchronised)
+        {
+            synchronised = false;
+            for (AssetChangeListener listener : listeners)
+            {
+                listener.changesUnavailable();
+            }
+        }
+    }
+}
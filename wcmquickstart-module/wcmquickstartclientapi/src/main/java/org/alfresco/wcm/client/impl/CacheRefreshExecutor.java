@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.wcm.client.WebSite;
+import org.alfresco.wcm.client.WebSiteService;
+import org.alfresco.wcm.client.util.CmisSessionHelper;
+import org.apache.chemistry.opencmis.client.api.Session;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A small, bounded pool of threads on which the caching factories refresh stale entries while
+ * request threads carry on serving the stale copies.
+ * <p>
+ * The CMIS session and website bound to the submitting thread are bound to the refresh thread for
+ * the duration of the task, so that the delegate factories behave just as they would on the request
+ * thread. If the pool is saturated the task is not run: the stale entry will simply be refreshed on
+ * a later request.
+ */
+public class CacheRefreshExecutor
+{
+    private final static Log log = LogFactory.getLog(CacheRefreshExecutor.class);
+
+    private int threadCount = 2;
+    private int queueSize = 200;
+    private ThreadPoolExecutor executor;
+
+    public void setThreadCount(int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    public void setQueueSize(int queueSize)
+    {
+        this.queueSize = queueSize;
+    }
+
+    public void init()
+    {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "WQS cache refresh " + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public void shutdown()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the supplied refresh task in the background
+     *
+     * @param task the refresh task
+     * @return <tt>true</tt> if the task has been accepted, <tt>false</tt> if it has been rejected because
+     *         the pool is saturated or shut down
+     */
+    public boolean execute(final Runnable task)
+    {
+        if (executor == null)
+        {
+            return false;
+        }
+        final Session session = CmisSessionHelper.getSession();
+        final WebSite webSite = WebSiteService.getThreadWebSite();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    CmisSessionHelper.setSession(session);
+                    WebSiteService.setThreadWebSite(webSite);
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Exception ex)
+                    {
+                        log.warn("Background cache refresh failed", ex);
+                    }
+                    finally
+                    {
+                        CmisSessionHelper.setSession(null);
+                        WebSiteService.setThreadWebSite(null);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Background cache refresh rejected: " + ex.getMessage());
+            }
+            return false;
+        }
+    }
+}
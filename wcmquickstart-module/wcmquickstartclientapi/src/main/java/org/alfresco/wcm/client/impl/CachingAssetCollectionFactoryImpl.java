@@ -19,6 +19,7 @@ package org.alfresco.wcm.client.impl;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.alfresco.wcm.client.Asset;
 import org.alfresco.wcm.client.AssetCollection;
@@ -29,9 +30,19 @@ import org.alfresco.wcm.client.Resource;
 import org.alfresco.wcm.client.WebSite;
 import org.alfresco.wcm.client.WebSiteService;
 import org.alfresco.wcm.client.impl.cache.SimpleCache;
+import org.alfresco.wcm.client.impl.cache.SingleFlight;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+/**
+ * A proxying implementation of the {@link AssetCollectionFactory} interface that caches loaded
+ * asset collections.
+ * <p>
+ * Concurrent requests for a collection that isn't cached share a single load from the repository.
+ * If a {@link CacheRefreshExecutor} is supplied then, outside editorial sites, a collection that is due
+ * to be checked is served from the cache while a background thread checks it, for up to
+ * <code>staleWhileRevalidateSeconds</code> beyond its minimum cache time.
+ */
 public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
 {
     private static final Log log = LogFactory.getLog(CachingAssetCollectionFactoryImpl.class);
@@ -40,14 +51,19 @@ public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
     private SimpleCache<String, CacheEntry> cache;
     private long minimumCacheMilliseconds = 30000L;
     private AssetFactory assetFactory;
+    private final SingleFlight<String, AssetCollection> collectionLoads = new SingleFlight<String, AssetCollection>();
+    private CacheRefreshExecutor cacheRefreshExecutor;
+    private long staleWhileRevalidateMilliseconds = 0L;
 
-    public AssetCollection getCollection(String sectionId, String collectionName, int resultsToSkip, int maxResults)
+    public AssetCollection getCollection(final String sectionId, final String collectionName, final int resultsToSkip,
+            final int maxResults)
     {
         AssetCollection result = null;
-        String cacheKey = sectionId + "/" + collectionName;
+        final String cacheKey = sectionId + "/" + collectionName;
         CacheEntry cacheEntry = cache.get(cacheKey);
         long now = System.currentTimeMillis();
-        long earliestPermittedCacheTime = now - getMinimumCacheMilliseconds();
+        long minimumCacheMilliseconds = getMinimumCacheMilliseconds();
+        long earliestPermittedCacheTime = now - minimumCacheMilliseconds;
         
         AssetCollectionImpl cachedAssetCollection;
         if (cacheEntry == null)
@@ -56,12 +72,15 @@ public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
             {
                 log.debug("Failed to find asset collection in cache: " + cacheKey);
             }
-            result = delegate.getCollection(sectionId, collectionName, resultsToSkip, maxResults);
-            cachedAssetCollection = copyAssetCollection(result);
-            if (cachedAssetCollection != null)
+            //Concurrent misses for the same page of the same collection share a single load
+            result = collectionLoads.load(cacheKey + "/" + resultsToSkip + "/" + maxResults, new Callable<AssetCollection>()
             {
-                cache.put(cacheKey, new CacheEntry(cachedAssetCollection));
-            }
+                @Override
+                public AssetCollection call() throws Exception
+                {
+                    return loadCollection(sectionId, collectionName, resultsToSkip, maxResults, cacheKey);
+                }
+            });
         }
         else
         {
@@ -72,73 +91,38 @@ public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
             }
             if (cacheEntry.cacheTime < earliestPermittedCacheTime)
             {
-                if (log.isDebugEnabled())
-                {
-                    log.debug("Checking whether we need to reload asset collection");
-                }
+                boolean staleServable = isStaleServable(cacheEntry, now, minimumCacheMilliseconds);
+                
                 //Set the cache time to now - other threads requesting this asset collection won't also
                 //try to reload it
                 cacheEntry.cacheTime = now;
 
-                //We must check whether the asset collection has changed since the version that we have cached
-                Date nextRefreshTime = cachedAssetCollection.getNextRefreshTime(); 
                 //We only take any notice of the asset collection's refresh time if the minimum cache time is not zero. 
                 //If it is zero then we assume that we're looking at a very volatile website so we will go and
                 //check the asset collection's modified time instead
-                if ((earliestPermittedCacheTime != now) && (nextRefreshTime != null))
+                final boolean useRefreshTime = (earliestPermittedCacheTime != now);
+                final AssetCollectionImpl staleAssetCollection = cachedAssetCollection;
+                final long checkTime = now;
+                boolean refreshingInBackground = staleServable && cacheRefreshExecutor.execute(new Runnable()
                 {
-                    long nextRefreshTimeMillis = nextRefreshTime.getTime(); 
-                    if (log.isDebugEnabled())
+                    @Override
+                    public void run()
                     {
-                        log.debug("Found asset collection has a refresh time of " + nextRefreshTimeMillis);
+                        reloadIfChanged(sectionId, collectionName, resultsToSkip, maxResults, cacheKey,
+                                staleAssetCollection, checkTime, useRefreshTime);
                     }
-                    //We've been told when this asset collection is going to be refreshed.
-                    //If we haven't got there yet then we don't need to reload, but if we have then
-                    //we do
-                    if (now > nextRefreshTimeMillis)
+                });
+                if (refreshingInBackground)
+                {
+                    if (log.isDebugEnabled())
                     {
-                        if (log.isDebugEnabled())
-                        {
-                            log.debug("Reloading asset collection " + cacheKey);
-                        }
-                        result = delegate.getCollection(sectionId, collectionName, resultsToSkip, maxResults);
-                        cachedAssetCollection = copyAssetCollection(result);
-                        if (cachedAssetCollection != null)
-                        {
-                            cache.put(cacheKey, new CacheEntry(cachedAssetCollection));
-                        }
+                        log.debug("Serving stale asset collection while it is checked in the background: " + cacheKey);
                     }
                 }
                 else
                 {
-                    if (log.isDebugEnabled())
-                    {
-                        log.debug("Found asset collection has no refresh time set. Checking modified time.");
-                    }
-
-                    //We haven't been told when a refresh is planned so we need to check the modified
-                    //time of the asset collection
-                    Date currentModifiedTime = delegate.getModifiedTimeOfAssetCollection(cachedAssetCollection.getId());
-                    Date cachedModifiedTime = (Date)cachedAssetCollection.getProperty(Resource.PROPERTY_MODIFIED_TIME);
-
-                    if (log.isDebugEnabled())
-                    {
-                        log.debug("Cached modified time == " + cachedModifiedTime.getTime() + 
-                                "; Current modified time == " + currentModifiedTime.getTime());
-                    }
-                    if (currentModifiedTime.after(cachedModifiedTime))
-                    {
-                        if (log.isDebugEnabled())
-                        {
-                            log.debug("Reloading asset collection " + cacheKey);
-                        }
-                        result = delegate.getCollection(sectionId, collectionName, resultsToSkip, maxResults);
-                        cachedAssetCollection = copyAssetCollection(result);
-                        if (cachedAssetCollection != null)
-                        {
-                            cache.put(cacheKey, new CacheEntry(cachedAssetCollection));
-                        }
-                    }
+                    result = reloadIfChanged(sectionId, collectionName, resultsToSkip, maxResults, cacheKey,
+                            cachedAssetCollection, now, useRefreshTime);
                 }
             }
             if (result == null)
@@ -174,6 +158,92 @@ public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
         return result;
     }
 
+    private AssetCollection loadCollection(String sectionId, String collectionName, int resultsToSkip, int maxResults,
+            String cacheKey)
+    {
+        AssetCollection result = delegate.getCollection(sectionId, collectionName, resultsToSkip, maxResults);
+        AssetCollectionImpl cachedAssetCollection = copyAssetCollection(result);
+        if (cachedAssetCollection != null)
+        {
+            cache.put(cacheKey, new CacheEntry(cachedAssetCollection));
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a cached asset collection needs to be reloaded and, if so, reload and recache it.
+     * 
+     * @param useRefreshTime true if the collection's refresh time is to be trusted (when it has one), false if
+     * its modified time should always be checked
+     * @return the reloaded asset collection, or null if the cached one is still current
+     */
+    private AssetCollection reloadIfChanged(String sectionId, String collectionName, int resultsToSkip, int maxResults,
+            String cacheKey, AssetCollectionImpl cachedAssetCollection, long now, boolean useRefreshTime)
+    {
+        AssetCollection result = null;
+        if (log.isDebugEnabled())
+        {
+            log.debug("Checking whether we need to reload asset collection");
+        }
+        //We must check whether the asset collection has changed since the version that we have cached
+        Date nextRefreshTime = cachedAssetCollection.getNextRefreshTime(); 
+        if (useRefreshTime && (nextRefreshTime != null))
+        {
+            long nextRefreshTimeMillis = nextRefreshTime.getTime(); 
+            if (log.isDebugEnabled())
+            {
+                log.debug("Found asset collection has a refresh time of " + nextRefreshTimeMillis);
+            }
+            //We've been told when this asset collection is going to be refreshed.
+            //If we haven't got there yet then we don't need to reload, but if we have then
+            //we do
+            if (now > nextRefreshTimeMillis)
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Reloading asset collection " + cacheKey);
+                }
+                result = loadCollection(sectionId, collectionName, resultsToSkip, maxResults, cacheKey);
+            }
+        }
+        else
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Found asset collection has no refresh time set. Checking modified time.");
+            }
+
+            //We haven't been told when a refresh is planned so we need to check the modified
+            //time of the asset collection
+            Date currentModifiedTime = delegate.getModifiedTimeOfAssetCollection(cachedAssetCollection.getId());
+            Date cachedModifiedTime = (Date)cachedAssetCollection.getProperty(Resource.PROPERTY_MODIFIED_TIME);
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("Cached modified time == " + cachedModifiedTime.getTime() + 
+                        "; Current modified time == " + currentModifiedTime.getTime());
+            }
+            if (currentModifiedTime.after(cachedModifiedTime))
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Reloading asset collection " + cacheKey);
+                }
+                result = loadCollection(sectionId, collectionName, resultsToSkip, maxResults, cacheKey);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Work out whether a cached asset collection that needs checking may be served as it is while it
+     * is checked in the background. This is never the case on editorial sites.
+     */
+    private boolean isStaleServable(CacheEntry cacheEntry, long now, long minimumCacheMilliseconds)
+    {
+        return cacheRefreshExecutor != null && minimumCacheMilliseconds > 0L && staleWhileRevalidateMilliseconds > 0L
+                && cacheEntry.cacheTime >= now - minimumCacheMilliseconds - staleWhileRevalidateMilliseconds;
+    }
     protected AssetCollectionImpl copyAssetCollection(AssetCollection objToCopy)
     {
         AssetCollectionImpl copy = null;
@@ -222,6 +292,20 @@ public class CachingAssetCollectionFactoryImpl implements AssetCollectionFactory
         this.assetFactory = assetFactory;
     }
 
+    public void setCacheRefreshExecutor(CacheRefreshExecutor cacheRefreshExecutor)
+    {
+        this.cacheRefreshExecutor = cacheRefreshExecutor;
+    }
+
+    /**
+     * @param seconds how long beyond its minimum cache time an asset collection may be served from the cache 
+     *          while it is checked in the background. Zero (the default) disables background checking.
+     */
+    public void setStaleWhileRevalidateSeconds(int seconds)
+    {
+        staleWhileRevalidateMilliseconds = seconds * 1000L;
+    }
+
 
     private static class CacheEntry
     {
@@ -25,6 +25,10 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.alfresco.wcm.client.Asset;
 import org.alfresco.wcm.client.AssetFactory;
@@ -34,26 +38,50 @@ import org.alfresco.wcm.client.Rendition;
 import org.alfresco.wcm.client.SearchResults;
 import org.alfresco.wcm.client.WebSite;
 import org.alfresco.wcm.client.WebSiteService;
+import org.alfresco.wcm.client.impl.cache.ContentCacheStore;
 import org.alfresco.wcm.client.impl.cache.SimpleCache;
+import org.alfresco.wcm.client.impl.cache.SingleFlight;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * A proxying implementation of the {@link AssetFactory} interface that caches
- * loaded assets
+ * loaded assets.
+ * <p>
+ * Cached assets are normally revalidated against their modified time in the repository once
+ * they have been cached for longer than the minimum cache time. When this factory is registered
+ * with an {@link AssetChangePoller} that is in step with the repository, assets on non-editorial
+ * sites are instead evicted as soon as the poller reports that they have changed, and aren't
+ * revalidated individually at all.
+ * <p>
+ * Concurrent requests for an asset that isn't cached share a single load from the repository.
+ * If a {@link CacheRefreshExecutor} is supplied then, outside editorial sites, an asset that is due
+ * to be revalidated is served from the cache while one background thread revalidates it, for up to
+ * <code>staleWhileRevalidateSeconds</code> beyond its minimum cache time. Assets that have to be revalidated
+ * one at a time may share their modified time query with other requests through a {@link ModifiedTimeBatcher}.
  * 
  * @author Brian
  * 
  */
-public class CachingAssetFactoryImpl implements AssetFactory
+public class CachingAssetFactoryImpl implements AssetFactory, AssetChangeListener
 {
     private static final Log log = LogFactory.getLog(CachingAssetFactoryImpl.class);
+    /** How long we remember that an asset has changed, to catch loads that were in progress at the time */
+    private static final long RECENT_CHANGE_RETENTION_MILLISECONDS = 300000L;
 
     private AssetFactory delegate;
     private SimpleCache<String, CacheEntry> cache;
     private long minimumCacheMilliseconds = 30000L;
     private boolean cacheContent = true;
     private boolean cacheRelationships = true;
+    private volatile long changeNotificationsValidFrom = Long.MAX_VALUE;
+    private final ConcurrentMap<String, Long> recentlyChangedAssets = new ConcurrentHashMap<String, Long>();
+    private final SingleFlight<String, CacheEntry> assetLoads = new SingleFlight<String, CacheEntry>();
+    private final SingleFlight<String, CacheEntry> revalidations = new SingleFlight<String, CacheEntry>();
+    private CacheRefreshExecutor cacheRefreshExecutor;
+    private long staleWhileRevalidateMilliseconds = 0L;
+    private ModifiedTimeBatcher modifiedTimeBatcher;
+    private ContentCacheStore contentCacheStore;
 
     public void setDelegate(AssetFactory delegate)
     {
@@ -80,6 +108,38 @@ public class CachingAssetFactoryImpl implements AssetFactory
         this.cacheRelationships = cacheRelationships;
     }
 
+    public void setCacheRefreshExecutor(CacheRefreshExecutor cacheRefreshExecutor)
+    {
+        this.cacheRefreshExecutor = cacheRefreshExecutor;
+    }
+
+    /**
+     * @param contentCacheStore if supplied, cached content and renditions are held in this store, keyed on the
+     *          modified time of their asset, rather than in temporary files
+     */
+    public void setContentCacheStore(ContentCacheStore contentCacheStore)
+    {
+        this.contentCacheStore = contentCacheStore;
+    }
+
+    /**
+     * @param modifiedTimeBatcher if supplied, the modified times of individually revalidated assets are
+     *          fetched through this, so that revalidations by concurrent requests share a query
+     */
+    public void setModifiedTimeBatcher(ModifiedTimeBatcher modifiedTimeBatcher)
+    {
+        this.modifiedTimeBatcher = modifiedTimeBatcher;
+    }
+
+    /**
+     * @param seconds how long beyond its minimum cache time an asset may be served from the cache while
+     *          it is revalidated in the background. Zero (the default) disables background revalidation.
+     */
+    public void setStaleWhileRevalidateSeconds(int seconds)
+    {
+        staleWhileRevalidateMilliseconds = seconds * 1000L;
+    }
+
     public SearchResults findByQuery(Query query)
     {
         return delegate.findByQuery(query);
@@ -88,32 +148,98 @@ public class CachingAssetFactoryImpl implements AssetFactory
     public Asset getAssetById(String id, boolean deferredLoad)
     {
         CacheEntry cacheEntry = loadCacheEntry(id, deferredLoad);
-        return cacheEntry.asset;
+        return cacheEntry == null ? null : cacheEntry.asset;
     }
 
-    private CacheEntry loadCacheEntry(String id, boolean deferredLoad)
+    private CacheEntry loadCacheEntry(final String id, final boolean deferredLoad)
     {
         CacheEntry cacheEntry = getCacheEntry(id);
         if (cacheEntry == null)
         {
             // We have not found the asset in the cache. Load it using our
-            // delegated factory and cache the result
-            if (log.isDebugEnabled())
+            // delegated factory and cache the result. If another thread is
+            // already loading it then we wait for that load rather than
+            // starting one of our own
+            cacheEntry = assetLoads.load(id, new Callable<CacheEntry>()
             {
-                log.debug("Missed cache for asset: " + id);
-            }
-            Asset asset = delegate.getAssetById(id, deferredLoad);
-            //Make sure that subsequent requests from this asset come through this asset factory
-            if (AssetImpl.class.isAssignableFrom(asset.getClass()))
-            {
-                ((AssetImpl)asset).setAssetFactory(this);
-            }
-            cacheEntry = new CacheEntry(asset);
-            cache.put(id, cacheEntry);
+                @Override
+                public CacheEntry call() throws Exception
+                {
+                    return loadAsset(id, deferredLoad);
+                }
+            });
         }
         return cacheEntry;
     }
 
+    private CacheEntry loadAsset(String id, boolean deferredLoad)
+    {
+        long loadStartTime = System.currentTimeMillis();
+        // Another thread may have finished loading this asset between our
+        // cache miss and the start of this load
+        CacheEntry cacheEntry = cache.get(id);
+        if (cacheEntry != null && !isRevalidationRequired(cacheEntry, loadStartTime, getMinimumCacheMilliseconds()))
+        {
+            return cacheEntry;
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Missed cache for asset: " + id);
+        }
+        Asset asset = delegate.getAssetById(id, deferredLoad);
+        if (asset == null)
+        {
+            return null;
+        }
+        //Make sure that subsequent requests from this asset come through this asset factory
+        if (AssetImpl.class.isAssignableFrom(asset.getClass()))
+        {
+            ((AssetImpl)asset).setAssetFactory(this);
+        }
+        return cacheAsset(id, asset, loadStartTime);
+    }
+
+    private CacheEntry cacheAsset(String id, Asset asset, long loadStartTime)
+    {
+        CacheEntry cacheEntry = new CacheEntry(asset);
+        // Treat the asset as cached from the moment we started loading it, since all we know is
+        // that it's no older than its state in the repo at that time
+        cacheEntry.cacheTime = loadStartTime;
+        Long changedAt = recentlyChangedAssets.get(id);
+        if (changedAt != null && changedAt >= loadStartTime)
+        {
+            // We've been told that this asset changed while we were loading it, so what we have
+            // may be out of date. Make sure that it is revalidated the next time it's requested
+            cacheEntry.cacheTime = 0L;
+        }
+        cache.put(id, cacheEntry);
+        return cacheEntry;
+    }
+
+    /**
+     * Work out whether a cached asset needs to have its modified time checked in the repo
+     */
+    private boolean isRevalidationRequired(CacheEntry cacheEntry, long now, long minimumCacheMilliseconds)
+    {
+        if (cacheEntry.cacheTime >= now - minimumCacheMilliseconds)
+        {
+            return false;
+        }
+        // Outside editorial sites we are told about every change to a web asset, so one loaded
+        // since we've been in step with the change notifications is still valid
+        return minimumCacheMilliseconds == 0L || cacheEntry.cacheTime < changeNotificationsValidFrom;
+    }
+
+    /**
+     * Work out whether a cached asset that needs revalidating may be served as it is while it
+     * is revalidated in the background. This is never the case on editorial sites.
+     */
+    private boolean isStaleServable(CacheEntry cacheEntry, long now, long minimumCacheMilliseconds)
+    {
+        return cacheRefreshExecutor != null && minimumCacheMilliseconds > 0L && staleWhileRevalidateMilliseconds > 0L
+                && cacheEntry.cacheTime >= now - minimumCacheMilliseconds - staleWhileRevalidateMilliseconds;
+    }
+
     private CacheEntry getCacheEntry(String id)
     {
         if (log.isDebugEnabled())
@@ -121,7 +247,7 @@ public class CachingAssetFactoryImpl implements AssetFactory
             log.debug("Checking cache for asset: " + id);
         }
         long now = System.currentTimeMillis();
-        long refreshCutoffTime = now - getMinimumCacheMilliseconds();
+        long minimumCacheMilliseconds = getMinimumCacheMilliseconds();
         CacheEntry cacheEntry = cache.get(id);
         if (cacheEntry != null)
         {
@@ -130,30 +256,114 @@ public class CachingAssetFactoryImpl implements AssetFactory
             // longer than the minimum cache time then we'll check its modified
             // time in the repo
             // to ensure it hasn't become out of date
-            if (cacheEntry.cacheTime < refreshCutoffTime)
+            if (isRevalidationRequired(cacheEntry, now, minimumCacheMilliseconds))
+            {
+                if (isStaleServable(cacheEntry, now, minimumCacheMilliseconds) && 
+                        revalidateInBackground(Collections.singletonMap(id, cacheEntry)))
+                {
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Serving stale asset while it is revalidated: " + id);
+                    }
+                }
+                else
+                {
+                    cacheEntry = revalidate(id, cacheEntry);
+                }
+            }
+        }
+        return cacheEntry;
+    }
+
+    /**
+     * Check the modified time of a cached asset in the repo. Concurrent checks of the same asset
+     * are coalesced into one.
+     * 
+     * @return the supplied cache entry if it's still valid, or null if it has been flushed from the cache
+     */
+    private CacheEntry revalidate(final String id, final CacheEntry cacheEntry)
+    {
+        return revalidations.load(id, new Callable<CacheEntry>()
+        {
+            @Override
+            public CacheEntry call() throws Exception
             {
+                long now = System.currentTimeMillis();
                 Asset asset = cacheEntry.asset;
-                Date currentModifiedTime = delegate.getModifiedTimeOfAsset(id);
+                Date currentModifiedTime = modifiedTimeBatcher == null ? delegate.getModifiedTimeOfAsset(id)
+                        : modifiedTimeBatcher.getModifiedTimeOfAsset(id);
                 Date cachedModifiedTime = (Date) asset.getProperty(Asset.PROPERTY_MODIFIED_TIME);
-                if (currentModifiedTime.after(cachedModifiedTime))
+                if (currentModifiedTime == null || currentModifiedTime.after(cachedModifiedTime))
                 {
-                    // This asset has been updated in the repo, so flush this
+                    // This asset has been updated or removed in the repo, so flush this
                     // asset from the cache and
                     // forget we ever found it there...
                     cache.remove(id);
-                    cacheEntry = null;
+                    return null;
                 }
-                else
+                // The asset has not been modified in the repo since we
+                // cached it, so we don't
+                // have to check it again until the minimum cache time has
+                // expired again...
+                cacheEntry.cacheTime = now;
+                return cacheEntry;
+            }
+        });
+    }
+
+    /**
+     * Revalidate the supplied cache entries on a background thread, reloading any that have changed.
+     * Entries that are already being refreshed in the background are left alone.
+     * 
+     * @return true if the entries will be revalidated in the background, false if the caller must revalidate them
+     */
+    private boolean revalidateInBackground(Map<String, CacheEntry> staleEntries)
+    {
+        final Map<String, CacheEntry> entriesToRefresh = new TreeMap<String, CacheEntry>();
+        for (Map.Entry<String, CacheEntry> staleEntry : staleEntries.entrySet())
+        {
+            if (staleEntry.getValue().refreshing.compareAndSet(false, true))
+            {
+                entriesToRefresh.put(staleEntry.getKey(), staleEntry.getValue());
+            }
+        }
+        if (entriesToRefresh.isEmpty())
+        {
+            return true;
+        }
+        boolean accepted = cacheRefreshExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
                 {
-                    // The asset has not been modified in the repo since we
-                    // cached it, so we don't
-                    // have to check it again until the minimum cache time has
-                    // expired again...
-                    cacheEntry.cacheTime = now;
+                    Map<String, Asset> assetsToCheck = new TreeMap<String, Asset>();
+                    for (Map.Entry<String, CacheEntry> entry : entriesToRefresh.entrySet())
+                    {
+                        assetsToCheck.put(entry.getKey(), entry.getValue().asset);
+                    }
+                    List<String> idsToLoad = new ArrayList<String>();
+                    revalidateAssets(assetsToCheck, System.currentTimeMillis(), new TreeMap<String, Asset>(), idsToLoad);
+                    loadAssets(idsToLoad, false, new TreeMap<String, Asset>());
+                }
+                finally
+                {
+                    for (CacheEntry entry : entriesToRefresh.values())
+                    {
+                        entry.refreshing.set(false);
+                    }
                 }
             }
+        });
+        if (!accepted)
+        {
+            for (CacheEntry entry : entriesToRefresh.values())
+            {
+                entry.refreshing.set(false);
+            }
         }
-        return cacheEntry;
+        return accepted;
     }
 
     public Asset getAssetById(String id)
@@ -165,10 +375,11 @@ public class CachingAssetFactoryImpl implements AssetFactory
     {
         List<String> idsToLoad = new ArrayList<String>(ids.size());
         Map<String, Asset> assetsToCheck = new TreeMap<String, Asset>();
+        Map<String, CacheEntry> staleEntries = new TreeMap<String, CacheEntry>();
         Map<String, Asset> foundAssets = new TreeMap<String, Asset>();
 
         long now = System.currentTimeMillis();
-        long refreshCutoffTime = now - getMinimumCacheMilliseconds();
+        long minimumCacheMilliseconds = getMinimumCacheMilliseconds();
 
         for (String id : ids)
         {
@@ -182,11 +393,20 @@ public class CachingAssetFactoryImpl implements AssetFactory
                 // modified time in the repo.
                 // This is the case if we last checked it longer ago than the
                 // "minimumCacheMilliseconds"
-                if (cacheEntry.cacheTime < refreshCutoffTime)
+                if (isRevalidationRequired(cacheEntry, now, minimumCacheMilliseconds))
                 {
-                    // Yes, we need to check this one. Record it in our
-                    // collection of assets to check
-                    assetsToCheck.put(id, cacheEntry.asset);
+                    if (isStaleServable(cacheEntry, now, minimumCacheMilliseconds))
+                    {
+                        // We can serve this one as it is, and check it in the background
+                        staleEntries.put(id, cacheEntry);
+                        foundAssets.put(id, cacheEntry.asset);
+                    }
+                    else
+                    {
+                        // Yes, we need to check this one. Record it in our
+                        // collection of assets to check
+                        assetsToCheck.put(id, cacheEntry.asset);
+                    }
                 }
                 else
                 {
@@ -200,48 +420,110 @@ public class CachingAssetFactoryImpl implements AssetFactory
             }
         }
 
+        if (!staleEntries.isEmpty() && !revalidateInBackground(staleEntries))
+        {
+            // The background refresh is saturated, so check these ones now instead
+            for (Map.Entry<String, CacheEntry> staleEntry : staleEntries.entrySet())
+            {
+                foundAssets.remove(staleEntry.getKey());
+                assetsToCheck.put(staleEntry.getKey(), staleEntry.getValue().asset);
+            }
+        }
+
         // Check the modified time of those assets found in the cache
         if (!assetsToCheck.isEmpty())
         {
-            // Get the modified times from the repo for the assets we need to
-            // check
-            Map<String, Date> currentModifiedTimes = delegate.getModifiedTimesOfAssets(assetsToCheck.keySet());
-            for (Map.Entry<String, Date> currentAssetModifiedTime : currentModifiedTimes.entrySet())
+            revalidateAssets(assetsToCheck, now, foundAssets, idsToLoad);
+        }
+
+        // Load any that we haven't found in the cache (or that have been
+        // modified since being cached)
+        if (!idsToLoad.isEmpty())
+        {
+            loadAssets(idsToLoad, deferredLoad, foundAssets);
+        }
+
+        // Try to retain the correct order as given to us in the originally
+        // supplied collection of ids...
+        List<Asset> finalResults = new ArrayList<Asset>(foundAssets.size());
+        for (String id : ids)
+        {
+            Asset asset = foundAssets.get(id);
+            if (asset != null)
             {
-                String assetId = currentAssetModifiedTime.getKey();
-                Asset cachedAsset = assetsToCheck.get(assetId);
-                Date currentModifiedTime = currentAssetModifiedTime.getValue();
-                Date cachedModifiedTime = (Date) cachedAsset.getProperty(Asset.PROPERTY_MODIFIED_TIME);
-                if (currentModifiedTime.after(cachedModifiedTime))
-                {
-                    // This one has been modified since we cached it. Remove it
-                    // from our cache and add it
-                    // to our list of assets to load
-                    cache.remove(assetId);
-                    idsToLoad.add(assetId);
-                }
-                else
+                finalResults.add(asset);
+            }
+        }
+
+        return finalResults;
+    }
+
+    /**
+     * Check the modified times of the supplied cached assets in the repo with a single query.
+     * Those that are unchanged are added to <code>foundAssets</code>, and the ids of those that
+     * have changed are flushed from the cache and added to <code>idsToLoad</code>.
+     */
+    private void revalidateAssets(Map<String, Asset> assetsToCheck, long now, Map<String, Asset> foundAssets,
+            List<String> idsToLoad)
+    {
+        // Get the modified times from the repo for the assets we need to
+        // check
+        Map<String, Date> currentModifiedTimes = delegate.getModifiedTimesOfAssets(assetsToCheck.keySet());
+        for (Map.Entry<String, Date> currentAssetModifiedTime : currentModifiedTimes.entrySet())
+        {
+            String assetId = currentAssetModifiedTime.getKey();
+            Asset cachedAsset = assetsToCheck.get(assetId);
+            Date currentModifiedTime = currentAssetModifiedTime.getValue();
+            Date cachedModifiedTime = (Date) cachedAsset.getProperty(Asset.PROPERTY_MODIFIED_TIME);
+            if (currentModifiedTime.after(cachedModifiedTime))
+            {
+                // This one has been modified since we cached it. Remove it
+                // from our cache and add it
+                // to our list of assets to load
+                cache.remove(assetId);
+                idsToLoad.add(assetId);
+            }
+            else
+            {
+                // This one hasn't been modified since we cached it, so we
+                // can use the cached one.
+                foundAssets.put(assetId, cachedAsset);
+                CacheEntry cachedEntry = cache.get(assetId);
+                if (cachedEntry != null)
                 {
-                    // This one hasn't been modified since we cached it, so we
-                    // can use the cached one.
-                    foundAssets.put(assetId, cachedAsset);
-                    CacheEntry cachedEntry = cache.get(assetId);
-                    if (cachedEntry != null)
-                    {
-                        // Reset the cache time on the cached asset - we don't
-                        // need to check it again until
-                        // the minimum cache time expires on it again
-                        cachedEntry.cacheTime = now;
-                    }
+                    // Reset the cache time on the cached asset - we don't
+                    // need to check it again until
+                    // the minimum cache time expires on it again
+                    cachedEntry.cacheTime = now;
                 }
             }
         }
+    }
 
-        // Load any that we haven't found in the cache (or that have been
-        // modified since being cached)
-        if (!idsToLoad.isEmpty())
+    /**
+     * Load the specified assets from the repo, cache them, and add them to <code>foundAssets</code>. 
+     * Assets that are already being loaded by another thread are waited for rather than loaded again.
+     */
+    private void loadAssets(List<String> idsToLoad, final boolean deferredLoad, Map<String, Asset> foundAssets)
+    {
+        List<String> idsLoadingElsewhere = new ArrayList<String>();
+        List<String> idsToLoadHere = new ArrayList<String>(idsToLoad.size());
+        for (String id : idsToLoad)
         {
-            List<Asset> assets = delegate.getAssetsById(idsToLoad, deferredLoad);
+            if (assetLoads.isLoading(id))
+            {
+                idsLoadingElsewhere.add(id);
+            }
+            else
+            {
+                idsToLoadHere.add(id);
+            }
+        }
+
+        if (!idsToLoadHere.isEmpty())
+        {
+            long loadStartTime = System.currentTimeMillis();
+            List<Asset> assets = delegate.getAssetsById(idsToLoadHere, deferredLoad);
             for (Asset asset : assets)
             {
                 //Make sure that subsequent requests from this asset come through this asset factory
@@ -250,23 +532,25 @@ public class CachingAssetFactoryImpl implements AssetFactory
                     ((AssetImpl)asset).setAssetFactory(this);
                 }
                 foundAssets.put(asset.getId(), asset);
-                cache.put(asset.getId(), new CacheEntry(asset));
+                cacheAsset(asset.getId(), asset, loadStartTime);
             }
         }
 
-        // Try to retain the correct order as given to us in the originally
-        // supplied collection of ids...
-        List<Asset> finalResults = new ArrayList<Asset>(foundAssets.size());
-        for (String id : ids)
+        for (final String id : idsLoadingElsewhere)
         {
-            Asset asset = foundAssets.get(id);
-            if (asset != null)
+            CacheEntry cacheEntry = assetLoads.load(id, new Callable<CacheEntry>()
             {
-                finalResults.add(asset);
+                @Override
+                public CacheEntry call() throws Exception
+                {
+                    return loadAsset(id, deferredLoad);
+                }
+            });
+            if (cacheEntry != null)
+            {
+                foundAssets.put(id, cacheEntry.asset);
             }
         }
-
-        return finalResults;
     }
 
     public List<Asset> getAssetsById(Collection<String> ids)
@@ -276,6 +560,10 @@ public class CachingAssetFactoryImpl implements AssetFactory
 
     public Date getModifiedTimeOfAsset(String assetId)
     {
+        if (modifiedTimeBatcher != null)
+        {
+            return modifiedTimeBatcher.getModifiedTimeOfAsset(assetId);
+        }
         return delegate.getModifiedTimeOfAsset(assetId);
     }
 
@@ -291,11 +579,11 @@ public class CachingAssetFactoryImpl implements AssetFactory
             log.debug("Checking cache for renditions: " + assetId);
         }
         CacheEntry cacheEntry = loadCacheEntry(assetId, false);
-        if (cacheEntry.renditions == null)
+        if (!isAvailable(cacheEntry.renditions))
         {
             synchronized (cacheEntry.mutex)
             {
-                if (cacheEntry.renditions == null)
+                if (!isAvailable(cacheEntry.renditions))
                 {
                     if (log.isDebugEnabled())
                     {
@@ -307,7 +595,8 @@ public class CachingAssetFactoryImpl implements AssetFactory
                     {
                         try
                         {
-                            returnRenditions.put(entry.getKey(), new CachingRenditionImpl(entry.getValue()));
+                            returnRenditions.put(entry.getKey(), cacheRendition(cacheEntry.asset, entry.getKey(),
+                                    entry.getValue()));
                         }
                         catch(IOException ex)
                         {
@@ -321,6 +610,63 @@ public class CachingAssetFactoryImpl implements AssetFactory
         return cacheEntry.renditions;
     }
 
+    /**
+     * @return false if the supplied renditions haven't been cached, or if the copy of any of them has been
+     *         evicted from the content cache store
+     */
+    private boolean isAvailable(Map<String, Rendition> renditions)
+    {
+        if (renditions == null)
+        {
+            return false;
+        }
+        for (Rendition rendition : renditions.values())
+        {
+            if (!((CachingRenditionImpl) rendition).isAvailable())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private CachingRenditionImpl cacheRendition(Asset asset, String renditionKind, Rendition rendition)
+            throws IOException
+    {
+        String key = contentCacheStore == null ? null : ContentCacheStore.buildKey(asset.getId(),
+                (Date) asset.getProperty(Asset.PROPERTY_MODIFIED_TIME), renditionKind);
+        if (key == null)
+        {
+            return new CachingRenditionImpl(rendition);
+        }
+        ContentCacheStore.Entry storeEntry = contentCacheStore.get(key);
+        if (storeEntry == null)
+        {
+            storeEntry = contentCacheStore.put(key, rendition);
+        }
+        return new CachingRenditionImpl(rendition, storeEntry, contentCacheStore);
+    }
+
+    /**
+     * Copy the content of the supplied asset to local disk. If the content is already in the content cache
+     * store (from before a restart, for example) then it isn't fetched from the repository at all.
+     */
+    private CachingContentStreamImpl cacheContentStream(Asset asset) throws IOException
+    {
+        String key = contentCacheStore == null ? null : ContentCacheStore.buildKey(asset.getId(),
+                (Date) asset.getProperty(Asset.PROPERTY_MODIFIED_TIME), null);
+        if (key == null)
+        {
+            return new CachingContentStreamImpl(delegate.getContentStream(asset.getId()));
+        }
+        ContentCacheStore.Entry storeEntry = contentCacheStore.get(key);
+        if (storeEntry == null)
+        {
+            storeEntry = contentCacheStore.put(key, delegate.getContentStream(asset.getId()));
+        }
+        return new CachingContentStreamImpl(storeEntry, contentCacheStore);
+    }
+
     public Asset getSectionAsset(String sectionId, String assetName, boolean wildcardsAllowedInName)
     {
         return delegate.getSectionAsset(sectionId, assetName, wildcardsAllowedInName);
@@ -393,27 +739,33 @@ public class CachingAssetFactoryImpl implements AssetFactory
                 log.debug("Checking cache for content stream: " + assetId);
             }
             CacheEntry cacheEntry = loadCacheEntry(assetId, false);
-            if (cacheEntry.contentStream == null)
+            CachingContentStreamImpl cachedStream = cacheEntry.contentStream;
+            if (cachedStream == null || !cachedStream.isAvailable())
             {
                 synchronized (cacheEntry.mutex)
                 {
-                    if (cacheEntry.contentStream == null)
+                    cachedStream = cacheEntry.contentStream;
+                    if (cachedStream == null || !cachedStream.isAvailable())
                     {
                         if (log.isDebugEnabled())
                         {
                             log.debug("Missed cache for content stream: " + assetId);
                         }
-                        contentStream = delegate.getContentStream(assetId);
                         try
                         {
-                            cacheEntry.contentStream = new CachingContentStreamImpl(contentStream);
+                            cacheEntry.contentStream = cacheContentStream(cacheEntry.asset);
                             contentStream = cacheEntry.contentStream;
                         }
                         catch (Exception ex)
                         {
                             log.warn("Failed to create cached content stream for asset " + assetId, ex);
+                            contentStream = delegate.getContentStream(assetId);
                         }
                     }
+                    else
+                    {
+                        contentStream = cachedStream;
+                    }
                 }
             }
             else
@@ -422,7 +774,7 @@ public class CachingAssetFactoryImpl implements AssetFactory
                 {
                     log.debug("Hit cache for content stream: " + assetId);
                 }
-                contentStream = cacheEntry.contentStream;
+                contentStream = cachedStream;
             }
         }
         else
@@ -432,6 +784,45 @@ public class CachingAssetFactoryImpl implements AssetFactory
         return contentStream;
     }
 
+    @Override
+    public void assetsChanged(Collection<String> assetIds)
+    {
+        long now = System.currentTimeMillis();
+        for (String assetId : assetIds)
+        {
+            recentlyChangedAssets.put(assetId, now);
+            cache.remove(assetId);
+        }
+        long retainAfter = now - RECENT_CHANGE_RETENTION_MILLISECONDS;
+        for (Map.Entry<String, Long> recentChange : recentlyChangedAssets.entrySet())
+        {
+            if (recentChange.getValue() < retainAfter)
+            {
+                recentlyChangedAssets.remove(recentChange.getKey(), recentChange.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void changesSynchronised(long validFrom)
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Asset change notifications are valid from " + validFrom);
+        }
+        changeNotificationsValidFrom = validFrom;
+    }
+
+    @Override
+    public void changesUnavailable()
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Asset change notifications are unavailable. Reverting to checking modified times.");
+        }
+        changeNotificationsValidFrom = Long.MAX_VALUE;
+    }
+
     private static class CacheEntry
     {
         public long cacheTime;
@@ -440,6 +831,7 @@ public class CachingAssetFactoryImpl implements AssetFactory
         public volatile Map<String, Rendition> renditions;
         public volatile Map<String,List<String>> sourceRelationships;
         public final Object mutex = new Object();
+        public final AtomicBoolean refreshing = new AtomicBoolean(false);
 
         public CacheEntry(Asset asset)
         {
@@ -26,12 +26,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.alfresco.wcm.client.ContentStream;
+import org.alfresco.wcm.client.FileBackedContentStream;
+import org.alfresco.wcm.client.impl.cache.ContentCacheStore;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-public class CachingContentStreamImpl implements ContentStream
+/**
+ * A copy of a content stream held on the local disk. The copy is either held in a {@link ContentCacheStore},
+ * which manages its lifetime, or in a temporary file that is deleted when this object is garbage collected.
+ * Content too large for its content cache store is held in a temporary file too.
+ */
+public class CachingContentStreamImpl implements FileBackedContentStream
 {
     private static final Log log = LogFactory.getLog(CachingContentStreamImpl.class);
     private static final String SYSTEM_PROPERTY_TEMP_DIR = "java.io.tmpdir";
@@ -41,6 +52,9 @@ public class CachingContentStreamImpl implements ContentStream
     private final String mimeType;
     private final long length;
     private transient final File cacheFile;
+    private transient final ContentCacheStore store;
+    private transient final ContentCacheStore.Entry storeEntry;
+    private transient volatile String digest;
 
     public CachingContentStreamImpl(ContentStream contentStream) throws IOException
     {
@@ -55,6 +69,26 @@ public class CachingContentStreamImpl implements ContentStream
         os.flush();
         os.close();
         this.cacheFile = tempFile;
+        this.store = null;
+        this.storeEntry = null;
+    }
+
+    public CachingContentStreamImpl(ContentCacheStore.Entry storeEntry, ContentCacheStore store)
+    {
+        this.fileName = storeEntry.getFileName();
+        this.length = storeEntry.getLength();
+        this.mimeType = storeEntry.getMimeType();
+        this.cacheFile = storeEntry.getFile();
+        this.store = storeEntry.isStored() ? store : null;
+        this.storeEntry = this.store == null ? null : storeEntry;
+    }
+
+    /**
+     * @return <tt>true</tt> unless the copy of the content has been evicted from its content cache store
+     */
+    public boolean isAvailable()
+    {
+        return store == null || store.touch(storeEntry);
     }
 
     public static void setTempFolderName(String folderName)
@@ -116,14 +150,101 @@ public class CachingContentStreamImpl implements ContentStream
         return mimeType;
     }
 
+    public File getFile()
+    {
+        return cacheFile;
+    }
+
     @Override
-    public InputStream getStream()
+    public File retainFile(long milliseconds)
     {
+        // A temporary file is deleted as soon as this object is garbage collected, which we can't put off
+        if (store == null || !store.retain(storeEntry, milliseconds))
+        {
+            return null;
+        }
+        return cacheFile;
+    }
+
+    /**
+     * Open the file that holds the content. A file held in a content cache store is pinned while it is
+     * opened so that it can't be deleted in between: once open, it can be read to the end even if it is
+     * evicted.
+     */
+    private FileInputStream openFile() throws IOException
+    {
+        if (store == null)
+        {
+            return new FileInputStream(cacheFile);
+        }
+        if (!store.pin(storeEntry))
+        {
+            throw new FileNotFoundException("Content has been evicted from the content cache: " + cacheFile);
+        }
         try
         {
             return new FileInputStream(cacheFile);
         }
-        catch (FileNotFoundException e)
+        finally
+        {
+            store.release(storeEntry);
+        }
+    }
+
+    @Override
+    public FileChannel openChannel() throws IOException
+    {
+        return openFile().getChannel();
+    }
+
+    @Override
+    public String getDigest()
+    {
+        if (digest == null)
+        {
+            try
+            {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                InputStream is = new DigestInputStream(openFile(), md5);
+                try
+                {
+                    byte[] buffer = new byte[8192];
+                    while (is.read(buffer) != -1)
+                    {
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                StringBuilder hex = new StringBuilder(32);
+                for (byte b : md5.digest())
+                {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    hex.append(Character.forDigit(b & 0xF, 16));
+                }
+                digest = hex.toString();
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to compute the digest of cached content file " + cacheFile, e);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                log.warn("MD5 is not available", e);
+            }
+        }
+        return digest;
+    }
+
+    @Override
+    public InputStream getStream()
+    {
+        try
+        {
+            return openFile();
+        }
+        catch (IOException e)
         {
             log.warn("Failed to open input stream for cached content file", e);
             return null;
@@ -133,7 +254,7 @@ public class CachingContentStreamImpl implements ContentStream
     @Override
     public void output(OutputStream output) throws IOException
     {
-        InputStream is = new FileInputStream(cacheFile);
+        InputStream is = openFile();
         try
         {
             StreamUtils.output(is, output);
@@ -147,7 +268,7 @@ public class CachingContentStreamImpl implements ContentStream
     @Override
     public void write(Writer writer) throws IOException
     {
-        InputStream is = new FileInputStream(cacheFile);
+        InputStream is = openFile();
         try
         {
             StreamUtils.write(is, writer, "UTF-8");
@@ -161,7 +282,7 @@ public class CachingContentStreamImpl implements ContentStream
     @Override
     public void write(Writer writer, String encoding) throws IOException
     {
-        InputStream is = new FileInputStream(cacheFile);
+        InputStream is = openFile();
         try
         {
             StreamUtils.write(is, writer, encoding);
@@ -174,7 +295,8 @@ public class CachingContentStreamImpl implements ContentStream
 
     public void finalize()
     {
-        if (cacheFile != null)
+        // Files held in a content cache store are deleted by the store when they are evicted
+        if (cacheFile != null && store == null)
         {
             if (log.isDebugEnabled())
             {
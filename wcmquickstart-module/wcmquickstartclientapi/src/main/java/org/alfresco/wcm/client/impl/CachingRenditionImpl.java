@@ -20,6 +20,7 @@ package org.alfresco.wcm.client.impl;
 import java.io.IOException;
 
 import org.alfresco.wcm.client.Rendition;
+import org.alfresco.wcm.client.impl.cache.ContentCacheStore;
 
 public class CachingRenditionImpl extends CachingContentStreamImpl implements Rendition
 {
@@ -33,6 +34,13 @@ public class CachingRenditionImpl extends CachingContentStreamImpl implements Re
         this.width = rendition.getWidth();
     }
 
+    public CachingRenditionImpl(Rendition rendition, ContentCacheStore.Entry storeEntry, ContentCacheStore store)
+    {
+        super(storeEntry, store);
+        this.height = rendition.getHeight();
+        this.width = rendition.getWidth();
+    }
+
     @Override
     public long getHeight()
     {
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.alfresco.wcm.client.AssetFactory;
+import org.alfresco.wcm.client.impl.cache.CacheException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects requests for the modified times of single assets made by concurrent threads into batches,
+ * each of which is answered by one call to {@link AssetFactory#getModifiedTimesOfAssets(java.util.Collection)}.
+ * <p>
+ * The first thread to ask for a modified time opens a batch and waits for up to
+ * <code>batchWindowMilliseconds</code> (or until the batch holds <code>maxBatchSize</code> ids) for other
+ * threads to add their ids to it. It then runs the query on behalf of them all, using its own CMIS session,
+ * and the waiting threads pick their answers out of the result. There is no background thread involved.
+ * <p>
+ * A batch window of zero disables batching, so that each request is passed straight to the asset factory.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ModifiedTimeBatcher
+{
+    private static final Log log = LogFactory.getLog(ModifiedTimeBatcher.class);
+
+    private AssetFactory assetFactory;
+    private long batchWindowMilliseconds = 5L;
+    private int maxBatchSize = 100;
+
+    private final Object lock = new Object();
+    private Batch openBatch = null;
+
+    public void setAssetFactory(AssetFactory assetFactory)
+    {
+        this.assetFactory = assetFactory;
+    }
+
+    public void setBatchWindowMilliseconds(long batchWindowMilliseconds)
+    {
+        this.batchWindowMilliseconds = batchWindowMilliseconds;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param assetId the id of the asset
+     * @return the current modified time of the asset in the repository, or null if it no longer exists
+     */
+    public Date getModifiedTimeOfAsset(String assetId)
+    {
+        if (batchWindowMilliseconds <= 0L)
+        {
+            return assetFactory.getModifiedTimeOfAsset(assetId);
+        }
+
+        Batch batch;
+        boolean leader = false;
+        synchronized (lock)
+        {
+            if (openBatch == null)
+            {
+                openBatch = new Batch();
+                leader = true;
+            }
+            batch = openBatch;
+            batch.assetIds.add(assetId);
+            if (batch.assetIds.size() >= maxBatchSize)
+            {
+                // This batch is full. Close it and wake its leader
+                openBatch = null;
+                lock.notifyAll();
+            }
+        }
+
+        if (leader)
+        {
+            closeBatch(batch);
+            batch.run(assetFactory);
+        }
+        return batch.getModifiedTime(assetId);
+    }
+
+    /**
+     * Wait for the batch window to pass (or for the batch to be filled) and then stop any more ids being
+     * added to the batch
+     */
+    private void closeBatch(Batch batch)
+    {
+        long deadline = System.currentTimeMillis() + batchWindowMilliseconds;
+        synchronized (lock)
+        {
+            try
+            {
+                long remaining = batchWindowMilliseconds;
+                while (openBatch == batch && remaining > 0L)
+                {
+                    lock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Run the batch now rather than leave the other threads waiting
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                if (openBatch == batch)
+                {
+                    openBatch = null;
+                }
+            }
+        }
+    }
+
+    private static class Batch
+    {
+        private final Set<String> assetIds = new LinkedHashSet<String>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Map<String, Date> modifiedTimes = Collections.emptyMap();
+        private RuntimeException failure;
+
+        public void run(AssetFactory assetFactory)
+        {
+            try
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Fetching modified times of a batch of " + assetIds.size() + " assets");
+                }
+                modifiedTimes = assetFactory.getModifiedTimesOfAssets(assetIds);
+            }
+            catch (RuntimeException ex)
+            {
+                failure = ex;
+                throw ex;
+            }
+            catch (Error err)
+            {
+                failure = new CacheException("Failed to fetch modified times of assets " + assetIds, err);
+                throw err;
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        public Date getModifiedTime(String assetId)
+        {
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    done.await();
+                    break;
+                }
+                catch (InterruptedException ex)
+                {
+                    // The leader never waits for longer than the batch window plus one query, so
+                    // finish waiting and restore the interrupt afterwards
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return modifiedTimes.get(assetId);
+        }
+    }
+}
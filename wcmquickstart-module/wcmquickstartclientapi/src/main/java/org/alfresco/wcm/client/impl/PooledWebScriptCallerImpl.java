@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * A web script caller for heavily loaded web tiers. Where {@link WebScriptCallerImpl} leaves its connection
+ * manager at the HttpClient defaults of two connections per host, this gives it a configurable pool of
+ * kept-alive connections to the repository, with connect, read and pool wait timeouts, and asks for gzipped
+ * responses.
+ * <p>
+ * This class is thread-safe once initialised.
+ */
+public class PooledWebScriptCallerImpl extends WebScriptCallerImpl
+{
+    private int maxTotalConnections = 40;
+    private int maxConnectionsPerHost = 20;
+    private int connectTimeoutMilliseconds = 10000;
+    private int readTimeoutMilliseconds = 60000;
+    private long connectionWaitMilliseconds = 10000L;
+    private long idleConnectionTimeoutMilliseconds = 60000L;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+    private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+    public PooledWebScriptCallerImpl()
+    {
+        setCompressionEnabled(true);
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections)
+    {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+    {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeoutMilliseconds(int connectTimeoutMilliseconds)
+    {
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+    }
+
+    public void setReadTimeoutMilliseconds(int readTimeoutMilliseconds)
+    {
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+    }
+
+    /**
+     * @param connectionWaitMilliseconds the longest a call waits for a pooled connection to become free
+     */
+    public void setConnectionWaitMilliseconds(long connectionWaitMilliseconds)
+    {
+        this.connectionWaitMilliseconds = connectionWaitMilliseconds;
+    }
+
+    /**
+     * @param seconds how long a kept-alive connection may sit unused in the pool before it is closed
+     */
+    public void setIdleConnectionTimeoutSeconds(int seconds)
+    {
+        this.idleConnectionTimeoutMilliseconds = seconds * 1000L;
+    }
+
+    @Override
+    public void init()
+    {
+        super.init();
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setConnectionTimeout(connectTimeoutMilliseconds);
+        params.setSoTimeout(readTimeoutMilliseconds);
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+
+        HttpClient pooledHttpClient = new HttpClient(connectionManager);
+        pooledHttpClient.getParams().setConnectionManagerTimeout(connectionWaitMilliseconds);
+        setHttpClient(pooledHttpClient);
+
+        if (idleConnectionTimeoutMilliseconds > 0L)
+        {
+            idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+            idleConnectionTimeoutThread.setName("WQS web script idle connection closer");
+            idleConnectionTimeoutThread.addConnectionManager(connectionManager);
+            idleConnectionTimeoutThread.setConnectionTimeout(idleConnectionTimeoutMilliseconds);
+            idleConnectionTimeoutThread.setTimeoutInterval(Math.min(idleConnectionTimeoutMilliseconds, 10000L));
+            idleConnectionTimeoutThread.start();
+        }
+    }
+
+    public void shutdown()
+    {
+        if (idleConnectionTimeoutThread != null)
+        {
+            idleConnectionTimeoutThread.shutdown();
+        }
+        if (connectionManager != null)
+        {
+            connectionManager.shutdown();
+        }
+    }
+}
@@ -20,6 +20,8 @@ package org.alfresco.wcm.client.impl;
 import java.io.Serializable;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -52,6 +54,18 @@ public class SectionFactoryCmisImpl extends AbstractCachingSectionFactoryImpl
             + "join ws:ordered as o on o.cmis:objectId = f.cmis:objectId "
             + "join cm:tagscope as ts on ts.cmis:objectId = f.cmis:objectId "
             + "where (in_tree(f, {0}) or f.cmis:objectId = {1}) " + "order by ord";
+
+    private static final String QUERY_SECTION_VERSIONS = "select f.cmis:objectId, f.cmis:objectTypeId, f.cmis:parentId, "
+            + "f.cmis:lastModificationDate, o.ws:orderIndex as ord " + "from ws:section as f "
+            + "join ws:ordered as o on o.cmis:objectId = f.cmis:objectId "
+            + "where (in_tree(f, {0}) or f.cmis:objectId = {1})";
+
+    private static final String QUERY_SECTIONS_BY_ID = "select " + COLUMNS + " " + "from ws:section as f "
+            + "join cm:titled as t on t.cmis:objectId = f.cmis:objectId "
+            + "join cm:tagscope as ts on ts.cmis:objectId = f.cmis:objectId " + "where f.cmis:objectId in ({0})";
+
+    /** The most ids to put into the "in" clause of a single query, to keep the query within the server's limits */
+    private static final int MAX_IDS_PER_QUERY = 500;
     /*
      * private static final String QUERY_COLLECTION_FOLDERS =
      * "select f.cmis:objectId, f.cmis:parentId "+ "from cmis:folder as f " +
@@ -185,4 +199,63 @@ public class SectionFactoryCmisImpl extends AbstractCachingSectionFactoryImpl
         }
         return loadedSections;
     }
+
+    @Override
+    protected Map<String, SectionVersion> findSectionVersions(String topSectionId)
+    {
+        Session session = CmisSessionHelper.getSession();
+        Map<String, SectionVersion> versions = new TreeMap<String, SectionVersion>();
+
+        String query = MessageFormat.format(QUERY_SECTION_VERSIONS, SqlUtils.encloseSQLString(topSectionId),
+                SqlUtils.encloseSQLString(topSectionId));
+        log.debug("About to run CMIS query: " + query);
+        ItemIterable<QueryResult> results = session.query(query, false);
+        for (QueryResult result : results)
+        {
+            String objectTypeId = (String) result.getPropertyValueById(PropertyIds.OBJECT_TYPE_ID);
+            boolean webRoot = objectTypeId.equals("F:ws:webroot");
+            if (!webRoot && !objectTypeId.equals("F:ws:section"))
+                continue;
+
+            Object orderIndex = result.getPropertyValueByQueryName("ord");
+            versions.put((String) result.getPropertyValueById(PropertyIds.OBJECT_ID), new SectionVersion(
+                    webRoot ? null : (String) result.getPropertyValueById(PropertyIds.PARENT_ID), 
+                    SqlUtils.getDateProperty(result, PropertyIds.LAST_MODIFICATION_DATE),
+                    orderIndex instanceof Number ? ((Number) orderIndex).intValue() : 0));
+        }
+        return versions;
+    }
+
+    @Override
+    protected Map<String, Section> findSectionsById(Collection<String> sectionIds)
+    {
+        Session session = CmisSessionHelper.getSession();
+        Map<String, Section> loadedSections = new TreeMap<String, Section>();
+
+        Iterator<String> ids = sectionIds.iterator();
+        while (ids.hasNext())
+        {
+            StringBuilder idList = new StringBuilder();
+            for (int count = 0; count < MAX_IDS_PER_QUERY && ids.hasNext(); ++count)
+            {
+                if (idList.length() > 0)
+                {
+                    idList.append(',');
+                }
+                idList.append(SqlUtils.encloseSQLString(ids.next()));
+            }
+            String query = MessageFormat.format(QUERY_SECTIONS_BY_ID, idList.toString());
+            log.debug("About to run CMIS query: " + query);
+            ItemIterable<QueryResult> results = session.query(query, false);
+            for (QueryResult result : results)
+            {
+                SectionDetails sectionDetails = buildSection(result);
+                if (!sectionDetails.objectTypeId.equals("F:ws:webroot")
+                        && !sectionDetails.objectTypeId.equals("F:ws:section"))
+                    continue;
+                loadedSections.put(sectionDetails.section.getId(), sectionDetails.section);
+            }
+        }
+        return loadedSections;
+    }
 }
@@ -19,6 +19,8 @@ package org.alfresco.wcm.client.impl;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -146,4 +148,53 @@ public class SectionFactoryWebscriptImpl extends AbstractCachingSectionFactoryIm
         }
         return loadedSections;
     }
+
+    @Override
+    protected Map<String, SectionVersion> findSectionVersions(String topSectionId)
+    {
+        Map<String, SectionVersion> versions = new TreeMap<String, SectionVersion>();
+        List<WebscriptParam> params = localParamList.get();
+        params.add(new WebscriptParam("sectionId", topSectionId));
+        params.add(new WebscriptParam("includeChildren", "true"));
+        params.add(new WebscriptParam("modifiedTimeOnly", "true"));
+        WebSite currentSite = WebSiteService.getThreadWebSite();
+        if (currentSite != null)
+        {
+            params.add(new WebscriptParam("siteId", currentSite.getId()));
+        }
+        AssetDeserializerXmlImpl deserializer = new AssetDeserializerXmlImpl();
+        webscriptCaller.post("websection", deserializer, params);
+        for (TreeMap<String, Serializable> result : deserializer.getAssets())
+        {
+            Serializable orderIndex = result.get("ws:orderIndex");
+            String parentId = "ws:webroot".equals(result.get("type")) ? null : (String) result.get("ws:parentId");
+            versions.put((String) result.get("id"), new SectionVersion(parentId, (Date) result.get("cm:modified"),
+                    orderIndex instanceof Number ? ((Number) orderIndex).intValue() : 0));
+        }
+        return versions;
+    }
+
+    @Override
+    protected Map<String, Section> findSectionsById(Collection<String> sectionIds)
+    {
+        Map<String, Section> loadedSections = new TreeMap<String, Section>();
+        List<WebscriptParam> params = localParamList.get();
+        for (String sectionId : sectionIds)
+        {
+            params.add(new WebscriptParam("sectionId", sectionId));
+        }
+        WebSite currentSite = WebSiteService.getThreadWebSite();
+        if (currentSite != null)
+        {
+            params.add(new WebscriptParam("siteId", currentSite.getId()));
+        }
+        AssetDeserializerXmlImpl deserializer = new AssetDeserializerXmlImpl();
+        webscriptCaller.post("websection", deserializer, params);
+        for (TreeMap<String, Serializable> result : deserializer.getAssets())
+        {
+            SectionDetails sectionDetails = buildSection(result);
+            loadedSections.put(sectionDetails.section.getId(), sectionDetails.section);
+        }
+        return loadedSections;
+    }
 }
@@ -220,6 +220,26 @@ public class SectionImpl extends ResourceBaseImpl implements Section
         this.sectionsByName.put(section.getName(), section);
     }
 
+    /**
+     * Create a copy of this section that has no child sections, so that a section tree can be rebuilt
+     * around it without disturbing this one
+     * 
+     * @return SectionImpl
+     */
+    /* package */SectionImpl copyWithoutChildren()
+    {
+        SectionImpl copy = new SectionImpl();
+        copy.setProperties(getProperties());
+        copy.setTags(tags);
+        copy.setPrimarySectionId(getPrimarySectionId());
+        copy.setSectionFactory(getSectionFactory());
+        copy.setAssetFactory(getAssetFactory());
+        copy.setCollectionFactory(getCollectionFactory());
+        copy.setDictionaryService(dictionaryService);
+        copy.assetIdByAssetName = assetIdByAssetName;
+        return copy;
+    }
+
     /**
      * @see org.alfresco.wcm.client.Section#getCollectionFolderId()
      */
@@ -281,6 +301,11 @@ public class SectionImpl extends ResourceBaseImpl implements Section
     @Override
     public String getPath()
     {
+        String path = getSectionFactory().getSectionPath(getId());
+        if (path != null)
+        {
+            return path;
+        }
         StringBuilder sb = new StringBuilder("/");
         Section section = this;
         while (section.getContainingSection() != null)
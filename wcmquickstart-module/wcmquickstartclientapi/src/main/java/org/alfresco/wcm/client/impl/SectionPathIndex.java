@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.wcm.client.Section;
+
+/**
+ * An immutable index of one website's section tree, built once each time a tree is published to the
+ * section cache. It resolves paths to sections by walking a trie of section names, and holds the path
+ * of every section in the tree so that URLs don't have to be rebuilt by walking up through the
+ * section's ancestors.
+ * <p>
+ * Paths take the same form as {@link Section#getPath()}: "/" for the root section and "/news/global/"
+ * for a section below it.
+ * <p>
+ * This class is thread-safe.
+ */
+class SectionPathIndex
+{
+    private final Node root;
+    private final Map<String, String> pathsBySectionId;
+
+    /**
+     * @param rootSection the root section of the tree, or null for an empty index
+     */
+    SectionPathIndex(Section rootSection)
+    {
+        Map<String, String> paths = new HashMap<String, String>(64);
+        this.root = (rootSection == null) ? null : index(rootSection, "/", paths);
+        this.pathsBySectionId = Collections.unmodifiableMap(paths);
+    }
+
+    private static Node index(Section section, String path, Map<String, String> paths)
+    {
+        paths.put(section.getId(), path);
+        List<Section> children = section.getSections();
+        Map<String, Node> childNodes;
+        if (children.isEmpty())
+        {
+            childNodes = Collections.emptyMap();
+        }
+        else
+        {
+            childNodes = new HashMap<String, Node>(children.size() * 2);
+            for (Section child : children)
+            {
+                childNodes.put(child.getName(), index(child, path + child.getName() + "/", paths));
+            }
+        }
+        return new Node(section, childNodes);
+    }
+
+    /**
+     * @return the root section of the tree, or null if the index is empty
+     */
+    Section getRootSection()
+    {
+        return (root == null) ? null : root.section;
+    }
+
+    /**
+     * Find a section from the segments of its path. Empty segments are ignored.
+     *
+     * @param pathSegments the path, split into segments
+     * @return the section, or null if there is no section at the path
+     */
+    Section getSection(String[] pathSegments)
+    {
+        Node node = root;
+        for (int i = 0; node != null && i < pathSegments.length; ++i)
+        {
+            String segment = pathSegments[i];
+            if (segment.length() > 0)
+            {
+                node = node.children.get(segment);
+            }
+        }
+        return (node == null) ? null : node.section;
+    }
+
+    /**
+     * @param sectionId the id of a section
+     * @return the path of the section, or null if the section isn't in this tree
+     */
+    String getPath(String sectionId)
+    {
+        return pathsBySectionId.get(sectionId);
+    }
+
+    private static class Node
+    {
+        private final Section section;
+        private final Map<String, Node> children;
+
+        Node(Section section, Map<String, Node> children)
+        {
+            this.section = section;
+            this.children = children;
+        }
+    }
+}
@@ -25,11 +25,13 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
@@ -66,6 +68,12 @@ public class WebScriptCallerImpl implements WebScriptCaller
     
     private String username = null;
     private String password = null;;
+    private boolean compressionEnabled = false;
+
+    /** Guards logging in, so that only one thread at a time does it */
+    private final Object loginLock = new Object();
+    /** Incremented each time new credentials are set on the client */
+    private volatile int credentialsVersion = 0;
 
     public WebScriptCallerImpl()
     {
@@ -104,6 +112,14 @@ public class WebScriptCallerImpl implements WebScriptCaller
         this.password = password;
      }
 
+    /**
+     * @param compressionEnabled whether to ask the repository for gzipped responses
+     */
+    public void setCompressionEnabled(boolean compressionEnabled)
+    {
+        this.compressionEnabled = compressionEnabled;
+    }
+
     public void init()
     {
     }
@@ -120,8 +136,12 @@ public class WebScriptCallerImpl implements WebScriptCaller
         {
             credentials = new UsernamePasswordCredentials("", responseHandler.ticket);
         }
-        httpClient.getState().setCredentials(authScope, credentials);
-        httpClient.getParams().setAuthenticationPreemptive(true);
+        synchronized (loginLock)
+        {
+            httpClient.getState().setCredentials(authScope, credentials);
+            httpClient.getParams().setAuthenticationPreemptive(true);
+            credentialsVersion++;
+        }
         return responseHandler.ticket;
     }
     
@@ -165,21 +185,26 @@ public class WebScriptCallerImpl implements WebScriptCaller
         {
             startTime = System.currentTimeMillis();
         }
+        if (compressionEnabled)
+        {
+            httpMethod.setRequestHeader("Accept-Encoding", "gzip");
+        }
         try
         {
+            int usedCredentialsVersion = credentialsVersion;
             httpClient.executeMethod(httpMethod);
             
             if ((httpMethod.getStatusCode() == 401 || httpMethod.getStatusCode() == 403) && !ignoreUnauthorized)
             {
                 discardResponse(httpMethod);
                 
-                this.getTicket(username, password);
+                renewCredentials(usedCredentialsVersion);
                 httpClient.executeMethod(httpMethod);
             }
             
             if (httpMethod.getStatusCode() == 200)
             {
-                handler.handleResponse(httpMethod.getResponseBodyAsStream());
+                handler.handleResponse(getResponseStream(httpMethod));
             }
             else
             {
@@ -208,6 +233,37 @@ public class WebScriptCallerImpl implements WebScriptCaller
         }
     }
 
+    /**
+     * Log in again, unless another thread has already done so since the caller's request was rejected
+     * 
+     * @param rejectedCredentialsVersion the version of the credentials the caller's request was made with
+     */
+    private void renewCredentials(int rejectedCredentialsVersion)
+    {
+        synchronized (loginLock)
+        {
+            if (credentialsVersion == rejectedCredentialsVersion)
+            {
+                this.getTicket(username, password);
+            }
+            else if (log.isDebugEnabled())
+            {
+                log.debug("Retrying with credentials renewed by another thread");
+            }
+        }
+    }
+
+    private InputStream getResponseStream(HttpMethod httpMethod) throws IOException
+    {
+        InputStream responseStream = httpMethod.getResponseBodyAsStream();
+        Header contentEncoding = httpMethod.getResponseHeader("Content-Encoding");
+        if (responseStream != null && contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue()))
+        {
+            responseStream = new GZIPInputStream(responseStream);
+        }
+        return responseStream;
+    }
+
     void discardResponse(HttpMethod httpMethod) throws IOException
     {
         if (log.isDebugEnabled())
@@ -0,0 +1,692 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.alfresco.wcm.client.ContentStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A size-bounded store of cached content on the local disk.
+ * <p>
+ * Content is stored under a key made from the id of its asset, the modified time of the asset and
+ * (for renditions) the rendition kind, so a stored file never has to be invalidated: a changed asset
+ * simply has a different key, and the old content is evicted once it is the least recently used.
+ * <p>
+ * Each content file has a small metadata file beside it holding its key and content metadata. The
+ * metadata file is written before the content file is moved into place and is deleted as soon as the
+ * content is evicted, so the store can always be rebuilt from its directory: a restarted node - even
+ * one that crashed - picks up where it left off, in the order in which the content was stored.
+ * <p>
+ * The directory is locked while the store is open. Unless a directory is configured, each store uses the
+ * first unlocked directory named "alfresco-wqs/content-<i>n</i>" under the system temporary directory,
+ * so instances running on the same host don't share, or delete, each other's files.
+ * <p>
+ * A reader {@link #pin(Entry) pins} an entry while it opens its file, and a file that is to be opened
+ * later by something else is {@link #retain(Entry, long) retained} for a while. An evicted file is only
+ * deleted once it is no longer pinned or retained, and a file that can't be deleted (because it is still open, on some
+ * platforms) is retried later.
+ * <p>
+ * Content larger than the whole store is never stored, since it would only evict everything else. Its copy
+ * is handed back as an entry that the store doesn't hold, and the caller owns (and deletes) its file.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ContentCacheStore
+{
+    private static final Log log = LogFactory.getLog(ContentCacheStore.class);
+    private static final String SYSTEM_PROPERTY_TEMP_DIR = "java.io.tmpdir";
+    private static final String LOCK_FILE_NAME = "lock";
+    private static final String CONTENT_FILE_SUFFIX = ".bin";
+    private static final String METADATA_FILE_SUFFIX = ".meta";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int METADATA_VERSION = 1;
+    /** The most default directories tried before giving up */
+    private static final int MAX_DEFAULT_DIRECTORIES = 100;
+
+    private String directoryPath;
+    private long maxSizeBytes = 512L * 1024L * 1024L;
+
+    private File directory;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    /** The stored entries, least recently used first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    /** Evicted entries whose files haven't been deleted yet */
+    private final List<Entry> evictedEntries = new LinkedList<Entry>();
+    private long currentSizeBytes = 0L;
+
+    /**
+     * @param directoryPath the directory in which to store content. If not set, a directory named
+     *          "alfresco-wqs/content-<i>n</i>" under the system temporary directory is used.
+     */
+    public void setDirectory(String directoryPath)
+    {
+        this.directoryPath = directoryPath;
+    }
+
+    public void setMaxSizeMegabytes(long maxSizeMegabytes)
+    {
+        this.maxSizeBytes = maxSizeMegabytes * 1024L * 1024L;
+    }
+
+    public void init() throws IOException
+    {
+        if (directoryPath == null || directoryPath.trim().length() == 0)
+        {
+            String systemTempDirPath = System.getProperty(SYSTEM_PROPERTY_TEMP_DIR);
+            if (systemTempDirPath == null)
+            {
+                throw new IOException("System property not available: " + SYSTEM_PROPERTY_TEMP_DIR);
+            }
+            File parent = new File(systemTempDirPath, "alfresco-wqs");
+            for (int i = 0; directory == null; ++i)
+            {
+                if (i == MAX_DEFAULT_DIRECTORIES)
+                {
+                    throw new IOException("No unlocked content cache directory found in " + parent);
+                }
+                File candidate = new File(parent, "content-" + i);
+                if (lockDirectory(candidate))
+                {
+                    directory = candidate;
+                }
+            }
+        }
+        else
+        {
+            File candidate = new File(directoryPath.trim());
+            if (!lockDirectory(candidate))
+            {
+                throw new IOException("Content cache directory is in use by another instance: " + candidate);
+            }
+            directory = candidate;
+        }
+        synchronized (entries)
+        {
+            loadEntries();
+            evict();
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Content cache in " + directory + " holds " + entries.size() + " items, " + currentSizeBytes
+                    + " bytes");
+        }
+    }
+
+    /**
+     * Try to lock the specified directory for this store, creating it if necessary
+     *
+     * @return <tt>true</tt> if the directory has been locked, <tt>false</tt> if another store holds it
+     */
+    private boolean lockDirectory(File candidate) throws IOException
+    {
+        if (!candidate.exists() && !candidate.mkdirs())
+        {
+            throw new IOException("Failed to create content cache directory: " + candidate);
+        }
+        RandomAccessFile candidateLockFile = new RandomAccessFile(new File(candidate, LOCK_FILE_NAME), "rw");
+        FileLock candidateLock = null;
+        try
+        {
+            candidateLock = candidateLockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException ex)
+        {
+            // Held by another store in this JVM
+        }
+        finally
+        {
+            if (candidateLock == null)
+            {
+                candidateLockFile.close();
+            }
+        }
+        if (candidateLock == null)
+        {
+            return false;
+        }
+        lockFile = candidateLockFile;
+        lock = candidateLock;
+        return true;
+    }
+
+    public void shutdown()
+    {
+        synchronized (entries)
+        {
+            deleteEvictedFiles();
+            try
+            {
+                if (lock != null)
+                {
+                    lock.release();
+                }
+                if (lockFile != null)
+                {
+                    lockFile.close();
+                }
+            }
+            catch (IOException ex)
+            {
+                log.warn("Failed to unlock content cache directory " + directory, ex);
+            }
+            lock = null;
+            lockFile = null;
+        }
+    }
+
+    /**
+     * Build the key under which content is stored
+     *
+     * @param assetId the id of the asset
+     * @param modifiedTime the modified time of the asset
+     * @param renditionKind the kind of rendition, or null for the asset's own content
+     * @return the key, or null if the content can't be stored because its asset has no modified time
+     */
+    public static String buildKey(String assetId, Date modifiedTime, String renditionKind)
+    {
+        if (assetId == null || modifiedTime == null)
+        {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(assetId.length() + 32);
+        key.append(assetId).append('/').append(modifiedTime.getTime());
+        if (renditionKind != null)
+        {
+            key.append('/').append(renditionKind);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Find stored content, marking it as the most recently used
+     *
+     * @param key the key of the content
+     * @return the stored content, or null if it isn't in the store
+     */
+    public Entry get(String key)
+    {
+        synchronized (entries)
+        {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * @param entry previously stored content
+     * @return <tt>true</tt> if the content is still in the store, in which case it is marked as the most
+     *         recently used
+     */
+    public boolean touch(Entry entry)
+    {
+        synchronized (entries)
+        {
+            return entries.get(entry.key) == entry;
+        }
+    }
+
+    /**
+     * Stop the file of an entry from being deleted until it is {@link #release(Entry) released}, even if the
+     * entry is evicted in the meantime. Readers pin an entry while they open its file.
+     *
+     * @param entry previously stored content
+     * @return <tt>true</tt> if the entry has been pinned, <tt>false</tt> if its file has already been deleted
+     */
+    public boolean pin(Entry entry)
+    {
+        synchronized (entries)
+        {
+            if (entry.deleted)
+            {
+                return false;
+            }
+            entries.get(entry.key);
+            ++entry.pinCount;
+            return true;
+        }
+    }
+
+    /**
+     * Release an entry pinned by {@link #pin(Entry)}
+     *
+     * @param entry pinned content
+     */
+    public void release(Entry entry)
+    {
+        synchronized (entries)
+        {
+            if (entry.pinCount > 0)
+            {
+                --entry.pinCount;
+            }
+            if (entry.pinCount == 0 && !evictedEntries.isEmpty())
+            {
+                deleteEvictedFiles();
+            }
+        }
+    }
+
+    /**
+     * Stop the file of an entry from being deleted for at least the specified time, even if the entry is
+     * evicted in the meantime. This is for files that are handed to something that opens them later, and
+     * so can't be {@link #release(Entry) released} when done with.
+     *
+     * @param entry previously stored content
+     * @param milliseconds how long the file must be kept
+     * @return <tt>true</tt> if the entry has been retained, <tt>false</tt> if its file has already been deleted
+     */
+    public boolean retain(Entry entry, long milliseconds)
+    {
+        synchronized (entries)
+        {
+            if (entry.deleted)
+            {
+                return false;
+            }
+            entries.get(entry.key);
+            entry.retainedUntil = Math.max(entry.retainedUntil, System.currentTimeMillis() + milliseconds);
+            return true;
+        }
+    }
+
+    /**
+     * Copy the supplied content into the store, evicting the least recently used content if the store's
+     * size limit is exceeded. Content larger than the size limit is copied but not stored, and the store's
+     * existing content is left alone.
+     *
+     * @param key the key under which to store the content
+     * @param contentStream the content
+     * @return the stored content, or a copy of the content that isn't {@link Entry#isStored() stored} if it
+     *         is too large for the store
+     * @throws IOException if the content couldn't be written to the store
+     */
+    public Entry put(String key, ContentStream contentStream) throws IOException
+    {
+        Entry existing = get(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        // Every copy gets a file name of its own, so a file that is still pinned after its content has been
+        // evicted is never overwritten when the same content is stored again
+        File tempFile = File.createTempFile(hash(key) + "-", TEMP_FILE_SUFFIX, directory);
+        String baseName = tempFile.getName().substring(0, tempFile.getName().length() - TEMP_FILE_SUFFIX.length());
+        File tempMetadataFile = new File(directory, baseName + METADATA_FILE_SUFFIX + TEMP_FILE_SUFFIX);
+        File contentFile = new File(directory, baseName + CONTENT_FILE_SUFFIX);
+        File metadataFile = new File(directory, baseName + METADATA_FILE_SUFFIX);
+        try
+        {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try
+            {
+                contentStream.output(os);
+                os.flush();
+            }
+            finally
+            {
+                os.close();
+            }
+            if (tempFile.length() > maxSizeBytes)
+            {
+                // Storing it would evict everything else and then the content itself, so keep the copy out of
+                // the store. Its temporary file name gets it deleted when the store is next opened if it
+                // hasn't been by then.
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Content " + key + " of " + tempFile.length() + " bytes is too large for the content cache");
+                }
+                File unstoredFile = tempFile;
+                tempFile = null;
+                return new Entry(key, unstoredFile, null, contentStream.getFileName(), contentStream.getMimeType(),
+                        contentStream.getLength(), unstoredFile.length());
+            }
+            Entry entry = new Entry(key, contentFile, metadataFile, contentStream.getFileName(),
+                    contentStream.getMimeType(), contentStream.getLength(), tempFile.length());
+            writeMetadata(entry, tempMetadataFile);
+
+            synchronized (entries)
+            {
+                existing = entries.get(key);
+                if (existing != null)
+                {
+                    // Another thread has stored this content while we were copying it
+                    return existing;
+                }
+                // The metadata goes first: content without metadata is deleted when the store is next opened
+                if (!tempMetadataFile.renameTo(metadataFile))
+                {
+                    throw new IOException("Failed to move " + tempMetadataFile + " to " + metadataFile);
+                }
+                if (!tempFile.renameTo(contentFile))
+                {
+                    metadataFile.delete();
+                    throw new IOException("Failed to move " + tempFile + " to " + contentFile);
+                }
+                entries.put(key, entry);
+                currentSizeBytes += entry.size;
+                evict();
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Stored content " + key + " in " + contentFile.getName());
+                }
+                return entry;
+            }
+        }
+        finally
+        {
+            if (tempFile != null && tempFile.exists())
+            {
+                tempFile.delete();
+            }
+            if (tempMetadataFile.exists())
+            {
+                tempMetadataFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used content until the store is within its size limit.
+     * Called with the entries lock held.
+     */
+    private void evict()
+    {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (currentSizeBytes > maxSizeBytes && iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            iterator.remove();
+            currentSizeBytes -= entry.size;
+            // Without its metadata the content is no longer part of the store, even if its file outlives us
+            entry.metadataFile.delete();
+            evictedEntries.add(entry);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Evicted content " + entry.key + " from the content cache");
+            }
+        }
+        deleteEvictedFiles();
+    }
+
+    /**
+     * Delete the files of evicted entries that are no longer pinned or retained. Called with the entries
+     * lock held.
+     */
+    private void deleteEvictedFiles()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = evictedEntries.iterator();
+        while (iterator.hasNext())
+        {
+            Entry entry = iterator.next();
+            if (entry.pinCount == 0 && entry.retainedUntil <= now)
+            {
+                if (entry.file.delete() || !entry.file.exists())
+                {
+                    entry.deleted = true;
+                    iterator.remove();
+                }
+                else if (log.isDebugEnabled())
+                {
+                    log.debug("Failed to delete evicted content cache file " + entry.file + ". Will retry.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuild the entries from the content and metadata files in the store's directory, deleting any files
+     * that aren't part of a complete entry, such as partly written content left behind by a crash.
+     * Called with the entries lock held.
+     */
+    private void loadEntries()
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        List<Entry> loadedEntries = new ArrayList<Entry>();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(METADATA_FILE_SUFFIX))
+            {
+                String baseName = name.substring(0, name.length() - METADATA_FILE_SUFFIX.length());
+                File contentFile = new File(directory, baseName + CONTENT_FILE_SUFFIX);
+                Entry entry = contentFile.isFile() ? readMetadata(file, contentFile) : null;
+                if (entry == null)
+                {
+                    file.delete();
+                }
+                else
+                {
+                    loadedEntries.add(entry);
+                }
+            }
+            else if (name.endsWith(CONTENT_FILE_SUFFIX))
+            {
+                String baseName = name.substring(0, name.length() - CONTENT_FILE_SUFFIX.length());
+                if (!new File(directory, baseName + METADATA_FILE_SUFFIX).isFile())
+                {
+                    file.delete();
+                }
+            }
+            else if (name.endsWith(TEMP_FILE_SUFFIX))
+            {
+                file.delete();
+            }
+        }
+        Collections.sort(loadedEntries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry entry1, Entry entry2)
+            {
+                long modified1 = entry1.file.lastModified();
+                long modified2 = entry2.file.lastModified();
+                return modified1 < modified2 ? -1 : (modified1 == modified2 ? 0 : 1);
+            }
+        });
+        for (Entry entry : loadedEntries)
+        {
+            Entry replaced = entries.put(entry.key, entry);
+            currentSizeBytes += entry.size;
+            if (replaced != null)
+            {
+                // Two copies of the same content, so keep the later one
+                currentSizeBytes -= replaced.size;
+                replaced.metadataFile.delete();
+                replaced.file.delete();
+            }
+        }
+    }
+
+    private Entry readMetadata(File metadataFile, File contentFile)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metadataFile)));
+            try
+            {
+                if (in.readInt() != METADATA_VERSION)
+                {
+                    log.info("Ignoring content cache metadata with an unrecognised version: " + metadataFile);
+                    return null;
+                }
+                String key = in.readUTF();
+                String fileName = readString(in);
+                String mimeType = readString(in);
+                long length = in.readLong();
+                return new Entry(key, contentFile, metadataFile, fileName, mimeType, length, contentFile.length());
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            log.warn("Failed to read content cache metadata " + metadataFile + ". Discarding its content.", ex);
+            return null;
+        }
+    }
+
+    private void writeMetadata(Entry entry, File metadataFile) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataFile)));
+        try
+        {
+            out.writeInt(METADATA_VERSION);
+            out.writeUTF(entry.key);
+            writeString(out, entry.fileName);
+            writeString(out, entry.mimeType);
+            out.writeLong(entry.length);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String hash(String key)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new CacheException("SHA-1 is not available", ex);
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new CacheException("UTF-8 is not available", ex);
+        }
+    }
+
+    /**
+     * Content held in the store
+     */
+    public static class Entry
+    {
+        private final String key;
+        private final File file;
+        private final File metadataFile;
+        private final String fileName;
+        private final String mimeType;
+        private final long length;
+        private final long size;
+        /** Guarded by the store's entries lock */
+        private int pinCount;
+        private long retainedUntil;
+        private boolean deleted;
+
+        private Entry(String key, File file, File metadataFile, String fileName, String mimeType, long length,
+                long size)
+        {
+            this.key = key;
+            this.file = file;
+            this.metadataFile = metadataFile;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.length = length;
+            this.size = size;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public String getFileName()
+        {
+            return fileName;
+        }
+
+        public String getMimeType()
+        {
+            return mimeType;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        /**
+         * @return <tt>false</tt> if the content was too large to be held by the store, in which case the
+         *         file is left to whoever asked for the content to be stored
+         */
+        public boolean isStored()
+        {
+            return metadataFile != null;
+        }
+    }
+}
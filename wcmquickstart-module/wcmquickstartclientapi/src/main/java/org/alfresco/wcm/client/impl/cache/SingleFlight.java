@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key. The first thread to ask for a key runs the loader, and any
+ * other thread that asks for the same key while that load is in flight waits for, and shares, its result
+ * rather than running a load of its own.
+ * <p>
+ * Nothing is retained once a load has completed: callers are expected to put the result into a cache
+ * as part of the load.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, FutureTask<V>> loadsInFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * @param key the key to load
+     * @param loader the loader to run if no load of the key is already in flight
+     * @return the result of the in-flight load of the key
+     * @throws CacheException if the loader threw a checked exception, or the calling thread was interrupted
+     *          while waiting. Runtime exceptions and errors thrown by the loader are rethrown as they are.
+     */
+    public V load(K key, Callable<V> loader)
+    {
+        FutureTask<V> task = new FutureTask<V>(loader);
+        FutureTask<V> inFlight = loadsInFlight.putIfAbsent(key, task);
+        if (inFlight == null)
+        {
+            inFlight = task;
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                loadsInFlight.remove(key, task);
+            }
+        }
+        try
+        {
+            return inFlight.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new CacheException("Interrupted while waiting for load of " + key, ex);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new CacheException("Failed to load " + key, cause);
+        }
+    }
+
+    /**
+     * @param key the key to check
+     * @return <tt>true</tt> if a load of the key is currently in flight
+     */
+    public boolean isLoading(K key)
+    {
+        return loadsInFlight.containsKey(key);
+    }
+}
@@ -49,6 +49,11 @@ public class SectionFactoryTest extends BaseTest
         Section bad = sectionFactory.getSectionFromPathSegments(rootId, new String[] { "news", "wooble" });
         assertNull(bad);
 
+        assertEquals("/", sectionFactory.getSectionPath(rootId));
+        assertEquals("/news/", sectionFactory.getSectionPath(section.getId()));
+        assertEquals("/news/", section.getPath());
+        assertEquals(section, sectionFactory.getSectionFromPathSegments(rootId, new String[] { "", "news", "" }));
+
         Section exists2 = sectionFactory.getSection(section.getId());
         assertNotNull(exists2);
         // assertNotNull(exists2.getCollectionFolderId());
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.alfresco.wcm.client.AssetFactory;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ModifiedTimeBatcherTest extends TestCase
+{
+    private AssetFactory assetFactory;
+    private ModifiedTimeBatcher batcher;
+
+    /** The ids of each batch passed to the asset factory, in the order in which they were passed */
+    private List<List<String>> batches;
+    /** The modified time or exception returned to each caller, by asset id */
+    private Map<String, Object> results;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        results = Collections.synchronizedMap(new HashMap<String, Object>());
+        assetFactory = mock(AssetFactory.class);
+        batcher = new ModifiedTimeBatcher();
+        batcher.setAssetFactory(assetFactory);
+        // Long enough that only a full batch is run within a test
+        batcher.setBatchWindowMilliseconds(60000L);
+    }
+
+    public void testConcurrentCallersShareOneBatch() throws Exception
+    {
+        batcher.setMaxBatchSize(3);
+        when(assetFactory.getModifiedTimesOfAssets(anyCollectionOf(String.class))).thenAnswer(new ModifiedTimes(null));
+
+        join(start("a"), start("b"), start("c"));
+
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertTrue(batches.get(0).containsAll(Arrays.asList("a", "b", "c")));
+        assertEquals(modifiedTime("a"), results.get("a"));
+        assertEquals(modifiedTime("b"), results.get("b"));
+        assertEquals(modifiedTime("c"), results.get("c"));
+        verify(assetFactory, never()).getModifiedTimeOfAsset(anyString());
+    }
+
+    public void testNextCallerLeadsNewBatchWhileFullBatchRuns() throws Exception
+    {
+        batcher.setMaxBatchSize(2);
+        CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        ModifiedTimes modifiedTimes = new ModifiedTimes(releaseFirstBatch);
+        when(assetFactory.getModifiedTimesOfAssets(anyCollectionOf(String.class))).thenAnswer(modifiedTimes);
+
+        Thread a = start("a");
+        Thread b = start("b");
+        assertTrue(modifiedTimes.firstBatchStarted.await(10, TimeUnit.SECONDS));
+
+        // The first batch is full and still running, so the next caller leads a batch of its own...
+        join(start("c"), start("d"));
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList("c", "d"), sorted(batches.get(1)));
+        assertEquals(modifiedTime("c"), results.get("c"));
+        assertEquals(modifiedTime("d"), results.get("d"));
+        assertNull(results.get("a"));
+
+        // ...and the callers of the first batch get their answers once it has run
+        releaseFirstBatch.countDown();
+        join(a, b);
+        assertEquals(Arrays.asList("a", "b"), sorted(batches.get(0)));
+        assertEquals(modifiedTime("a"), results.get("a"));
+        assertEquals(modifiedTime("b"), results.get("b"));
+    }
+
+    public void testFailureReachesEveryCallerOfBatch() throws Exception
+    {
+        batcher.setMaxBatchSize(3);
+        final IllegalStateException failure = new IllegalStateException("Repository unavailable");
+        when(assetFactory.getModifiedTimesOfAssets(anyCollectionOf(String.class))).thenAnswer(new Answer<Map<String, Date>>()
+        {
+            @Override
+            public Map<String, Date> answer(InvocationOnMock invocation) throws Throwable
+            {
+                batches.add(new ArrayList<String>(getIds(invocation)));
+                throw failure;
+            }
+        });
+
+        join(start("a"), start("b"), start("c"));
+
+        assertEquals(1, batches.size());
+        assertSame(failure, results.get("a"));
+        assertSame(failure, results.get("b"));
+        assertSame(failure, results.get("c"));
+    }
+
+    public void testNoBatchWindowPassesCallsStraightThrough()
+    {
+        batcher.setBatchWindowMilliseconds(0L);
+        when(assetFactory.getModifiedTimeOfAsset("a")).thenReturn(modifiedTime("a"));
+
+        assertEquals(modifiedTime("a"), batcher.getModifiedTimeOfAsset("a"));
+        verify(assetFactory, never()).getModifiedTimesOfAssets(anyCollectionOf(String.class));
+    }
+
+    /**
+     * Start a thread asking the batcher for the modified time of the specified asset, and recording the
+     * result or exception in {@link #results}
+     */
+    private Thread start(final String assetId)
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    results.put(assetId, batcher.getModifiedTimeOfAsset(assetId));
+                }
+                catch (RuntimeException ex)
+                {
+                    results.put(assetId, ex);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void join(Thread... threads) throws InterruptedException
+    {
+        for (Thread thread : threads)
+        {
+            thread.join(10000L);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private static Date modifiedTime(String assetId)
+    {
+        return new Date(1000L * assetId.charAt(0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<String> getIds(InvocationOnMock invocation)
+    {
+        return (Collection<String>) invocation.getArguments()[0];
+    }
+
+    private static List<String> sorted(List<String> ids)
+    {
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Answers a batch with the modified times of its assets, holding up the first batch until released if a
+     * latch is given
+     */
+    private class ModifiedTimes implements Answer<Map<String, Date>>
+    {
+        private final CountDownLatch releaseFirstBatch;
+        private final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+
+        private ModifiedTimes(CountDownLatch releaseFirstBatch)
+        {
+            this.releaseFirstBatch = releaseFirstBatch;
+        }
+
+        @Override
+        public Map<String, Date> answer(InvocationOnMock invocation) throws Throwable
+        {
+            Collection<String> ids = getIds(invocation);
+            boolean first;
+            synchronized (batches)
+            {
+                first = batches.isEmpty();
+                batches.add(new ArrayList<String>(ids));
+            }
+            if (first && releaseFirstBatch != null)
+            {
+                firstBatchStarted.countDown();
+                assertTrue(releaseFirstBatch.await(10, TimeUnit.SECONDS));
+            }
+            Map<String, Date> modifiedTimes = new HashMap<String, Date>();
+            for (String id : ids)
+            {
+                modifiedTimes.put(id, modifiedTime(id));
+            }
+            return modifiedTimes;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a {@link PooledWebScriptCallerImpl} against a local HTTP server standing in for the repository
+ */
+public class PooledWebScriptCallerImplTest extends TestCase
+{
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private volatile HttpHandler handler;
+    private PooledWebScriptCallerImpl caller;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/service/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    handler.handle(exchange);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        caller = new PooledWebScriptCallerImpl();
+        caller.setBaseUrl("http://localhost:" + server.getAddress().getPort() + "/service");
+        caller.setUsername("admin");
+        caller.setPassword("admin");
+        caller.setIdleConnectionTimeoutSeconds(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        caller.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    public void testGzippedResponseIsInflated() throws Exception
+    {
+        handler = new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                assertNotNull(acceptEncoding);
+                assertTrue(acceptEncoding.contains("gzip"));
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = new GZIPOutputStream(exchange.getResponseBody());
+                out.write("{\"result\":\"zipped\"}".getBytes("UTF-8"));
+                out.close();
+            }
+        };
+        caller.init();
+
+        JSONObject json = caller.getJsonObject("test");
+        assertNotNull(json);
+        assertEquals("zipped", json.getString("result"));
+    }
+
+    public void testUncompressedResponse() throws Exception
+    {
+        handler = new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                assertNull(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                sendJson(exchange, "{\"result\":\"plain\"}");
+            }
+        };
+        caller.setCompressionEnabled(false);
+        caller.init();
+
+        JSONObject json = caller.getJsonObject("test");
+        assertNotNull(json);
+        assertEquals("plain", json.getString("result"));
+    }
+
+    public void testSlowResponseTimesOut() throws Exception
+    {
+        handler = new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    Thread.sleep(3000L);
+                    sendJson(exchange, "{\"result\":\"late\"}");
+                }
+                catch (InterruptedException e)
+                {
+                    //The test is over
+                }
+            }
+        };
+        caller.setReadTimeoutMilliseconds(200);
+        caller.init();
+
+        long start = System.currentTimeMillis();
+        assertNull(caller.getJsonObject("test"));
+        assertTrue(System.currentTimeMillis() - start < 2000L);
+    }
+
+    public void testConcurrentRejectionsLogInOnce() throws Exception
+    {
+        final int threadCount = 5;
+        final AtomicInteger loginCount = new AtomicInteger();
+        //Holds back the first, unauthenticated, requests until all of them have been made
+        final CyclicBarrier unauthenticatedRequests = new CyclicBarrier(threadCount);
+        handler = new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/login"))
+                {
+                    loginCount.incrementAndGet();
+                    byte[] body = "<ticket>TICKET_1</ticket>".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                else if (exchange.getRequestHeaders().getFirst("Authorization") == null)
+                {
+                    try
+                    {
+                        unauthenticatedRequests.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (Exception e)
+                    {
+                        //Respond anyway, and let the test fail on the number of logins
+                    }
+                    exchange.sendResponseHeaders(401, -1);
+                }
+                else
+                {
+                    sendJson(exchange, "{\"result\":\"authorised\"}");
+                }
+            }
+        };
+        caller.init();
+
+        final List<JSONObject> results = new ArrayList<JSONObject>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; ++i)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    JSONObject json = caller.getJsonObject("test");
+                    synchronized (results)
+                    {
+                        results.add(json);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join(20000L);
+        }
+
+        assertEquals(1, loginCount.get());
+        assertEquals(threadCount, results.size());
+        for (JSONObject json : results)
+        {
+            assertNotNull(json);
+            assertEquals("authorised", json.getString("result"));
+        }
+    }
+
+    private static void sendJson(HttpExchange exchange, String json) throws IOException
+    {
+        byte[] body = json.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.alfresco.wcm.client.ContentStream;
+
+public class ContentCacheStoreTest extends TestCase
+{
+    private File directory;
+    private ContentCacheStore store;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("wqscontentcachetest", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        if (store != null)
+        {
+            store.shutdown();
+        }
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testLeastRecentlyUsedContentIsEvicted() throws Exception
+    {
+        store = createStore(1);
+        byte[] content = new byte[400 * 1024];
+        Date modified = new Date();
+
+        ContentCacheStore.Entry first = store.put(ContentCacheStore.buildKey("a", modified, null), new TestContentStream(content));
+        ContentCacheStore.Entry second = store.put(ContentCacheStore.buildKey("b", modified, null), new TestContentStream(content));
+        assertTrue(store.touch(first));
+        // Storing a third would take us over our megabyte, so the least recently used (the second) must go
+        ContentCacheStore.Entry third = store.put(ContentCacheStore.buildKey("c", modified, null), new TestContentStream(content));
+
+        assertTrue(store.touch(first));
+        assertFalse(store.touch(second));
+        assertFalse(second.getFile().exists());
+        assertTrue(store.touch(third));
+        assertEquals(content.length, third.getFile().length());
+    }
+
+    public void testContentLargerThanStoreIsNotStored() throws Exception
+    {
+        store = createStore(1);
+        byte[] content = new byte[400 * 1024];
+        Date modified = new Date();
+        ContentCacheStore.Entry first = store.put(ContentCacheStore.buildKey("a", modified, null), new TestContentStream(content));
+        ContentCacheStore.Entry second = store.put(ContentCacheStore.buildKey("b", modified, null), new TestContentStream(content));
+
+        byte[] largeContent = new byte[1536 * 1024];
+        String largeKey = ContentCacheStore.buildKey("large", modified, null);
+        ContentCacheStore.Entry large = store.put(largeKey, new TestContentStream(largeContent));
+
+        // The copy is handed back to be served from its own file...
+        assertFalse(large.isStored());
+        assertEquals(largeContent.length, large.getFile().length());
+        assertEquals(largeContent.length, large.getLength());
+        assertTrue(store.pin(large));
+        store.release(large);
+        assertTrue(large.getFile().exists());
+        assertNull(store.get(largeKey));
+        assertFalse(store.touch(large));
+
+        // ...and the content already in the store is left alone
+        assertTrue(first.isStored());
+        assertTrue(store.touch(first));
+        assertTrue(first.getFile().exists());
+        assertTrue(store.touch(second));
+        assertTrue(second.getFile().exists());
+
+        // A copy left behind is cleared up when the store is next opened
+        store.shutdown();
+        store = createStore(1);
+        assertFalse(large.getFile().exists());
+        assertNotNull(store.get(ContentCacheStore.buildKey("a", modified, null)));
+    }
+
+    public void testContentSurvivesRestart() throws Exception
+    {
+        Date modified = new Date();
+        String key = ContentCacheStore.buildKey("a", modified, "thumbnail");
+        store = createStore(10);
+        for (int i = 0; i < 60; ++i)
+        {
+            store.put(ContentCacheStore.buildKey("b" + i, modified, null), new TestContentStream(new byte[] { 4 }));
+        }
+        store.put(key, new TestContentStream(new byte[] { 1, 2, 3 }));
+        // Nothing is written on shutdown, so this is as good as a crash
+        store.shutdown();
+        // Leftovers from content that was being written at the time
+        File partial = new File(directory, "partial.bin");
+        new FileOutputStream(partial).close();
+        File temp = new File(directory, "partial.tmp");
+        new FileOutputStream(temp).close();
+
+        store = createStore(10);
+        assertFalse(partial.exists());
+        assertFalse(temp.exists());
+        for (int i = 0; i < 60; ++i)
+        {
+            assertNotNull(store.get(ContentCacheStore.buildKey("b" + i, modified, null)));
+        }
+        ContentCacheStore.Entry entry = store.get(key);
+        assertNotNull(entry);
+        assertEquals("test.bin", entry.getFileName());
+        assertEquals("application/octet-stream", entry.getMimeType());
+        assertEquals(3L, entry.getLength());
+        assertTrue(entry.getFile().exists());
+
+        // A later version of the same asset is stored separately
+        assertNull(store.get(ContentCacheStore.buildKey("a", new Date(modified.getTime() + 1), "thumbnail")));
+    }
+
+    public void testDirectoryIsNotShared() throws Exception
+    {
+        store = createStore(10);
+        try
+        {
+            createStore(10);
+            fail("A second store must not open a directory that is in use");
+        }
+        catch (IOException ex)
+        {
+            // Expected
+        }
+    }
+
+    public void testPinnedContentIsNotDeleted() throws Exception
+    {
+        store = createStore(1);
+        byte[] content = new byte[400 * 1024];
+        Date modified = new Date();
+
+        ContentCacheStore.Entry first = store.put(ContentCacheStore.buildKey("a", modified, null), new TestContentStream(content));
+        assertTrue(store.pin(first));
+        store.put(ContentCacheStore.buildKey("b", modified, null), new TestContentStream(content));
+        store.put(ContentCacheStore.buildKey("c", modified, null), new TestContentStream(content));
+
+        // Evicted, but still there for the reader that pinned it
+        assertFalse(store.touch(first));
+        assertTrue(first.getFile().exists());
+        store.release(first);
+        assertFalse(first.getFile().exists());
+        assertFalse(store.pin(first));
+    }
+
+    public void testRetainedContentIsNotDeleted() throws Exception
+    {
+        store = createStore(1);
+        byte[] content = new byte[400 * 1024];
+        Date modified = new Date();
+
+        ContentCacheStore.Entry first = store.put(ContentCacheStore.buildKey("a", modified, null), new TestContentStream(content));
+        assertTrue(store.retain(first, 200L));
+        store.put(ContentCacheStore.buildKey("b", modified, null), new TestContentStream(content));
+        store.put(ContentCacheStore.buildKey("c", modified, null), new TestContentStream(content));
+        assertFalse(store.touch(first));
+        assertTrue(first.getFile().exists());
+
+        // Once the time is up the file goes with the next change to the store
+        Thread.sleep(250L);
+        store.put(ContentCacheStore.buildKey("d", modified, null), new TestContentStream(content));
+        assertFalse(first.getFile().exists());
+        assertFalse(store.retain(first, 200L));
+    }
+
+    private ContentCacheStore createStore(long maxSizeMegabytes) throws IOException
+    {
+        ContentCacheStore store = new ContentCacheStore();
+        store.setDirectory(directory.getPath());
+        store.setMaxSizeMegabytes(maxSizeMegabytes);
+        store.init();
+        return store;
+    }
+
+    private static class TestContentStream implements ContentStream
+    {
+        private final byte[] content;
+
+        public TestContentStream(byte[] content)
+        {
+            this.content = content;
+        }
+
+        public String getFileName()
+        {
+            return "test.bin";
+        }
+
+        public long getLength()
+        {
+            return content.length;
+        }
+
+        public String getMimeType()
+        {
+            return "application/octet-stream";
+        }
+
+        public InputStream getStream()
+        {
+            return new ByteArrayInputStream(content);
+        }
+
+        public void write(Writer writer) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(Writer writer, String encoding) throws IOException
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void output(OutputStream output) throws IOException
+        {
+            output.write(content);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.impl.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class SingleFlightTest extends TestCase
+{
+    public void testConcurrentLoadsAreCoalesced() throws Exception
+    {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLoad = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                loadCount.incrementAndGet();
+                loadStarted.countDown();
+                releaseLoad.await(10, TimeUnit.SECONDS);
+                return "value";
+            }
+        };
+
+        final List<String> results = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; ++i)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    String result = singleFlight.load("key", loader);
+                    synchronized (results)
+                    {
+                        results.add(result);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            if (i == 0)
+            {
+                assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+                assertTrue(singleFlight.isLoading("key"));
+            }
+        }
+        // Give the other threads a chance to join the load in flight
+        Thread.sleep(200);
+        releaseLoad.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(10000);
+        }
+
+        assertEquals(1, loadCount.get());
+        assertEquals(5, results.size());
+        for (String result : results)
+        {
+            assertEquals("value", result);
+        }
+        assertFalse(singleFlight.isLoading("key"));
+    }
+
+    public void testFailuresAreRethrown()
+    {
+        SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+        try
+        {
+            singleFlight.load("key", new Callable<String>()
+            {
+                @Override
+                public String call() throws Exception
+                {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail("Expected the loader's exception to be rethrown");
+        }
+        catch (IllegalStateException ex)
+        {
+            assertEquals("failed", ex.getMessage());
+        }
+        try
+        {
+            singleFlight.load("key", new Callable<String>()
+            {
+                @Override
+                public String call() throws Exception
+                {
+                    throw new Exception("checked");
+                }
+            });
+            fail("Expected a CacheException");
+        }
+        catch (CacheException ex)
+        {
+            assertEquals("checked", ex.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+   "data":
+   {
+      "epoch" : "${changes.epoch}",
+      "first" : ${changes.first?c},
+      "latest" : ${changes.latest?c},
+      "last" : ${changes.last?c},
+      "gap" : ${changes.gap?string("true", "false")},
+      "ids" :
+      [
+         <#list changes.ids as id>
+         "${id}"<#if id_has_next>,</#if>
+         </#list>
+      ]
+   }
+}
+</#escape>
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2012 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of the Alfresco Web Quick Start module.
  *
@@ -17,6 +17,16 @@
  */
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.alfresco.model.ContentModel;
@@ -30,20 +40,35 @@ import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.ResultSetRow;
+import org.alfresco.service.cmr.search.SearchParameters;
 import org.alfresco.service.cmr.search.SearchService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
 import org.alfresco.util.VmShutdownListener.VmShutdownException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * This class is designed to be run at midnight. It finds any web assets that are either becoming available today or expiring today
- * and sets their "published" flag as appropriate
+ * This class is designed to be run every minute. It applies the availability transitions of web assets - the times at
+ * which they become available or expire - that have fallen due, and sets their "available" flag as appropriate.
+ * <p>
+ * Upcoming transitions are held in a persistent queue keyed by the minute in which they fall due. A web asset's
+ * transitions are queued by {@link #scheduleTransitions(NodeRef, Date, Date)} in the transaction that sets its
+ * availability dates, so the queue doesn't wait on the search index. Each run applies every queued transition that has
+ * fallen due, earliest first, in batches that each have their own transaction and remove the transitions they apply,
+ * so transitions that fell due while the repository was down are applied when it next runs. As the flag of an asset
+ * is set from its current dates, a transition left queued by dates that have since been changed is harmless.
+ * <p>
+ * The time of the last completed run is kept as a checkpoint. The first run, finding none, seeds the queue from the
+ * assets with availability dates from the start of the current UTC day onwards.
  * @author Brian
  *
  */
@@ -57,9 +82,37 @@ public class AvailabilityProcessor
     private BehaviourFilter behaviourFilter;
     private RepositoryState repositoryState;
     private JobLockService jobLockService;
+    private AttributeService attributeService;
+    private int batchSize = 100;
 
     private static final long LOCK_TTL = 60000L;
+    private static final String ATTR_KEY_CHECKPOINT_1 = ".wcmqs";
+    private static final String ATTR_KEY_CHECKPOINT_2 = "availabilityProcessor";
+    private static final String ATTR_KEY_CHECKPOINT_3 = "lastProcessedTime";
+    private static final String ATTR_KEY_TRANSITIONS = ".wcmqs.availabilityTransitions";
+    private static final long MINUTE = 60000L;
     private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.AvailabilityProcessor");
+
+    /**
+     * A queued transition of a web asset
+     */
+    private static class Transition implements Comparable<Transition>
+    {
+        final long minute;
+        final String asset;
+
+        Transition(long minute, String asset)
+        {
+            this.minute = minute;
+            this.asset = asset;
+        }
+
+        @Override
+        public int compareTo(Transition other)
+        {
+            return minute < other.minute ? -1 : (minute == other.minute ? 0 : 1);
+        }
+    }
     
     private class LockCallback implements JobLockRefreshCallback
     {
@@ -114,7 +167,15 @@ public class AvailabilityProcessor
 
             jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL, lockCallback);
 
-            runInternal();
+            AuthenticationUtil.runAs(new RunAsWork<Object>()
+            {
+                @Override
+                public Object doWork() throws Exception
+                {
+                    runInternal();
+                    return null;
+                }
+            }, AuthenticationUtil.SYSTEM_USER_NAME);
 
             // Done
             if (log.isDebugEnabled())
@@ -149,66 +210,214 @@ public class AvailabilityProcessor
         }
     }
 
-    private void runInternal()
+    void runInternal()
     {
-        txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+        final Date now = new Date();
+        final Long checkpoint = txHelper.doInTransaction(new RetryingTransactionCallback<Long>()
         {
             @Override
-            public Object execute() throws Throwable
+            public Long execute() throws Throwable
+            {
+                return (Long) attributeService.getAttribute(ATTR_KEY_CHECKPOINT_1, ATTR_KEY_CHECKPOINT_2, ATTR_KEY_CHECKPOINT_3);
+            }
+        }, true);
+        if (checkpoint == null)
+        {
+            //First run - queue the transitions that were scheduled before there was a queue
+            seedQueue(now);
+        }
+        else if (log.isDebugEnabled() && now.getTime() - checkpoint > 2 * MINUTE)
+        {
+            log.debug("Catching up on availability changes due since " + new Date(checkpoint));
+        }
+
+        //Find the queued transitions that have fallen due, earliest first
+        final long dueMinute = now.getTime() / MINUTE;
+        final List<Transition> dueTransitions = txHelper.doInTransaction(new RetryingTransactionCallback<List<Transition>>()
+        {
+            @Override
+            public List<Transition> execute() throws Throwable
             {
-                return AuthenticationUtil.runAs(new RunAsWork<Object>()
+                final List<Transition> transitions = new ArrayList<Transition>();
+                attributeService.getAttributes(new AttributeQueryCallback()
                 {
                     @Override
-                    public Object doWork() throws Exception
+                    public boolean handleAttribute(Long id, Serializable value, Serializable[] keys)
                     {
-                        behaviourFilter.disableBehaviour(ContentModel.ASPECT_AUDITABLE);
-                        ResultSet rs = null;
-                        try
+                        Transition transition = new Transition((Long) keys[1], (String) keys[2]);
+                        if (transition.minute <= dueMinute)
                         {
-                            //Find all web assets that are due to become available today
-                            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
-                                    SearchService.LANGUAGE_LUCENE, "+@ws\\:availableFromDate:today +@ws\\:published:\"false\"");
-                         
-                            if (log.isDebugEnabled())
-                            {
-                                log.debug("Number of assets found that are due to become available: " + rs.length());
-                            }
-                            for (ResultSetRow row : rs)
-                            {
-                                nodeService.setProperty(row.getNodeRef(), WebSiteModel.PROP_AVAILABLE, Boolean.TRUE);
-                            }
+                            transitions.add(transition);
                         }
-                        finally
-                        {
-                            if (rs != null) {rs.close();}
-                        }
-                        rs = null;
+                        return true;
+                    }
+                }, ATTR_KEY_TRANSITIONS);
+                Collections.sort(transitions);
+                return transitions;
+            }
+        }, true);
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Number of availability changes due by " + now + ": " + dueTransitions.size());
+        }
 
-                        try
+        for (int start = 0; start < dueTransitions.size(); start += batchSize)
+        {
+            final List<Transition> batch = dueTransitions.subList(start, Math.min(start + batchSize, dueTransitions.size()));
+            txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                @Override
+                public Object execute() throws Throwable
+                {
+                    behaviourFilter.disableBehaviour(ContentModel.ASPECT_AUDITABLE);
+                    try
+                    {
+                        for (Transition transition : batch)
                         {
-                            //Find all web assets that are due to expire today
-                            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
-                                    SearchService.LANGUAGE_LUCENE, "+@ws\\:availableToDate:today +@ws\\:published:\"true\"");
-                         
-                            if (log.isDebugEnabled())
-                            {
-                                log.debug("Number of assets found that are due to expire: " + rs.length());
-                            }
-                            for (ResultSetRow row : rs)
-                            {
-                                nodeService.setProperty(row.getNodeRef(), WebSiteModel.PROP_AVAILABLE, Boolean.FALSE);
-                            }
+                            updateAvailability(new NodeRef(transition.asset), now);
+                            attributeService.removeAttribute(ATTR_KEY_TRANSITIONS, transition.minute, transition.asset);
                         }
-                        finally
+                    }
+                    finally
+                    {
+                        behaviourFilter.enableBehaviour(ContentModel.ASPECT_AUDITABLE);
+                    }
+                    return null;
+                }
+            }, false, true);
+        }
+
+        txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+        {
+            @Override
+            public Object execute() throws Throwable
+            {
+                attributeService.setAttribute(Long.valueOf(now.getTime()), ATTR_KEY_CHECKPOINT_1, ATTR_KEY_CHECKPOINT_2, ATTR_KEY_CHECKPOINT_3);
+                return null;
+            }
+        }, false, true);
+    }
+
+    /**
+     * Queue the transitions at the availability dates of a web asset. Dates that have already passed are applied by
+     * the next run. Must be called in the transaction that sets the dates.
+     */
+    public void scheduleTransitions(NodeRef asset, Date availableFrom, Date availableTo)
+    {
+        for (Date date : new Date[] { availableFrom, availableTo })
+        {
+            if (date != null)
+            {
+                //Round up, so that the runs in the minute before the transition leave it queued
+                long minute = (date.getTime() + MINUTE - 1) / MINUTE;
+                attributeService.setAttribute(Long.valueOf(date.getTime()), ATTR_KEY_TRANSITIONS, Long.valueOf(minute), asset.toString());
+            }
+        }
+    }
+
+    /**
+     * Queue the transitions of the web assets with an availability date from the start of the UTC day onwards, as
+     * the dates of assets set before the queue existed are only found by search. The dates may be indexed to the
+     * day, so the search covers the whole of the current day.
+     */
+    private void seedQueue(Date now)
+    {
+        final Date from = getStartOfDay(now);
+        final List<NodeRef> assets = txHelper.doInTransaction(new RetryingTransactionCallback<List<NodeRef>>()
+        {
+            @Override
+            public List<NodeRef> execute() throws Throwable
+            {
+                Set<NodeRef> assets = new LinkedHashSet<NodeRef>();
+                findAssets("@ws\\:availableFromDate", from, assets);
+                findAssets("@ws\\:availableToDate", from, assets);
+                return new ArrayList<NodeRef>(assets);
+            }
+        }, true);
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Queueing the availability changes of " + assets.size() + " assets with dates from " + from);
+        }
+
+        for (int start = 0; start < assets.size(); start += batchSize)
+        {
+            final List<NodeRef> batch = assets.subList(start, Math.min(start + batchSize, assets.size()));
+            txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                @Override
+                public Object execute() throws Throwable
+                {
+                    for (NodeRef asset : batch)
+                    {
+                        if (nodeService.exists(asset))
                         {
-                            behaviourFilter.enableBehaviour(ContentModel.ASPECT_AUDITABLE);
-                            rs.close();
+                            scheduleTransitions(asset, 
+                                    (Date) nodeService.getProperty(asset, WebSiteModel.PROP_AVAILABLE_FROM_DATE),
+                                    (Date) nodeService.getProperty(asset, WebSiteModel.PROP_AVAILABLE_TO_DATE));
                         }
-                        return null;
                     }
-                }, AuthenticationUtil.SYSTEM_USER_NAME);
+                    return null;
+                }
+            }, false, true);
+        }
+    }
+
+    /**
+     * @return the start of the UTC day, to which d:date values are indexed
+     */
+    private Date getStartOfDay(Date date)
+    {
+        Calendar day = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        day.setTime(date);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        return day.getTime();
+    }
+
+    private void findAssets(String field, Date from, Set<NodeRef> assets)
+    {
+        SearchParameters searchParameters = new SearchParameters();
+        searchParameters.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        searchParameters.setLanguage(SearchService.LANGUAGE_LUCENE);
+        searchParameters.setQuery("+ASPECT:\"" + WebSiteModel.ASPECT_WEBASSET + "\" +" + field + ":[\"" + 
+                ISO8601DateFormat.format(from) + "\" TO MAX]");
+        ResultSet rs = null;
+        try
+        {
+            rs = searchService.query(searchParameters);
+            for (ResultSetRow row : rs)
+            {
+                assets.add(row.getNodeRef());
             }
-        });
+        }
+        finally
+        {
+            if (rs != null) {rs.close();}
+        }
+    }
+
+    /**
+     * Set the "available" flag of an asset from its availability dates
+     */
+    private void updateAvailability(NodeRef asset, Date now)
+    {
+        if (!nodeService.exists(asset))
+        {
+            return;
+        }
+        Map<QName, Serializable> props = nodeService.getProperties(asset);
+        Date availableFrom = (Date) props.get(WebSiteModel.PROP_AVAILABLE_FROM_DATE);
+        Date availableTo = (Date) props.get(WebSiteModel.PROP_AVAILABLE_TO_DATE);
+        Boolean available = Boolean.valueOf((availableFrom == null || !availableFrom.after(now)) && 
+                (availableTo == null || availableTo.after(now)));
+        if (!available.equals(props.get(WebSiteModel.PROP_AVAILABLE)))
+        {
+            nodeService.setProperty(asset, WebSiteModel.PROP_AVAILABLE, available);
+        }
     }
     
     public void setTxHelper(RetryingTransactionHelper txHelper)
@@ -240,4 +449,18 @@ public class AvailabilityProcessor
     {
         this.jobLockService = jobLockService;
     }
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * Set the number of assets updated in each transaction
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2012 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of the Alfresco Web Quick Start module.
  *
@@ -17,9 +17,20 @@
  */
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandler;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
@@ -47,6 +58,12 @@ import org.apache.commons.logging.LogFactory;
  * This class is designed to be run periodically. It finds any visitor feedback
  * that has not been processed yet and, for each item it finds, invokes the feedback handler that has been
  * registered for that type of feedback.
+ * <p>
+ * The feedback is grouped by the asset it relates to and processed in batches of a bounded size, each in its
+ * own transaction, so the handlers update the summary of an asset once per batch. The feedback of an asset is
+ * never split across batches that run at the same time, so batches can be processed in parallel without
+ * contending for the same summary nodes.  Before batches are processed in parallel the handlers are asked to
+ * prepare any node shared by the feedback of different assets, such as the containers of a web site.
  * 
  * @author Brian
  */
@@ -73,6 +90,12 @@ public class FeedbackProcessor
     /** Job Lock service **/
     private JobLockService jobLockService;
     
+    /** Maximum number of feedback nodes processed in one transaction */
+    private int batchSize = 200;
+    
+    /** Number of threads processing batches in parallel */
+    private int workerThreads = 2;
+    
     /** The time this lock will persist in the database (60 sec but refreshed at regular intervals) */
     private static final long LOCK_TTL = 60000L;
     
@@ -182,99 +205,293 @@ public class FeedbackProcessor
 
     private void runInternal()
     {
-        AuthenticationUtil.runAs(new RunAsWork<Object>()
+        final List<NodeRef> assets = new ArrayList<NodeRef>();
+        final List<List<List<NodeRef>>> work = AuthenticationUtil.runAs(new RunAsWork<List<List<List<NodeRef>>>>()
         {
             @Override
-            public Object doWork() throws Exception
+            public List<List<List<NodeRef>>> doWork() throws Exception
             {
-                txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+                return txHelper.doInTransaction(new RetryingTransactionCallback<List<List<List<NodeRef>>>>()
                 {
                     @Override
-                    public Object execute() throws Throwable
-                    {                   
-                    	ResultSet rs = null;
-                    	
-                    	try
-                    	{
-                            //Find all visitor feedback nodes that have not yet been processed
-                            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
-                                SearchService.LANGUAGE_LUCENE, "@ws\\:ratingProcessed:\"false\"");
-                     
-                            if (log.isDebugEnabled())
+                    public List<List<List<NodeRef>>> execute() throws Throwable
+                    {
+                        assets.clear();
+                        return findFeedback(assets);
+                    }
+                }, true);
+            }
+        }, AuthenticationUtil.SYSTEM_USER_NAME);
+        
+        if (work.isEmpty())
+        {
+            return;
+        }
+        
+        if (workerThreads <= 1 || work.size() == 1)
+        {
+            for (List<List<NodeRef>> batches : work)
+            {
+                processBatches(batches);
+            }
+        }
+        else if (!prepareHandlers(assets))
+        {
+            // Without the shared nodes in place parallel batches would fail on creating them at the same time
+            for (List<List<NodeRef>> batches : work)
+            {
+                processBatches(batches);
+            }
+        }
+        else
+        {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(workerThreads, work.size()), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+                
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "WQSFeedbackProcessor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try
+            {
+                for (final List<List<NodeRef>> batches : work)
+                {
+                    executor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            processBatches(batches);
+                        }
+                    });
+                }
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Ask every handler to prepare for the processing of the feedback about the given assets, in a transaction
+     * of its own.
+     * @return  true if the handlers are prepared, false if preparing them failed
+     */
+    private boolean prepareHandlers(final Collection<NodeRef> assets)
+    {
+        return AuthenticationUtil.runAs(new RunAsWork<Boolean>()
+        {
+            @Override
+            public Boolean doWork() throws Exception
+            {
+                try
+                {
+                    txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+                    {
+                        @Override
+                        public Object execute() throws Throwable
+                        {
+                            for (FeedbackProcessorHandler handler : handlers.values())
                             {
-                                log.debug("Running feedback processor across " + rs.length() + " feedback nodes");
+                                handler.prepare(assets);
                             }
-                            for (ResultSetRow row : rs)
-                            {                 
-                                // Get the feedback node and feedback type
-                                NodeRef feedback = row.getNodeRef();
-                                String feedbackType = (String)nodeService.getProperty(feedback, WebSiteModel.PROP_FEEDBACK_TYPE);
-                            
-                                if (feedbackType != null)
-                                {
-                                    // Get the feedback processor handler
-                                    FeedbackProcessorHandler handler = handlers.get(feedbackType);
-                                    if (handler != null)
-                                    {
-                                        //Make sure that node wasn't processed on another cluster node. see MNT-10481
-                                        if (Boolean.FALSE.equals((Boolean)nodeService.getProperty(feedback, WebSiteModel.PROP_RATING_PROCESSED)))
-                                        {
-                                            /// TODO wrap into sub transaction
-                                     
-                                            // Process the feedback
-                                            if (log.isDebugEnabled() == true)
-                                            {
-                                                log.debug("Processing feedback node " + feedback.toString() + " of feedback type " + feedbackType);                                        
-                                            }
-                                            handler.processFeedback(feedback);
-                                        
-                                            // END
-                                            // TODO Log exception                                    
-                                    
-                                            //Set the "ratingProcessed" flag to true on this feedback node so we don't process it again
-                                            nodeService.setProperty(feedback, WebSiteModel.PROP_RATING_PROCESSED, Boolean.TRUE);
-                                        }
-                                    }
-                                    else
-                                    {
-                                        // Record that a feedback processor could not be found
-                                        if (log.isDebugEnabled() == true)
-                                        {
-                                            log.debug("Feedback processor handler can not be found for feedback type " + feedbackType + " on feedback node " + feedback.toString());
-                                        }
-                                    }
-                                }
-                                else
-                                {
-                                    // Record that no feedback type has been set for this feedback
-                                    if (log.isDebugEnabled() == true)
-                                    {
-                                        log.debug("Feedback type not specified for feedback node " + feedback.toString());
-                                    }
-                                }                                
-                            }
-                        
-                            // Execute feedback processor callbacks
-                            for (FeedbackProcessorHandler handler : handlers.values())
+                            return null;
+                        }
+                    }, false, true);
+                    return Boolean.TRUE;
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Failed to prepare feedback handlers for " + assets.size() + " assets, processing batches one at a time", e);
+                    return Boolean.FALSE;
+                }
+            }
+        }, AuthenticationUtil.SYSTEM_USER_NAME);
+    }
+    
+    /**
+     * Find all visitor feedback nodes that have not yet been processed and split them into units of work. 
+     * Each unit is a list of batches to be processed one after the other: a single batch holding the 
+     * feedback of one or more assets, or the batches of an asset with more feedback than fits in one batch.
+     * @param assets    collection to which the assets the feedback relates to are added
+     */
+    private List<List<List<NodeRef>>> findFeedback(Collection<NodeRef> assets)
+    {
+        Map<NodeRef, List<NodeRef>> feedbackByAsset = new LinkedHashMap<NodeRef, List<NodeRef>>(89);
+        List<NodeRef> unrelatedFeedback = new ArrayList<NodeRef>();
+        ResultSet rs = null;
+        try
+        {
+            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
+                SearchService.LANGUAGE_LUCENE, "@ws\\:ratingProcessed:\"false\"");
+     
+            if (log.isDebugEnabled())
+            {
+                log.debug("Running feedback processor across " + rs.length() + " feedback nodes");
+            }
+            for (ResultSetRow row : rs)
+            {
+                NodeRef feedback = row.getNodeRef();
+                NodeRef asset = (NodeRef)nodeService.getProperty(feedback, WebSiteModel.PROP_RELEVANT_ASSET);
+                if (asset == null)
+                {
+                    unrelatedFeedback.add(feedback);
+                    continue;
+                }
+                List<NodeRef> assetFeedback = feedbackByAsset.get(asset);
+                if (assetFeedback == null)
+                {
+                    assetFeedback = new ArrayList<NodeRef>();
+                    feedbackByAsset.put(asset, assetFeedback);
+                }
+                assetFeedback.add(feedback);
+            }
+        }
+        finally
+        {
+            if (rs != null) {rs.close();}
+        }
+        
+        assets.addAll(feedbackByAsset.keySet());
+        
+        List<List<List<NodeRef>>> work = new ArrayList<List<List<NodeRef>>>();
+        List<NodeRef> batch = new ArrayList<NodeRef>(batchSize);
+        for (List<NodeRef> assetFeedback : feedbackByAsset.values())
+        {
+            if (assetFeedback.size() > batchSize)
+            {
+                List<List<NodeRef>> batches = new ArrayList<List<NodeRef>>();
+                for (int start = 0; start < assetFeedback.size(); start += batchSize)
+                {
+                    batches.add(assetFeedback.subList(start, Math.min(start + batchSize, assetFeedback.size())));
+                }
+                work.add(batches);
+                continue;
+            }
+            if (batch.size() + assetFeedback.size() > batchSize)
+            {
+                work.add(Collections.singletonList(batch));
+                batch = new ArrayList<NodeRef>(batchSize);
+            }
+            batch.addAll(assetFeedback);
+        }
+        for (NodeRef feedback : unrelatedFeedback)
+        {
+            if (batch.size() >= batchSize)
+            {
+                work.add(Collections.singletonList(batch));
+                batch = new ArrayList<NodeRef>(batchSize);
+            }
+            batch.add(feedback);
+        }
+        if (!batch.isEmpty())
+        {
+            work.add(Collections.singletonList(batch));
+        }
+        return work;
+    }
+    
+    /**
+     * Process the given batches of feedback one after the other, each in its own transaction.
+     */
+    private void processBatches(final List<List<NodeRef>> batches)
+    {
+        AuthenticationUtil.runAs(new RunAsWork<Object>()
+        {
+            @Override
+            public Object doWork() throws Exception
+            {
+                for (final List<NodeRef> batch : batches)
+                {
+                    try
+                    {
+                        txHelper.doInTransaction(new RetryingTransactionCallback<Object>()
+                        {
+                            @Override
+                            public Object execute() throws Throwable
                             {
-                                if (log.isDebugEnabled() == true)
-                                {
-                                    log.debug("Executing feedback handler callback for feedback type " + handler.getFeedbackType());
-                                }
-                                handler.processorCallback();
+                                processBatch(batch);
+                                return null;
                             }
-                      	}
-                    	finally
-                    	{
-                    		if (rs != null) {rs.close();}
-                    	}
-                        return null;
-                    }   
-                });
+                        }, false, true);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // Leave the feedback of this batch to be processed by a later run
+                        log.error("Failed to process a batch of " + batch.size() + " feedback nodes", e);
+                    }
+                }
                 return null;
             }
         }, AuthenticationUtil.SYSTEM_USER_NAME);
     }
+    
+    private void processBatch(List<NodeRef> batch)
+    {
+        for (NodeRef feedback : batch)
+        {
+            // Get the feedback type and check that the node wasn't processed on another cluster node. see MNT-10481
+            Map<QName, Serializable> props = nodeService.getProperties(feedback);
+            if (!Boolean.FALSE.equals(props.get(WebSiteModel.PROP_RATING_PROCESSED)))
+            {
+                continue;
+            }
+            String feedbackType = (String)props.get(WebSiteModel.PROP_FEEDBACK_TYPE);
+        
+            if (feedbackType != null)
+            {
+                // Get the feedback processor handler
+                FeedbackProcessorHandler handler = handlers.get(feedbackType);
+                if (handler != null)
+                {
+                    // Process the feedback
+                    if (log.isDebugEnabled() == true)
+                    {
+                        log.debug("Processing feedback node " + feedback.toString() + " of feedback type " + feedbackType);                                        
+                    }
+                    handler.processFeedback(feedback);
+                
+                    //Set the "ratingProcessed" flag to true on this feedback node so we don't process it again
+                    nodeService.setProperty(feedback, WebSiteModel.PROP_RATING_PROCESSED, Boolean.TRUE);
+                }
+                else
+                {
+                    // Record that a feedback processor could not be found
+                    if (log.isDebugEnabled() == true)
+                    {
+                        log.debug("Feedback processor handler can not be found for feedback type " + feedbackType + " on feedback node " + feedback.toString());
+                    }
+                }
+            }
+            else
+            {
+                // Record that no feedback type has been set for this feedback
+                if (log.isDebugEnabled() == true)
+                {
+                    log.debug("Feedback type not specified for feedback node " + feedback.toString());
+                }
+            }                                
+        }
+    
+        // Execute feedback processor callbacks
+        for (FeedbackProcessorHandler handler : handlers.values())
+        {
+            if (log.isDebugEnabled() == true)
+            {
+                log.debug("Executing feedback handler callback for feedback type " + handler.getFeedbackType());
+            }
+            handler.processorCallback();
+        }
+    }
 
     /**
      * Sets the transaction helper
@@ -320,4 +537,22 @@ public class FeedbackProcessor
     {
         this.jobLockService = jobLockService;
     }
+    
+    /**
+     * Sets the maximum number of feedback nodes processed in one transaction
+     * @param batchSize batch size
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Sets the number of threads processing batches of feedback in parallel
+     * @param workerThreads number of threads
+     */
+    public void setWorkerThreads(int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+    }
 }
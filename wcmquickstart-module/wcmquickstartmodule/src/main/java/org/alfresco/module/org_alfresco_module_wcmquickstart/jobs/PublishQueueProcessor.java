@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2005-2012 Alfresco Software Limited.
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
  *
  * This file is part of the Alfresco Web Quick Start module.
  *
@@ -17,7 +17,17 @@
  */
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.publish.PublishService;
@@ -28,6 +38,7 @@ import org.alfresco.repo.lock.LockAcquisitionException;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.search.ResultSet;
 import org.alfresco.service.cmr.search.ResultSetRow;
@@ -42,6 +53,13 @@ import org.apache.commons.logging.LogFactory;
 /**
  * This class is designed to be run periodically. It looks for all web sites in the repository
  * and publishes any nodes that are waiting in each one's publishing queue
+ * <p>
+ * Each web site is published by a pool of worker threads in its own transaction, holding a job lock
+ * for just that web site, so the queues are read and crawled in parallel - the transfers to the target
+ * are still made one at a time by the publish service. Web sites that are still being published from an
+ * earlier run are skipped. As each cluster node visits the web
+ * sites in a random order, and the lock of a web site is only held by one node at a time, the web
+ * sites are spread across the nodes of a cluster.
  * 
  * @author Brian
  * 
@@ -55,13 +73,24 @@ public class PublishQueueProcessor
     private PublishService publishService;
     private RepositoryState repositoryState;
     private JobLockService jobLockService;
+    private int workerThreads = 4;
 
     private static final long LOCK_TTL = 60000L;
-    private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.PublishQueueProcessor");
+    private static final String LOCK_NAME = "org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.PublishQueueProcessor";
+
+    /** Web sites queued or being published by the workers of this node */
+    private final Set<NodeRef> websitesInProgress = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+    private ThreadPoolExecutor workers;
     
     private class LockCallback implements JobLockRefreshCallback
     {
         final AtomicBoolean running = new AtomicBoolean(true);
+        final QName lockQName;
+
+        LockCallback(QName lockQName)
+        {
+            this.lockQName = lockQName;
+        }
 
         @Override
         public boolean isActive()
@@ -75,7 +104,7 @@ public class PublishQueueProcessor
             running.set(false);
             if (log.isDebugEnabled())
             {
-                log.debug("Lock released : " + LOCK_QNAME);
+                log.debug("Lock released : " + lockQName);
             }
         }
     }
@@ -91,41 +120,169 @@ public class PublishQueueProcessor
             return;
         }
 
-        LockCallback lockCallback = new LockCallback();
+        List<NodeRef> websites = findWebsites();
+        if (log.isDebugEnabled())
+        {
+            log.debug("Running publish queue processor across " + websites.size() + " website nodes");
+        }
+
+        // visit the web sites in a different order on each node, so that the nodes of a cluster
+        // take the locks of different web sites rather than all contending for the same ones
+        Collections.shuffle(websites);
+        ThreadPoolExecutor executor = getWorkers();
+        for (final NodeRef website : websites)
+        {
+            if (websitesInProgress.add(website))
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            publishWebsite(website);
+                        }
+                        finally
+                        {
+                            websitesInProgress.remove(website);
+                        }
+                    }
+                });
+            }
+            else if (log.isDebugEnabled())
+            {
+                log.debug("Website is still being published: " + website);
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads - web sites being published are allowed to complete.
+     */
+    public void shutdown()
+    {
+        synchronized (this)
+        {
+            if (workers != null)
+            {
+                workers.shutdown();
+            }
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getWorkers()
+    {
+        if (workers == null)
+        {
+            workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "WQSPublishQueueProcessor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            workers.allowCoreThreadTimeOut(true);
+        }
+        return workers;
+    }
+
+    private List<NodeRef> findWebsites()
+    {
+        return AuthenticationUtil.runAs(new RunAsWork<List<NodeRef>>()
+        {
+            @Override
+            public List<NodeRef> doWork() throws Exception
+            {
+                return transactionService.getRetryingTransactionHelper().doInTransaction(
+                        new RetryingTransactionCallback<List<NodeRef>>()
+                {
+                    @Override
+                    public List<NodeRef> execute() throws Throwable
+                    {
+                        ResultSet rs = null;
+                        
+                        try
+                        {
+                            //Find all web root nodes
+                            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
+                                SearchService.LANGUAGE_LUCENE, "TYPE:\"" + WebSiteModel.TYPE_WEB_SITE + "\"");
+                            List<NodeRef> websites = new ArrayList<NodeRef>(rs.length());
+                            for (ResultSetRow row : rs)
+                            {
+                                websites.add(row.getNodeRef());
+                            }
+                            return websites;
+                        }
+                        finally
+                        {
+                            if (rs != null) {rs.close();}
+                        }
+                    }   
+                }, true);
+            }
+        }, AuthenticationUtil.SYSTEM_USER_NAME);
+    }
+
+    /**
+     * Publish the queue of a single web site in its own transaction, holding the job lock for the web site.
+     */
+    private void publishWebsite(final NodeRef website)
+    {
+        QName lockQName = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, LOCK_NAME + "." + website.getId());
+        LockCallback lockCallback = new LockCallback(lockQName);
         String lockToken = null;
         try
         {
-            lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+            lockToken = jobLockService.getLock(lockQName, LOCK_TTL);
             if (lockToken == null)
             {
                 if (log.isTraceEnabled())
                 {
-                    log.trace("Can't get lock.");
+                    log.trace("Can't get lock for website " + website);
                 }
                 return;
             }
 
-            if (log.isDebugEnabled())
+            if (log.isTraceEnabled())
             {
-                log.trace("Activities publishQueue processor started");
+                log.trace("Publishing queue of website " + website);
             }
 
-            jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL, lockCallback);
+            jobLockService.refreshLock(lockToken, lockQName, LOCK_TTL, lockCallback);
 
-            runInternal();
-
-            // Done
-            if (log.isDebugEnabled())
+            AuthenticationUtil.runAs(new RunAsWork<Object>()
             {
-                log.trace("Activities publishQueue processor completed");
-            }
+                @Override
+                public Object doWork() throws Exception
+                {
+                    transactionService.getRetryingTransactionHelper().doInTransaction(
+                            new RetryingTransactionCallback<Object>()
+                    {
+                        @Override
+                        public Object execute() throws Throwable
+                        {
+                            publishService.publishQueue(website);
+                            return null;
+                        }   
+                    }, false, true);
+                    return null;
+                }
+            }, AuthenticationUtil.SYSTEM_USER_NAME);
         }
         catch (LockAcquisitionException e)
         {
-            // Job being done by another process
+            // Website being published by another process, or its transfer could not take its turn
+            // with those of other websites - its queue is left for a later run
             if (log.isDebugEnabled())
             {
-                log.debug("Activities publishQueue processor already underway");
+                log.debug("Publishing of website " + website + " deferred: " + e.getMessage());
             }
         }
         catch (VmShutdownException e)
@@ -133,62 +290,25 @@ public class PublishQueueProcessor
             // Aborted
             if (log.isDebugEnabled())
             {
-                log.debug("Activities publishQueue processor aborted");
+                log.debug("Publishing of website " + website + " aborted");
             }
         }
+        catch (RuntimeException e)
+        {
+            // Don't let one website's failure stop the others from being published
+            log.error("Failed to publish the queue of website " + website, e);
+        }
         finally
         {
             // The lock will self-release if answer isActive in the negative
             lockCallback.running.set(false);
             if (lockToken != null)
             {
-                jobLockService.releaseLock(lockToken, LOCK_QNAME);
+                jobLockService.releaseLock(lockToken, lockQName);
             }
         }
     }
 
-    private void runInternal()
-    {
-        AuthenticationUtil.runAs(new RunAsWork<Object>()
-        {
-            @Override
-            public Object doWork() throws Exception
-            {
-                transactionService.getRetryingTransactionHelper().doInTransaction(
-                        new RetryingTransactionCallback<Object>()
-                {
-                    @Override
-                    public Object execute() throws Throwable
-                    {
-                    	ResultSet rs = null;
-                    	
-                    	try
-                    	{
-                            //Find all web root nodes
-                            rs = searchService.query(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, 
-                                SearchService.LANGUAGE_LUCENE, "TYPE:\"" + WebSiteModel.TYPE_WEB_SITE + "\"");
-                     
-                            if (log.isDebugEnabled())
-                            {
-                                log.debug("Running publish queue processor across " + rs.length() + " website nodes");
-                            }
-                            for (ResultSetRow row : rs)
-                            {
-                                publishService.publishQueue(row.getNodeRef());
-                            }
-                    	}
-                    	finally
-                    	{
-                    		if (rs != null) {rs.close();}
-                    	}
-                        return null;
-                    }   
-                });
-                return null;
-            }
-        }, AuthenticationUtil.SYSTEM_USER_NAME);
-    }
-
     public void setSearchService(SearchService searchService)
     {
         this.searchService = searchService;
@@ -213,4 +333,13 @@ public class PublishQueueProcessor
     {
         this.jobLockService = jobLockService;
     }
+
+    /**
+     * Set the number of threads publishing web sites in parallel on this node
+     * @param workerThreads
+     */
+    public void setWorkerThreads(int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+    }
 }
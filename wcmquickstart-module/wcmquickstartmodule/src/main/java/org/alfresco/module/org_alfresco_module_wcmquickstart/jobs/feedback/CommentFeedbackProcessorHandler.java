@@ -18,6 +18,7 @@
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +49,24 @@ public class CommentFeedbackProcessorHandler extends FeedbackProcessorHandlerBas
     /** Summary map key */
     private static final String KEY_SUMMARY_MAP = "summaryMap";
     
+    /**
+     * Creates the "feedbackSummaries" container of the web site of each asset that has no summary node yet, so
+     * that batches of feedback processed in parallel don't both try to create it.
+     * @see org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandler#prepare(java.util.Collection)
+     */
+    @Override
+    public void prepare(Collection<NodeRef> assets)
+    {
+        for (NodeRef asset : assets)
+        {
+            if (nodeService.exists(asset) == true &&
+                nodeService.getSourceAssocs(asset, WebSiteModel.ASSOC_SUMMARISED_ASSET).isEmpty() == true)
+            {
+                siteHelper.getWebSiteContainer(asset, FEEDBACK_SUMMARIES_CONTAINER_NAME);
+            }
+        }
+    }
+    
     /**
      * @see org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandler#processFeedback(org.alfresco.service.cmr.repository.NodeRef)
      */
@@ -119,6 +138,14 @@ public class CommentFeedbackProcessorHandler extends FeedbackProcessorHandlerBas
                 info = new SummaryInfo(summaryNode);
                 nodeSummaryMap.put(relatedAsset, info);
             }
+            if (info == null)
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Skipping a piece of feedback that is related to an asset that no longer exists: " + feedback);
+                }
+                return;
+            }
             if (nodeService.getProperty(feedback, WebSiteModel.PROP_COMMENT) != null)
             {
                 info.commentCount++;
@@ -152,6 +179,10 @@ public class CommentFeedbackProcessorHandler extends FeedbackProcessorHandlerBas
             {
                 SummaryInfo summaryInfo = entry.getValue();
                 NodeRef summaryNode = summaryInfo.summaryNode;
+                if (summaryNode == null)
+                {
+                    continue;
+                }
                 
                 Map<QName,Serializable> props = nodeService.getProperties(summaryNode);
                 
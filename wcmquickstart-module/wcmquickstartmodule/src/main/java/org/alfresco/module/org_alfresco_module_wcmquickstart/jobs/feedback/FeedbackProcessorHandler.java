@@ -17,6 +17,8 @@
  */
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback;
 
+import java.util.Collection;
+
 import org.alfresco.service.cmr.repository.NodeRef;
 
 /**
@@ -33,6 +35,16 @@ public interface FeedbackProcessorHandler
      */
     String getFeedbackType();
     
+    /**
+     * Prepare for the processing of the feedback about the given assets.
+     * <p>
+     * Called once, in a transaction of its own, before batches of feedback are processed by several threads at
+     * once.  Any node that the batches of different assets would otherwise race to create, such as a container
+     * shared by the assets of a web site, should be created here.
+     * @param assets    assets the feedback to be processed relates to
+     */
+    void prepare(Collection<NodeRef> assets);
+    
     /**
      * Process given feedback node.
      * @param feedback  node reference to feedback
@@ -43,7 +55,9 @@ public interface FeedbackProcessorHandler
      * Process feedback callback.  
      * <p>
      * Called once every time the feedback processor has completed
-     * processing of all feedback nodes, providing opportunity to do some last minute processing.
+     * processing of a batch of feedback nodes, in the transaction of the batch, providing opportunity 
+     * to do some last minute processing.  Batches of feedback may be processed by several threads at
+     * once, so state gathered for the callback should be bound to the transaction.
      */
     void processorCallback();
 }
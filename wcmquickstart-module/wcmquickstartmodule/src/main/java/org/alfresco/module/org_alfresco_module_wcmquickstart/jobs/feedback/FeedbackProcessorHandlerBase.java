@@ -17,9 +17,12 @@
  */
 package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback;
 
+import java.util.Collection;
+
 import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.FeedbackProcessor;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.util.SiteHelper;
+import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 
 /**
@@ -95,6 +98,15 @@ public abstract class FeedbackProcessorHandlerBase implements FeedbackProcessorH
         return feedbackType;
     }    
     
+    /**
+     * Default implementation does nothing.
+     * @see org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandler#prepare(java.util.Collection)
+     */
+    @Override
+    public void prepare(Collection<NodeRef> assets)
+    {
+    }
+    
     /**
      * Default implementation does nothing.
      * @see org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandler#processorCallback()
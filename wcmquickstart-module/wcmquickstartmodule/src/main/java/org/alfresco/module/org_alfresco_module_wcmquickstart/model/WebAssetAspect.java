@@ -18,12 +18,15 @@
 package org.alfresco.module.org_alfresco_module_wcmquickstart.model;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.AvailabilityProcessor;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.publish.AssetChangeLog;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.publish.PublishService;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.rendition.RenditionHelper;
 import org.alfresco.repo.content.ContentServicePolicies;
@@ -43,6 +46,7 @@ import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.util.EqualsHelper;
 /**
  * ws:webasset aspect behaviours.
  * 
@@ -67,6 +71,12 @@ public class WebAssetAspect implements WebSiteModel, CopyServicePolicies.OnCopyN
     /** Rendition helper */
     private RenditionHelper renditionHelper;
 
+    /** Asset change log */
+    private AssetChangeLog assetChangeLog;
+
+    /** Availability processor */
+    private AvailabilityProcessor availabilityProcessor;
+
     /**
      * Set the policy component
      * 
@@ -122,6 +132,30 @@ public class WebAssetAspect implements WebSiteModel, CopyServicePolicies.OnCopyN
         this.publishService = publishService;
     }
 
+    /**
+     * Set the log into which changed web assets are recorded for the clients' cache invalidation.
+     * Optional: if not set then changes are not recorded.
+     * 
+     * @param assetChangeLog
+     *            asset change log
+     */
+    public void setAssetChangeLog(AssetChangeLog assetChangeLog)
+    {
+        this.assetChangeLog = assetChangeLog;
+    }
+
+    /**
+     * Set the processor that queues the changes of availability due at web assets' availability dates.
+     * Optional: if not set then the changes are not queued.
+     * 
+     * @param availabilityProcessor
+     *            availability processor
+     */
+    public void setAvailabilityProcessor(AvailabilityProcessor availabilityProcessor)
+    {
+        this.availabilityProcessor = availabilityProcessor;
+    }
+
     /**
      * Init method. Binds model behaviours to policies.
      */
@@ -158,6 +192,18 @@ public class WebAssetAspect implements WebSiteModel, CopyServicePolicies.OnCopyN
     public void onUpdatePropertiesEachEvent(NodeRef nodeRef, Map<QName, Serializable> before,
             Map<QName, Serializable> after)
     {
+        recordChange(nodeRef);
+
+        // Queue the changes of availability due at new availability dates
+        Date afterFrom = (Date) after.get(PROP_AVAILABLE_FROM_DATE);
+        Date afterTo = (Date) after.get(PROP_AVAILABLE_TO_DATE);
+        if (availabilityProcessor != null && 
+                (!EqualsHelper.nullSafeEquals(afterFrom, before.get(PROP_AVAILABLE_FROM_DATE)) || 
+                 !EqualsHelper.nullSafeEquals(afterTo, before.get(PROP_AVAILABLE_TO_DATE))))
+        {
+            availabilityProcessor.scheduleTransitions(nodeRef, afterFrom, afterTo);
+        }
+
         // If the "available" flag is changing to true, then set the published
         // time to "now".
         Boolean afterAvailable = (Boolean) after.get(PROP_AVAILABLE);
@@ -228,6 +274,8 @@ public class WebAssetAspect implements WebSiteModel, CopyServicePolicies.OnCopyN
     @Override
     public void beforeDeleteNode(NodeRef nodeRef)
     {
+        recordChange(nodeRef);
+
         // Enqueue nodes
         publishService.enqueueRemovedNodes(nodeRef);
 
@@ -238,6 +286,20 @@ public class WebAssetAspect implements WebSiteModel, CopyServicePolicies.OnCopyN
         }
     }
 
+    /**
+     * Record a change to a web asset, whether made by publishing or directly, once the transaction commits
+     * 
+     * @param nodeRef
+     *            changed web asset
+     */
+    private void recordChange(NodeRef nodeRef)
+    {
+        if (assetChangeLog != null)
+        {
+            assetChangeLog.recordChangesOnCommit(Collections.singleton(nodeRef));
+        }
+    }
+
     /**
      * Remove all the associations in the list
      * 
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.publish;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded log of the web asset nodes that have changed. Each recorded change is given a monotonically
+ * increasing sequence number so that a client can ask for "everything since N" and evict only the affected
+ * entries from its caches.
+ * <p>
+ * The log is held by the attribute service, so it is shared by every node of a cluster and survives restarts.
+ * Only the most recent <code>capacity</code> changes are retained. The log has a random epoch, which changes
+ * if the log itself is lost and started afresh, or if committed changes fail to be recorded. A client that sees
+ * a new epoch, or that asks for changes older than the oldest one retained (a gap), can't tell what it has missed
+ * and must revalidate its caches by other means.
+ */
+public class AssetChangeLog
+{
+    private static final Log log = LogFactory.getLog(AssetChangeLog.class);
+
+    private static final String ATTR_KEY_1 = ".wcmqs";
+    private static final String ATTR_KEY_2 = "assetChangeLog";
+    private static final String ATTR_KEY_EPOCH = "epoch";
+    private static final String ATTR_KEY_FIRST = "first";
+    private static final String ATTR_KEY_LATEST = "latest";
+    private static final String KEY_PENDING_CHANGES = AssetChangeLog.class.getName() + ".pendingChanges";
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private int capacity = 10000;
+
+    /** The changes of committed transactions that are waiting to be written to the log */
+    private final Queue<NodeRef> committedChanges = new ConcurrentLinkedQueue<NodeRef>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public void setAttributeService(AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setCapacity(int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("capacity == " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Record that the specified nodes have changed once, and only if, the current transaction commits.
+     * Nodes recorded more than once in a transaction are logged once.
+     * <p>
+     * The changes of the transactions that commit while this node is already writing to the log are gathered up
+     * and written together once it has finished, so that concurrent transactions don't each contend for the
+     * latest sequence number.
+     *
+     * @param nodes the changed nodes
+     */
+    public void recordChangesOnCommit(Collection<NodeRef> nodes)
+    {
+        Set<NodeRef> pendingChanges = AlfrescoTransactionSupport.getResource(KEY_PENDING_CHANGES);
+        if (pendingChanges == null)
+        {
+            pendingChanges = new LinkedHashSet<NodeRef>();
+            AlfrescoTransactionSupport.bindResource(KEY_PENDING_CHANGES, pendingChanges);
+            final Set<NodeRef> changes = pendingChanges;
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    if (!changes.isEmpty())
+                    {
+                        recordCommittedChanges(changes);
+                    }
+                }
+            });
+        }
+        pendingChanges.addAll(nodes);
+    }
+
+    /**
+     * Record the changes of a committed transaction, unless another thread is already writing to the log in
+     * which case it records them once it has finished
+     *
+     * @param changes the nodes changed by the transaction
+     */
+    void recordCommittedChanges(Collection<NodeRef> changes)
+    {
+        committedChanges.addAll(changes);
+        //Check for more changes once we've let go of the lock, in case they were added just as we did so
+        while (!committedChanges.isEmpty() && writeLock.tryLock())
+        {
+            try
+            {
+                Set<NodeRef> changes = new LinkedHashSet<NodeRef>();
+                for (NodeRef node = committedChanges.poll(); node != null; node = committedChanges.poll())
+                {
+                    changes.add(node);
+                }
+                if (changes.isEmpty())
+                {
+                    continue;
+                }
+                try
+                {
+                    long sequence = recordChanges(changes);
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Recorded " + changes.size() + " asset changes up to sequence " + sequence);
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    log.error("Failed to record " + changes.size() + " asset changes: " + changes, ex);
+                    startNewEpoch();
+                }
+            }
+            finally
+            {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Give the log a new epoch after changes have failed to be recorded, so that the clients, which can't tell
+     * which changes they have missed, revalidate their caches by other means
+     */
+    private void startNewEpoch()
+    {
+        try
+        {
+            transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                @Override
+                public Object execute() throws Throwable
+                {
+                    if (attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_LATEST) == null)
+                    {
+                        createLog();
+                    }
+                    else
+                    {
+                        attributeService.setAttribute(GUID.generate(), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_EPOCH);
+                    }
+                    return null;
+                }
+            }, false, true);
+            log.warn("Started a new asset change log epoch so that clients resynchronise their caches");
+        }
+        catch (RuntimeException ex)
+        {
+            log.error("Failed to start a new asset change log epoch. Clients may serve changed assets stale until they are restarted", ex);
+        }
+    }
+
+    /**
+     * Record that the specified nodes have changed, in a transaction of its own
+     *
+     * @param nodes the changed nodes
+     * @return the sequence number of the last recorded change
+     */
+    public long recordChanges(final Collection<NodeRef> nodes)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Long>()
+        {
+            @Override
+            public Long execute() throws Throwable
+            {
+                Long latestAttribute = (Long) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_LATEST);
+                if (latestAttribute == null)
+                {
+                    createLog();
+                    latestAttribute = 0L;
+                }
+                long latest = latestAttribute + nodes.size();
+                //Every writer, on this node or any other, updates the latest sequence number first. Concurrent
+                //writers therefore fail on it (and are retried) rather than allocating the same sequence numbers
+                attributeService.setAttribute(Long.valueOf(latest), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_LATEST);
+                long sequence = latestAttribute;
+                for (NodeRef node : nodes)
+                {
+                    attributeService.setAttribute(node.toString(), ATTR_KEY_1, ATTR_KEY_2, Long.valueOf(++sequence));
+                }
+                Long firstAttribute = (Long) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_FIRST);
+                long first = firstAttribute == null ? 1L : firstAttribute;
+                if (latest - first >= capacity)
+                {
+                    for (; latest - first >= capacity; ++first)
+                    {
+                        attributeService.removeAttribute(ATTR_KEY_1, ATTR_KEY_2, Long.valueOf(first));
+                    }
+                    attributeService.setAttribute(Long.valueOf(first), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_FIRST);
+                }
+                return latest;
+            }
+        }, false, true);
+    }
+
+    private void createLog()
+    {
+        attributeService.setAttribute(GUID.generate(), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_EPOCH);
+        attributeService.setAttribute(Long.valueOf(1L), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_FIRST);
+        attributeService.setAttribute(Long.valueOf(0L), ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_LATEST);
+    }
+
+    /**
+     * Obtain the changes that have been recorded after the specified sequence number
+     *
+     * @param since the sequence number of the last change that the caller already knows about
+     * @param maxChanges the maximum number of changes to return
+     * @return the changes recorded after <code>since</code>
+     */
+    public Changes getChangesSince(final long since, final int maxChanges)
+    {
+        RetryingTransactionCallback<Changes> readCallback = new RetryingTransactionCallback<Changes>()
+        {
+            @Override
+            public Changes execute() throws Throwable
+            {
+                return readChangesSince(since, maxChanges);
+            }
+        };
+        Changes changes = transactionService.getRetryingTransactionHelper().doInTransaction(readCallback, true);
+        if (changes == null)
+        {
+            //Nothing has been recorded yet, so start the log in order to give the caller an epoch to follow
+            transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+            {
+                @Override
+                public Object execute() throws Throwable
+                {
+                    if (attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_EPOCH) == null)
+                    {
+                        createLog();
+                    }
+                    return null;
+                }
+            }, false, true);
+            changes = transactionService.getRetryingTransactionHelper().doInTransaction(readCallback, true);
+        }
+        return changes;
+    }
+
+    private Changes readChangesSince(long since, int maxChanges)
+    {
+        String epoch = (String) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_EPOCH);
+        Long latestAttribute = (Long) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_LATEST);
+        Long firstAttribute = (Long) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, ATTR_KEY_FIRST);
+        if (epoch == null || latestAttribute == null || firstAttribute == null)
+        {
+            return null;
+        }
+        long latest = latestAttribute;
+        long first = firstAttribute;
+        //The caller has missed changes that are no longer retained, or knows of changes that this log doesn't
+        boolean gap = since < first - 1 || since > latest;
+        long from = Math.max(since + 1, first);
+        long to = Math.min(latest, from + Math.max(maxChanges, 0) - 1);
+
+        List<String> ids;
+        if (to < from)
+        {
+            ids = Collections.emptyList();
+            to = Math.min(Math.max(since, first - 1), latest);
+        }
+        else
+        {
+            ids = new ArrayList<String>((int) (to - from + 1));
+            for (long sequence = from; sequence <= to; ++sequence)
+            {
+                String id = (String) attributeService.getAttribute(ATTR_KEY_1, ATTR_KEY_2, Long.valueOf(sequence));
+                if (id == null)
+                {
+                    //Pruned by a writer since we read the oldest sequence number
+                    gap = true;
+                }
+                else
+                {
+                    ids.add(id);
+                }
+            }
+        }
+        return new Changes(epoch, first, latest, to, gap, ids);
+    }
+
+    public static class Changes
+    {
+        private final String epoch;
+        private final long first;
+        private final long latest;
+        private final long last;
+        private final boolean gap;
+        private final List<String> ids;
+
+        public Changes(String epoch, long first, long latest, long last, boolean gap, List<String> ids)
+        {
+            this.epoch = epoch;
+            this.first = first;
+            this.latest = latest;
+            this.last = last;
+            this.gap = gap;
+            this.ids = ids;
+        }
+
+        /**
+         * @return the epoch of the log that produced these changes
+         */
+        public String getEpoch()
+        {
+            return epoch;
+        }
+
+        /**
+         * @return the sequence number of the oldest change still retained by the log
+         */
+        public long getFirst()
+        {
+            return first;
+        }
+
+        /**
+         * @return the sequence number of the most recent change recorded in the log
+         */
+        public long getLatest()
+        {
+            return latest;
+        }
+
+        /**
+         * @return the sequence number of the last change included in {@link #getIds()}
+         */
+        public long getLast()
+        {
+            return last;
+        }
+
+        /**
+         * @return true if the log can't account for every change after the requested sequence number
+         */
+        public boolean isGap()
+        {
+            return gap;
+        }
+
+        public List<String> getIds()
+        {
+            return ids;
+        }
+    }
+}
@@ -18,23 +18,33 @@
 package org.alfresco.module.org_alfresco_module_wcmquickstart.publish;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.alfresco.model.ContentModel;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.util.SiteHelper;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.JobLockService.JobLockRefreshCallback;
+import org.alfresco.repo.lock.LockAcquisitionException;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.repository.AssociationRef;
 import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.Path;
@@ -47,7 +57,7 @@ import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.service.namespace.RegexQNamePattern;
 import org.alfresco.service.transaction.TransactionService;
-import org.alfresco.util.GUID;
+import org.alfresco.util.EqualsHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -55,6 +65,9 @@ public class PublishServiceImpl implements PublishService
 {
     private final static Log log = LogFactory.getLog(PublishServiceImpl.class);
     private final static String PUBLISH_QUEUE_NAME = "publishingQueue";
+    private final static String TRANSFER_LOCK_NAME = "org.alfresco.module.org_alfresco_module_wcmquickstart.publish.PublishServiceImpl.transfer";
+    private final static long TRANSFER_LOCK_TTL = 60000L;
+    private final static long TRANSFER_LOCK_RETRY_WAIT = 1000L;
     private final static Set<String> DEFAULT_ASPECTS_TO_EXCLUDE = new TreeSet<String>();
     
     static 
@@ -73,6 +86,19 @@ public class PublishServiceImpl implements PublishService
     private String transferTargetName = "Internal Target";
     private Set<String> aspectsToExclude = DEFAULT_ASPECTS_TO_EXCLUDE;
     private int maxPublishAttempts = 3;
+    private int chunkSize = 1000;
+    private long chunkContentSize = 256L * 1024L * 1024L;
+    private AssetChangeLog assetChangeLog;
+    private NodeRefMapper nodeRefMapper;
+    private JobLockService jobLockService;
+    private long transferLockWait = 300000L;
+
+    /**
+     * Web sites are published in parallel, but the transfer receiver takes a lock on the target for each transfer,
+     * so the transfers to the target are made one at a time - by this lock for the publishes of this node and by a
+     * job lock for those of the cluster.
+     */
+    private final ReentrantLock transferLock = new ReentrantLock(true);
 
     public void setSiteHelper(SiteHelper siteHelper)
     {
@@ -137,6 +163,62 @@ public class PublishServiceImpl implements PublishService
         this.maxPublishAttempts = maxPublishAttempts;
     }
 
+    /**
+     * Set the maximum number of queue entries transferred together. A larger queue is published
+     * in chunks, each transferred and removed from the queue in its own transaction.
+     * @param chunkSize
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set the content size in bytes of the queued nodes above which a chunk of the queue is closed.
+     * Zero or less to chunk the queue by the number of entries only.
+     * @param chunkContentSize
+     */
+    public void setChunkContentSize(long chunkContentSize)
+    {
+        this.chunkContentSize = chunkContentSize;
+    }
+
+    /**
+     * Set the log into which the live nodes changed by each successful publish are recorded.
+     * Optional: if not set then changes are not recorded.
+     * @param assetChangeLog
+     */
+    public void setAssetChangeLog(AssetChangeLog assetChangeLog)
+    {
+        this.assetChangeLog = assetChangeLog;
+    }
+
+    public void setNodeRefMapper(NodeRefMapper nodeRefMapper)
+    {
+        this.nodeRefMapper = nodeRefMapper;
+    }
+
+    /**
+     * Set the job lock service used to make the transfers of the nodes of a cluster to the target one at a time.
+     * Optional: if not set then only the transfers of this node are made one at a time.
+     * @param jobLockService
+     */
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    /**
+     * Set the longest time in milliseconds a publish waits for the publishes of other web sites to finish
+     * transferring to the target. If it can't take its turn in that time, its queue entries are left
+     * untouched for a later run to publish.
+     * @param transferLockWait
+     */
+    public void setTransferLockWait(long transferLockWait)
+    {
+        this.transferLockWait = transferLockWait;
+    }
+
     public void enqueuePublishedNodes(final NodeRef... nodes)
     {
         enqueueNodes(false, nodes);
@@ -175,16 +257,44 @@ public class PublishServiceImpl implements PublishService
             NodeRef publishingQueue = siteHelper.getWebSiteContainer(nodes[0], PUBLISH_QUEUE_NAME);
             if (publishingQueue != null && !nodeService.hasAspect(publishingQueue, ContentModel.ASPECT_PENDING_DELETE)) // DW
             {
+                //The queue holds a single entry for each node, named after the node, so repeated requests
+                //for a node update its entry - the last requested action wins
+                Map<String, NodeRef> nodesByEntryName = new LinkedHashMap<String, NodeRef>(nodes.length * 2);
                 for (NodeRef node : nodes)
                 {
+                    nodesByEntryName.put(node.getId(), node);
+                }
+                Map<String, NodeRef> existingEntries = new HashMap<String, NodeRef>(nodes.length * 2);
+                for (ChildAssociationRef assoc : nodeService.getChildrenByName(publishingQueue, 
+                        ContentModel.ASSOC_CONTAINS, nodesByEntryName.keySet()))
+                {
+                    existingEntries.put(assoc.getQName().getLocalName(), assoc.getChildRef());
+                }
+
+                Date now = new Date();
+                for (Map.Entry<String, NodeRef> entry : nodesByEntryName.entrySet())
+                {
+                    String name = entry.getKey();
                     Map<QName, Serializable> props = new HashMap<QName, Serializable>();
-                    String name = GUID.generate();
-                    props.put(ContentModel.PROP_NAME, name);
-                    //Storing noderefs of deleted nodes doesn't work, so we'll store a text representation instead...
-                    props.put(WebSiteModel.PROP_QUEUED_NODE, node.toString());
                     props.put(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL, remove);
-                    nodeService.createNode(publishingQueue, ContentModel.ASSOC_CONTAINS, QName.createQName(
-                            WebSiteModel.NAMESPACE, name), WebSiteModel.TYPE_PUBLISH_QUEUE_ENTRY, props);
+                    //The time is always changed so that a publish that has already read the entry can tell it
+                    //has been queued again, and keep it rather than deleting it with the newer request
+                    props.put(WebSiteModel.PROP_QUEUED_TIME, now);
+                    NodeRef queueEntry = existingEntries.get(name);
+                    if (queueEntry != null)
+                    {
+                        //Queued again, so give it a fresh set of publishing attempts
+                        props.put(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, 0);
+                        nodeService.addProperties(queueEntry, props);
+                    }
+                    else
+                    {
+                        props.put(ContentModel.PROP_NAME, name);
+                        //Storing noderefs of deleted nodes doesn't work, so we'll store a text representation instead...
+                        props.put(WebSiteModel.PROP_QUEUED_NODE, entry.getValue().toString());
+                        nodeService.createNode(publishingQueue, ContentModel.ASSOC_CONTAINS, QName.createQName(
+                                WebSiteModel.NAMESPACE, name), WebSiteModel.TYPE_PUBLISH_QUEUE_ENTRY, props);
+                    }
                 }
             }
         }
@@ -208,98 +318,37 @@ public class PublishServiceImpl implements PublishService
             Path targetPath = nodeService.getPath(targetSite);
             pathMapper.addPathMapping(sourcePath, targetPath);
 
-            Set<NodeRef> nodesToTransfer = new HashSet<NodeRef>(89);
-            Set<NodeRef> nodesToRemoveOnTransfer = new HashSet<NodeRef>(89);
             NodeRef queue = siteHelper.getWebSiteContainer(websiteId, PUBLISH_QUEUE_NAME);
             if (queue != null)
             {
-                List<ChildAssociationRef> publishedNodes = nodeService.getChildAssocs(queue,
-                        ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL);
-                for (ChildAssociationRef assoc : publishedNodes)
+                //Load the queue entries and their properties together rather than one at a time
+                List<ChildAssociationRef> queueEntries = nodeService.getChildAssocs(queue,
+                        ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL, true);
+                List<List<ChildAssociationRef>> chunks = chunkQueue(queueEntries);
+                if (chunks.size() == 1)
                 {
-                    NodeRef queueEntry = assoc.getChildRef();
-                    NodeRef node = new NodeRef((String) nodeService.getProperty(queueEntry, WebSiteModel.PROP_QUEUED_NODE));
-                    boolean remove = (Boolean) nodeService.getProperty(queueEntry, WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL);
-                    if (remove)
-                    {
-                        nodesToRemoveOnTransfer.add(node);
-                    }
-                    else
-                    {
-                        nodesToTransfer.add(node);
-                    }
+                    publishEntries(chunks.get(0));
                 }
-                if (!nodesToTransfer.isEmpty() || !nodesToRemoveOnTransfer.isEmpty())
+                else if (chunks.size() > 1)
                 {
                     if (log.isDebugEnabled())
                     {
-                        log.debug("PublishService is about to crawl these nodes: " + nodesToTransfer);
-                    }
-                    //Given the nodes that have been supplied, find any others that we will want to transfer too
-                    // (note that we don't do any crawling of nodes that are to be removed)
-                    NodeCrawler crawler = nodeCrawlerFactory.getNodeCrawler();
-                    configureNodeCrawler(crawler);
-                    nodesToTransfer = crawler.crawl(nodesToTransfer);
-
-                    if (log.isDebugEnabled())
-                    {
-                        log.debug("PublishService has crawled the queued nodes and is about to transfer these nodes: " + nodesToTransfer);
-                    }
-                    
-                    TransferDefinition def = new TransferDefinition();
-                    def.setNodes(nodesToTransfer);
-                    def.setNodesToRemove(nodesToRemoveOnTransfer);
-                    Set<QName> aspectQNames = new HashSet<QName>();
-                    for (String aspectToExclude : aspectsToExclude)
-                    {
-                        aspectQNames.add(QName.createQName(aspectToExclude, namespaceService));
-                    }
-                    def.setExcludedAspects(aspectQNames);
-                    
-                    try
-                    {
-                        transferService.transfer(transferTargetName, def);
+                        log.debug("Publishing " + queueEntries.size() + " queue entries of website " + websiteId + 
+                                " in " + chunks.size() + " chunks");
                     }
-                    catch (TransferFailureException e)
+                    //Each chunk is transferred and removed from the queue in its own transaction, so a failure
+                    //leaves only the entries of the failed chunk and those after it to be published by a later run
+                    for (final List<ChildAssociationRef> chunk : chunks)
                     {
-                        final List<ChildAssociationRef> finalPublishedNodes = publishedNodes;
                         transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
                         {
-
                             @Override
                             public Object execute() throws Throwable
                             {
-                                for (ChildAssociationRef childRef : finalPublishedNodes)
-                                {
-                                    Integer failedAttCount = (Integer) nodeService.getProperty(childRef.getChildRef(), WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT);
-                                    if (failedAttCount == null)
-                                    {
-                                        failedAttCount = 0;
-                                    }
-
-                                    failedAttCount++;
-                                    if (failedAttCount == maxPublishAttempts)
-                                    {
-                                        nodeService.deleteNode(childRef.getChildRef());
-                                    }
-                                    else
-                                    {
-                                        nodeService.setProperty(childRef.getChildRef(), WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, failedAttCount);
-                                    }
-                                }
+                                publishEntries(chunk);
                                 return null;
                             }
-
                         }, false, true);
-
-                        throw e;
-                    }
-    
-                    // If we get here then the transfer must have completed. Delete
-                    // the queue entries that we have processed
-                    for (ChildAssociationRef assoc : publishedNodes)
-                    {
-                        nodeService.deleteNode(assoc.getChildRef());
                     }
                 }
             }
@@ -318,7 +367,301 @@ public class PublishServiceImpl implements PublishService
             }
         }
     }
+
+    /**
+     * Split the entries of a publishing queue, in queue order, into chunks of at most the chunk size
+     * and of at most the chunk content size - unless a single entry is larger.
+     */
+    private List<List<ChildAssociationRef>> chunkQueue(List<ChildAssociationRef> queueEntries)
+    {
+        List<List<ChildAssociationRef>> chunks = new ArrayList<List<ChildAssociationRef>>();
+        List<ChildAssociationRef> chunk = new ArrayList<ChildAssociationRef>();
+        long chunkBytes = 0L;
+        for (ChildAssociationRef assoc : queueEntries)
+        {
+            long size = chunkContentSize > 0L ? getQueuedContentSize(assoc.getChildRef()) : 0L;
+            if (!chunk.isEmpty() && (chunk.size() >= chunkSize || (chunkContentSize > 0L && chunkBytes + size > chunkContentSize)))
+            {
+                chunks.add(chunk);
+                chunk = new ArrayList<ChildAssociationRef>();
+                chunkBytes = 0L;
+            }
+            chunk.add(assoc);
+            chunkBytes += size;
+        }
+        if (!chunk.isEmpty())
+        {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private long getQueuedContentSize(NodeRef queueEntry)
+    {
+        Map<QName, Serializable> props = nodeService.getProperties(queueEntry);
+        if (Boolean.TRUE.equals(props.get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL)))
+        {
+            return 0L;
+        }
+        NodeRef node = new NodeRef((String) props.get(WebSiteModel.PROP_QUEUED_NODE));
+        if (!nodeService.exists(node))
+        {
+            return 0L;
+        }
+        ContentData content = (ContentData) nodeService.getProperty(node, ContentModel.PROP_CONTENT);
+        return content == null ? 0L : content.getSize();
+    }
+
+    /**
+     * Transfer the nodes of the given publishing queue entries and, once transferred, delete the entries.
+     * If the transfer fails the failed attempts count of each entry is incremented.
+     * <p>
+     * An entry queued again while it is being published holds a newer request than the one transferred,
+     * so it is kept - with a fresh set of publishing attempts - for the next run to publish.
+     */
+    private void publishEntries(final List<ChildAssociationRef> publishedNodes)
+    {
+        Set<NodeRef> nodesToTransfer = new HashSet<NodeRef>(89);
+        Set<NodeRef> nodesToRemoveOnTransfer = new HashSet<NodeRef>(89);
+        //The properties of each entry as read, to tell whether it has been queued again once transferred
+        final Map<NodeRef, Map<QName, Serializable>> readEntries = new HashMap<NodeRef, Map<QName, Serializable>>(
+                publishedNodes.size() * 2);
+        for (ChildAssociationRef assoc : publishedNodes)
+        {
+            Map<QName, Serializable> props = nodeService.getProperties(assoc.getChildRef());
+            readEntries.put(assoc.getChildRef(), props);
+            NodeRef node = new NodeRef((String) props.get(WebSiteModel.PROP_QUEUED_NODE));
+            boolean remove = Boolean.TRUE.equals(props.get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL));
+            if (remove)
+            {
+                nodesToRemoveOnTransfer.add(node);
+            }
+            else
+            {
+                nodesToTransfer.add(node);
+            }
+        }
+        if (!nodesToTransfer.isEmpty() || !nodesToRemoveOnTransfer.isEmpty())
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("PublishService is about to crawl these nodes: " + nodesToTransfer);
+            }
+            //Given the nodes that have been supplied, find any others that we will want to transfer too
+            // (note that we don't do any crawling of nodes that are to be removed)
+            NodeCrawler crawler = nodeCrawlerFactory.getNodeCrawler();
+            configureNodeCrawler(crawler);
+            nodesToTransfer = crawler.crawl(nodesToTransfer);
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("PublishService has crawled the queued nodes and is about to transfer these nodes: " + nodesToTransfer);
+            }
+            
+            TransferDefinition def = new TransferDefinition();
+            def.setNodes(nodesToTransfer);
+            def.setNodesToRemove(nodesToRemoveOnTransfer);
+            Set<QName> aspectQNames = new HashSet<QName>();
+            for (String aspectToExclude : aspectsToExclude)
+            {
+                aspectQNames.add(QName.createQName(aspectToExclude, namespaceService));
+            }
+            def.setExcludedAspects(aspectQNames);
+            
+            try
+            {
+                transfer(def);
+            }
+            catch (TransferFailureException e)
+            {
+                transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Object>()
+                {
+
+                    @Override
+                    public Object execute() throws Throwable
+                    {
+                        for (ChildAssociationRef childRef : publishedNodes)
+                        {
+                            Map<QName, Serializable> props = nodeService.getProperties(childRef.getChildRef());
+                            if (isQueuedAgain(readEntries.get(childRef.getChildRef()), props))
+                            {
+                                //The newer request hasn't been attempted yet
+                                nodeService.setProperty(childRef.getChildRef(), WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, 0);
+                                continue;
+                            }
+                            Integer failedAttCount = (Integer) props.get(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT);
+                            if (failedAttCount == null)
+                            {
+                                failedAttCount = 0;
+                            }
+
+                            failedAttCount++;
+                            if (failedAttCount == maxPublishAttempts)
+                            {
+                                nodeService.deleteNode(childRef.getChildRef());
+                            }
+                            else
+                            {
+                                nodeService.setProperty(childRef.getChildRef(), WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, failedAttCount);
+                            }
+                        }
+                        return null;
+                    }
+
+                }, false, true);
+
+                throw e;
+            }
+
+            // If we get here then the transfer must have completed. Delete
+            // the queue entries that we have processed, unless they have
+            // been queued again since they were read
+            Set<NodeRef> queuedAgain = findEntriesQueuedAgain(readEntries);
+            for (ChildAssociationRef assoc : publishedNodes)
+            {
+                if (queuedAgain.contains(assoc.getChildRef()))
+                {
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Keeping queue entry queued again during its publish: " + assoc.getChildRef());
+                    }
+                    nodeService.setProperty(assoc.getChildRef(), WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, 0);
+                }
+                else
+                {
+                    nodeService.deleteNode(assoc.getChildRef());
+                }
+            }
+            recordChanges(nodesToTransfer, nodesToRemoveOnTransfer);
+        }
+    }
+
+    /**
+     * Re-read the given queue entries, in a new transaction so that requests committed since they were
+     * read are seen, and return those that have been queued again.
+     */
+    private Set<NodeRef> findEntriesQueuedAgain(final Map<NodeRef, Map<QName, Serializable>> readEntries)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Set<NodeRef>>()
+        {
+            @Override
+            public Set<NodeRef> execute() throws Throwable
+            {
+                Set<NodeRef> queuedAgain = new HashSet<NodeRef>();
+                for (Map.Entry<NodeRef, Map<QName, Serializable>> entry : readEntries.entrySet())
+                {
+                    if (nodeService.exists(entry.getKey()) && 
+                            isQueuedAgain(entry.getValue(), nodeService.getProperties(entry.getKey())))
+                    {
+                        queuedAgain.add(entry.getKey());
+                    }
+                }
+                return queuedAgain;
+            }
+        }, true, true);
+    }
+
+    /**
+     * @return true if the queued time or the requested action of a queue entry differ from when it was read
+     */
+    private static boolean isQueuedAgain(Map<QName, Serializable> readProps, Map<QName, Serializable> props)
+    {
+        return !EqualsHelper.nullSafeEquals(readProps.get(WebSiteModel.PROP_QUEUED_TIME), props.get(WebSiteModel.PROP_QUEUED_TIME)) ||
+                Boolean.TRUE.equals(readProps.get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL)) != 
+                        Boolean.TRUE.equals(props.get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL));
+    }
     
+    /**
+     * Transfer to the target, once the transfers of any other web sites to it have finished. A transfer that
+     * can't take its turn throws a LockAcquisitionException, which doesn't count as a failed publishing attempt.
+     */
+    private void transfer(TransferDefinition def)
+    {
+        long start = System.currentTimeMillis();
+        try
+        {
+            if (!transferLock.tryLock(transferLockWait, TimeUnit.MILLISECONDS))
+            {
+                throw new LockAcquisitionException("Timed out waiting to transfer to target: " + transferTargetName);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new LockAcquisitionException("Interrupted waiting to transfer to target: " + transferTargetName);
+        }
+        try
+        {
+            if (jobLockService == null)
+            {
+                transferService.transfer(transferTargetName, def);
+                return;
+            }
+            QName lockQName = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, TRANSFER_LOCK_NAME + "." + transferTargetName);
+            long remainingWait = Math.max(0L, transferLockWait - (System.currentTimeMillis() - start));
+            String lockToken = jobLockService.getLock(lockQName, TRANSFER_LOCK_TTL, TRANSFER_LOCK_RETRY_WAIT, 
+                    (int) (remainingWait / TRANSFER_LOCK_RETRY_WAIT));
+            final AtomicBoolean running = new AtomicBoolean(true);
+            try
+            {
+                jobLockService.refreshLock(lockToken, lockQName, TRANSFER_LOCK_TTL, new JobLockRefreshCallback()
+                {
+                    @Override
+                    public boolean isActive()
+                    {
+                        return running.get();
+                    }
+
+                    @Override
+                    public void lockReleased()
+                    {
+                        running.set(false);
+                    }
+                });
+                transferService.transfer(transferTargetName, def);
+            }
+            finally
+            {
+                running.set(false);
+                jobLockService.releaseLock(lockToken, lockQName);
+            }
+        }
+        finally
+        {
+            transferLock.unlock();
+        }
+    }
+
+    /**
+     * Once the current transaction has committed, record the live nodes that have been changed by a publish
+     * so that clients polling the change log can evict them from their caches. Most of these are also recorded
+     * by the web asset behaviours as the transfer updates them, but nodes removed from the live site may not be.
+     * @param transferredNodes the source nodes that have been transferred
+     * @param removedNodes the source nodes that have been removed from the live site
+     */
+    private void recordChanges(Set<NodeRef> transferredNodes, Set<NodeRef> removedNodes)
+    {
+        if (assetChangeLog == null)
+        {
+            return;
+        }
+        Set<NodeRef> changedNodes = new HashSet<NodeRef>((transferredNodes.size() + removedNodes.size()) * 2);
+        for (Set<NodeRef> nodes : Arrays.asList(transferredNodes, removedNodes))
+        {
+            for (NodeRef node : nodes)
+            {
+                //Nodes inside the website are given new ids on the live site, but those outside it keep their own.
+                //Record both since we can't cheaply tell which case applies here
+                changedNodes.add(node);
+                if (nodeRefMapper != null)
+                {
+                    changedNodes.add(nodeRefMapper.mapSourceNodeRef(node));
+                }
+            }
+        }
+        assetChangeLog.recordChangesOnCommit(changedNodes);
+    }
+
     /**
      * Set up the supplied node crawler to find other nodes that should be published too.
      * Override this if necessary, or (preferably) inject a different configurer
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.alfresco.model.ContentModel;
 import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
@@ -62,7 +63,7 @@ public class WebPublishingManifestNodeFactory implements TransferManifestNodeFac
      * 
      * <From Path, To Path>
      */
-    private List<Pair<Path, Path>> pathMap = new ArrayList<Pair<Path, Path>>();
+    private List<Pair<Path, Path>> pathMap = new CopyOnWriteArrayList<Pair<Path, Path>>();
 
     /**
      * The node factory that does the work for real.
@@ -329,7 +330,7 @@ public class WebPublishingManifestNodeFactory implements TransferManifestNodeFac
 
     public void setPathMap(List<Pair<Path, Path>> pathMap)
     {
-        this.pathMap = new ArrayList<Pair<Path,Path>>(pathMap);
+        this.pathMap = new CopyOnWriteArrayList<Pair<Path,Path>>(pathMap);
     }
 
     public void addPathMapping(Path source, Path target)
@@ -337,10 +338,11 @@ public class WebPublishingManifestNodeFactory implements TransferManifestNodeFac
         addPathMapping(new Pair<Path, Path>(source, target));
     }
     
-    public void addPathMapping(Pair<Path,Path> mapping)
+    public synchronized void addPathMapping(Pair<Path,Path> mapping)
     {
         //Check whether we already have a mapping for the source path.
-        //Replace it if we have, add it if we haven't
+        //Replace it if we have, add it if we haven't. Web sites are published in parallel, so the
+        //mappings are replaced rather than changed in place under a concurrent getMappedPath
         boolean found = false;
         Path source = mapping.getFirst();
         for (int index = 0; index < pathMap.size(); ++index)
@@ -348,7 +350,7 @@ public class WebPublishingManifestNodeFactory implements TransferManifestNodeFac
             Pair<Path,Path> pair = pathMap.get(index);
             if (pair.getFirst().equals(source))
             {
-                pair.setSecond(mapping.getSecond());
+                pathMap.set(index, mapping);
                 found = true;
                 break;
             }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.webscript;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.module.org_alfresco_module_wcmquickstart.publish.AssetChangeLog;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Asset changes GET implementation. Returns the ids of the web assets that have changed, whether by
+ * publishing or directly, since a given sequence number, so that clients can evict just those from their
+ * caches. At most <code>maxChanges</code> changes are returned by a request, however many are asked for.
+ */
+public class AssetChangesGet extends DeclarativeWebScript
+{
+    private static final String PARAM_SINCE = "since";
+    private static final String PARAM_MAX = "max";
+
+    private AssetChangeLog assetChangeLog;
+    private int defaultMaxChanges = 1000;
+    private int maxChanges = 5000;
+
+    public void setAssetChangeLog(AssetChangeLog assetChangeLog)
+    {
+        this.assetChangeLog = assetChangeLog;
+    }
+
+    public void setDefaultMaxChanges(int defaultMaxChanges)
+    {
+        this.defaultMaxChanges = defaultMaxChanges;
+    }
+
+    public void setMaxChanges(int maxChanges)
+    {
+        this.maxChanges = maxChanges;
+    }
+
+    /**
+     * @see org.springframework.extensions.webscripts.DeclarativeWebScript#executeImpl(org.springframework.extensions.webscripts.WebScriptRequest,
+     *      org.springframework.extensions.webscripts.Status,
+     *      org.springframework.extensions.webscripts.Cache)
+     */
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache)
+    {
+        long since = parseLong(req.getParameter(PARAM_SINCE), 0L);
+        int max = (int) Math.max(0L, Math.min(parseLong(req.getParameter(PARAM_MAX), defaultMaxChanges), maxChanges));
+
+        Map<String, Object> model = new HashMap<String, Object>(1);
+        model.put("changes", assetChangeLog.getChangesSince(since, max));
+        return model;
+    }
+
+    private long parseLong(String value, long defaultValue)
+    {
+        long result = defaultValue;
+        if (value != null && value.length() != 0)
+        {
+            try
+            {
+                result = Long.parseLong(value);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid numeric parameter value: " + value);
+            }
+        }
+        return result;
+    }
+}
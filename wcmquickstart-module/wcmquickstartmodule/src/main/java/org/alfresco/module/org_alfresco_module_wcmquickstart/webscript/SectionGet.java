@@ -160,9 +160,13 @@ public class SectionGet extends AbstractWebScript
                 Map<QName, Serializable> properties;
                 if (onlyModifiedTime)
                 {
-                    properties = new HashMap<QName, Serializable>(3);
+                    // The parent and order index let clients tell when sections have been moved or reordered
+                    properties = new HashMap<QName, Serializable>(5);
                     properties.put(ContentModel.PROP_MODIFIED, nodeService.getProperty(nodeRef,
                             ContentModel.PROP_MODIFIED));
+                    properties.put(PROP_PARENT_ID, nodeService.getPrimaryParent(nodeRef).getParentRef());
+                    properties.put(WebSiteModel.PROP_ORDER_INDEX, nodeService.getProperty(nodeRef,
+                            WebSiteModel.PROP_ORDER_INDEX));
                 }
                 else
                 {
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.feedback;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.UserTransaction;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.WCMQuickStartTest;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.FeedbackProcessor;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.CommentFeedbackProcessorHandler;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.jobs.feedback.FeedbackProcessorHandlerBase;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.util.SiteHelper;
+import org.alfresco.repo.admin.RepositoryState;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.service.cmr.repository.AssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+
+public class FeedbackProcessorTest extends WCMQuickStartTest
+{
+    private static final String COMMENT = "Comment";
+    private static final String FAILING = "Failing";
+
+    private FeedbackProcessor feedbackProcessor;
+
+    /** The number of comments processed by each batch that completed */
+    private List<Integer> commentBatches;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        commentBatches = Collections.synchronizedList(new ArrayList<Integer>());
+
+        feedbackProcessor = new FeedbackProcessor();
+        feedbackProcessor.setNodeService(nodeService);
+        feedbackProcessor.setSearchService((SearchService)appContext.getBean("searchService"));
+        feedbackProcessor.setTxHelper(transactionService.getRetryingTransactionHelper());
+        feedbackProcessor.setRepositoryState((RepositoryState)appContext.getBean("repositoryState"));
+        feedbackProcessor.setJobLockService((JobLockService)appContext.getBean("jobLockService"));
+        feedbackProcessor.setBatchSize(2);
+        feedbackProcessor.setWorkerThreads(2);
+
+        CommentFeedbackProcessorHandler comments = new CountingCommentHandler();
+        comments.setNodeService(nodeService);
+        comments.setSiteHelper((SiteHelper)appContext.getBean("org_alfresco_module_wcmquickstart_siteHelper"));
+        comments.setFeedbackType(COMMENT);
+        feedbackProcessor.registerHandler(comments);
+
+        FeedbackProcessorHandlerBase failing = new FeedbackProcessorHandlerBase()
+        {
+            @Override
+            public void processFeedback(NodeRef feedback)
+            {
+                throw new AlfrescoRuntimeException("Failed to process feedback " + feedback);
+            }
+        };
+        failing.setFeedbackType(FAILING);
+        feedbackProcessor.registerHandler(failing);
+    }
+
+    public void testBatchesOfSameWebSiteInParallel() throws Exception
+    {
+        UserTransaction userTransaction = transactionService.getUserTransaction();
+        userTransaction.begin();
+
+        // More comments than fit in a batch, so they are split across two batches run one after the other...
+        NodeRef article1 = createArticle("article1");
+        List<NodeRef> comments = new ArrayList<NodeRef>();
+        for (int index = 0; index < 3; index++)
+        {
+            comments.add(createFeedback(article1, COMMENT));
+        }
+        // ...while the comments on an article of the same web site are processed in a batch of their own...
+        NodeRef article2 = createArticle("article2");
+        for (int index = 0; index < 2; index++)
+        {
+            comments.add(createFeedback(article2, COMMENT));
+        }
+        // ...and the batch of feedback on a third article fails
+        NodeRef article3 = createArticle("article3");
+        List<NodeRef> failures = new ArrayList<NodeRef>();
+        for (int index = 0; index < 2; index++)
+        {
+            failures.add(createFeedback(article3, FAILING));
+        }
+
+        userTransaction.commit();
+
+        feedbackProcessor.run();
+
+        List<Integer> batches = new ArrayList<Integer>(commentBatches);
+        Collections.sort(batches);
+        assertEquals(Arrays.asList(1, 2, 2), batches);
+
+        userTransaction = transactionService.getUserTransaction();
+        userTransaction.begin();
+
+        // Both articles are summarised in the same container, even though their batches ran at the same time
+        NodeRef summary1 = getSummary(article1);
+        NodeRef summary2 = getSummary(article2);
+        assertEquals(3, nodeService.getProperty(summary1, WebSiteModel.PROP_COMMENT_COUNT));
+        assertEquals(2, nodeService.getProperty(summary2, WebSiteModel.PROP_COMMENT_COUNT));
+        assertEquals(nodeService.getPrimaryParent(summary1).getParentRef(), nodeService.getPrimaryParent(summary2).getParentRef());
+        for (NodeRef comment : comments)
+        {
+            assertEquals(Boolean.TRUE, nodeService.getProperty(comment, WebSiteModel.PROP_RATING_PROCESSED));
+        }
+
+        // The failed batch is left to be processed by a later run
+        for (NodeRef failure : failures)
+        {
+            assertEquals(Boolean.FALSE, nodeService.getProperty(failure, WebSiteModel.PROP_RATING_PROCESSED));
+        }
+
+        userTransaction.commit();
+    }
+
+    private NodeRef createArticle(String name)
+    {
+        return nodeService.createNode(editorialSiteRoot, ContentModel.ASSOC_CONTAINS, QName.createQName(name), WebSiteModel.TYPE_ARTICLE).getChildRef();
+    }
+
+    private NodeRef createFeedback(NodeRef article, String feedbackType)
+    {
+        Map<QName,Serializable> props = new HashMap<QName,Serializable>();
+        props.put(WebSiteModel.PROP_RELEVANT_ASSET, article);
+        props.put(WebSiteModel.PROP_FEEDBACK_TYPE, feedbackType);
+        props.put(WebSiteModel.PROP_COMMENT, "Feedback on " + article);
+        props.put(WebSiteModel.PROP_RATING_PROCESSED, Boolean.FALSE);
+        return nodeService.createNode(editorialSite, ContentModel.ASSOC_CONTAINS, QName.createQName("feedback"), WebSiteModel.TYPE_VISITOR_FEEDBACK, props).getChildRef();
+    }
+
+    private NodeRef getSummary(NodeRef article)
+    {
+        List<AssociationRef> assocs = nodeService.getSourceAssocs(article, WebSiteModel.ASSOC_SUMMARISED_ASSET);
+        assertEquals(1, assocs.size());
+        return assocs.get(0).getSourceRef();
+    }
+
+    /**
+     * Comment handler recording the number of comments processed by each batch
+     */
+    private class CountingCommentHandler extends CommentFeedbackProcessorHandler
+    {
+        private static final String KEY_COUNT = "FeedbackProcessorTest.count";
+
+        @Override
+        public void processFeedback(NodeRef feedback)
+        {
+            AtomicInteger count = (AtomicInteger)AlfrescoTransactionSupport.getResource(KEY_COUNT);
+            if (count == null)
+            {
+                count = new AtomicInteger();
+                AlfrescoTransactionSupport.bindResource(KEY_COUNT, count);
+            }
+            count.incrementAndGet();
+            super.processFeedback(feedback);
+        }
+
+        @Override
+        public void processorCallback()
+        {
+            super.processorCallback();
+            AtomicInteger count = (AtomicInteger)AlfrescoTransactionSupport.getResource(KEY_COUNT);
+            if (count != null)
+            {
+                commentBatches.add(count.get());
+            }
+        }
+    }
+}
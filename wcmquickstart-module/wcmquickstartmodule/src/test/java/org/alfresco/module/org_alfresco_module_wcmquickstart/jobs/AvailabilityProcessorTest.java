@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.jobs;
+
+import static org.mockito.Mockito.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.ResultSetRow;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.GUID;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AvailabilityProcessorTest extends TestCase
+{
+    private static final long HOUR = 3600000L;
+    private static final List<Object> CHECKPOINT = Arrays.<Object>asList(".wcmqs", "availabilityProcessor", "lastProcessedTime");
+
+    /** The attributes held by the attribute service, in the order they were set */
+    private Map<List<Object>, Serializable> attributes;
+    /** The properties of the nodes held by the node service */
+    private Map<NodeRef, Map<QName, Serializable>> nodes;
+    private SearchService searchService;
+    private AvailabilityProcessor processor;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        attributes = new LinkedHashMap<List<Object>, Serializable>();
+        nodes = new HashMap<NodeRef, Map<QName, Serializable>>();
+
+        RetryingTransactionHelper txHelper = mock(RetryingTransactionHelper.class);
+        Answer<Object> executeCallback = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+            }
+        };
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean());
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean());
+
+        AttributeService attributeService = mock(AttributeService.class, new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                String method = invocation.getMethod().getName();
+                if (method.equals("getAttribute"))
+                {
+                    return attributes.get(Arrays.asList(args));
+                }
+                else if (method.equals("setAttribute"))
+                {
+                    attributes.put(Arrays.asList(args).subList(1, args.length), (Serializable) args[0]);
+                }
+                else if (method.equals("removeAttribute"))
+                {
+                    attributes.remove(Arrays.asList(args));
+                }
+                else if (method.equals("getAttributes"))
+                {
+                    List<Object> prefix = Arrays.asList(args).subList(1, args.length);
+                    long id = 0L;
+                    for (Map.Entry<List<Object>, Serializable> attribute : new ArrayList<Map.Entry<List<Object>, Serializable>>(attributes.entrySet()))
+                    {
+                        List<Object> keys = attribute.getKey();
+                        if (keys.size() >= prefix.size() && keys.subList(0, prefix.size()).equals(prefix))
+                        {
+                            ((AttributeQueryCallback) args[0]).handleAttribute(id++, attribute.getValue(), 
+                                    keys.toArray(new Serializable[keys.size()]));
+                        }
+                    }
+                }
+                else
+                {
+                    fail("Unexpected call: " + method);
+                }
+                return null;
+            }
+        });
+
+        NodeService nodeService = mock(NodeService.class, new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                String method = invocation.getMethod().getName();
+                Map<QName, Serializable> props = args.length == 0 ? null : nodes.get(args[0]);
+                if (method.equals("exists"))
+                {
+                    return props != null;
+                }
+                else if (method.equals("getProperties"))
+                {
+                    return new HashMap<QName, Serializable>(props);
+                }
+                else if (method.equals("getProperty"))
+                {
+                    return props.get(args[1]);
+                }
+                else if (method.equals("setProperty"))
+                {
+                    props.put((QName) args[1], (Serializable) args[2]);
+                }
+                else
+                {
+                    fail("Unexpected call: " + method);
+                }
+                return null;
+            }
+        });
+
+        searchService = mock(SearchService.class);
+        when(searchService.query(any(SearchParameters.class))).thenAnswer(new SearchResults());
+
+        processor = new AvailabilityProcessor();
+        processor.setTxHelper(txHelper);
+        processor.setAttributeService(attributeService);
+        processor.setNodeService(nodeService);
+        processor.setSearchService(searchService);
+        processor.setBehaviourFilter(mock(BehaviourFilter.class));
+        processor.setBatchSize(2);
+    }
+
+    public void testDueTransitionsAppliedAndCheckpointAdvanced()
+    {
+        long now = System.currentTimeMillis();
+        attributes.put(CHECKPOINT, now - 60000L);
+        NodeRef embargoed = createAsset(new Date(now - 30000L), null, false);
+        NodeRef future = createAsset(new Date(now + HOUR), null, false);
+        NodeRef expiring = createAsset(null, new Date(now + HOUR), true);
+
+        processor.runInternal();
+
+        assertEquals(Boolean.TRUE, isAvailable(embargoed));
+        assertEquals(Boolean.FALSE, isAvailable(future));
+        assertEquals(Boolean.TRUE, isAvailable(expiring));
+        //The applied transition has left the queue, while those still to come wait in it
+        assertEquals(2, attributes.size() - 1);
+        long checkpoint = (Long) attributes.get(CHECKPOINT);
+        assertTrue(checkpoint >= now);
+        assertTrue(checkpoint <= System.currentTimeMillis());
+
+        //Nothing is due on the next run, which only moves the checkpoint on
+        setAvailable(embargoed, false);
+        processor.runInternal();
+        assertEquals(Boolean.FALSE, isAvailable(embargoed));
+        assertTrue((Long) attributes.get(CHECKPOINT) >= checkpoint);
+        verify(searchService, never()).query(any(SearchParameters.class));
+    }
+
+    public void testCatchUpAfterDowntime()
+    {
+        long now = System.currentTimeMillis();
+        //The last run was two days ago, since when transitions have fallen due across several batches
+        attributes.put(CHECKPOINT, now - 48 * HOUR);
+        NodeRef expired = createAsset(null, new Date(now - 24 * HOUR), true);
+        NodeRef released = createAsset(new Date(now - 3 * HOUR), null, false);
+        NodeRef window = createAsset(new Date(now - 40 * HOUR), new Date(now - 30 * HOUR), true);
+        NodeRef current = createAsset(new Date(now - 20 * HOUR), new Date(now + HOUR), false);
+
+        processor.runInternal();
+
+        assertEquals(Boolean.FALSE, isAvailable(expired));
+        assertEquals(Boolean.TRUE, isAvailable(released));
+        assertEquals(Boolean.FALSE, isAvailable(window));
+        assertEquals(Boolean.TRUE, isAvailable(current));
+        //Only the expiry of the current asset is still to come
+        assertEquals(1, attributes.size() - 1);
+        assertTrue((Long) attributes.get(CHECKPOINT) >= now);
+    }
+
+    public void testTransitionsOfDeletedAssetsDropped()
+    {
+        long now = System.currentTimeMillis();
+        attributes.put(CHECKPOINT, now - 60000L);
+        NodeRef deleted = createAsset(new Date(now - HOUR), null, false);
+        nodes.remove(deleted);
+
+        processor.runInternal();
+
+        assertEquals(1, attributes.size());
+    }
+
+    public void testFirstRunQueuesDatesFoundBySearch()
+    {
+        long now = System.currentTimeMillis();
+        //Dates set before the transitions were queued are only found by search
+        NodeRef released = createAsset(null, null, false);
+        nodes.get(released).put(WebSiteModel.PROP_AVAILABLE_FROM_DATE, new Date(now - 60000L));
+        nodes.get(released).put(WebSiteModel.PROP_AVAILABLE_TO_DATE, new Date(now + HOUR));
+        NodeRef unrelated = createAsset(null, null, false);
+
+        processor.runInternal();
+
+        assertEquals(Boolean.TRUE, isAvailable(released));
+        assertEquals(Boolean.FALSE, isAvailable(unrelated));
+        assertEquals(1, attributes.size() - 1);
+        assertTrue((Long) attributes.get(CHECKPOINT) >= now);
+        verify(searchService, times(2)).query(any(SearchParameters.class));
+    }
+
+    /**
+     * Create a web asset with the given availability dates, whose transitions are queued as they would be by
+     * the web asset behaviours
+     */
+    private NodeRef createAsset(Date availableFrom, Date availableTo, boolean available)
+    {
+        NodeRef asset = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate());
+        Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+        props.put(WebSiteModel.PROP_AVAILABLE_FROM_DATE, availableFrom);
+        props.put(WebSiteModel.PROP_AVAILABLE_TO_DATE, availableTo);
+        props.put(WebSiteModel.PROP_AVAILABLE, available);
+        nodes.put(asset, props);
+        processor.scheduleTransitions(asset, availableFrom, availableTo);
+        return asset;
+    }
+
+    private Serializable isAvailable(NodeRef asset)
+    {
+        return nodes.get(asset).get(WebSiteModel.PROP_AVAILABLE);
+    }
+
+    private void setAvailable(NodeRef asset, boolean available)
+    {
+        nodes.get(asset).put(WebSiteModel.PROP_AVAILABLE, available);
+    }
+
+    /**
+     * Answers a search with the assets that have the queried availability date
+     */
+    private class SearchResults implements Answer<ResultSet>
+    {
+        @Override
+        public ResultSet answer(InvocationOnMock invocation) throws Throwable
+        {
+            String query = ((SearchParameters) invocation.getArguments()[0]).getQuery();
+            QName dateProperty = query.contains("availableFromDate") ? WebSiteModel.PROP_AVAILABLE_FROM_DATE : WebSiteModel.PROP_AVAILABLE_TO_DATE;
+            List<ResultSetRow> rows = new ArrayList<ResultSetRow>();
+            for (Map.Entry<NodeRef, Map<QName, Serializable>> node : nodes.entrySet())
+            {
+                if (node.getValue().get(dateProperty) != null)
+                {
+                    ResultSetRow row = mock(ResultSetRow.class);
+                    when(row.getNodeRef()).thenReturn(node.getKey());
+                    rows.add(row);
+                }
+            }
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.iterator()).thenReturn(rows.iterator());
+            return rs;
+        }
+    }
+}
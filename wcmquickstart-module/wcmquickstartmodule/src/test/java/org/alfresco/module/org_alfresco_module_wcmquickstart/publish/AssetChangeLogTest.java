@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.publish;
+
+import static org.mockito.Mockito.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.alfresco.module.org_alfresco_module_wcmquickstart.publish.AssetChangeLog.Changes;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class AssetChangeLogTest extends TestCase
+{
+    /** The attributes held by the attribute service, shared by every log in a test as if by a cluster */
+    private Map<List<Object>, Serializable> attributes;
+    private TransactionService transactionService;
+    /** Set to make the attribute service fail to record any change */
+    private volatile boolean failWrites;
+    /** Set to make the attribute service wait before recording changes, until released */
+    private volatile CountDownLatch writesReleased;
+    private CountDownLatch writeStarted;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        attributes = new HashMap<List<Object>, Serializable>();
+
+        RetryingTransactionHelper txHelper = mock(RetryingTransactionHelper.class);
+        Answer<Object> executeCallback = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+            }
+        };
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean());
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean());
+        transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txHelper);
+    }
+
+    private AssetChangeLog createChangeLog(int capacity)
+    {
+        AttributeService attributeService = mock(AttributeService.class, new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                String method = invocation.getMethod().getName();
+                if (method.equals("getAttribute"))
+                {
+                    return attributes.get(Arrays.asList(args));
+                }
+                else if (method.equals("setAttribute"))
+                {
+                    if ("latest".equals(args[args.length - 1]))
+                    {
+                        if (failWrites)
+                        {
+                            throw new IllegalStateException("Failed to record changes");
+                        }
+                        if (writesReleased != null)
+                        {
+                            writeStarted.countDown();
+                            writesReleased.await();
+                        }
+                    }
+                    attributes.put(Arrays.asList(args).subList(1, args.length), (Serializable) args[0]);
+                }
+                else if (method.equals("removeAttribute"))
+                {
+                    attributes.remove(Arrays.asList(args));
+                }
+                else
+                {
+                    fail("Unexpected call: " + method);
+                }
+                return null;
+            }
+        });
+        AssetChangeLog changeLog = new AssetChangeLog();
+        changeLog.setAttributeService(attributeService);
+        changeLog.setTransactionService(transactionService);
+        changeLog.setCapacity(capacity);
+        return changeLog;
+    }
+
+    public void testChangesSince()
+    {
+        AssetChangeLog changeLog = createChangeLog(10);
+
+        Changes changes = changeLog.getChangesSince(0L, 100);
+        String epoch = changes.getEpoch();
+        assertNotNull(epoch);
+        assertEquals(0L, changes.getLatest());
+        assertEquals(0L, changes.getLast());
+        assertFalse(changes.isGap());
+        assertTrue(changes.getIds().isEmpty());
+
+        List<NodeRef> nodes = createNodes(4);
+        assertEquals(4L, changeLog.recordChanges(nodes));
+
+        changes = changeLog.getChangesSince(0L, 100);
+        assertEquals(epoch, changes.getEpoch());
+        assertEquals(1L, changes.getFirst());
+        assertEquals(4L, changes.getLatest());
+        assertEquals(4L, changes.getLast());
+        assertFalse(changes.isGap());
+        assertEquals(4, changes.getIds().size());
+        assertEquals(nodes.get(0).toString(), changes.getIds().get(0));
+
+        changes = changeLog.getChangesSince(2L, 1);
+        assertEquals(3L, changes.getLast());
+        assertEquals(1, changes.getIds().size());
+        assertEquals(nodes.get(2).toString(), changes.getIds().get(0));
+
+        changes = changeLog.getChangesSince(4L, 100);
+        assertEquals(4L, changes.getLast());
+        assertFalse(changes.isGap());
+        assertTrue(changes.getIds().isEmpty());
+    }
+
+    public void testOverflow()
+    {
+        AssetChangeLog changeLog = createChangeLog(10);
+
+        List<NodeRef> nodes = createNodes(25);
+        assertEquals(25L, changeLog.recordChanges(nodes));
+
+        //Only the most recent ten changes are retained, so a caller that last saw change 3 has missed some
+        Changes changes = changeLog.getChangesSince(3L, 100);
+        assertTrue(changes.isGap());
+        assertEquals(16L, changes.getFirst());
+        assertEquals(25L, changes.getLatest());
+        assertEquals(25L, changes.getLast());
+        assertEquals(10, changes.getIds().size());
+        assertEquals(nodes.get(15).toString(), changes.getIds().get(0));
+        assertEquals(nodes.get(24).toString(), changes.getIds().get(9));
+
+        //...but one that last saw change 15 hasn't
+        changes = changeLog.getChangesSince(15L, 100);
+        assertFalse(changes.isGap());
+        assertEquals(10, changes.getIds().size());
+
+        //The pruned changes are no longer held at all
+        assertEquals(10 + 3, attributes.size());
+
+        //A caller that is ahead of us can't be accounted for either
+        changes = changeLog.getChangesSince(100L, 100);
+        assertTrue(changes.isGap());
+        assertEquals(25L, changes.getLast());
+        assertTrue(changes.getIds().isEmpty());
+    }
+
+    public void testSharedAndPersistent()
+    {
+        AssetChangeLog changeLog = createChangeLog(10);
+        List<NodeRef> nodes = createNodes(3);
+        changeLog.recordChanges(nodes.subList(0, 2));
+        String epoch = changeLog.getChangesSince(0L, 100).getEpoch();
+
+        //Another repository node, or this one after a restart, continues the same log
+        AssetChangeLog otherChangeLog = createChangeLog(10);
+        assertEquals(3L, otherChangeLog.recordChanges(nodes.subList(2, 3)));
+
+        Changes changes = changeLog.getChangesSince(1L, 100);
+        assertEquals(epoch, changes.getEpoch());
+        assertFalse(changes.isGap());
+        assertEquals(Arrays.asList(nodes.get(1).toString(), nodes.get(2).toString()), changes.getIds());
+    }
+
+    public void testNewEpochWhenLost()
+    {
+        AssetChangeLog changeLog = createChangeLog(10);
+        changeLog.recordChanges(createNodes(2));
+        String epoch = changeLog.getChangesSince(0L, 100).getEpoch();
+
+        attributes.clear();
+        Changes changes = changeLog.getChangesSince(2L, 100);
+        assertFalse(epoch.equals(changes.getEpoch()));
+        assertTrue(changes.isGap());
+    }
+
+    public void testChangesCommittedDuringWriteRecordedTogether() throws Exception
+    {
+        final AssetChangeLog changeLog = createChangeLog(10);
+        changeLog.getChangesSince(0L, 100);
+        final List<NodeRef> nodes = createNodes(4);
+
+        writesReleased = new CountDownLatch(1);
+        writeStarted = new CountDownLatch(1);
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                changeLog.recordCommittedChanges(nodes.subList(0, 1));
+            }
+        };
+        writer.start();
+        assertTrue(writeStarted.await(10, TimeUnit.SECONDS));
+
+        //Transactions that commit while the log is being written to leave their changes to the writer...
+        changeLog.recordCommittedChanges(nodes.subList(1, 3));
+        changeLog.recordCommittedChanges(nodes.subList(2, 4));
+        assertEquals(0L, changeLog.getChangesSince(0L, 100).getLatest());
+
+        //...which records them in one go once it has finished, each node once
+        writesReleased.countDown();
+        writer.join(10000L);
+        Changes changes = changeLog.getChangesSince(0L, 100);
+        assertFalse(changes.isGap());
+        assertEquals(4L, changes.getLatest());
+        assertEquals(Arrays.asList(nodes.get(0).toString(), nodes.get(1).toString(), nodes.get(2).toString(),
+                nodes.get(3).toString()), changes.getIds());
+    }
+
+    public void testNewEpochWhenChangesFailToBeRecorded()
+    {
+        AssetChangeLog changeLog = createChangeLog(10);
+        changeLog.recordCommittedChanges(createNodes(2));
+        String epoch = changeLog.getChangesSince(2L, 100).getEpoch();
+
+        failWrites = true;
+        changeLog.recordCommittedChanges(createNodes(1));
+        failWrites = false;
+
+        //A client that is up to date can't tell which change it missed, so it is told to resynchronise
+        Changes changes = changeLog.getChangesSince(2L, 100);
+        assertFalse(epoch.equals(changes.getEpoch()));
+        assertEquals(2L, changes.getLatest());
+
+        //...and then follows the new epoch
+        NodeRef node = createNodes(1).get(0);
+        changeLog.recordCommittedChanges(Collections.singleton(node));
+        changes = changeLog.getChangesSince(2L, 100);
+        assertFalse(changes.isGap());
+        assertEquals(Collections.singletonList(node.toString()), changes.getIds());
+    }
+
+    private List<NodeRef> createNodes(int count)
+    {
+        List<NodeRef> nodes = new ArrayList<NodeRef>(count);
+        for (int i = 0; i < count; ++i)
+        {
+            nodes.add(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate()));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.module.org_alfresco_module_wcmquickstart.publish;
+
+import static org.mockito.Mockito.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.model.WebSiteModel;
+import org.alfresco.module.org_alfresco_module_wcmquickstart.util.SiteHelper;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.AssociationRef;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.Path;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.transfer.NodeCrawler;
+import org.alfresco.service.cmr.transfer.NodeCrawlerFactory;
+import org.alfresco.service.cmr.transfer.TransferDefinition;
+import org.alfresco.service.cmr.transfer.TransferEndEvent;
+import org.alfresco.service.cmr.transfer.TransferFailureException;
+import org.alfresco.service.cmr.transfer.TransferService2;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PublishServiceImplTest extends TestCase
+{
+    private NodeService nodeService;
+    private SiteHelper siteHelper;
+    private TransferService2 transferService;
+    private JobLockService jobLockService;
+    private NodeCrawler crawler;
+    private PublishServiceImpl publishService;
+
+    /** The properties of the queue entries */
+    private Map<NodeRef, Map<QName, Serializable>> entries;
+    /** The queue entries of each web site */
+    private Map<NodeRef, List<NodeRef>> queues;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        entries = Collections.synchronizedMap(new HashMap<NodeRef, Map<QName, Serializable>>());
+        queues = new HashMap<NodeRef, List<NodeRef>>();
+
+        RetryingTransactionHelper txHelper = mock(RetryingTransactionHelper.class);
+        Answer<Object> executeCallback = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((RetryingTransactionCallback<?>) invocation.getArguments()[0]).execute();
+            }
+        };
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean());
+        doAnswer(executeCallback).when(txHelper).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean());
+        TransactionService transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txHelper);
+
+        nodeService = mock(NodeService.class);
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return new HashMap<QName, Serializable>(entries.get(invocation.getArguments()[0]));
+            }
+        }).when(nodeService).getProperties(any(NodeRef.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return entries.get(invocation.getArguments()[0]).get(invocation.getArguments()[1]);
+            }
+        }).when(nodeService).getProperty(any(NodeRef.class), any(QName.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                entries.get(args[0]).put((QName) args[1], (Serializable) args[2]);
+                return null;
+            }
+        }).when(nodeService).setProperty(any(NodeRef.class), any(QName.class), any(Serializable.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                entries.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(nodeService).deleteNode(any(NodeRef.class));
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                return entries.containsKey(invocation.getArguments()[0]);
+            }
+        }).when(nodeService).exists(any(NodeRef.class));
+
+        siteHelper = mock(SiteHelper.class);
+        transferService = mock(TransferService2.class);
+        jobLockService = mock(JobLockService.class);
+        when(jobLockService.getLock(any(QName.class), anyLong(), anyLong(), anyInt())).thenReturn("token");
+
+        crawler = mock(NodeCrawler.class);
+        NodeCrawlerFactory crawlerFactory = mock(NodeCrawlerFactory.class);
+        when(crawlerFactory.getNodeCrawler()).thenReturn(crawler);
+
+        publishService = new PublishServiceImpl();
+        publishService.setTransactionService(transactionService);
+        publishService.setNodeService(nodeService);
+        publishService.setSiteHelper(siteHelper);
+        publishService.setTransferService(transferService);
+        publishService.setJobLockService(jobLockService);
+        publishService.setNodeCrawlerFactory(crawlerFactory);
+        publishService.setCrawlerConfigurer(mock(NodeCrawlerConfigurer.class));
+        publishService.setPathMapper(mock(TransferPathMapper.class));
+        publishService.setAspectsToExclude(null);
+        publishService.setChunkContentSize(0L);
+    }
+
+    public void testTwoSitesPublishedTogetherTransferOneAtATime() throws Exception
+    {
+        final NodeRef site1 = createWebsite(3);
+        final NodeRef site2 = createWebsite(2);
+
+        //The queues of both sites are read and crawled at the same time...
+        final CyclicBarrier crawling = new CyclicBarrier(2);
+        when(crawler.crawl(anySetOf(NodeRef.class))).thenAnswer(new Answer<Set<NodeRef>>()
+        {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Set<NodeRef> answer(InvocationOnMock invocation) throws Throwable
+            {
+                crawling.await(10, TimeUnit.SECONDS);
+                return (Set<NodeRef>) invocation.getArguments()[0];
+            }
+        });
+        //...but the target fails transfers made while it is locked by another, as the transfer receiver does
+        final AtomicInteger transferring = new AtomicInteger();
+        final AtomicInteger transfers = new AtomicInteger();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                if (transferring.incrementAndGet() > 1)
+                {
+                    transferring.decrementAndGet();
+                    throw new TransferFailureException(mock(TransferEndEvent.class));
+                }
+                Thread.sleep(200L);
+                transfers.incrementAndGet();
+                transferring.decrementAndGet();
+                return null;
+            }
+        }).when(transferService).transfer(anyString(), any(TransferDefinition.class));
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final NodeRef site : new NodeRef[] {site1, site2})
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        publishService.publishQueue(site);
+                    }
+                    catch (Throwable e)
+                    {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join(20000L);
+        }
+
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(2, transfers.get());
+        //Every entry of both queues has been published and removed, none of them counted as failed
+        assertTrue(entries.isEmpty());
+        verify(nodeService, never()).setProperty(any(NodeRef.class), eq(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT), any(Serializable.class));
+        verify(jobLockService, times(2)).releaseLock(eq("token"), any(QName.class));
+    }
+
+    public void testUnavailableTargetLockIsNotAFailedAttempt() throws Exception
+    {
+        NodeRef site = createWebsite(2);
+        crawlWithoutChanges();
+        when(jobLockService.getLock(any(QName.class), anyLong(), anyLong(), anyInt())).thenThrow(
+                new LockAcquisitionException("Target locked by another node"));
+
+        try
+        {
+            publishService.publishQueue(site);
+            fail("Expected the publish to be deferred");
+        }
+        catch (LockAcquisitionException e)
+        {
+            //Expected
+        }
+
+        verify(transferService, never()).transfer(anyString(), any(TransferDefinition.class));
+        assertEquals(2, entries.size());
+        for (Map<QName, Serializable> props : entries.values())
+        {
+            assertNull(props.get(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT));
+        }
+    }
+
+    public void testEntriesQueuedAgainDuringPublishAreKept() throws Exception
+    {
+        NodeRef site = createWebsite(3);
+        final List<NodeRef> queue = queues.get(site);
+        crawlWithoutChanges();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                requeue(queue.get(0), false);
+                requeue(queue.get(1), true);
+                return null;
+            }
+        }).when(transferService).transfer(anyString(), any(TransferDefinition.class));
+
+        publishService.publishQueue(site);
+
+        //The entries queued again hold requests that haven't been published yet
+        assertEquals(2, entries.size());
+        assertEquals(0, entries.get(queue.get(0)).get(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT));
+        assertEquals(false, entries.get(queue.get(0)).get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL));
+        assertEquals(0, entries.get(queue.get(1)).get(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT));
+        assertEquals(true, entries.get(queue.get(1)).get(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL));
+        assertFalse(entries.containsKey(queue.get(2)));
+    }
+
+    public void testEntryQueuedAgainDuringFailedPublishIsKept() throws Exception
+    {
+        publishService.setMaxPublishAttempts(1);
+        NodeRef site = createWebsite(2);
+        final List<NodeRef> queue = queues.get(site);
+        crawlWithoutChanges();
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                requeue(queue.get(0), false);
+                throw new TransferFailureException(mock(TransferEndEvent.class));
+            }
+        }).when(transferService).transfer(anyString(), any(TransferDefinition.class));
+
+        try
+        {
+            publishService.publishQueue(site);
+            fail("Expected the transfer to fail");
+        }
+        catch (TransferFailureException e)
+        {
+            //Expected
+        }
+
+        //The failure used up the last attempt of the other entry, but not of the newer request
+        assertEquals(1, entries.size());
+        assertEquals(0, entries.get(queue.get(0)).get(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT));
+    }
+
+    /**
+     * Queue the node of an entry again, as enqueueNodes does
+     */
+    private void requeue(NodeRef entry, boolean remove)
+    {
+        Map<QName, Serializable> props = entries.get(entry);
+        props.put(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL, remove);
+        props.put(WebSiteModel.PROP_QUEUED_TIME, new Date(((Date) props.get(WebSiteModel.PROP_QUEUED_TIME)).getTime() + 1000L));
+        props.put(WebSiteModel.PROP_FAILED_ATTEMPTS_COUNT, 0);
+    }
+
+    private void crawlWithoutChanges()
+    {
+        when(crawler.crawl(anySetOf(NodeRef.class))).thenAnswer(new Answer<Set<NodeRef>>()
+        {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Set<NodeRef> answer(InvocationOnMock invocation) throws Throwable
+            {
+                return (Set<NodeRef>) invocation.getArguments()[0];
+            }
+        });
+    }
+
+    /**
+     * Create a web site with a publishing target and a queue of the given number of entries
+     */
+    private NodeRef createWebsite(int entryCount)
+    {
+        NodeRef website = newNodeRef();
+        NodeRef target = newNodeRef();
+        NodeRef queue = newNodeRef();
+        when(nodeService.getTargetAssocs(website, WebSiteModel.ASSOC_PUBLISH_TARGET)).thenReturn(
+                Collections.singletonList(new AssociationRef(website, WebSiteModel.ASSOC_PUBLISH_TARGET, target)));
+        when(nodeService.getPath(any(NodeRef.class))).thenReturn(new Path());
+        when(siteHelper.getWebSiteContainer(website, "publishingQueue")).thenReturn(queue);
+
+        List<ChildAssociationRef> queueEntries = new ArrayList<ChildAssociationRef>();
+        List<NodeRef> entryRefs = new ArrayList<NodeRef>();
+        Date queuedTime = new Date();
+        for (int i = 0; i < entryCount; i++)
+        {
+            NodeRef node = newNodeRef();
+            NodeRef entry = newNodeRef();
+            Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+            props.put(WebSiteModel.PROP_QUEUED_NODE, node.toString());
+            props.put(WebSiteModel.PROP_QUEUED_NODE_FOR_REMOVAL, false);
+            props.put(WebSiteModel.PROP_QUEUED_TIME, queuedTime);
+            entries.put(entry, props);
+            entryRefs.add(entry);
+            queueEntries.add(new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, queue,
+                    QName.createQName(WebSiteModel.NAMESPACE, node.getId()), entry));
+        }
+        when(nodeService.getChildAssocs(queue, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL, true))
+                .thenReturn(queueEntries);
+        queues.put(website, entryRefs);
+        return website;
+    }
+
+    private static NodeRef newNodeRef()
+    {
+        return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, GUID.generate());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One of the byte ranges requested by the HTTP Range header
+ */
+public class ByteRange
+{
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parse the value of a Range header against content of the given length
+     * 
+     * @param rangeHeader the value of the Range header, which may be null
+     * @param contentLength the length of the content
+     * @return the satisfiable ranges in the order they were requested, an empty list if the header is valid
+     *         but none of them is satisfiable, or null if there is no header or it can't be parsed, in which
+     *         case it should be ignored
+     */
+    public static List<ByteRange> parse(String rangeHeader, long contentLength)
+    {
+        if (rangeHeader == null || !rangeHeader.startsWith(BYTES_UNIT))
+        {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String rangeSpec : rangeHeader.substring(BYTES_UNIT.length()).split(","))
+        {
+            rangeSpec = rangeSpec.trim();
+            int dash = rangeSpec.indexOf('-');
+            if (dash < 0)
+            {
+                return null;
+            }
+            String first = rangeSpec.substring(0, dash).trim();
+            String last = rangeSpec.substring(dash + 1).trim();
+            long start;
+            long end;
+            try
+            {
+                if (first.length() == 0)
+                {
+                    // A suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength < 0L)
+                    {
+                        return null;
+                    }
+                    start = Math.max(0L, contentLength - suffixLength);
+                    end = contentLength - 1;
+                    if (suffixLength == 0L)
+                    {
+                        continue;
+                    }
+                }
+                else
+                {
+                    start = Long.parseLong(first);
+                    end = last.length() == 0 ? contentLength - 1 : Math.min(Long.parseLong(last), contentLength - 1);
+                    if (start < 0L || (last.length() != 0 && Long.parseLong(last) < start))
+                    {
+                        return null;
+                    }
+                }
+            }
+            catch (NumberFormatException ex)
+            {
+                return null;
+            }
+            if (start < contentLength)
+            {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * @return the offset of the first byte in the range
+     */
+    public long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * @return the offset of the last byte in the range
+     */
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public long getLength()
+    {
+        return end - start + 1;
+    }
+
+    /**
+     * @param contentLength the length of the whole content
+     * @return the value of the Content-Range header for this range
+     */
+    public String getContentRange(long contentLength)
+    {
+        return "bytes " + start + "-" + end + "/" + contentLength;
+    }
+
+    @Override
+    public String toString()
+    {
+        return start + "-" + end;
+    }
+}
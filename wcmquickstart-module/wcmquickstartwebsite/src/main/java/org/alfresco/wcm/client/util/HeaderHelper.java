@@ -65,6 +65,36 @@ public abstract class HeaderHelper
     {
         return true;
     }
+
+    /**
+     * Set headers for a rendition of an asset. This base implementation ignores the rendition name.
+     * Override in a subclass as necessary
+     * @param asset Asset
+     * @param renditionName the name of the rendition being requested, or null for the asset's own content
+     * @param attach boolean
+     * @param request HttpServletRequest
+     * @param response HttpServletResponse
+     * @return boolean true if browser has old copy and so content should be rendered
+     */
+    public boolean setHeaders(Asset asset, String renditionName, boolean attach, HttpServletRequest request,
+            HttpServletResponse response)
+    {
+        return setHeaders(asset, attach, request, response);
+    }
+
+    /**
+     * Work out whether the byte ranges requested by the Range header may be sent rather than the whole content.
+     * This base implementation only allows them if the request has no If-Range header.
+     * Override in a subclass as necessary
+     * @param asset Asset
+     * @param renditionName the name of the rendition being requested, or null for the asset's own content
+     * @param request HttpServletRequest
+     * @return boolean true if a partial response may be sent
+     */
+    public boolean isRangeRequestAllowed(Asset asset, String renditionName, HttpServletRequest request)
+    {
+        return request.getHeader("If-Range") == null;
+    }
     
     public final String getHttpDate(Date date)
     {
@@ -17,7 +17,6 @@
  */
 package org.alfresco.wcm.client.util.impl;
 
-import java.io.IOException;
 import java.text.ParseException;
 import java.util.Date;
 
@@ -25,11 +24,28 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.alfresco.wcm.client.Asset;
+import org.alfresco.wcm.client.FileBackedContentStream;
+import org.alfresco.wcm.client.Rendition;
 import org.alfresco.wcm.client.Resource;
+import org.alfresco.wcm.client.WebSite;
+import org.alfresco.wcm.client.WebSiteService;
 import org.alfresco.wcm.client.util.HeaderHelper;
 
+/**
+ * Sets validators and caching headers on streamed assets, and answers conditional requests.
+ * <p>
+ * The ETag of an asset is strong: it is made from the asset's id and its modified time to the millisecond,
+ * so it changes whenever the content does. A rendition can be regenerated without its asset changing, so
+ * the ETag of a rendition also holds a digest of the rendition's content, and is weak if that isn't known.
+ * Responses may be cached for <code>defaultExpiry</code> milliseconds, or until the asset's availability ends
+ * if that is sooner - publicly, unless the site is editorial or the request is authenticated. Requests whose
+ * validators match are answered with a bare 304.
+ */
 public class SimpleCacheControlHeaderHelper extends HeaderHelper
 {
+    /** Set on assets that are only available until a given time */
+    private static final String PROPERTY_AVAILABLE_TO_DATE = "ws:availableToDate";
+
     private long defaultExpiry = 300000L; // 5 mins in ms
 
     public void setDefaultExpiry(long defaultExpiry)
@@ -37,11 +53,18 @@ public class SimpleCacheControlHeaderHelper extends HeaderHelper
         this.defaultExpiry = defaultExpiry;
     }
 
+    @Override
+    public boolean setHeaders(Asset asset, boolean attach, HttpServletRequest request, HttpServletResponse response)
+    {
+        return setHeaders(asset, null, attach, request, response);
+    }
+
     /**
      * Set appropriate cache-control headers on the response for an asset and return true if it
      * should be rendered
      * 
      * @param asset Asset
+     * @param renditionName String
      * @param attach boolean
      * @param request HttpServletRequest
      * @param response HttpServletResponse
@@ -49,27 +72,31 @@ public class SimpleCacheControlHeaderHelper extends HeaderHelper
      *         rendered
      */
     @Override
-    public boolean setHeaders(Asset asset, boolean attach, HttpServletRequest request, HttpServletResponse response)
+    public boolean setHeaders(Asset asset, String renditionName, boolean attach, HttpServletRequest request,
+            HttpServletResponse response)
     {
         try
         {
             // Set headers
-            Date modifiedDate = ((Date) asset.getProperty(Resource.PROPERTY_MODIFIED_TIME));
-            long modifiedTime = modifiedDate.getTime();
-            modifiedTime = (modifiedTime / 1000) * 1000; // remove ms
-            
-            response.addDateHeader("Last-Modified", modifiedTime);
-            response.addDateHeader("Expires", new Date().getTime() + defaultExpiry);
-            String etag = Long.toHexString(modifiedTime);
-            response.addHeader("ETag", etag);
-
-            // Check if the asset has been changed since the last request
+            long modifiedTime = getLastModified(asset);
+            long now = System.currentTimeMillis();
+            long expiry = getExpiry(asset, now);
+
+            response.setDateHeader("Last-Modified", modifiedTime);
+            response.setDateHeader("Expires", now + expiry);
+            response.setHeader("Cache-Control", (isPrivate(request) ? "private" : "public") + ", max-age="
+                    + (expiry / 1000));
+            String etag = getETag(asset, renditionName);
+            response.setHeader("ETag", etag);
+
+            // Check if the asset has been changed since the last request. A 304 must not have a body,
+            // so the status is set directly rather than through sendError
             String requestIfNoneMatch = request.getHeader("If-None-Match");
             if (requestIfNoneMatch != null)
             {
-                if (etag.equals(requestIfNoneMatch))
+                if (matchesAny(requestIfNoneMatch, etag))
                 {
-                    response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
                     return false;
                 }
             }
@@ -81,7 +108,7 @@ public class SimpleCacheControlHeaderHelper extends HeaderHelper
                     Date requestDate = getDateFromHttpDate(requestIfModifiedSince);
                     if (requestDate.getTime() >= modifiedTime)
                     {
-                        response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
                         return false;
                     }
                 }
@@ -106,4 +133,123 @@ public class SimpleCacheControlHeaderHelper extends HeaderHelper
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Byte ranges may be sent if there is no If-Range header, or if it holds the current ETag or
+     * Last-Modified date of the asset
+     */
+    @Override
+    public boolean isRangeRequestAllowed(Asset asset, String renditionName, HttpServletRequest request)
+    {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null)
+        {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\""))
+        {
+            // Only a strong comparison will do here
+            return ifRange.equals(getETag(asset, renditionName));
+        }
+        if (ifRange.startsWith("W/"))
+        {
+            return false;
+        }
+        try
+        {
+            return getDateFromHttpDate(ifRange).getTime() == getLastModified(asset);
+        }
+        catch (ParseException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the response must not be stored by shared caches, because the site is editorial or
+     *         the request is authenticated
+     */
+    protected boolean isPrivate(HttpServletRequest request)
+    {
+        WebSite webSite = WebSiteService.getThreadWebSite();
+        return (webSite != null && webSite.isEditorialSite()) || request.getRemoteUser() != null
+                || request.getHeader("Authorization") != null;
+    }
+
+    /**
+     * @return the ETag of the content of an asset or one of its renditions. This is strong unless it is
+     *         for a rendition whose content digest isn't known.
+     */
+    protected String getETag(Asset asset, String renditionName)
+    {
+        Date modifiedDate = (Date) asset.getProperty(Resource.PROPERTY_MODIFIED_TIME);
+        StringBuilder etag = new StringBuilder(96);
+        etag.append('"').append(Long.toHexString(modifiedDate.getTime()));
+        etag.append('-').append(Integer.toHexString(asset.getId().hashCode()));
+        if (renditionName != null)
+        {
+            etag.append('-').append(Integer.toHexString(renditionName.hashCode()));
+            Rendition rendition = asset.getRenditions().get(renditionName);
+            String digest = rendition instanceof FileBackedContentStream ?
+                    ((FileBackedContentStream) rendition).getDigest() : null;
+            if (digest == null)
+            {
+                etag.insert(0, "W/");
+            }
+            else
+            {
+                etag.append('-').append(digest);
+            }
+        }
+        etag.append('"');
+        return etag.toString();
+    }
+
+    /**
+     * @return the modified time of the asset, truncated to the second as HTTP dates are
+     */
+    private long getLastModified(Asset asset)
+    {
+        Date modifiedDate = (Date) asset.getProperty(Resource.PROPERTY_MODIFIED_TIME);
+        long modifiedTime = modifiedDate.getTime();
+        return (modifiedTime / 1000) * 1000; // remove ms
+    }
+
+    /**
+     * @return how long, in milliseconds, the asset may be cached for
+     */
+    private long getExpiry(Asset asset, long now)
+    {
+        long expiry = defaultExpiry;
+        Object availableTo = asset.getProperty(PROPERTY_AVAILABLE_TO_DATE);
+        if (availableTo instanceof Date)
+        {
+            expiry = Math.max(0L, Math.min(expiry, ((Date) availableTo).getTime() - now));
+        }
+        return expiry;
+    }
+
+    /**
+     * @return true if the supplied If-None-Match header value matches the ETag, using the weak comparison:
+     *         either or both tags may be weak
+     */
+    private boolean matchesAny(String ifNoneMatch, String etag)
+    {
+        String opaqueTag = stripWeakIndicator(etag);
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            candidate = candidate.trim();
+            if ("*".equals(candidate) || opaqueTag.equals(stripWeakIndicator(candidate)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeakIndicator(String etag)
+    {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
 }
@@ -17,7 +17,15 @@
  */
 package org.alfresco.wcm.client.view;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -25,19 +33,35 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.alfresco.wcm.client.Asset;
 import org.alfresco.wcm.client.ContentStream;
+import org.alfresco.wcm.client.FileBackedContentStream;
 import org.alfresco.wcm.client.Rendition;
+import org.alfresco.wcm.client.util.ByteRange;
 import org.alfresco.wcm.client.util.HeaderHelper;
 import org.alfresco.wcm.client.util.impl.SimpleCacheControlHeaderHelper;
 import org.springframework.web.servlet.view.AbstractUrlBasedView;
 
 /**
  * Stream an asset for the view
+ * <p>
+ * Content that is held in a local file (as cached content is) is sent straight from the file, using the
+ * container's sendfile support where it is available and {@link FileChannel#transferTo} otherwise, and
+ * byte ranges of it may be requested with the Range header. Several ranges are sent as a
+ * multipart/byteranges response.
  * 
  * @author Chris Lack
  * 
  */
 public class StreamedAssetView extends AbstractUrlBasedView
 {
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+    /** How long a file handed to the container's sendfile support is kept, should it be evicted from the cache */
+    private static final long SENDFILE_RETAIN_MILLISECONDS = 60000L;
+    /** The most byte ranges that will be sent in one multipart response */
+    private static final int MAX_RANGES = 16;
+
     private static HeaderHelper headerHelper = new SimpleCacheControlHeaderHelper();
     
     private Asset asset;
@@ -86,7 +110,7 @@ public class StreamedAssetView extends AbstractUrlBasedView
     protected void renderMergedOutputModel(Map<String, Object> model, HttpServletRequest request,
             HttpServletResponse response) throws Exception
     {
-        boolean render = headerHelper.setHeaders(asset, attach, request, response);
+        boolean render = headerHelper.setHeaders(asset, renditionName, attach, request, response);
         
         ServletOutputStream out = null;
         if (render)
@@ -101,7 +125,11 @@ public class StreamedAssetView extends AbstractUrlBasedView
             {
                 contentStream = asset.getContentAsInputStream();
             }
-            if (contentStream != null) 
+            if (contentStream instanceof FileBackedContentStream)
+            {
+                renderFile((FileBackedContentStream) contentStream, request, response);
+            }
+            else if (contentStream != null) 
             {
                 String mimeType = contentStream.getMimeType();
                 response.setContentType(mimeType == null ? "application/octet-stream" : mimeType);
@@ -111,4 +139,119 @@ public class StreamedAssetView extends AbstractUrlBasedView
             }
         }
     }
+
+    private void renderFile(FileBackedContentStream contentStream, HttpServletRequest request,
+            HttpServletResponse response) throws IOException
+    {
+        String mimeType = contentStream.getMimeType();
+        response.setContentType(mimeType == null ? "application/octet-stream" : mimeType);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        FileChannel channel = contentStream.openChannel();
+        try
+        {
+            long length = channel.size();
+            long start = 0L;
+            long count = length;
+            List<ByteRange> ranges = null;
+            if (headerHelper.isRangeRequestAllowed(asset, renditionName, request))
+            {
+                ranges = ByteRange.parse(request.getHeader("Range"), length);
+            }
+            if (ranges != null && ranges.isEmpty())
+            {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (ranges != null && ranges.size() > 1 && ranges.size() <= MAX_RANGES)
+            {
+                renderRanges(channel, ranges, length, mimeType, response);
+                return;
+            }
+            // Requests for an excessive number of ranges are answered with the whole content
+            if (ranges != null && ranges.size() == 1)
+            {
+                ByteRange range = ranges.get(0);
+                start = range.getStart();
+                count = range.getLength();
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", range.getContentRange(length));
+            }
+            response.setHeader("Content-Length", Long.toString(count));
+
+            if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE)))
+            {
+                // Leave the container to send the file once we've returned. It opens the file after we've
+                // returned, so the file must stay in place until then even if it is evicted from the cache
+                File file = contentStream.retainFile(SENDFILE_RETAIN_MILLISECONDS);
+                if (file != null)
+                {
+                    request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+                    request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(start));
+                    request.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(start + count));
+                    return;
+                }
+            }
+
+            transfer(channel, start, count, Channels.newChannel(response.getOutputStream()));
+            response.getOutputStream().flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Send several byte ranges of a file as a multipart/byteranges response
+     */
+    private void renderRanges(FileChannel channel, List<ByteRange> ranges, long length, String mimeType,
+            HttpServletResponse response) throws IOException
+    {
+        String boundary = "wqs-" + UUID.randomUUID();
+        List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+        long contentLength = 0L;
+        for (ByteRange range : ranges)
+        {
+            String partHeader = "\r\n--" + boundary + "\r\n" 
+                    + "Content-Type: " + (mimeType == null ? "application/octet-stream" : mimeType) + "\r\n"
+                    + "Content-Range: " + range.getContentRange(length) + "\r\n\r\n";
+            byte[] partHeaderBytes = partHeader.getBytes("ISO-8859-1");
+            partHeaders.add(partHeaderBytes);
+            contentLength += partHeaderBytes.length + range.getLength();
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        contentLength += trailer.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", Long.toString(contentLength));
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        for (int i = 0; i < ranges.size(); ++i)
+        {
+            ByteRange range = ranges.get(i);
+            out.write(partHeaders.get(i));
+            transfer(channel, range.getStart(), range.getLength(), outChannel);
+        }
+        out.write(trailer);
+        out.flush();
+    }
+
+    private void transfer(FileChannel channel, long start, long count, WritableByteChannel out) throws IOException
+    {
+        long position = start;
+        long end = start + count;
+        while (position < end)
+        {
+            long transferred = channel.transferTo(position, end - position, out);
+            if (transferred <= 0L)
+            {
+                break;
+            }
+            position += transferred;
+        }
+    }
 }
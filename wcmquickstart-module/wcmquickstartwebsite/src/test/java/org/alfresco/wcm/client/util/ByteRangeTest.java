@@ -0,0 +1,37 @@
+package org.alfresco.wcm.client.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ByteRangeTest extends TestCase
+{
+    public void testParse()
+    {
+        assertNull(ByteRange.parse(null, 1000L));
+        assertNull(ByteRange.parse("items=0-10", 1000L));
+        assertNull(ByteRange.parse("bytes=abc", 1000L));
+        assertNull(ByteRange.parse("bytes=20-10", 1000L));
+
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000L);
+        assertEquals(1, ranges.size());
+        assertEquals(0L, ranges.get(0).getStart());
+        assertEquals(499L, ranges.get(0).getEnd());
+        assertEquals(500L, ranges.get(0).getLength());
+        assertEquals("bytes 0-499/1000", ranges.get(0).getContentRange(1000L));
+
+        ranges = ByteRange.parse("bytes=900-", 1000L);
+        assertEquals(900L, ranges.get(0).getStart());
+        assertEquals(999L, ranges.get(0).getEnd());
+
+        ranges = ByteRange.parse("bytes=-100, 200-2000", 1000L);
+        assertEquals(2, ranges.size());
+        assertEquals(900L, ranges.get(0).getStart());
+        assertEquals(200L, ranges.get(1).getStart());
+        assertEquals(999L, ranges.get(1).getEnd());
+
+        // Valid, but not satisfiable
+        ranges = ByteRange.parse("bytes=1000-1100", 1000L);
+        assertTrue(ranges.isEmpty());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.util.impl;
+
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.alfresco.wcm.client.Asset;
+import org.alfresco.wcm.client.FileBackedContentStream;
+import org.alfresco.wcm.client.Rendition;
+import org.alfresco.wcm.client.Resource;
+
+public class SimpleCacheControlHeaderHelperTest extends TestCase
+{
+    private static final Date MODIFIED = new Date(1300000000123L);
+
+    private SimpleCacheControlHeaderHelper helper;
+    private Asset asset;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        helper = new SimpleCacheControlHeaderHelper();
+        asset = mock(Asset.class);
+        when(asset.getId()).thenReturn("workspace://SpacesStore/asset");
+        when(asset.getProperty(Resource.PROPERTY_MODIFIED_TIME)).thenReturn(MODIFIED);
+        when(asset.getRenditions()).thenReturn(Collections.<String, Rendition>singletonMap("thumbnail",
+                new DigestedRendition(null)));
+    }
+
+    public void testIfNoneMatchStrongETag()
+    {
+        String etag = helper.getETag(asset, null);
+        assertTrue(etag.startsWith("\""));
+
+        assertNotModified(null, etag);
+        assertNotModified(null, "\"other\", " + etag);
+        assertNotModified(null, "*");
+        // The weak comparison ignores the weakness of the tag held by the client
+        assertNotModified(null, "W/" + etag);
+        assertModified(null, "\"other\"");
+    }
+
+    public void testIfNoneMatchWeakETag()
+    {
+        // A rendition whose content digest isn't known has a weak ETag
+        String etag = helper.getETag(asset, "thumbnail");
+        assertTrue(etag.startsWith("W/\""));
+
+        assertNotModified("thumbnail", etag);
+        assertNotModified("thumbnail", etag.substring(2));
+        assertModified("thumbnail", "W/\"other\"");
+    }
+
+    public void testRenditionETagChangesWithContent()
+    {
+        String etag = helper.getETag(asset, "thumbnail");
+        when(asset.getRenditions()).thenReturn(Collections.<String, Rendition>singletonMap("thumbnail",
+                new DigestedRendition("0123456789abcdef")));
+        String digestedETag = helper.getETag(asset, "thumbnail");
+
+        assertTrue(digestedETag.startsWith("\""));
+        assertTrue(digestedETag.contains("0123456789abcdef"));
+        assertModified("thumbnail", etag);
+    }
+
+    public void testIfRangeETag()
+    {
+        String etag = helper.getETag(asset, null);
+
+        assertTrue(helper.isRangeRequestAllowed(asset, null, request("If-Range", null)));
+        assertTrue(helper.isRangeRequestAllowed(asset, null, request("If-Range", etag)));
+        assertFalse(helper.isRangeRequestAllowed(asset, null, request("If-Range", "\"other\"")));
+        // If-Range only allows the strong comparison
+        assertFalse(helper.isRangeRequestAllowed(asset, null, request("If-Range", "W/" + etag)));
+        String weakETag = helper.getETag(asset, "thumbnail");
+        assertFalse(helper.isRangeRequestAllowed(asset, "thumbnail", request("If-Range", weakETag)));
+        assertFalse(helper.isRangeRequestAllowed(asset, "thumbnail", request("If-Range", weakETag.substring(2))));
+    }
+
+    public void testIfRangeDate()
+    {
+        String lastModified = helper.getHttpDate(MODIFIED);
+        String earlier = helper.getHttpDate(new Date(MODIFIED.getTime() - 60000L));
+
+        assertTrue(helper.isRangeRequestAllowed(asset, null, request("If-Range", lastModified)));
+        assertFalse(helper.isRangeRequestAllowed(asset, null, request("If-Range", earlier)));
+        assertFalse(helper.isRangeRequestAllowed(asset, null, request("If-Range", "not a date")));
+    }
+
+    private void assertNotModified(String renditionName, String ifNoneMatch)
+    {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        assertFalse(helper.setHeaders(asset, renditionName, false, request("If-None-Match", ifNoneMatch), response));
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    private void assertModified(String renditionName, String ifNoneMatch)
+    {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        assertTrue(helper.setHeaders(asset, renditionName, false, request("If-None-Match", ifNoneMatch), response));
+        verify(response, never()).setStatus(anyInt());
+    }
+
+    private static HttpServletRequest request(String header, String value)
+    {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader(header)).thenReturn(value);
+        return request;
+    }
+
+    /**
+     * A rendition held in a file, whose content has the given digest
+     */
+    private static class DigestedRendition implements Rendition, FileBackedContentStream
+    {
+        private final String digest;
+
+        public DigestedRendition(String digest)
+        {
+            this.digest = digest;
+        }
+
+        public String getDigest()
+        {
+            return digest;
+        }
+
+        public File retainFile(long milliseconds)
+        {
+            return null;
+        }
+
+        public FileChannel openChannel()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getHeight()
+        {
+            return 0L;
+        }
+
+        public long getWidth()
+        {
+            return 0L;
+        }
+
+        public String getFileName()
+        {
+            return "thumbnail.png";
+        }
+
+        public long getLength()
+        {
+            return 0L;
+        }
+
+        public String getMimeType()
+        {
+            return "image/png";
+        }
+
+        public InputStream getStream()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(Writer writer)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(Writer writer, String encoding)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void output(OutputStream output)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of the Alfresco Web Quick Start module.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.alfresco.wcm.client.view;
+
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Date;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.alfresco.wcm.client.Asset;
+import org.alfresco.wcm.client.FileBackedContentStream;
+import org.alfresco.wcm.client.Resource;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class StreamedAssetViewTest extends TestCase
+{
+    private static final String CONTENT = "0123456789abcdefghij";
+
+    private File file;
+    private Asset asset;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream body;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("wqsstreamedassetviewtest", ".txt");
+        OutputStream os = new FileOutputStream(file);
+        os.write(CONTENT.getBytes("ISO-8859-1"));
+        os.close();
+
+        asset = mock(Asset.class);
+        when(asset.getId()).thenReturn("workspace://SpacesStore/asset");
+        when(asset.getProperty(Resource.PROPERTY_MODIFIED_TIME)).thenReturn(new Date());
+        when(asset.getContentAsInputStream()).thenReturn(new FileContentStream(file));
+
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        body = new ByteArrayOutputStream();
+        // Collect whatever is written to the response, however it is written
+        ServletOutputStream out = mock(ServletOutputStream.class, new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                if (invocation.getMethod().getName().equals("write"))
+                {
+                    if (args.length == 3)
+                    {
+                        body.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                    }
+                    else if (args[0] instanceof byte[])
+                    {
+                        body.write((byte[]) args[0]);
+                    }
+                    else
+                    {
+                        body.write((Integer) args[0]);
+                    }
+                }
+                return null;
+            }
+        });
+        when(response.getOutputStream()).thenReturn(out);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testMultipleRangesAreSentAsMultipart() throws Exception
+    {
+        when(request.getHeader("Range")).thenReturn("bytes=0-3,10-12");
+
+        new StreamedAssetView(asset).renderMergedOutputModel(Collections.<String, Object>emptyMap(), request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+        verify(response, atLeastOnce()).setContentType(contentType.capture());
+        assertTrue(contentType.getValue().startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.getValue().substring("multipart/byteranges; boundary=".length());
+
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-3/20\r\n\r\n"
+                + "0123"
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 10-12/20\r\n\r\n"
+                + "abc"
+                + "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, body.toString("ISO-8859-1"));
+        verify(response).setHeader("Content-Length", Integer.toString(expected.length()));
+    }
+
+    public void testSingleRange() throws Exception
+    {
+        when(request.getHeader("Range")).thenReturn("bytes=5-9");
+
+        new StreamedAssetView(asset).renderMergedOutputModel(Collections.<String, Object>emptyMap(), request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader("Content-Range", "bytes 5-9/20");
+        verify(response).setHeader("Content-Length", "5");
+        assertEquals("56789", body.toString("ISO-8859-1"));
+    }
+
+    public void testRangesIgnoredWhenIfRangeDoesNotMatch() throws Exception
+    {
+        when(request.getHeader("Range")).thenReturn("bytes=0-3,10-12");
+        when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+
+        new StreamedAssetView(asset).renderMergedOutputModel(Collections.<String, Object>emptyMap(), request, response);
+
+        verify(response, never()).setStatus(anyInt());
+        verify(response).setHeader("Content-Length", "20");
+        assertEquals(CONTENT, body.toString("ISO-8859-1"));
+    }
+
+    public void testUnsatisfiableRange() throws Exception
+    {
+        when(request.getHeader("Range")).thenReturn("bytes=20-30");
+
+        new StreamedAssetView(asset).renderMergedOutputModel(Collections.<String, Object>emptyMap(), request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(response).setHeader("Content-Range", "bytes */20");
+        assertEquals(0, body.size());
+    }
+
+    /**
+     * Content held in a local file that can't be retained for the container's sendfile support
+     */
+    private static class FileContentStream implements FileBackedContentStream
+    {
+        private final File file;
+
+        public FileContentStream(File file)
+        {
+            this.file = file;
+        }
+
+        public File retainFile(long milliseconds)
+        {
+            return null;
+        }
+
+        public FileChannel openChannel() throws IOException
+        {
+            return new FileInputStream(file).getChannel();
+        }
+
+        public String getDigest()
+        {
+            return null;
+        }
+
+        public String getFileName()
+        {
+            return file.getName();
+        }
+
+        public long getLength()
+        {
+            return file.length();
+        }
+
+        public String getMimeType()
+        {
+            return "text/plain";
+        }
+
+        public InputStream getStream()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(Writer writer)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void write(Writer writer, String encoding)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void output(OutputStream output)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}